@@ -36,14 +36,12 @@ print('These would be deleted:', json.dumps(rj, indent=2))
 input('Press enter to continue (or Ctrl-C to cancel)')
 
 
-for item in rj:
-    item_id = item['id']
-    r = requests.delete(server_url + '/data/event/' + str(item_id),
-                        headers={'content-type': 'application/json'},
-                        auth=(server_username, server_password),
-                        timeout=10)
-
-    if r.status_code == requests.codes.ok:
-        print('Successfully deleted event', item_id)
-    else:
-        print('Error deleting event', item_id, r)
+r = requests.delete(server_url + '/data/events?' + sys.argv[1],
+                    headers={'content-type': 'application/json'},
+                    auth=(server_username, server_password),
+                    timeout=600)
+
+if r.status_code == requests.codes.ok:
+    print('Successfully deleted', r.json()['events'], 'events')
+else:
+    print('Error deleting events', r)
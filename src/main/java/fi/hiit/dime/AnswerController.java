@@ -27,15 +27,24 @@ package fi.hiit.dime;
 //------------------------------------------------------------------------------
 
 import fi.hiit.dime.answer.*;
+import fi.hiit.dime.authentication.User;
 import fi.hiit.dime.database.*;
-import java.util.Calendar;
-import java.util.Date;
+import fi.hiit.dime.database.EventHistDAO.GroupBy;
+import fi.hiit.dime.database.EventHistDAO.Resolution;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.text.DateFormat;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -45,41 +54,149 @@ import org.springframework.web.bind.annotation.RestController;
 
 @RestController
 @RequestMapping("/api/answer")
-public class AnswerController {
-    private final EventDAO eventDAO;
-
-    @Autowired
-    AnswerController(EventDAO eventDAO) {
-	this.eventDAO = eventDAO;
-    }
-
-    // @RequestMapping(value="/eventhist", method = RequestMethod.GET)
-    // public ResponseEntity<List<EventHistAnswer>>
-    // 	eventHist(@RequestParam(defaultValue="false") String perc,
-    // 		  @RequestParam(defaultValue="actor") String groupBy) {
+public class AnswerController extends AuthorizedController {
+    // Upper bound of buckets in one histogram
+    private static final int MAX_BUCKETS = 10000;
 
-    // 	List<EventHistAnswer> answer = new ArrayList<EventHistAnswer>();
+    private final EventHistDAO eventHistDAO;
 
-    // 	// Set calendar to tomorrow at 00:00:00
-    // 	Calendar cal = Calendar.getInstance();
-    // 	cal.add(Calendar.DAY_OF_MONTH, 1);
-    // 	cal.set(Calendar.HOUR, 0);
-    // 	cal.set(Calendar.MINUTE, 0);
-    // 	cal.set(Calendar.SECOND, 0);
-    // 	cal.set(Calendar.MILLISECOND, 0);
-
-    // 	for (int i=0; i<10; i++) {
-    // 	    Date toDate = cal.getTime();
-    // 	    cal.add(Calendar.DAY_OF_MONTH, -1);
-    // 	    Date fromDate = cal.getTime();
+    @Autowired
+    private ObjectMapper objectMapper;
 
-    // 	    List<EventCount> results = eventDAO.eventHist(groupBy, fromDate, 
-    // 							  toDate,
-    // 							  !perc.equals("false"));
+    @Autowired
+    AnswerController(EventHistDAO eventHistDAO) {
+	this.eventHistDAO = eventHistDAO;
+    }
 
-    // 	    answer.add(new EventHistAnswer(fromDate, results));
-    // 	}
+    private Date parseDate(String name, String value)
+        throws BadRequestException
+    {
+        // Clone, since DateFormat is not thread-safe
+        DateFormat df = (DateFormat)objectMapper.getDeserializationConfig()
+            .getDateFormat().clone();
+        try {
+            return df.parse(value.trim());
+        } catch (ParseException e) {
+            throw new BadRequestException(name + "=" + value);
+        }
+    }
 
-    // 	return new ResponseEntity<List<EventHistAnswer>>(answer, HttpStatus.OK);
-    // }
+    /**
+        @api {get} /answer/eventhist Event histogram
+        @apiName EventHist
+        @apiDescription Number of events per time bucket, counted
+        separately for each value of the given event property. The
+        counts are kept up to date as events are uploaded and deleted,
+        so long time ranges are cheap to query. Buckets start at full
+        hours, at midnight, or on Monday at midnight, all in UTC.
+        Events are placed by their start time. Events without a value
+        for the property are not counted.
+
+        @apiParam {String} [resolution=day] Bucket size: hour, day or week
+        @apiParam {String} [groupBy=actor] Event property to count:
+        actor, origin, type or @type
+        @apiParam {String} [from] Start of the time range, in the same
+        formats as the date filters of the data endpoints. Defaults to
+        nine buckets before the current one.
+        @apiParam {String} [to] End of the time range, exclusive.
+        Defaults to the end of the current bucket.
+        @apiParam {Boolean} [perc=false] Also give each count as a
+        percentage of the bucket's total
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            [
+              {
+                "date": "2016-10-24T00:00:00.000+0000",
+                "hist": [
+                  { "value": "DiMe browser extension", "count": 120, "perc": 0.0 },
+                  { "value": "SearchUI", "count": 3, "perc": 0.0 }
+                ]
+              },
+              {
+                "date": "2016-10-25T00:00:00.000+0000",
+                "hist": []
+              }
+            ]
+        @apiErrorExample {json} Example error response for invalid parameters:
+            HTTP/1.1 400 OK
+            {
+                "message": "Bad request: groupBy=foo",
+                "code": 400
+            }
+        @apiPermission user
+        @apiGroup Answers
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/eventhist", method = RequestMethod.GET)
+    public ResponseEntity<List<EventHistAnswer>>
+	eventHist(Authentication auth,
+		  @RequestParam(defaultValue="day") String resolution,
+		  @RequestParam(defaultValue="actor") String groupBy,
+		  @RequestParam(required=false) String from,
+		  @RequestParam(required=false) String to,
+		  @RequestParam(defaultValue="false") boolean perc)
+        throws BadRequestException
+    {
+        User user = getUser(auth);
+
+        Resolution res;
+        GroupBy group;
+        try {
+            res = Resolution.parse(resolution);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("resolution=" + resolution);
+        }
+        try {
+            group = GroupBy.parse(groupBy);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("groupBy=" + groupBy);
+        }
+
+        Date toDate = to != null ? parseDate("to", to) :
+            res.next(res.bucketStart(new Date()));
+
+        Date fromDate;
+        if (from != null) {
+            fromDate = parseDate("from", from);
+        } else {
+            fromDate = res.bucketStart(toDate);
+            for (int i=0; i<10; i++)
+                fromDate = res.bucketStart(new Date(fromDate.getTime() - 1));
+        }
+
+        // Guard against accidentally asking for e.g. decades of hours
+        long bucketMillis = res.next(new Date(0)).getTime();
+        if ((toDate.getTime() - fromDate.getTime()) / bucketMillis >
+            MAX_BUCKETS)
+            throw new BadRequestException("Too many buckets, max " +
+                                          MAX_BUCKETS);
+
+        Map<Date, Map<String, Long>> hist =
+            eventHistDAO.histogram(user.getId(), res, group, fromDate, toDate);
+
+        List<EventHistAnswer> answer = new ArrayList<EventHistAnswer>();
+        for (Map.Entry<Date, Map<String, Long>> bucket : hist.entrySet()) {
+            List<EventCount> counts = new ArrayList<EventCount>();
+            long total = 0;
+            for (Map.Entry<String, Long> c : bucket.getValue().entrySet()) {
+                counts.add(new EventCount(c.getKey(), c.getValue()));
+                total += c.getValue();
+            }
+
+            Collections.sort(counts, new Comparator<EventCount>() {
+                    public int compare(EventCount a, EventCount b) {
+                        return Long.compare(b.count, a.count);
+                    }
+                });
+
+            if (perc)
+                for (EventCount ec : counts)
+                    ec.perc = ec.count/(double)total*100.0;
+
+            answer.add(new EventHistAnswer(bucket.getKey(), counts));
+        }
+
+        return new ResponseEntity<List<EventHistAnswer>>(answer, HttpStatus.OK);
+    }
 }
@@ -28,15 +28,20 @@ import static fi.hiit.dime.search.SearchIndex.WeightType;
 import static fi.hiit.dime.search.SearchIndex.weightType;
 
 import fi.hiit.dime.authentication.CurrentUser;
+import fi.hiit.dime.authentication.Role;
 import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.authentication.UserPurgeJob;
+import fi.hiit.dime.authentication.UserService;
 import fi.hiit.dime.data.DiMeData;
 import fi.hiit.dime.data.DiMeDataRelation;
 import fi.hiit.dime.data.Event;
 import fi.hiit.dime.data.EventRelation;
 import fi.hiit.dime.data.InformationElement;
 import fi.hiit.dime.data.InformationElementRelation;
+import fi.hiit.dime.data.Location;
 import fi.hiit.dime.data.Profile;
 import fi.hiit.dime.data.ResourcedEvent;
+import fi.hiit.dime.database.CacheStats;
 import fi.hiit.dime.database.EventDAO;
 import fi.hiit.dime.database.InformationElementDAO;
 import fi.hiit.dime.database.ProfileDAO;
@@ -45,8 +50,11 @@ import fi.hiit.dime.search.SearchIndex.SearchQueryException;
 import fi.hiit.dime.search.SearchIndex;
 import fi.hiit.dime.search.SearchQuery;
 import fi.hiit.dime.search.SearchResults;
+import fi.hiit.dime.search.SearchSuggester;
+import fi.hiit.dime.search.SearchWarmup;
 import fi.hiit.dime.search.TextSearchQuery;
 import fi.hiit.dime.search.WeightedKeyword;
+import fi.hiit.dime.util.GeoArea;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +65,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
+import org.springframework.util.StringUtils;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -67,8 +76,10 @@ import org.springframework.web.bind.annotation.RestController;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.servlet.ServletRequest;
@@ -85,6 +96,13 @@ public class ApiController extends AuthorizedController {
     private static final Logger LOG =
         LoggerFactory.getLogger(ApiController.class);
 
+    // Limit of search results when none is given, as in SearchIndex
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    // When filtering search results by area, this many times more
+    // text matches are fetched, since the area is checked afterwards
+    private static final int GEO_SEARCH_FACTOR = 10;
+
     private final EventDAO eventDAO;
     private final InformationElementDAO infoElemDAO;
     private final ProfileDAO profileDAO;
@@ -95,6 +113,18 @@ public class ApiController extends AuthorizedController {
     @Autowired
     SearchIndex searchIndex;
 
+    @Autowired
+    SearchSuggester searchSuggester;
+
+    @Autowired
+    SearchWarmup searchWarmup;
+
+    @Autowired
+    CacheStats cacheStats;
+
+    @Autowired
+    UserService userService;
+
     @Autowired
     ApiController(EventDAO eventDAO,
                   InformationElementDAO infoElemDAO,
@@ -146,6 +176,159 @@ public class ApiController extends AuthorizedController {
                                               headers, HttpStatus.OK);
     }
 
+    /**
+        @api {get} /health Readiness check
+        @apiName Health
+        @apiDescription Check if the dime-server is ready to serve
+        searches. After startup the server first warms up the search
+        index in the background, and until that has finished this
+        returns HTTP 503 with the message "warming up". If the warm-up
+        failed it keeps returning HTTP 503, with a message starting
+        with "search warm-up failed".
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            {
+                "message": "ready"
+            }
+        @apiGroup Status
+        @apiVersion 0.1.2
+    */
+    @RequestMapping("/health")
+    public ResponseEntity<ApiMessage> health() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+
+        String error = searchWarmup.getError();
+        if (error != null)
+            return new ResponseEntity<ApiMessage>
+                (new ApiMessage("search warm-up failed: " + error), headers,
+                 HttpStatus.SERVICE_UNAVAILABLE);
+
+        if (!searchWarmup.isReady())
+            return new ResponseEntity<ApiMessage>
+                (new ApiMessage("warming up"), headers,
+                 HttpStatus.SERVICE_UNAVAILABLE);
+
+        return new ResponseEntity<ApiMessage>(new ApiMessage("ready"),
+                                              headers, HttpStatus.OK);
+    }
+
+    /**
+        @api {get} /cachestats Cache statistics
+        @apiName CacheStats
+        @apiDescription Hit and miss counts of the database object
+        cache, one entry for each cached type or collection. The cache
+        sizes are configured in ehcache.xml.
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            [
+              {
+                "region": "fi.hiit.dime.data.InformationElement",
+                "hitCount": 1520,
+                "missCount": 35,
+                "putCount": 35,
+                "elementCountInMemory": 35,
+                "hitRatio": 0.977491961414791
+              }
+            ]
+        @apiPermission admin
+        @apiGroup Status
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/cachestats", method = RequestMethod.GET)
+    public ResponseEntity<CacheStats.RegionStats[]> cacheStats(Authentication auth)
+        throws ForbiddenException
+    {
+        checkAdmin(auth);
+
+        List<CacheStats.RegionStats> regions = cacheStats.getRegions();
+        return new ResponseEntity<CacheStats.RegionStats[]>
+            (regions.toArray(new CacheStats.RegionStats[regions.size()]),
+             HttpStatus.OK);
+    }
+
+    /**
+        @api {post} /users/:id/purge Remove user and all data
+        @apiName PurgeUser
+        @apiParam {Number} id User's unique ID
+        @apiDescription Start removing the user and all of the user's
+        data in the background. The data is deleted in chunks, and the
+        progress can be followed with GET /users/:id/purge. If a
+        removal of the user is already in progress, its status is
+        returned instead of starting a new one.
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 202 Accepted
+            {
+                "userId": 3,
+                "state": "RUNNING",
+                "deleted": {
+                    "events": 25000,
+                    "informationElements": 0
+                },
+                "started": "2016-10-19T12:00:00.000Z",
+                "finished": null,
+                "error": null,
+                "active": true
+            }
+        @apiPermission admin
+        @apiGroup Users
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/users/{id}/purge", method = RequestMethod.POST)
+    public ResponseEntity<UserPurgeJob> purgeUser(Authentication auth,
+                                                  @PathVariable Long id)
+        throws ForbiddenException, NotFoundException
+    {
+        checkAdmin(auth);
+
+        UserPurgeJob job = userService.getPurgeJob(id);
+        if ((job == null || !job.isActive()) &&
+            userService.getUserById(id) == null)
+            throw new NotFoundException("User not found");
+
+        return new ResponseEntity<UserPurgeJob>(userService.startPurge(id),
+                                                HttpStatus.ACCEPTED);
+    }
+
+    /**
+        @api {get} /users/:id/purge Status of user removal
+        @apiName PurgeUserStatus
+        @apiParam {Number} id User's unique ID
+        @apiDescription Return the status of the latest removal of the
+        user started with POST /users/:id/purge, the state is one of
+        QUEUED, RUNNING, DONE or FAILED.
+
+        @apiPermission admin
+        @apiGroup Users
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/users/{id}/purge", method = RequestMethod.GET)
+    public ResponseEntity<UserPurgeJob> purgeUserStatus(Authentication auth,
+                                                        @PathVariable Long id)
+        throws ForbiddenException, NotFoundException
+    {
+        checkAdmin(auth);
+
+        UserPurgeJob job = userService.getPurgeJob(id);
+        if (job == null)
+            throw new NotFoundException("No removal started for user");
+
+        return new ResponseEntity<UserPurgeJob>(job, HttpStatus.OK);
+    }
+
+    /**
+       Helper method to check that the user is an administrator.
+    */
+    protected void checkAdmin(Authentication auth)
+        throws ForbiddenException
+    {
+        if (getUser(auth).role != Role.ADMIN)
+            throw new ForbiddenException("Administrator access required");
+    }
+
     /**
        Helper method to transform the search results into an
        appropriate format for returning from the API.
@@ -198,6 +381,82 @@ public class ApiController extends AuthorizedController {
         return res;
     }
 
+    /**
+       Return the number of text matches to fetch for a search with
+       the given limit, more if the results are to be filtered by
+       area afterwards.
+    */
+    protected static int searchLimit(int limit, GeoArea area) {
+        if (area == null)
+            return limit;
+        return (limit < 0 ? DEFAULT_SEARCH_LIMIT : limit)*GEO_SEARCH_FACTOR;
+    }
+
+    /**
+       Helper method to keep only the search results located in the
+       given area, and at most limit of them. Events are checked by
+       their own location, and information elements by the locations
+       of the events targetting them.
+    */
+    protected void filterByArea(SearchResults res, GeoArea area,
+                                Map<String, String> areaParams, int limit,
+                                User user)
+    {
+        if (limit < 0)
+            limit = DEFAULT_SEARCH_LIMIT;
+
+        Set<Long> elemIds = null;
+        List<Long> ids = new ArrayList<Long>();
+        for (DiMeData d : res.getDocs())
+            if (d instanceof InformationElement)
+                ids.add(d.getId());
+
+        if (!ids.isEmpty()) {
+            Map<String, String> params =
+                new HashMap<String, String>(areaParams);
+            params.put("elemid.in",
+                       StringUtils.collectionToCommaDelimitedString(ids));
+            elemIds = new HashSet<Long>(eventDAO.elementIds(user.getId(),
+                                                            params));
+        }
+
+        List<DiMeData> docs = new ArrayList<DiMeData>();
+        for (DiMeData d : res.getDocs()) {
+            if (docs.size() >= limit)
+                break;
+
+            boolean inside = false;
+            if (d instanceof Event) {
+                Location loc = ((Event)d).location;
+                inside = loc != null && area.contains(loc.latitude,
+                                                      loc.longitude);
+            } else if (elemIds != null) {
+                inside = elemIds.contains(d.getId());
+            }
+            if (inside)
+                docs.add(d);
+        }
+        res.setDocs(docs);
+    }
+
+    /**
+       Helper method to collect the area parameters of a search.
+
+       @return The parameters that were given, as filtering parameters
+       for EventDAO
+    */
+    protected static Map<String, String> areaParams(String bbox, String near,
+                                                    String radius) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (bbox != null)
+            params.put("bbox", bbox);
+        if (near != null)
+            params.put("near", near);
+        if (radius != null)
+            params.put("radius", radius);
+        return params;
+    }
+
     /**
        @apiDefine user User access 
        You need to be authenticated as a registered DiMe user.
@@ -214,6 +473,20 @@ It returns an object that contains some meta-data and in the "docs" element a li
 
         @apiParam (Options) {Number} [limit] limit the number of results
         @apiParam (Options) {Boolean} [includeTerms] set to "true" in order to include indexing terms
+        @apiParam (Options) {String} [fields] comma-separated list of
+        fields to search: plainTextContent, title, subject, name,
+        keywords, abstract, notes or uri (default is all of them). A
+        single term can also be restricted to a field in the query
+        itself, e.g. "title:foo"
+        @apiParam (Options) {String} [bbox] only return results located
+        in the bounding box minLat,minLon,maxLat,maxLon, see <a
+        href="#api-Events-GetEvents">GET /data/events</a>; information
+        elements are located by the events targetting them, and the
+        area is checked for the best text matches, ten times the limit
+        of them
+        @apiParam (Options) {String} [near] only return results located
+        within radius of the point lat,lon
+        @apiParam (Options) {Number} [radius] radius in metres for near
 
         @apiSuccessExample {json} Example successful response:
             HTTP/1.1 200 OK
@@ -273,24 +546,33 @@ It returns an object that contains some meta-data and in the "docs" element a li
                @RequestParam String query,
                @RequestParam(value="@type", required=false) String className,
                @RequestParam(value="type", required=false) String typeName,
+               @RequestParam(value="fields", required=false) List<String> fields,
                @RequestParam(value="includeTerms", required=false, 
                              defaultValue="") String includeTerms,
-               @RequestParam(defaultValue="-1") int limit)
+               @RequestParam(defaultValue="-1") int limit,
+               @RequestParam(value="bbox", required=false) String bbox,
+               @RequestParam(value="near", required=false) String near,
+               @RequestParam(value="radius", required=false) String radius)
     {
         User user = getUser(auth);
 
         try {
-            TextSearchQuery textQuery = new TextSearchQuery(query);
+            GeoArea area = GeoArea.fromParams(bbox, near, radius);
+
+            TextSearchQuery textQuery = new TextSearchQuery(query, fields);
             SearchResults results = doSearch(textQuery, className, typeName,
-                                             limit, user, 
+                                             searchLimit(limit, area), user, 
                                              weightType(includeTerms));
+            if (area != null)
+                filterByArea(results, area, areaParams(bbox, near, radius),
+                             limit, user);
 
             return new ResponseEntity<SearchResults>(results, HttpStatus.OK);
         } catch (IOException e) {
             return new ResponseEntity<SearchResults>
                 (new SearchResults(e.getMessage()),
                  HttpStatus.INTERNAL_SERVER_ERROR);
-        } catch (SearchQueryException e) {
+        } catch (SearchQueryException | IllegalArgumentException e) {
             return new ResponseEntity<SearchResults>
                 (new SearchResults(e.getMessage()),
                  HttpStatus.BAD_REQUEST);
@@ -321,6 +603,19 @@ The return format is the same as for the <a href="#api-Search-SearchInformationE
 
         @apiParam (Options) {Number} [limit] limit the number of results
         @apiParam (Options) {Boolean} [includeTerms] set to "true" in order to include indexing terms
+        @apiParam (Options) {String} [fields] comma-separated list of
+        fields to search: plainTextContent, title, subject, name,
+        keywords, abstract, notes or uri (default is all of them). A
+        single term can also be restricted to a field in the query
+        itself, e.g. "title:foo"
+        @apiParam (Options) {String} [bbox] only return results located
+        in the bounding box minLat,minLon,maxLat,maxLon, see <a
+        href="#api-Events-GetEvents">GET /data/events</a>; the area is
+        checked for the events of the best text matches, ten times the
+        limit of them
+        @apiParam (Options) {String} [near] only return results located
+        within radius of the point lat,lon
+        @apiParam (Options) {Number} [radius] radius in metres for near
 
         @apiPermission user
         @apiGroup Search
@@ -332,23 +627,34 @@ The return format is the same as for the <a href="#api-Search-SearchInformationE
                     @RequestParam String query,
                     @RequestParam(value="@type", required=false) String className,
                     @RequestParam(value="type", required=false) String typeName,
+                    @RequestParam(value="fields", required=false) List<String> fields,
                     @RequestParam(value="includeTerms", required=false,
                                   defaultValue="") String includeTerms,
-                    @RequestParam(defaultValue="-1") int limit) {
+                    @RequestParam(defaultValue="-1") int limit,
+                    @RequestParam(value="bbox", required=false) String bbox,
+                    @RequestParam(value="near", required=false) String near,
+                    @RequestParam(value="radius", required=false) String radius) {
         User user = getUser(auth);
 
         try {
-            TextSearchQuery textQuery = new TextSearchQuery(query);
+            GeoArea area = GeoArea.fromParams(bbox, near, radius);
+
+            TextSearchQuery textQuery = new TextSearchQuery(query, fields);
             SearchResults results = doEventSearch(textQuery, className,
-                                                  typeName, limit, user,
+                                                  typeName,
+                                                  searchLimit(limit, area),
+                                                  user,
                                                   weightType(includeTerms));
+            if (area != null)
+                filterByArea(results, area, areaParams(bbox, near, radius),
+                             limit, user);
 
             return new ResponseEntity<SearchResults>(results, HttpStatus.OK);
         } catch (IOException e) {
             return new ResponseEntity<SearchResults>
                 (new SearchResults(e.getMessage()),
                  HttpStatus.INTERNAL_SERVER_ERROR);
-        } catch (SearchQueryException e) {
+        } catch (SearchQueryException | IllegalArgumentException e) {
             return new ResponseEntity<SearchResults>
                 (new SearchResults(e.getMessage()),
                  HttpStatus.BAD_REQUEST);
@@ -419,6 +725,51 @@ The return format is the same as for the <a href="#api-Search-SearchInformationE
         }
     }
 
+    /**
+        @api {get} /suggest Typeahead suggestions
+        @apiName Suggest
+        @apiDescription Return suggestions for completing a partially
+        typed search query, best first. The suggestions are built from
+        the titles, tags, frequent terms and earlier search queries of
+        the user's indexed data. Lookups are done in a separate
+        suggester index, so this is fast enough to call on every
+        keystroke.
+
+        @apiParam {String} query What has been typed so far
+
+        @apiParam (Options) {Number} [limit] maximum number of suggestions (default 10)
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            [
+              "Neural networks",
+              "neural"
+            ]
+
+        @apiPermission user
+        @apiGroup Search
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/suggest", method = RequestMethod.GET)
+    public ResponseEntity<List<String>>
+        suggest(Authentication auth,
+                @RequestParam String query,
+                @RequestParam(defaultValue="10") int limit)
+    {
+        User user = getUser(auth);
+
+        try {
+            List<String> suggestions =
+                searchSuggester.lookup(user.getId(), query, limit);
+            return new ResponseEntity<List<String>>(suggestions,
+                                                    HttpStatus.OK);
+        } catch (IOException e) {
+            LOG.error("Suggester lookup failed: {}", e);
+            return new ResponseEntity<List<String>>
+                (HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     /**
      * Helper method to save a profile.
      *
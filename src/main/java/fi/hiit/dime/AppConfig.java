@@ -25,6 +25,7 @@
 package fi.hiit.dime;
 
 import fi.hiit.dime.search.SearchIndex;
+import fi.hiit.dime.search.SearchSuggester;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.MapperFeature;
@@ -50,7 +51,15 @@ public class AppConfig {
     @Bean
     public SearchIndex searchIndex() throws Exception {
 	return new SearchIndex(dimeConfig.getLuceneIndexPath(),
-                               dimeConfig.getLuceneAnalyzer());
+                               dimeConfig.getLuceneAnalyzer(),
+                               dimeConfig.getLuceneIndexPartitioned(),
+                               dimeConfig.getLuceneMaxOpenShards());
+    }
+
+    @Bean
+    public SearchSuggester searchSuggester() {
+        return new SearchSuggester(dimeConfig.getLuceneSuggestPath(),
+                                   dimeConfig.getLuceneMaxOpenShards());
     }
 
     @Bean
@@ -70,7 +79,7 @@ public class AppConfig {
                 if (corsOrigin != null) {
                     for (String url : corsOrigin)
                         LOG.debug("CORS enabled for " + url);
-                    registry.addMapping("/api/**").allowedOrigins(corsOrigin).allowedMethods("GET", "HEAD", "POST", "DELETE");
+                    registry.addMapping("/api/**").allowedOrigins(corsOrigin).allowedMethods("GET", "HEAD", "POST", "DELETE").exposedHeaders(DataController.NEXT_CURSOR_HEADER);
                 }
             }
         };
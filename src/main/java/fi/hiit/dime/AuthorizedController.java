@@ -49,6 +49,13 @@ public class AuthorizedController {
         }
     }
 
+    @ResponseStatus(value=HttpStatus.FORBIDDEN)
+    public class ForbiddenException extends Exception {
+        public ForbiddenException(String msg) {
+            super(msg);
+        }
+    }
+
     @ResponseStatus(value=HttpStatus.BAD_REQUEST)
     public class BadRequestException extends Exception {
         public BadRequestException(String msg) {
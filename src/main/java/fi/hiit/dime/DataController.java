@@ -28,14 +28,23 @@ import fi.hiit.dime.authentication.User;
 import fi.hiit.dime.authentication.CurrentUser;
 import fi.hiit.dime.data.*;
 import fi.hiit.dime.database.*;
+import fi.hiit.dime.search.SearchIndex.SearchQueryException;
 import fi.hiit.dime.search.SearchIndex;
+import fi.hiit.dime.search.SearchResults;
+import fi.hiit.dime.util.GeoArea;
+import fi.hiit.dime.util.Geohash;
 import static fi.hiit.dime.search.SearchIndex.weightType;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
@@ -47,6 +56,8 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.servlet.http.HttpServletResponse;
+
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -63,9 +74,23 @@ public class DataController extends AuthorizedController {
     private static final Logger LOG = 
         LoggerFactory.getLogger(DataController.class);
 
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    // Upper bound of maxClusters for /events/clusters
+    private static final int MAX_CLUSTERS = 10000;
+
     private final EventDAO eventDAO;
     private final InformationElementDAO infoElemDAO;
 
+    @Autowired
+    private TagDAO tagDAO;
+
+    @Autowired
+    private ReadingSessionDAO sessionDAO;
+
+    @Autowired
+    private EyeHeatmapDAO heatmapDAO;
+
     @Autowired
     SearchIndex searchIndex;
 
@@ -225,6 +250,19 @@ public class DataController extends AuthorizedController {
     @Transactional
     private InformationElement storeElement(InformationElement elem, User user) 
         throws NotFoundException, BadRequestException {
+        // Objects re-sent by loggers with the same appId are the
+        // common case, try storing them with a single upsert first.
+        // Tagged objects, and classes with entity collections, are
+        // not supported by it and are stored as below.
+        if (elem != null && elem.getId() == null && elem.appId != null &&
+            !elem.isStub()) {
+            elem.user = user;
+            elem.autoFill();
+            InformationElement stored = infoElemDAO.upsert(elem);
+            if (stored != null)
+                return stored;
+        }
+
         elem = expandInformationElement(elem, user);
         infoElemDAO.save(elem);
         return elem;
@@ -258,11 +296,6 @@ public class DataController extends AuthorizedController {
                 throw new BadRequestException("appId not consistent");
             }
             
-        } else if (event.appId != null) {
-            expandedEvent = eventDAO.findByAppId(event.appId, user);
-            if (expandedEvent != null)
-                LOG.debug("appId given, expanded to id={}",
-                          expandedEvent.getId());
         }
 
         if (event instanceof ResourcedEvent) {
@@ -271,6 +304,20 @@ public class DataController extends AuthorizedController {
             revent.targettedResource = storeElement(elem, user);
         }
 
+        if (event.getId() == null && event.appId != null) {
+            // See storeElement
+            event.user = user;
+            event.autoFill();
+            Event stored = eventDAO.upsert(event);
+            if (stored != null)
+                return stored;
+
+            expandedEvent = eventDAO.findByAppId(event.appId, user);
+            if (expandedEvent != null)
+                LOG.debug("appId given, expanded to id={}",
+                          expandedEvent.getId());
+        }
+
         if (expandedEvent != null) {
             event.user = user;
             event.autoFill();
@@ -504,19 +551,54 @@ A <a href="https://github.com/HIIT/dime-server/blob/master/scripts/logger-exampl
         @apiParam (Filtering) {String} [origin] match origin field
         @apiParam (Filtering) {String} [type] match type field
         @apiParam (Filtering) {String} [query] match query field
-        @apiParam (Filtering) {String} [tag] exact tag matching (just
-        one tag needs to match)
+        @apiParam (Filtering) {String} [tag] exact tag matching
+        @apiParam (Filtering) {String} [tags] comma-separated list of
+        tags to match exactly
+        @apiParam (Filtering) {String} [tagmode] 'and' if all of the
+        tags must match (default), 'or' if any of them is enough
         @apiParam (Filtering) {DateTime} [after] matches events
         occurring after this time stamp, the time stamp format is the
         same as for the start and end properties of the Data objects
         @apiParam (Filtering) {DateTime} [before] matches events
         occurring before this time stamp (can be combined with after
         to get a time interval)
+        @apiParam (Filtering) {String} [field.in] matches any of the
+        comma-separated values, e.g. id.in=1,2,3 or actor.in=a,b; id,
+        start, end, timeCreated and timeModified can also be filtered
+        by inclusive ranges with field.from and field.to
+        @apiParam (Filtering) {String} [bbox] matches events located
+        in the bounding box given as minLat,minLon,maxLat,maxLon in
+        degrees, e.g. bbox=60.1,24.8,60.3,25.1; boxes crossing the
+        antimeridian are not supported
+        @apiParam (Filtering) {String} [near] matches events located
+        within radius of the point given as lat,lon in degrees, can be
+        combined with bbox
+        @apiParam (Filtering) {Number} [radius] radius in metres for
+        near, distances are approximate for radii over some hundreds
+        of kilometres
 
         @apiParam (Options) {Boolean} [includePlainTextContent] set to
         'true' if you wish to include the plainTextContent of the
         InformationElements linked to the Events (these are normally
         removed to reduce verbosity)
+        @apiParam (Options) {Boolean} [stream] set to 'true' to stream
+        the results straight from the database to the response, for
+        exporting very large result sets in bounded memory (the
+        X-Next-Cursor header is not sent in this mode)
+
+        @apiParam (Paging) {Number} [limit] maximum number of results
+        to return (default 100 if orderBy or cursor is given, otherwise
+        all results are returned)
+        @apiParam (Paging) {String} [orderBy] sort key, one of start,
+        timeModified or id
+        (default id), results are always in ascending order. Events
+        without a start time are skipped when ordering by start
+        @apiParam (Paging) {String} [cursor] opaque cursor for fetching
+        the next page, taken from the X-Next-Cursor response header of
+        the previous page
+
+        @apiSuccess (Headers) {String} X-Next-Cursor cursor for the
+        next page, only present when the page was full
 
         @apiPermission user
         @apiGroup Events
@@ -526,19 +608,40 @@ A <a href="https://github.com/HIIT/dime-server/blob/master/scripts/logger-exampl
     public ResponseEntity<Event[]>
         events(Authentication auth, 
                @RequestParam(value="includePlainTextContent", required=false,
-                             defaultValue="false") Boolean includePlainTextContent,
-               @RequestParam Map<String, String> params) 
-        throws BadRequestException
+                             defaultValue="false") final Boolean includePlainTextContent,
+               @RequestParam(value="stream", required=false,
+                             defaultValue="false") Boolean stream,
+               @RequestParam Map<String, String> params,
+               HttpServletResponse response)
+        throws BadRequestException, IOException
     {
         User user = getUser(auth);
 
-        // remove includePlainTextContent from map since we capture
-        // this separately
+        // remove includePlainTextContent and stream from map since
+        // we capture these separately
         if (params.containsKey("includePlainTextContent"))
             params.remove("includePlainTextContent");
+        params.remove("stream");
 
         try {
-            List<Event> events = eventDAO.find(user.getId(), params);
+            KeysetPage page = KeysetPage.fromParams(params, true);
+
+            if (stream) {
+                JsonArrayStream<Event> out = new JsonArrayStream<Event>(response) {
+                    @Override
+                    public void handle(Event e) throws IOException {
+                        if (!includePlainTextContent &&
+                            e instanceof ResourcedEvent)
+                            ((ResourcedEvent)e).targettedResource.plainTextContent = null;
+                        super.handle(e);
+                    }
+                };
+                eventDAO.stream(user.getId(), params, page, out);
+                out.close();
+                return null;
+            }
+
+            List<Event> events = eventDAO.find(user.getId(), params, page);
 
             // We remove plainTextContents of linked
             // InformationElements to reduce verbosity
@@ -551,12 +654,202 @@ A <a href="https://github.com/HIIT/dime-server/blob/master/scripts/logger-exampl
             Event[] eventsArray = new Event[events.size()];
             events.toArray(eventsArray);        
 
-            return new ResponseEntity<Event[]>(eventsArray, HttpStatus.OK);
+            return new ResponseEntity<Event[]>(eventsArray,
+                                               pageHeaders(page, events),
+                                               HttpStatus.OK);
         } catch (IllegalArgumentException | InvalidDataAccessApiUsageException e) {
             throw new BadRequestException("Invalid arguments: " + e);
         }
     }   
 
+    /** HTTP end point for accessing events grouped by location.
+
+        @api {get} /data/events/clusters Cluster events by location
+        @apiName GetEventClusters
+        @apiDescription Group the events with a location into geohash
+        cells, for showing them on a map. Each cell is returned with
+        its number of events, their average location and the bounds of
+        the cell, largest cells first. Events without a location are
+        skipped. The filtering parameters are the same as for GET
+        /data/events, typically bbox is set to the visible part of the
+        map.
+
+        @apiParam (Options) {Number} [precision] geohash length of the
+        cells, from 1 (about 5000 km) to 12; by default the highest
+        precision for which at most maxClusters cells cover the
+        bounding box, or the whole planet if no area is given
+        @apiParam (Options) {Number} [maxClusters] maximum number of
+        cells covering the area when choosing the precision
+        (default 256)
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            [
+              {
+                "geohash": "ud9y",
+                "count": 42,
+                "latitude": 60.2047,
+                "longitude": 24.9622,
+                "minLatitude": 60.1171875,
+                "minLongitude": 24.9609375,
+                "maxLatitude": 60.29296875,
+                "maxLongitude": 25.3125
+              }
+            ]
+
+        @apiPermission user
+        @apiGroup Events
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/events/clusters", method = RequestMethod.GET)
+    public ResponseEntity<List<GeoCluster>>
+        eventClusters(Authentication auth,
+                      @RequestParam(value="precision", required=false)
+                      Integer precision,
+                      @RequestParam(value="maxClusters", required=false,
+                                    defaultValue="256") int maxClusters,
+                      @RequestParam Map<String, String> params)
+        throws BadRequestException
+    {
+        User user = getUser(auth);
+
+        params.remove("precision");
+        params.remove("maxClusters");
+
+        if (maxClusters < 1 || maxClusters > MAX_CLUSTERS)
+            throw new BadRequestException("maxClusters must be between 1 " +
+                                          "and " + MAX_CLUSTERS);
+
+        try {
+            if (precision == null) {
+                GeoArea area = GeoArea.fromParams(params.get("bbox"),
+                                                  params.get("near"),
+                                                  params.get("radius"));
+                if (area == null)
+                    area = GeoArea.fromParams("-90,-180,90,180", null, null);
+                precision = Math.max(1, Geohash.coverPrecision
+                                     (area.minLat, area.minLon, area.maxLat,
+                                      area.maxLon, maxClusters));
+            } else if (precision < 1 || precision > Geohash.MAX_PRECISION) {
+                throw new BadRequestException("precision must be between 1 " +
+                                              "and " + Geohash.MAX_PRECISION);
+            }
+
+            return new ResponseEntity<List<GeoCluster>>
+                (eventDAO.geoClusters(user.getId(), params, precision),
+                 HttpStatus.OK);
+        } catch (IllegalArgumentException | InvalidDataAccessApiUsageException e) {
+            throw new BadRequestException("Invalid arguments: " + e);
+        }
+    }
+
+    /** HTTP end point for accessing the summary of a reading session.
+
+        @api {get} /data/readingsession/:sessionId Access reading session
+        @apiName GetReadingSession
+        @apiParam {String} sessionId Session id of the ReadingEvents
+        @apiDescription Access the summary of the ReadingEvents with
+        the given sessionId, as maintained by DiMe while the events
+        are uploaded. It contains the total reading time, the reading
+        time of each page (the duration of an event is divided evenly
+        between its pageNumbers), the union of the rects of all the
+        events, and the proportions of read, interesting and critical
+        area relative to the area seen, i.e. the union of the viewport
+        rects. The plain text and timestamps of the rects are not
+        included. If the client has uploaded a SummaryReadingEvent for
+        the session, its id is given as summaryEventId, and it is not
+        included in the summary.
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            {
+              "sessionId": "4be0643f-1d98-573b-97cd-ca98a65347dd",
+              "elemId": 12,
+              "start": 1466580641725,
+              "end": 1466580701725,
+              "eventCount": 3,
+              "readingTime": 60.0,
+              "proportionRead": 0.25,
+              "proportionInteresting": 0.05,
+              "proportionCritical": 0.0,
+              "pageReadingTime": { "0": 45.0, "1": 15.0 },
+              "rects": [
+                {
+                  "origin": { "x": 0.0, "y": 0.0 },
+                  "size": { "width": 594.0, "height": 792.0 },
+                  "pageIndex": 0,
+                  "readingClass": 10,
+                  "classSource": 1,
+                  "floating": false,
+                  "scaleFactor": 1.0
+                }
+              ]
+            }
+
+        @apiPermission user
+        @apiGroup Events
+        @apiVersion 0.1.2
+     */
+    @RequestMapping(value="/readingsession/{sessionId:.+}",
+                    method = RequestMethod.GET)
+    public ResponseEntity<ReadingSession>
+        readingSession(Authentication auth, @PathVariable String sessionId)
+        throws NotFoundException
+    {
+        User user = getUser(auth);
+
+        ReadingSession session = sessionDAO.get(user.getId(), sessionId);
+        if (session == null)
+            throw new NotFoundException("Reading session not found");
+
+        return new ResponseEntity<ReadingSession>(session, HttpStatus.OK);
+    }
+
+    /** HTTP end point for deleting multiple events via a filtering
+        interface.
+
+        @api {delete} /data/events Delete multiple events
+        @apiName DeleteEvents
+        @apiDescription Delete all events matching the filtering
+        parameters, which are the same as for GET /data/events. At
+        least one filtering parameter must be given. The events are
+        deleted in chunks, each in its own transaction, so a failure
+        may leave part of the events deleted.
+
+        @apiExample {HTTP} Example usage:
+        # Delete all events of a logger before a given time
+        DELETE /data/events?actor=MyLogger&amp;before=2016-06-01T00:00:00Z
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            {
+                "events": 1234,
+                "informationElements": 0
+            }
+
+        @apiPermission user
+        @apiGroup Events
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/events", method = RequestMethod.DELETE)
+    public ResponseEntity<DeleteCount>
+        eventsDelete(Authentication auth,
+                     @RequestParam Map<String, String> params)
+        throws BadRequestException
+    {
+        User user = getUser(auth);
+
+        if (params.isEmpty())
+            throw new BadRequestException("No filtering parameters given");
+
+        try {
+            return new ResponseEntity<DeleteCount>
+                (eventDAO.remove(user.getId(), params), HttpStatus.OK);
+        } catch (IllegalArgumentException | InvalidDataAccessApiUsageException e) {
+            throw new BadRequestException("Invalid arguments: " + e);
+        }
+    }
+
     /** HTTP end point for uploading a single information element. 
         @api {post} /data/informationelement Upload single information element
         @apiName PostInformationElement
@@ -719,6 +1012,136 @@ On success, the response will be the uploaded object with some fields like the i
         return new ResponseEntity<InformationElement>(elem, HttpStatus.OK);
     }   
 
+    /** HTTP end point for finding information elements similar to a
+        given one.
+
+        @api {get} /data/informationelement/:id/similar Similar information elements
+        @apiName GetSimilarInformationElements
+        @apiParam {Number} id The information element's unique ID
+        @apiDescription Return the information elements that are most
+        similar to the given one in their text content. The search is
+        done using the top TF-IDF terms of the element, and these
+        terms are returned in "queryTerms". The return format is the
+        same as for the <a href="#api-Search-SearchInformationElement">information element search</a>.
+
+        @apiParam (Options) {Number} [limit] limit the number of results
+        @apiParam (Options) {Boolean} [includeTerms] set to "true" in order to include indexing terms
+
+        @apiPermission user
+        @apiGroup Information elements
+        @apiVersion 0.1.2
+     */
+    @RequestMapping(value="/informationelement/{id}/similar",
+                    method = RequestMethod.GET)
+    public ResponseEntity<SearchResults>
+        informationElementSimilar(Authentication auth,
+                                  @PathVariable Long id,
+                                  @RequestParam(value="includeTerms",
+                                                required=false,
+                                                defaultValue="")
+                                  String includeTerms,
+                                  @RequestParam(defaultValue="10") int limit)
+        throws NotFoundException
+    {
+        User user = getUser(auth);
+
+        InformationElement elem = infoElemDAO.findById(id, user);
+
+        if (elem == null || !elem.user.getId().equals(user.getId()))
+            throw new NotFoundException("Element not found");
+
+        try {
+            searchIndex.updateIndex();
+            SearchResults res =
+                searchIndex.similar(elem, limit, user.getId(),
+                                    weightType(includeTerms));
+
+            LOG.info("Similar search for element {} (limit={}) returned " +
+                     "{} results.", id, limit, res.getNumFound());
+            return new ResponseEntity<SearchResults>(res, HttpStatus.OK);
+        } catch (IOException e) {
+            return new ResponseEntity<SearchResults>
+                (new SearchResults(e.getMessage()),
+                 HttpStatus.INTERNAL_SERVER_ERROR);
+        } catch (SearchQueryException e) {
+            return new ResponseEntity<SearchResults>
+                (new SearchResults(e.getMessage()),
+                 HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    /** HTTP end point for the eye tracking heatmap of a page of an
+        information element.
+
+        @api {get} /data/informationelement/:id/heatmap Eye tracking heatmap of a page
+        @apiName GetInformationElementHeatmap
+        @apiParam {Number} id The information element's unique ID
+        @apiDescription Return the fixations of all the user's
+        ReadingEvents targetting the information element, summed into
+        a grid over the given page. The grid is made of square cells
+        of "resolution" points in page space, starting from the
+        origin, and "values" gives the seconds of fixation in each
+        cell row by row, so that the cell covering x, y is at index
+        floor(y/resolution)*columns + floor(x/resolution). Each
+        fixation is taken to cover a square of 30 points at 100% zoom,
+        scaled down by the scaleFactor of its PageEyeData, and its
+        duration is divided between the cells under that square.
+
+        The heatmap is cached and kept up to date as new eye data is
+        uploaded.
+
+        @apiParam (Options) {Number} page Page index, from 0
+        @apiParam (Options) {Number} [resolution] side of a cell in points, between 5 and 200, default 20
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            {
+              "elemId": 12,
+              "pageIndex": 0,
+              "resolution": 200,
+              "columns": 3,
+              "rows": 2,
+              "fixationCount": 42,
+              "duration": 9.5,
+              "maxValue": 4.25,
+              "values": [ 0.5, 4.25, 0.0, 1.5, 3.25, 0.0 ]
+            }
+
+        @apiPermission user
+        @apiGroup Information elements
+        @apiVersion 0.1.2
+     */
+    @RequestMapping(value="/informationelement/{id}/heatmap",
+                    method = RequestMethod.GET)
+    public ResponseEntity<EyeHeatmap>
+        informationElementHeatmap(Authentication auth,
+                                  @PathVariable Long id,
+                                  @RequestParam int page,
+                                  @RequestParam(defaultValue="20")
+                                  int resolution)
+        throws NotFoundException, BadRequestException
+    {
+        User user = getUser(auth);
+
+        InformationElement elem = infoElemDAO.findById(id, user);
+
+        if (elem == null || !elem.user.getId().equals(user.getId()))
+            throw new NotFoundException("Element not found");
+
+        if (page < 0)
+            throw new BadRequestException("Invalid arguments: page must " +
+                                          "not be negative");
+
+        try {
+            return new ResponseEntity<EyeHeatmap>
+                (heatmapDAO.get(user.getId(), id, page, resolution),
+                 HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid arguments: " +
+                                          e.getMessage());
+        }
+    }
+
     /** HTTP end point for deleting single information element. 
 
         @api {delete} /data/informationelement/:id Delete single information element
@@ -761,8 +1184,33 @@ On success, the response will be the uploaded object with some fields like the i
         @apiParam (Filtering) {String} [type] match type field
         @apiParam (Filtering) {String} [mimetype] match mimeType field
         @apiParam (Filtering) {String} [title] match title field
-        @apiParam (Filtering) {String} [tag] exact tag matching (just
-        one tag needs to match)
+        @apiParam (Filtering) {String} [tag] exact tag matching
+        @apiParam (Filtering) {String} [tags] comma-separated list of
+        tags to match exactly
+        @apiParam (Filtering) {String} [tagmode] 'and' if all of the
+        tags must match (default), 'or' if any of them is enough
+        @apiParam (Filtering) {String} [field.in] matches any of the
+        comma-separated values, e.g. id.in=1,2,3 or mimetype.in=a,b;
+        id, timeCreated and timeModified can also be filtered by
+        inclusive ranges with field.from and field.to
+
+        @apiParam (Options) {Boolean} [stream] set to 'true' to stream
+        the results straight from the database to the response, for
+        exporting very large result sets in bounded memory (the
+        X-Next-Cursor header is not sent in this mode)
+
+        @apiParam (Paging) {Number} [limit] maximum number of results
+        to return (default 100 if orderBy or cursor is given, otherwise
+        all results are returned)
+        @apiParam (Paging) {String} [orderBy] sort key, one of timeModified or
+        id
+        (default id), results are always in ascending order
+        @apiParam (Paging) {String} [cursor] opaque cursor for fetching
+        the next page, taken from the X-Next-Cursor response header of
+        the previous page
+
+        @apiSuccess (Headers) {String} X-Next-Cursor cursor for the
+        next page, only present when the page was full
 
         @apiExample {HTTP} Example usage:
         # Get all elements containing tag "dime" and mimetype "text/html"
@@ -775,26 +1223,136 @@ On success, the response will be the uploaded object with some fields like the i
     @RequestMapping(value="/informationelements", method = RequestMethod.GET)
     public ResponseEntity<InformationElement[]>
         informationElements(Authentication auth,
-                            @RequestParam Map<String, String> params) 
-        throws BadRequestException
+                            @RequestParam(value="stream", required=false,
+                                          defaultValue="false") Boolean stream,
+                            @RequestParam Map<String, String> params,
+                            HttpServletResponse response)
+        throws BadRequestException, IOException
     {
         User user = getUser(auth);
+        params.remove("stream");
 
         try {
+            KeysetPage page = KeysetPage.fromParams(params, false);
+
+            if (stream) {
+                JsonArrayStream<InformationElement> out =
+                    new JsonArrayStream<InformationElement>(response);
+                infoElemDAO.stream(user.getId(), params, page, out);
+                out.close();
+                return null;
+            }
+
             List<InformationElement> infoElems = 
-                infoElemDAO.find(user.getId(), params);
+                infoElemDAO.find(user.getId(), params, page);
 
             InformationElement[] infoElemsArray = 
                 new InformationElement[infoElems.size()];
             infoElems.toArray(infoElemsArray);  
 
-            return new ResponseEntity<InformationElement[]>(infoElemsArray, 
-                                                            HttpStatus.OK);
-        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<InformationElement[]>
+                (infoElemsArray, pageHeaders(page, infoElems), HttpStatus.OK);
+        } catch (IllegalArgumentException | InvalidDataAccessApiUsageException e) {
             throw new BadRequestException("Invalid arguments");
         }
     }
 
+    /** HTTP end point for deleting multiple information elements via
+        a filtering interface.
+
+        @api {delete} /data/informationelements Delete multiple information elements
+        @apiName DeleteInformationElements
+        @apiDescription Delete all information elements matching the
+        filtering parameters, which are the same as for GET
+        /data/informationelements. At least one filtering parameter
+        must be given. The events targetting the deleted elements are
+        deleted as well. The elements are deleted in chunks, each in
+        its own transaction, so a failure may leave part of the
+        elements deleted.
+
+        @apiExample {HTTP} Example usage:
+        # Delete all elements tagged "obsolete"
+        DELETE /data/informationelements?tag=obsolete
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            {
+                "events": 12,
+                "informationElements": 3
+            }
+
+        @apiPermission user
+        @apiGroup Information elements
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/informationelements",
+                    method = RequestMethod.DELETE)
+    public ResponseEntity<DeleteCount>
+        informationElementsDelete(Authentication auth,
+                                  @RequestParam Map<String, String> params)
+        throws BadRequestException
+    {
+        User user = getUser(auth);
+
+        if (params.isEmpty())
+            throw new BadRequestException("No filtering parameters given");
+
+        try {
+            return new ResponseEntity<DeleteCount>
+                (infoElemDAO.remove(user.getId(), params), HttpStatus.OK);
+        } catch (IllegalArgumentException | InvalidDataAccessApiUsageException e) {
+            throw new BadRequestException("Invalid arguments: " + e);
+        }
+    }
+
+    /**
+        Writes results straight to the HTTP response as a JSON array,
+        one object at a time, instead of serialising a whole list at
+        the end.
+    */
+    protected class JsonArrayStream<T> implements ResultHandler<T> {
+        private final JsonGenerator gen;
+        private final ObjectWriter writer;
+
+        public JsonArrayStream(HttpServletResponse response)
+            throws IOException
+        {
+            response.setContentType("application/json;charset=UTF-8");
+            gen = objectMapper.getFactory()
+                .createGenerator(response.getOutputStream(),
+                                 JsonEncoding.UTF8);
+            // Let the generator's buffer decide when to flush
+            writer = objectMapper.writer()
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            gen.writeStartArray();
+        }
+
+        @Override
+        public void handle(T obj) throws IOException {
+            writer.writeValue(gen, obj);
+        }
+
+        public void close() throws IOException {
+            gen.writeEndArray();
+            gen.close();
+        }
+    }
+
+    /**
+        Helper method to make the response headers for a page of
+        results, i.e. the cursor of the next page if there is one.
+    */
+    protected HttpHeaders pageHeaders(KeysetPage page,
+                                      List<? extends DiMeData> results) {
+        HttpHeaders headers = new HttpHeaders();
+        if (page != null) {
+            String cursor = page.nextCursor(results);
+            if (cursor != null)
+                headers.set(NEXT_CURSOR_HEADER, cursor);
+        }
+        return headers;
+    }
+
     /** 
         Helper method to save a generic DiMeData object.
     */
@@ -1071,4 +1629,51 @@ On success, the response will be the uploaded object with some fields like the i
         Event event = removeTag(user, eventDAO.findById(id, user), input);
         return new ResponseEntity<Event>(event, HttpStatus.OK);
     }   
+
+    /** HTTP end point for listing the user's tags with counts.
+        @api {get} /data/tags List tags with counts
+        @apiName GetTags
+        @apiDescription Returns the tags of the user's events and
+        information elements, with the number of objects having each
+        tag, most common first.
+
+        @apiParam (Options) {String} [type] set to 'events' or
+        'informationelements' to count only those
+        @apiParam (Options) {Number} [limit] maximum number of tags to
+        return (default all)
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            [
+                { "text": "dime", "count": 12 },
+                { "text": "hello", "count": 3 }
+            ]
+
+        @apiPermission user
+        @apiGroup Tags
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/tags", method = RequestMethod.GET)
+    public ResponseEntity<TagCount[]>
+        tags(Authentication auth,
+             @RequestParam(value="type", required=false) String type,
+             @RequestParam(value="limit", defaultValue="-1") int limit)
+        throws BadRequestException
+    {
+        User user = getUser(auth);
+
+        String kind = null;
+        if (type != null) {
+            if (type.equals("events"))
+                kind = TagLink.EVENT;
+            else if (type.equals("informationelements"))
+                kind = TagLink.ELEMENT;
+            else
+                throw new BadRequestException("Invalid type: " + type);
+        }
+
+        List<TagCount> counts = tagDAO.tagCounts(user.getId(), kind, limit);
+        return new ResponseEntity<TagCount[]>
+            (counts.toArray(new TagCount[counts.size()]), HttpStatus.OK);
+    }
 }
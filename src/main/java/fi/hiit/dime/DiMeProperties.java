@@ -36,12 +36,67 @@ public class DiMeProperties {
     public void setLuceneIndexPath(String s) { luceneIndexPath = s; }
     public String getLuceneIndexPath() { return luceneIndexPath; }
 
+    private String luceneSuggestPath;
+    public void setLuceneSuggestPath(String s) { luceneSuggestPath = s; }
+    public String getLuceneSuggestPath() { return luceneSuggestPath; }
+
+    private boolean luceneIndexPartitioned = false;
+    public void setLuceneIndexPartitioned(boolean b) {
+        luceneIndexPartitioned = b;
+    }
+    public boolean getLuceneIndexPartitioned() {
+        return luceneIndexPartitioned;
+    }
+
+    private int luceneMaxOpenShards = 32;
+    public void setLuceneMaxOpenShards(int n) { luceneMaxOpenShards = n; }
+    public int getLuceneMaxOpenShards() { return luceneMaxOpenShards; }
+
     private String luceneAnalyzer = "Standard";
     public void setLuceneAnalyzer(String s) { 
         luceneAnalyzer = s; //.replaceAll("Analyzer$", "");
     }
     public String getLuceneAnalyzer() { return luceneAnalyzer; }
 
+    private int searchWarmupQueries = 20;
+    public void setSearchWarmupQueries(int n) { searchWarmupQueries = n; }
+    public int getSearchWarmupQueries() { return searchWarmupQueries; }
+
+    // Optional read replica for read-only transactions, see
+    // ReplicaRoutingDataSource
+    private String replicaUrl = null;
+    public void setReplicaUrl(String s) { replicaUrl = s; }
+    public String getReplicaUrl() { return replicaUrl; }
+
+    private String replicaUsername = null;
+    public void setReplicaUsername(String s) { replicaUsername = s; }
+    public String getReplicaUsername() { return replicaUsername; }
+
+    private String replicaPassword = null;
+    public void setReplicaPassword(String s) { replicaPassword = s; }
+    public String getReplicaPassword() { return replicaPassword; }
+
+    private long replicaMaxLag = 5000;
+    public void setReplicaMaxLag(long n) { replicaMaxLag = n; }
+    public long getReplicaMaxLag() { return replicaMaxLag; }
+
+    private long replicaReadYourWrites = 10000;
+    public void setReplicaReadYourWrites(long n) { replicaReadYourWrites = n; }
+    public long getReplicaReadYourWrites() { return replicaReadYourWrites; }
+
+    private long replicaHeartbeatInterval = 1000;
+    public void setReplicaHeartbeatInterval(long n) {
+        replicaHeartbeatInterval = n;
+    }
+    public long getReplicaHeartbeatInterval() {
+        return replicaHeartbeatInterval;
+    }
+
+    // Time between persisting the dashboard counters, see UserStatsDAO
+    private long statsFlushInterval = 60000;
+    public void setStatsFlushInterval(long n) { statsFlushInterval = n; }
+    public long getStatsFlushInterval() { return statsFlushInterval; }
+
     private String[] corsAllowOrigin = null;
     public void setCorsAllowOrigin(String[] s) { corsAllowOrigin = s; }
     public String[] getCorsAllowOrigin() { return corsAllowOrigin; }
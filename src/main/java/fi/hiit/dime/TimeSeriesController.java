@@ -0,0 +1,263 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime;
+
+//------------------------------------------------------------------------------
+
+import fi.hiit.dime.answer.TimeSeriesAnswer;
+import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.database.EventHistDAO.Resolution;
+import fi.hiit.dime.database.TimeSeriesDAO;
+import fi.hiit.dime.database.TimeSeriesPoint;
+import fi.hiit.dime.util.Lttb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+//------------------------------------------------------------------------------
+
+@RestController
+@RequestMapping("/api/timeseries")
+public class TimeSeriesController extends AuthorizedController {
+    // Upper bound of the points parameter
+    private static final int MAX_POINTS = 10000;
+
+    // Upper bound of values or buckets read for downsampling
+    private static final int MAX_VALUES = 100000;
+
+    private static final long DEFAULT_RANGE = 7*24*3600*1000L;
+
+    private final TimeSeriesDAO timeSeriesDAO;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    TimeSeriesController(TimeSeriesDAO timeSeriesDAO) {
+        this.timeSeriesDAO = timeSeriesDAO;
+    }
+
+    private Date parseDate(String name, String value)
+        throws BadRequestException
+    {
+        // Clone, since DateFormat is not thread-safe
+        DateFormat df = (DateFormat)objectMapper.getDeserializationConfig()
+            .getDateFormat().clone();
+        try {
+            return df.parse(value.trim());
+        } catch (ParseException e) {
+            throw new BadRequestException(name + "=" + value);
+        }
+    }
+
+    /**
+       Number of buckets of the given resolution in the time range.
+    */
+    private static long numBuckets(Resolution res, Date from, Date to) {
+        long bucketMillis = res.next(new Date(0)).getTime();
+        return (to.getTime() - res.bucketStart(from).getTime()) /
+            bucketMillis + 1;
+    }
+
+    /**
+       Downsample the points with LTTB, using the averages as values.
+    */
+    private static List<TimeSeriesPoint> downsample(List<TimeSeriesPoint> points,
+                                                    int threshold) {
+        double[] x = new double[points.size()];
+        double[] y = new double[points.size()];
+        for (int i=0; i<x.length; i++) {
+            x[i] = points.get(i).time.getTime();
+            y[i] = points.get(i).avg;
+        }
+
+        List<TimeSeriesPoint> res = new ArrayList<TimeSeriesPoint>();
+        for (int i : Lttb.select(x, y, threshold))
+            res.add(points.get(i));
+        return res;
+    }
+
+    /**
+        @api {get} /timeseries Time series of physical events
+        @apiName TimeSeries
+        @apiDescription Values of PhysicalEvents and
+        HealthTrackerEvents over time, e.g. heart rate or steps from
+        a FitBit, for plotting without downloading the events. For
+        each time bucket the number of values and their minimum,
+        maximum and average are given. Empty buckets are left out.
+
+        The summaries per hour, day and week are kept up to date as
+        events are uploaded and deleted, so long time ranges are
+        cheap to query. Buckets start at full hours, at midnight, or
+        on Monday at midnight, all in UTC. With the raw resolution
+        each value is given as its own point, with count 1.
+
+        By default the finest resolution that gives at most the
+        requested number of points is used. With lttb=true, a finer
+        resolution is read and downsampled to the requested number
+        of points with Largest-Triangle-Three-Buckets, which keeps
+        the peaks of the series. Each selected point keeps its own
+        count, min, max and avg.
+
+        @apiParam {String} [type] Only events with this type
+        @apiParam {String} [activityType] Only HealthTrackerEvents
+        with this activity type, e.g. "steps"
+        @apiParam {String} [device] Only HealthTrackerEvents from this
+        device, e.g. "Charge HR"
+        @apiParam {String} [from] Start of the time range, in the same
+        formats as the date filters of the data endpoints. Defaults to
+        one week before the end.
+        @apiParam {String} [to] End of the time range, exclusive.
+        Defaults to now.
+        @apiParam {String} [resolution=auto] auto, raw, hour, day or week
+        @apiParam {Number} [points=1000] Maximum number of points, at
+        most 10000
+        @apiParam {Boolean} [lttb=false] Downsample to the given
+        number of points if needed
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            {
+              "resolution": "hour",
+              "downsampled": false,
+              "points": [
+                {
+                  "time": "2016-10-24T10:00:00.000+0000",
+                  "count": 60,
+                  "min": 58.0,
+                  "max": 92.0,
+                  "avg": 71.4
+                },
+                {
+                  "time": "2016-10-24T11:00:00.000+0000",
+                  "count": 60,
+                  "min": 61.0,
+                  "max": 120.0,
+                  "avg": 88.2
+                }
+              ]
+            }
+        @apiErrorExample {json} Example error response for too many points:
+            HTTP/1.1 400 OK
+            {
+                "message": "Bad request: 8760 points, use a coarser resolution or lttb=true",
+                "code": 400
+            }
+        @apiPermission user
+        @apiGroup Answers
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="", method = RequestMethod.GET)
+    public ResponseEntity<TimeSeriesAnswer>
+        timeSeries(Authentication auth,
+                   @RequestParam(required=false) String type,
+                   @RequestParam(required=false) String activityType,
+                   @RequestParam(required=false) String device,
+                   @RequestParam(required=false) String from,
+                   @RequestParam(required=false) String to,
+                   @RequestParam(defaultValue="auto") String resolution,
+                   @RequestParam(defaultValue="1000") int points,
+                   @RequestParam(defaultValue="false") boolean lttb)
+        throws BadRequestException
+    {
+        User user = getUser(auth);
+
+        if (points < 1 || points > MAX_POINTS)
+            throw new BadRequestException("points=" + points);
+
+        Date toDate = to != null ? parseDate("to", to) : new Date();
+        Date fromDate = from != null ? parseDate("from", from) :
+            new Date(toDate.getTime() - DEFAULT_RANGE);
+        if (!fromDate.before(toDate))
+            throw new BadRequestException("from must be before to");
+
+        // How many values or buckets we may read
+        int limit = lttb ? MAX_VALUES : points;
+
+        Resolution res = null;
+        boolean raw;
+        if (resolution.equals("auto")) {
+            // Individual values if there are few enough of them,
+            // otherwise the finest rollup that fits
+            raw = timeSeriesDAO.approxCount(user.getId(), type, activityType,
+                                            device, fromDate, toDate) <= limit;
+            if (!raw) {
+                for (Resolution r : Resolution.values()) {
+                    res = r;
+                    if (numBuckets(r, fromDate, toDate) <= limit)
+                        break;
+                }
+            }
+        } else if (resolution.equals("raw")) {
+            raw = true;
+        } else {
+            raw = false;
+            try {
+                res = Resolution.parse(resolution);
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("resolution=" + resolution);
+            }
+        }
+
+        List<TimeSeriesPoint> series;
+        if (raw) {
+            series = timeSeriesDAO.values(user.getId(), type, activityType,
+                                          device, fromDate, toDate,
+                                          limit + 1);
+        } else {
+            series = timeSeriesDAO.series(user.getId(), res, type,
+                                          activityType, device, fromDate,
+                                          toDate);
+        }
+
+        boolean downsampled = false;
+        if (series.size() > limit || (series.size() > points && !lttb))
+            throw new BadRequestException
+                ((series.size() > limit ? "over " : "") + series.size() +
+                 " points, use a coarser resolution" +
+                 (lttb ? "" : " or lttb=true"));
+        if (series.size() > points) {
+            series = downsample(series, points);
+            downsampled = true;
+        }
+
+        return new ResponseEntity<TimeSeriesAnswer>
+            (new TimeSeriesAnswer(raw ? "raw" : res.getName(), downsampled,
+                                  series),
+             HttpStatus.OK);
+    }
+}
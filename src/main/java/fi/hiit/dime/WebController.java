@@ -36,6 +36,9 @@ import fi.hiit.dime.data.Message;
 import fi.hiit.dime.database.EventCount;
 import fi.hiit.dime.database.EventDAO;
 import fi.hiit.dime.database.InformationElementDAO;
+import fi.hiit.dime.database.LoggerSeen;
+import fi.hiit.dime.database.UserStats;
+import fi.hiit.dime.database.UserStatsDAO;
 import fi.hiit.dime.search.SearchIndex;
 import fi.hiit.dime.search.SearchIndex.SearchQueryException;
 import static fi.hiit.dime.search.SearchIndex.WeightType;
@@ -68,9 +71,7 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import javax.validation.Valid;
 import java.net.UnknownHostException;
@@ -96,6 +97,9 @@ public class WebController extends WebMvcConfigurerAdapter {
     @Autowired
     private InformationElementDAO infoElemDAO;
 
+    @Autowired
+    private UserStatsDAO statsDAO;
+
     @Autowired
     private UserService userService;
 
@@ -125,24 +129,20 @@ public class WebController extends WebMvcConfigurerAdapter {
 
         Long userId = ((CurrentUser)authentication.getPrincipal()).getId();
 
+        // Kept up to date in memory, so this does not query the database
+        UserStats stats = statsDAO.get(userId);
+
         Calendar cal = Calendar.getInstance();
         cal.add(Calendar.MINUTE, -loggerMinutesFrame);
-        List<Event> events = eventDAO.eventsSince(userId, cal.getTime());
-        if (events.size() > 0) {
-            Map<String, Event> hist = new HashMap<String, Event>();
-            for (Event event : events) {
-                String key = event.actor + "|" + event.origin;
-                if (!hist.containsKey(key))
-                    hist.put(key, event);
-            }
-            model.addAttribute("events", hist.values());
-        }
+        List<LoggerSeen> loggers = stats.loggersSince(cal.getTime());
+        if (loggers.size() > 0)
+            model.addAttribute("events", loggers);
         model.addAttribute("minutes", loggerMinutesFrame);
 
-        model.addAttribute("event_count", eventDAO.count(userId));
-        model.addAttribute("elem_count", infoElemDAO.count(userId));
+        model.addAttribute("event_count", stats.getEventCount());
+        model.addAttribute("elem_count", stats.getElemCount());
 
-        model.addAttribute("actor_hist", eventDAO.getActorHistogram(userId));
+        model.addAttribute("actor_hist", stats.actorHistogram());
 
         return "root";
     }
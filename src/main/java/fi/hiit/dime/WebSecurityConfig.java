@@ -58,7 +58,7 @@ public class WebSecurityConfig {
         protected void configure(HttpSecurity http) throws Exception {
             http.antMatcher("/api/**") 
                 .authorizeRequests()
-                .antMatchers("/api/ping").permitAll()
+                .antMatchers("/api/ping", "/api/health").permitAll()
                 .antMatchers(HttpMethod.OPTIONS,"/api/**").permitAll()
                 .anyRequest().fullyAuthenticated()
                 .and()
@@ -0,0 +1,49 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.answer;
+
+//------------------------------------------------------------------------------
+
+import fi.hiit.dime.database.TimeSeriesPoint;
+import java.util.List;
+
+//------------------------------------------------------------------------------
+
+public class TimeSeriesAnswer {
+    /** Resolution used: raw, hour, day or week. */
+    public String resolution;
+
+    /** True if the points were downsampled with LTTB. */
+    public boolean downsampled;
+
+    public List<TimeSeriesPoint> points;
+
+    public TimeSeriesAnswer(String resolution, boolean downsampled,
+                            List<TimeSeriesPoint> points) {
+        this.resolution = resolution;
+        this.downsampled = downsampled;
+        this.points = points;
+    }
+}
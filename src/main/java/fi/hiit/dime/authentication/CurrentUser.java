@@ -33,8 +33,8 @@ public class CurrentUser extends
     private User user;
 
     public CurrentUser(User user) {
-	super(user.username, user.passwordHash, 
-	      AuthorityUtils.createAuthorityList(user.role.toString()));
+	super(user.username, user.passwordHash, !user.disabled, true, true,
+	      true, AuthorityUtils.createAuthorityList(user.role.toString()));
 	this.user = user;
     }
 
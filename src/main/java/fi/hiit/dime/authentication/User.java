@@ -30,6 +30,8 @@ import org.springframework.data.annotation.Id;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.springframework.data.jpa.domain.AbstractPersistable;
 
 import java.util.Date;
@@ -43,6 +45,7 @@ import javax.persistence.Entity;
 @JsonInclude(value=JsonInclude.Include.NON_NULL)
 @JsonIgnoreProperties({"hibernateLazyInitializer", "handler", "new"})
 @Entity
+@Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
 public class User extends AbstractPersistable<Long> {
     public static User makeUser(Long id) {
 	User user = new User();
@@ -67,4 +70,7 @@ public class User extends AbstractPersistable<Long> {
     
     /** User role, e.g. user or admin. */
     public Role role;
+
+    /** A disabled user can't log in, e.g. while being removed. */
+    public boolean disabled;
 }
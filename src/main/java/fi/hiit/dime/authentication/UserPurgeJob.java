@@ -0,0 +1,78 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.authentication;
+
+import fi.hiit.dime.database.DeleteCount;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+/**
+   Progress of the removal of a user and all of the user's data,
+   see UserService.startPurge.
+*/
+public class UserPurgeJob {
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    public final Long userId;
+
+    public volatile State state = State.QUEUED;
+
+    /** Objects removed so far. */
+    public final DeleteCount deleted = new DeleteCount();
+
+    public volatile Date started;
+
+    public volatile Date finished;
+
+    /** Error message if the job failed. */
+    public volatile String error;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    public UserPurgeJob(Long userId) {
+        this.userId = userId;
+    }
+
+    public boolean isActive() {
+        return state == State.QUEUED || state == State.RUNNING;
+    }
+
+    /**
+       Wait until the job has finished, successfully or not.
+    */
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    // The finish time is set first, so that it is there as soon as
+    // the job is seen to be inactive
+    void finish(State result) {
+        finished = new Date();
+        state = result;
+        done.countDown();
+    }
+}
@@ -63,10 +63,32 @@ public interface UserService {
     User create(UserCreateForm form);
 
     /**
-     * Remove user and all related events and informationelements
+     * Remove user and all related events and informationelements,
+     * waiting for the removal to finish. If a removal of the user is
+     * already in progress, waits for that instead.
      * 
      * @param id User id of the user to be removed
      * @return True if a user was successfully removed
      */
     boolean removeAllForUserId(Long id);
+
+    /**
+     * Start removing a user and all related data in the background.
+     * If a removal of the user is already in progress, that job is
+     * returned instead.
+     *
+     * @param id User id of the user to be removed
+     * @return The job, for following the progress
+     */
+    UserPurgeJob startPurge(Long id);
+
+    /**
+     * Return the removal job of a user that is in progress, or the
+     * latest finished one. Only the status of a limited number of
+     * finished removals is kept.
+     *
+     * @param id User id
+     * @return The job, or null if none has been started
+     */
+    UserPurgeJob getPurgeJob(Long id);
 }
@@ -25,6 +25,7 @@
 package fi.hiit.dime.authentication;
 
 import fi.hiit.dime.database.*;
+import fi.hiit.dime.search.SearchIndex;
 import fi.hiit.dime.util.RandomPassword;
 
 import org.slf4j.Logger;
@@ -34,9 +35,18 @@ import org.springframework.data.domain.Sort;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 /**
    Service that gives us a general interface to fetch and create users
@@ -49,18 +59,50 @@ public class UserServiceImpl implements UserService {
     private final EventDAO eventDAO;
     private final InformationElementDAO infoElemDAO;
     private final ProfileDAO profileDAO;
+    private final UserStatsDAO statsDAO;
+    private final SearchIndex searchIndex;
     private final static String ADMIN_USERNAME = "admin";
     private final static String ADMIN_PASSWORD = ""; // empty means random
     private RandomPassword pw;
 
+    // Purges run one at a time, so that they don't compete with each
+    // other for locks and IO
+    private final ExecutorService purgeExecutor =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "user-purge");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // Number of finished purges whose status is kept
+    private final static int MAX_FINISHED_PURGES = 100;
+
+    // Queued and running purges by user id, guarded by itself
+    private final Map<Long, UserPurgeJob> purgeJobs =
+        new HashMap<Long, UserPurgeJob>();
+
+    // The latest finished purges by user id, also guarded by purgeJobs
+    private final Map<Long, UserPurgeJob> finishedPurges =
+        new LinkedHashMap<Long, UserPurgeJob>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, UserPurgeJob> eldest) {
+                return size() > MAX_FINISHED_PURGES;
+            }
+        };
+
     @Autowired
     UserServiceImpl(UserDAO userDAO, EventDAO eventDAO,
 		    InformationElementDAO infoElemDAO,
-                    ProfileDAO profileDAO) {
+                    ProfileDAO profileDAO, UserStatsDAO statsDAO,
+                    SearchIndex searchIndex) {
 	this.userDAO = userDAO;
 	this.eventDAO = eventDAO;
 	this.infoElemDAO = infoElemDAO;
         this.profileDAO = profileDAO;
+        this.statsDAO = statsDAO;
+        this.searchIndex = searchIndex;
 	this.pw = new RandomPassword();
     }
 
@@ -114,11 +156,102 @@ public class UserServiceImpl implements UserService {
     
     @Override
     public boolean removeAllForUserId(Long id) {
-        profileDAO.removeForUser(id);
-	eventDAO.removeForUser(id);
-	infoElemDAO.removeForUser(id);
-	userDAO.remove(id);
-	return true;
+        UserPurgeJob job = startPurge(id);
+        try {
+            job.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return job.state == UserPurgeJob.State.DONE;
+    }
+
+    @Override
+    public UserPurgeJob startPurge(Long id) {
+        synchronized (purgeJobs) {
+            UserPurgeJob job = purgeJobs.get(id);
+            if (job != null)
+                return job;
+
+            final UserPurgeJob newJob = new UserPurgeJob(id);
+            purgeJobs.put(id, newJob);
+            purgeExecutor.execute(new Runnable() {
+                    public void run() {
+                        purge(newJob);
+                    }
+                });
+            return newJob;
+        }
+    }
+
+    @Override
+    public UserPurgeJob getPurgeJob(Long id) {
+        synchronized (purgeJobs) {
+            UserPurgeJob job = purgeJobs.get(id);
+            return job != null ? job : finishedPurges.get(id);
+        }
+    }
+
+    /**
+       Remove the user and all related data. The user is disabled
+       first, so that no new data is stored meanwhile. Events and
+       elements are deleted in bounded chunks with set-based
+       statements, each chunk in its own transaction, and the progress
+       is recorded in the job.
+    */
+    protected void purge(UserPurgeJob job) {
+        Long id = job.userId;
+        job.started = new Date();
+        job.state = UserPurgeJob.State.RUNNING;
+        LOG.info("Removing user {} and all related data.", id);
+
+        UserPurgeJob.State result = UserPurgeJob.State.FAILED;
+        try {
+            userDAO.disable(id);
+
+            // Profiles refer to events and elements
+            profileDAO.removeForUser(id);
+            eventDAO.removeForUser(id, job.deleted);
+            infoElemDAO.removeForUser(id, job.deleted);
+            if (userDAO.findById(id) != null)
+                userDAO.remove(id);
+            statsDAO.removeForUser(id);
+
+            try {
+                searchIndex.removeUser(id);
+            } catch (IOException e) {
+                LOG.error("Unable to remove search index of user {}: {}",
+                          id, e);
+            }
+
+            result = UserPurgeJob.State.DONE;
+            LOG.info("Removed user {}: {} events, {} elements.", id,
+                     job.deleted.events, job.deleted.informationElements);
+        } catch (RuntimeException e) {
+            job.error = e.toString();
+            LOG.error("Removing user {} failed.", id, e);
+        } finally {
+            synchronized (purgeJobs) {
+                purgeJobs.remove(id);
+                finishedPurges.remove(id);
+                finishedPurges.put(id, job);
+            }
+            job.finish(result);
+        }
     }
 
+    @PreDestroy
+    public void shutdown() {
+        purgeExecutor.shutdownNow();
+
+        // Queued purges won't run, don't leave anyone waiting for them
+        synchronized (purgeJobs) {
+            for (UserPurgeJob job : purgeJobs.values()) {
+                if (job.state == UserPurgeJob.State.QUEUED) {
+                    job.error = "Server was shut down";
+                    job.finish(UserPurgeJob.State.FAILED);
+                }
+            }
+        }
+    }
 }
@@ -28,6 +28,8 @@ import fi.hiit.dime.authentication.User;
 import fi.hiit.dime.search.WeightedKeyword;
 
 import com.fasterxml.jackson.annotation.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.jpa.domain.AbstractPersistable;
@@ -134,6 +136,7 @@ public class DiMeData extends AbstractPersistable<Long> {
         application.
     */
     @OneToMany(cascade=CascadeType.ALL)
+    @Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
     public List<Tag> tags;
 
     /** Return true if this object has tags
@@ -24,6 +24,10 @@
 
 package fi.hiit.dime.data;
 
+import fi.hiit.dime.util.Geohash;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.util.Calendar;
 import java.util.Date;
 
@@ -54,6 +58,13 @@ public abstract class Event extends DiMeData {
     @Embedded
     public Location location;
 
+    /** Geohash of the location, filled by autoFill, for indexing
+        area queries.
+     */
+    @Column(length=Geohash.MAX_PRECISION)
+    @JsonIgnore
+    public String geohash;
+
     /** Time stamp when the event was started. Format example: 2015-08-11T12:56:53Z
      */
     public Date start;
@@ -66,7 +77,8 @@ public abstract class Event extends DiMeData {
      */
     public double duration;
 
-    /** Make sure start, end and duration times are consistent. 
+    /** Make sure start, end and duration times are consistent, and
+        fill in the geohash.
      */
     @Override
     public void autoFill() {
@@ -84,6 +96,14 @@ public abstract class Event extends DiMeData {
         } else if (start != null && !start.equals(end)) {
             duration = (end.getTime() - start.getTime())/1000.0;
         }
+
+        if (location != null && location.latitude != null &&
+            location.longitude != null)
+            geohash = Geohash.encode(location.latitude, location.longitude,
+                                     Geohash.MAX_PRECISION);
+        else
+            geohash = null;
+
         super.autoFill();
     } 
 }
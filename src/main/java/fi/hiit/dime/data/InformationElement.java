@@ -25,6 +25,8 @@
 package fi.hiit.dime.data;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import java.util.Date;
 
@@ -42,6 +44,7 @@ import javax.persistence.Transient;
 */
 @Entity
 @Inheritance(strategy=InheritanceType.SINGLE_TABLE)
+@Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
 public class InformationElement extends DiMeData {
     /** URI of the information element, e.g. path on computer or web URL.
      */
@@ -24,16 +24,23 @@
 
 package fi.hiit.dime.data;
 
+import fi.hiit.dime.util.PackedArrays;
+
 import com.fasterxml.jackson.annotation.*;
 import org.springframework.data.jpa.domain.AbstractPersistable;
 
-import javax.persistence.ElementCollection;
+import javax.persistence.Access;
+import javax.persistence.AccessType;
+import javax.persistence.Column;
 import javax.persistence.Entity;
-
-import java.util.List;
+import javax.persistence.Lob;
+import javax.persistence.Transient;
 
 /**
    Class representing points read on a specific page (in page space coordinates).
+
+   The fixation arrays are stored packed into a single binary column,
+   see PackedArrays, instead of one database row per value.
 */
 @JsonInclude(value=JsonInclude.Include.NON_NULL)
 @JsonIgnoreProperties({"hibernateLazyInitializer", "handler", "new"})
@@ -41,33 +48,33 @@ import java.util.List;
 public class PageEyeData extends AbstractPersistable<Long> {
     /** Horizontal (x) coordinates
      */
-    @ElementCollection(targetClass = Double.class)
-    public List<Double> Xs;
+    @Transient
+    public double[] Xs;
 
     /** Vertical (y) coordinatess.
      */
-    @ElementCollection(targetClass = Double.class)
-    public List<Double> Ys;
+    @Transient
+    public double[] Ys;
 
     /** Pupil size.
      */
-    @ElementCollection(targetClass = Double.class)
-    public List<Double> Ps;
+    @Transient
+    public double[] Ps;
 
     /** Times of fixation start in microseconds.
      */
-    @ElementCollection(targetClass = Long.class)
-    public List<Long> startTimes;
+    @Transient
+    public long[] startTimes;
 
     /** Times of fixation end in microseconds.
      */
-    @ElementCollection(targetClass = Long.class)
-    public List<Long> endTimes;
+    @Transient
+    public long[] endTimes;
 
     /** Fixation durations in microseconds.
      */
-    @ElementCollection(targetClass = Long.class)
-    public List<Long> durations;
+    @Transient
+    public long[] durations;
 
     /** Page index for this block of data.
      */
@@ -81,4 +88,33 @@ public class PageEyeData extends AbstractPersistable<Long> {
      */
     public Long unixt;
 
+    /** All the fixation arrays packed into one value for storing in
+        the database. This is accessed through the getter and setter,
+        so that Hibernate always sees the current arrays, also when
+        merging and checking for changes.
+    */
+    @Access(AccessType.PROPERTY)
+    @Lob
+    @Column(name="PACKED_DATA")
+    @JsonIgnore
+    protected byte[] getPackedData() {
+        return new PackedArrays.Writer()
+            .writeDoubles(Xs).writeDoubles(Ys).writeDoubles(Ps)
+            .writeLongs(startTimes).writeLongs(endTimes)
+            .writeLongs(durations)
+            .toByteArray();
+    }
+
+    protected void setPackedData(byte[] data) {
+        if (data == null)
+            return;
+
+        PackedArrays.Reader r = new PackedArrays.Reader(data);
+        Xs = r.readDoubles();
+        Ys = r.readDoubles();
+        Ps = r.readDoubles();
+        startTimes = r.readLongs();
+        endTimes = r.readLongs();
+        durations = r.readLongs();
+    }
 }
@@ -23,14 +23,20 @@
 */
 package fi.hiit.dime.data;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.util.List;
 
+import javax.persistence.Access;
+import javax.persistence.AccessType;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.JoinColumn;
 import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
+import javax.persistence.Lob;
 import javax.persistence.OneToMany;
+import javax.persistence.Transient;
 
 /**
    A detailed reading event.
@@ -64,8 +70,7 @@ public class ReadingEvent extends DesktopEvent {
     /** A list of rectangles representing where the relevant (viewport, seen, interesting, etc.) paragraphs are. 
      * All the rects should fit within the page. Rect dimensions refer to points in a 72 dpi space where the bottom left is the origin,
      * as in Apple's PDFKit. A page in US Letter format (often used for papers) translates to approx 594 x 792 points. */
-    @OneToMany(cascade=CascadeType.ALL)
-    @JoinColumn(name="event_id", referencedColumnName="id")
+    @Transient
     public List<Rect> pageRects;
 
     /** Eye tracking data for this event, one entry per page (pageEyeData contains page index, from 0).
@@ -77,4 +82,19 @@ public class ReadingEvent extends DesktopEvent {
     /** Plain text content of text currently displayed on screen. */
     @Column(columnDefinition="longtext")
     public String plainTextContent;
+
+    /** The pageRects packed into one value for storing in the
+        database, see Rect.pack().
+    */
+    @Access(AccessType.PROPERTY)
+    @Lob
+    @Column(name="PACKED_RECTS")
+    @JsonIgnore
+    protected byte[] getPackedRects() {
+        return Rect.pack(pageRects);
+    }
+
+    protected void setPackedRects(byte[] data) {
+        pageRects = Rect.unpack(data);
+    }
 }
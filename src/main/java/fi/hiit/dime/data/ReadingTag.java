@@ -31,11 +31,12 @@ import com.fasterxml.jackson.annotation.*;
 
 import org.springframework.data.jpa.domain.AbstractPersistable;
 
+import javax.persistence.Access;
+import javax.persistence.AccessType;
 import javax.persistence.Column;
-import javax.persistence.OneToMany;
-import javax.persistence.JoinColumn;
-import javax.persistence.CascadeType;
 import javax.persistence.Entity;
+import javax.persistence.Lob;
+import javax.persistence.Transient;
 
 /**
    Class representing a tag for some text within a document (represented by rects).
@@ -45,8 +46,21 @@ public class ReadingTag extends Tag {
     
     /** A list of rectangles representing where the relevant (tagged) text is located. 
      */
-    @OneToMany(cascade=CascadeType.ALL)
-    @JoinColumn(name="tag_id", referencedColumnName="id")
+    @Transient
     public List<Rect> rects;
 
+    /** The rects packed into one value for storing in the database,
+        see Rect.pack().
+    */
+    @Access(AccessType.PROPERTY)
+    @Lob
+    @Column(name="PACKED_RECTS")
+    @JsonIgnore
+    protected byte[] getPackedRects() {
+        return Rect.pack(rects);
+    }
+
+    protected void setPackedRects(byte[] data) {
+        rects = Rect.unpack(data);
+    }
 }
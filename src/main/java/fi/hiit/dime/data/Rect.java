@@ -24,31 +24,31 @@
 
 package fi.hiit.dime.data;
 
-import java.util.List;
+import fi.hiit.dime.util.PackedArrays;
 
-import org.springframework.data.jpa.domain.AbstractPersistable;
 import com.fasterxml.jackson.annotation.*;
 
-import javax.persistence.Embedded;
-import javax.persistence.Column;
-import javax.persistence.Entity;
-import javax.persistence.ElementCollection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
    Class representing a rectangle in a two dimensions (maps to the ReadingRect struct in PeyeDF).
+
+   Rects are not stored as entities of their own, instead all the
+   rects of a ReadingEvent or ReadingTag are stored packed into a
+   single column, see pack() and unpack().
 */
 @JsonInclude(value=JsonInclude.Include.NON_NULL)
-@JsonIgnoreProperties({"hibernateLazyInitializer", "handler", "new"})
-@Entity
-public class Rect extends AbstractPersistable<Long> {
+@JsonIgnoreProperties({"hibernateLazyInitializer", "handler", "new", "id"})
+public class Rect {
     /** Position of the origin of this rectangle (origin: bottom left).
      */
-    @Embedded
     public Point origin;
 
     /** Size of this rectangle.
      */
-    @Embedded
     public Size size;
 
     /** Page (starting from 0) on which this rectangle appears.
@@ -65,7 +65,6 @@ public class Rect extends AbstractPersistable<Long> {
 
     /** Plain text contained within this rectangle.
      */
-    @Column(columnDefinition="text")
     public String plainTextContent;
 
     /** Floating rectangles have this flag set to true.
@@ -94,7 +93,6 @@ public class Rect extends AbstractPersistable<Long> {
      * If this rectangle is floating (see above) this array contains only one timestamp. If this rectangle is from a union
      * (floating flag is false) it contains a timestamp for each "smaller" rectangle that was united into a bigger one.
      */
-    @ElementCollection(targetClass = Long.class)
     public List<Long> unixt;
 
     /** Unspecified reading class
@@ -148,4 +146,231 @@ public class Rect extends AbstractPersistable<Long> {
     /** Class source for rectangles generated by (user) searching.
      */
     public static final int CLASSSOURCE_SEARCH = 5;
+
+    private double left() {
+        return origin == null ? 0.0 : origin.x;
+    }
+
+    private double bottom() {
+        return origin == null ? 0.0 : origin.y;
+    }
+
+    private double right() {
+        return left() + (size == null || size.width == null ? 0.0 : size.width);
+    }
+
+    private double top() {
+        return bottom() + (size == null || size.height == null ? 0.0 : size.height);
+    }
+
+    /** Return true if this rectangle overlaps the other one. Rects
+        that just touch each other count as overlapping.
+    */
+    public boolean intersects(Rect r) {
+        return left() <= r.right() && r.left() <= right() &&
+            bottom() <= r.top() && r.bottom() <= top();
+    }
+
+    private static <T> T sameOr(T a, T b, T fallback) {
+        return a == null ? (b == null ? null : fallback) :
+            (a.equals(b) ? a : fallback);
+    }
+
+    /** Return a new non-floating rectangle covering this and the
+        other rectangle. Properties that differ between the two are
+        set as described for each field, e.g. the scale factor becomes
+        -1, and the timestamps of both are kept.
+    */
+    public Rect union(Rect r) {
+        Rect u = new Rect();
+        double left = Math.min(left(), r.left());
+        double bottom = Math.min(bottom(), r.bottom());
+        u.origin = new Point(left, bottom);
+        u.size = new Size(Math.max(right(), r.right()) - left,
+                          Math.max(top(), r.top()) - bottom);
+
+        u.pageIndex = pageIndex;
+        u.readingClass = Math.max(readingClass, r.readingClass);
+        u.classSource = classSource == r.classSource ? classSource :
+            CLASSSOURCE_UNSET;
+        u.floating = false;
+        u.scaleFactor = sameOr(scaleFactor, r.scaleFactor, -1.0);
+        u.screenDistance = sameOr(screenDistance, r.screenDistance, null);
+        if (attnVal != null || r.attnVal != null)
+            u.attnVal = Math.max(attnVal == null ? r.attnVal : attnVal,
+                                 r.attnVal == null ? attnVal : r.attnVal);
+
+        if (plainTextContent == null || r.plainTextContent == null)
+            u.plainTextContent = plainTextContent == null ?
+                r.plainTextContent : plainTextContent;
+        else
+            u.plainTextContent = plainTextContent + "\n" + r.plainTextContent;
+
+        if (unixt != null || r.unixt != null) {
+            u.unixt = new ArrayList<Long>();
+            if (unixt != null)
+                u.unixt.addAll(unixt);
+            if (r.unixt != null)
+                u.unixt.addAll(r.unixt);
+        }
+        return u;
+    }
+
+    /** Union overlapping rectangles with the same page and reading
+        class, so that the resulting rectangles of each page and
+        class don't overlap. The result is grouped by page and class,
+        in the order they first appear.
+    */
+    public static List<Rect> unionOverlapping(List<Rect> rects) {
+        Map<String, List<Rect>> groups = new LinkedHashMap<String, List<Rect>>();
+        for (Rect r : rects) {
+            String key = r.pageIndex + ":" + r.readingClass;
+            List<Rect> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Rect>();
+                groups.put(key, group);
+            }
+
+            unionInto(group, r);
+        }
+
+        List<Rect> res = new ArrayList<Rect>();
+        for (List<Rect> group : groups.values())
+            res.addAll(group);
+        return res;
+    }
+
+    /** Add a rectangle to a list of rectangles that don't overlap
+        within the same page and reading class, so that the list stays
+        that way: the new rectangle absorbs all the ones it overlaps
+        and is added to the end.
+    */
+    public static void unionInto(List<Rect> rects, Rect r) {
+        // Repeat since the grown rect may now overlap others
+        Rect current = r;
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (int i=0; i<rects.size(); i++) {
+                Rect o = rects.get(i);
+                if (o.pageIndex == current.pageIndex &&
+                    o.readingClass == current.readingClass &&
+                    current.intersects(o)) {
+                    current = rects.remove(i).union(current);
+                    grown = true;
+                    break;
+                }
+            }
+        }
+        rects.add(current);
+    }
+
+    private static double orNaN(Double d) {
+        return d == null ? Double.NaN : d;
+    }
+
+    private static Double nullIfNaN(double d) {
+        return Double.isNaN(d) ? null : d;
+    }
+
+    /** Pack a list of rectangles into a compact binary form, one
+        column for each field, see PackedArrays. Missing (null)
+        coordinates and values are stored as NaN.
+
+        @return The packed rects, or null if rects is null
+    */
+    public static byte[] pack(List<Rect> rects) {
+        if (rects == null)
+            return null;
+
+        int n = rects.size();
+        long[] pageIndex = new long[n], readingClass = new long[n],
+            classSource = new long[n], floating = new long[n];
+        double[] x = new double[n], y = new double[n], w = new double[n],
+            h = new double[n], scaleFactor = new double[n],
+            screenDistance = new double[n], attnVal = new double[n];
+        String[] text = new String[n];
+
+        for (int i=0; i<n; i++) {
+            Rect r = rects.get(i);
+            pageIndex[i] = r.pageIndex;
+            readingClass[i] = r.readingClass;
+            classSource[i] = r.classSource;
+            floating[i] = r.floating == null ? 0 : (r.floating ? 2 : 1);
+            x[i] = r.origin == null ? Double.NaN : r.origin.x;
+            y[i] = r.origin == null ? Double.NaN : r.origin.y;
+            w[i] = r.size == null ? Double.NaN : orNaN(r.size.width);
+            h[i] = r.size == null ? Double.NaN : orNaN(r.size.height);
+            scaleFactor[i] = orNaN(r.scaleFactor);
+            screenDistance[i] = orNaN(r.screenDistance);
+            attnVal[i] = orNaN(r.attnVal);
+            text[i] = r.plainTextContent;
+        }
+
+        PackedArrays.Writer out = new PackedArrays.Writer()
+            .writeLongs(pageIndex).writeLongs(readingClass)
+            .writeLongs(classSource).writeLongs(floating)
+            .writeDoubles(x).writeDoubles(y).writeDoubles(w).writeDoubles(h)
+            .writeDoubles(scaleFactor).writeDoubles(screenDistance)
+            .writeDoubles(attnVal).writeStrings(text);
+
+        for (Rect r : rects) {
+            long[] unixt = null;
+            if (r.unixt != null) {
+                unixt = new long[r.unixt.size()];
+                for (int i=0; i<unixt.length; i++)
+                    unixt[i] = r.unixt.get(i);
+            }
+            out.writeLongs(unixt);
+        }
+
+        return out.toByteArray();
+    }
+
+    /** Unpack rectangles packed with pack().
+
+        @return The rects, or null if data is null
+    */
+    public static List<Rect> unpack(byte[] data) {
+        if (data == null)
+            return null;
+
+        PackedArrays.Reader in = new PackedArrays.Reader(data);
+        long[] pageIndex = in.readLongs(), readingClass = in.readLongs(),
+            classSource = in.readLongs(), floating = in.readLongs();
+        double[] x = in.readDoubles(), y = in.readDoubles(),
+            w = in.readDoubles(), h = in.readDoubles(),
+            scaleFactor = in.readDoubles(), screenDistance = in.readDoubles(),
+            attnVal = in.readDoubles();
+        String[] text = in.readStrings();
+
+        List<Rect> rects = new ArrayList<Rect>(pageIndex.length);
+        for (int i=0; i<pageIndex.length; i++) {
+            Rect r = new Rect();
+            r.pageIndex = (int)pageIndex[i];
+            r.readingClass = (int)readingClass[i];
+            r.classSource = (int)classSource[i];
+            r.floating = floating[i] == 0 ? null : floating[i] == 2;
+            if (!Double.isNaN(x[i]) || !Double.isNaN(y[i]))
+                r.origin = new Point(x[i], y[i]);
+            if (!Double.isNaN(w[i]) || !Double.isNaN(h[i])) {
+                r.size = new Size();
+                r.size.width = nullIfNaN(w[i]);
+                r.size.height = nullIfNaN(h[i]);
+            }
+            r.scaleFactor = nullIfNaN(scaleFactor[i]);
+            r.screenDistance = nullIfNaN(screenDistance[i]);
+            r.attnVal = nullIfNaN(attnVal[i]);
+            r.plainTextContent = text[i];
+
+            long[] unixt = in.readLongs();
+            if (unixt != null) {
+                r.unixt = new ArrayList<Long>(unixt.length);
+                for (long t : unixt)
+                    r.unixt.add(t);
+            }
+            rects.add(r);
+        }
+        return rects;
+    }
 }
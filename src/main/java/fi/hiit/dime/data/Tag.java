@@ -28,6 +28,8 @@ import java.util.Date;
 
 import com.fasterxml.jackson.annotation.*;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.springframework.data.jpa.domain.AbstractPersistable;
 
 import javax.persistence.Column;
@@ -43,6 +45,7 @@ import javax.persistence.InheritanceType;
 @JsonIgnoreProperties({"hibernateLazyInitializer", "handler", "new"})
 @Entity
 @Inheritance(strategy=InheritanceType.SINGLE_TABLE)
+@Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
 @JsonSubTypes({@JsonSubTypes.Type(value = ReadingTag.class, name = "ReadingTag")})
 // @Embeddable
 public class Tag extends AbstractPersistable<Long> {
@@ -0,0 +1,178 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+   Liquibase migration that makes (USER_ID, APP_ID) unique in a
+   table, so that the unique constraint can be added. Of each group
+   of rows with the same user and appId, the one modified last keeps
+   its appId, and the appId of the others is set to null. The
+   modification time falls back to the creation time, since
+   TIME_MODIFIED is null in old rows, and ties go to the highest id.
+*/
+public class AppIdDedupMigration implements CustomTaskChange {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(AppIdDedupMigration.class);
+
+    private String tableName;
+    private long count = 0;
+
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        Connection conn =
+            ((JdbcConnection)database.getConnection()).getUnderlyingConnection();
+
+        try {
+            migrate(conn);
+        } catch (SQLException e) {
+            throw new CustomChangeException(e);
+        }
+
+        if (count > 0)
+            LOG.warn("Removed the appId of {} duplicate rows in {}, " +
+                     "keeping the most recently modified row of each " +
+                     "appId.", count, tableName);
+    }
+
+    protected void migrate(Connection conn) throws SQLException {
+        PreparedStatement update = conn.prepareStatement
+            ("update " + tableName + " set APP_ID = null where ID = ?");
+        Statement st = conn.createStatement();
+
+        try {
+            // Duplicates only, best row of each group first
+            ResultSet rs = st.executeQuery
+                ("select D.ID, D.USER_ID, D.APP_ID, " +
+                 "coalesce(D.TIME_MODIFIED, D.TIME_CREATED) from " +
+                 tableName + " D where D.APP_ID is not null and exists " +
+                 "(select 1 from " + tableName + " N where " +
+                 "N.USER_ID = D.USER_ID and N.APP_ID = D.APP_ID and " +
+                 "N.ID <> D.ID) order by D.USER_ID, D.APP_ID");
+
+            Long groupUser = null;
+            String groupAppId = null;
+            long bestId = 0;
+            Timestamp bestTime = null;
+            while (rs.next()) {
+                long id = rs.getLong(1);
+                Long userId = rs.getLong(2);
+                if (rs.wasNull())
+                    userId = null;
+                String appId = rs.getString(3);
+                Timestamp time = rs.getTimestamp(4);
+
+                boolean sameGroup = appId.equals(groupAppId) &&
+                    (userId == null ? groupUser == null :
+                     userId.equals(groupUser));
+                if (!sameGroup) {
+                    groupUser = userId;
+                    groupAppId = appId;
+                    bestId = id;
+                    bestTime = time;
+                    continue;
+                }
+
+                // Clear whichever of this row and the best so far
+                // loses
+                if (isNewer(time, id, bestTime, bestId)) {
+                    clear(update, bestId);
+                    bestId = id;
+                    bestTime = time;
+                } else {
+                    clear(update, id);
+                }
+            }
+            update.executeBatch();
+            rs.close();
+        } finally {
+            st.close();
+            update.close();
+        }
+    }
+
+    private static boolean isNewer(Timestamp time, long id,
+                                   Timestamp otherTime, long otherId) {
+        if (time != null && otherTime != null && !time.equals(otherTime))
+            return time.after(otherTime);
+        if ((time == null) != (otherTime == null))
+            return time != null;
+        return id > otherId;
+    }
+
+    private void clear(PreparedStatement update, long id)
+        throws SQLException
+    {
+        update.setLong(1, id);
+        update.addBatch();
+        if (++count % 500 == 0)
+            update.executeBatch();
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return String.format("Removed the appId of %d duplicate rows in %s",
+                             count, tableName);
+    }
+
+    @Override
+    public void setUp() throws SetupException {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        ValidationErrors errors = new ValidationErrors();
+        if (!"EVENT".equals(tableName) &&
+            !"INFORMATION_ELEMENT".equals(tableName))
+            errors.addError("Unsupported table: " + tableName);
+        return errors;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+/**
+   Hit and miss statistics of the Hibernate second-level cache, one
+   entry per cache region. The regions and their sizes are configured
+   in ehcache.xml.
+
+   Statistics are enabled here on startup rather than with
+   hibernate.generate_statistics, which also logs the metrics of
+   every session.
+*/
+@Service
+public class CacheStats {
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    /**
+       Statistics of a single cache region.
+    */
+    public static class RegionStats {
+        public String region;
+        public long hitCount;
+        public long missCount;
+        public long putCount;
+        public long elementCountInMemory;
+
+        public RegionStats() {}
+
+        public RegionStats(String region, SecondLevelCacheStatistics s) {
+            this.region = region;
+            this.hitCount = s.getHitCount();
+            this.missCount = s.getMissCount();
+            this.putCount = s.getPutCount();
+            this.elementCountInMemory = s.getElementCountInMemory();
+        }
+
+        /** Fraction of lookups that were found in the cache. */
+        public double getHitRatio() {
+            long total = hitCount + missCount;
+            return total == 0 ? 0.0 : (double)hitCount / total;
+        }
+    }
+
+    @PostConstruct
+    public void enable() {
+        getStatistics().setStatisticsEnabled(true);
+    }
+
+    private Statistics getStatistics() {
+        return entityManagerFactory.unwrap(SessionFactory.class)
+            .getStatistics();
+    }
+
+    /**
+       Return the statistics of all cache regions, sorted by region
+       name.
+    */
+    public List<RegionStats> getRegions() {
+        Statistics stats = getStatistics();
+        String[] names = stats.getSecondLevelCacheRegionNames();
+        Arrays.sort(names);
+
+        List<RegionStats> res = new ArrayList<RegionStats>();
+        for (String name : names) {
+            SecondLevelCacheStatistics s =
+                stats.getSecondLevelCacheStatistics(name);
+            if (s != null)
+                res.add(new RegionStats(name, s));
+        }
+        return res;
+    }
+
+    /**
+       Return the statistics of a single region, or null if there is
+       no such region.
+    */
+    public RegionStats getRegion(String name) {
+        SecondLevelCacheStatistics s =
+            getStatistics().getSecondLevelCacheStatistics(name);
+        return s == null ? null : new RegionStats(name, s);
+    }
+}
@@ -26,35 +26,107 @@ package fi.hiit.dime.database;
 
 import fi.hiit.dime.data.DiMeData;
 import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.database.IndexOutboxEntry.Op;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
+public abstract class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
+    // Objects deleted per transaction in bulk deletes
+    public static final int DELETE_CHUNK_SIZE = 500;
+
     @Autowired
     protected R repo;
 
+    @Autowired
+    protected IndexOutboxDAO outboxDAO;
+
+    @Autowired
+    protected TagDAO tagDAO;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
     @Transactional
     public void save(T obj) {
         if (obj.timeCreated == null)
             obj.timeCreated = new Date();
         obj.timeModified = new Date();
 
-        notIndexed.add(obj);
+        boolean isNew = obj.getId() == null;
         repo.save(obj);
+        tagDAO.sync(obj);
+        outboxDAO.add(obj, Op.UPDATE);
+        stored(obj, isNew);
+    }
+
+    /**
+       Called after an object has been stored by save or upsert, in
+       the same transaction.
+
+       @param obj The stored object
+       @param created True if a new object was created, false if an
+       existing one was updated or replaced
+    */
+    protected void stored(T obj, boolean created) {
     }
 
     @Transactional
     public T replace(T oldObj, T newObj) {
         newObj.timeModified = new Date();
-        return repo.replace(oldObj, newObj);
+        if (newObj.timeCreated == null)
+            newObj.timeCreated = newObj.timeModified;
+        T obj = repo.replace(oldObj, newObj);
+        tagDAO.sync(obj);
+        outboxDAO.add(obj, Op.UPDATE);
+        return obj;
+    }
+
+    /**
+       Store an object that has an appId but no id, replacing the
+       user's existing object with the same appId, if any. This has
+       the same effect as findByAppId, replace and save, but the object
+       row is written with a single native upsert statement.
+
+       @param obj Object to store, with the user set
+       @return The stored object, or null if it was not stored since
+       the object is not supported by the native upsert, or an existing
+       object with the same appId has a different type. In that case
+       use findByAppId, replace and save instead.
+    */
+    @Transactional
+    public T upsert(T obj) {
+        if (!repo.canUpsert(obj))
+            return null;
+
+        if (obj.timeCreated == null)
+            obj.timeCreated = new Date();
+        obj.timeModified = new Date();
+
+        NativeUpsert.Result res = repo.upsert(obj);
+        if (res.id == null)
+            return null;
+
+        // The new object has no tags, so changed tag links mean that
+        // the replaced object had tags, which are removed as well
+        if (tagDAO.sync(obj) && !res.inserted)
+            repo.deleteTags(Collections.singletonList(res.id));
+        outboxDAO.add(obj, Op.UPDATE);
+        stored(obj, res.inserted);
+        return obj;
     }
 
     /**
@@ -77,7 +149,12 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
     */
     @Transactional(readOnly = true)
     public T findById(Long id, User user) {
-        return repo.findOneByIdAndUser(id, user);
+        // Looked up by primary key, so that the second-level cache
+        // is used, and the user is checked afterwards
+        T d = repo.findOne(id);
+        if (d == null || d.user == null || !d.user.getId().equals(user.getId()))
+            return null;
+        return d;
     }
 
     /**
@@ -97,6 +174,19 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
         return null;
     }
 
+    /**
+       Find several DiMeData objects by their unique ids in one query.
+
+       @param ids Unique ids of DiMeData objects.
+       @return The DiMeData objects found, in no particular order.
+    */
+    @Transactional(readOnly = true)
+    public Iterable<T> findByIds(Collection<Long> ids) {
+        if (ids.isEmpty())
+            return new ArrayList<T>();
+        return repo.findAll(ids);
+    }
+
     /**
        Returns all DiMeData objects.
     */
@@ -105,6 +195,24 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
         return repo.findAll();
     }
 
+    /**
+       Returns all DiMeData objects of a user.
+
+       @param userId User id
+    */
+    @Transactional(readOnly = true)
+    public List<T> findAllForUser(Long userId) {
+        return repo.findByUser(User.makeUser(userId));
+    }
+
+    /**
+       Returns the ids of all users that have DiMeData objects.
+    */
+    @Transactional(readOnly = true)
+    public List<Long> userIds() {
+        return repo.findUserIds();
+    }
+
     /**
        Filtered search for a given user's data.
 
@@ -117,20 +225,57 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
         return repo.find(User.makeUser(userId), filterParams);
     }
 
+    /**
+       Filtered search for a given user's data, one page at a time.
+
+       @param userId User id
+       @param filterParams Filtering parameters
+       @param page Keyset page to fetch, or null for all results
+       @return List of matching DiMeData objects
+    */
+    @Transactional(readOnly = true)
+    public List<T> find(Long userId, Map<String, String> filterParams,
+                        KeysetPage page) {
+        return repo.find(User.makeUser(userId), filterParams, page);
+    }
+
+    /**
+       Filtered search for a given user's data, handing the results
+       one at a time to the given handler instead of collecting them
+       into a list. The persistence context is cleared periodically,
+       so the handler must not hold on to the objects it is given.
+
+       @param userId User id
+       @param filterParams Filtering parameters
+       @param page Keyset page to fetch, or null for all results
+       @param handler Called for each matching DiMeData object
+       @return Number of objects handled
+    */
+    @Transactional(readOnly = true)
+    public long stream(Long userId, Map<String, String> filterParams,
+                       KeysetPage page, ResultHandler<T> handler)
+        throws IOException
+    {
+        return repo.stream(User.makeUser(userId), filterParams, page,
+                           handler);
+    }
+
     @Transactional(readOnly = true)
     public long count(Long id) {
         return repo.countByUser(User.makeUser(id));
     }
 
     /**
-       Removes all items for user.
+       Removes all items for user, in chunks as described for
+       remove(userId, filterParams).
 
        @param id User id
-       @return Number of items removed.
+       @param count Counts to add the removed items to, updated after
+       each chunk so that it can be used to follow the progress
     */
-    @Transactional
-    public long removeForUser(Long id) {
-        return repo.deleteByUser(User.makeUser(id));
+    public void removeForUser(Long id, DeleteCount count) {
+        remove(id, new HashMap<String, String>(), count);
+        tagDAO.removeForUser(id);
     }
 
     /**
@@ -147,9 +292,69 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
             return false;
 
         repo.delete(d);
+        tagDAO.remove(d);
+        outboxDAO.add(d, Op.DELETE);
         return true;
     }
 
+    /**
+       Removes all items of a user matching the filtering parameters,
+       see find. The items are deleted in chunks of DELETE_CHUNK_SIZE
+       with set-based statements, each chunk in its own transaction,
+       so a large delete does not hold locks for long. If the delete
+       fails, the chunks already deleted stay deleted.
+
+       @param userId User id
+       @param filterParams Filtering parameters
+       @return Number of items removed, including the events removed
+       together with information elements
+       @throws IllegalArgumentException on invalid filter parameters
+    */
+    public DeleteCount remove(Long userId, Map<String, String> filterParams) {
+        DeleteCount count = new DeleteCount();
+        remove(userId, filterParams, count);
+        return count;
+    }
+
+    /**
+       Removes all items of a user matching the filtering parameters,
+       adding the number of removed items to the given counts after
+       each chunk, see remove(userId, filterParams).
+    */
+    public void remove(Long userId, final Map<String, String> filterParams,
+                       final DeleteCount count) {
+        final User user = User.makeUser(userId);
+        final KeysetPage page = new KeysetPage(KeysetPage.OrderBy.ID,
+                                               DELETE_CHUNK_SIZE, null, null);
+
+        TransactionTemplate tt = new TransactionTemplate(transactionManager);
+        boolean more = true;
+        while (more) {
+            more = tt.execute(new TransactionCallback<Boolean>() {
+                    public Boolean doInTransaction(TransactionStatus status) {
+                        // Always the first page, since the previous
+                        // chunks are gone
+                        List<Long> ids = repo.findIds(user, filterParams,
+                                                      page);
+                        removeByIds(user, ids, count);
+                        return ids.size() == DELETE_CHUNK_SIZE;
+                    }
+                });
+        }
+    }
+
+    /**
+       Delete the given items of a user with set-based statements,
+       including everything depending on them, and record the deletes
+       for the search index. Must be called in a transaction.
+
+       @param user User owning the items
+       @param ids Ids of the items, all owned by the user
+       @param count Counts to add the deleted items to
+    */
+    protected abstract void removeByIds(User user, List<Long> ids,
+                                        DeleteCount count);
+
     @Transactional(readOnly = true) 
     public List<T> checkedList(List<T> origList, User user) {
         if (origList == null)
@@ -165,31 +370,4 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
 
         return ret;
     }
-
-    protected Set<T> notIndexed = new HashSet<T>();
-
-    public int countNotIndexed() {
-        return notIndexed.size();
-    }
-
-    public boolean hasUnIndexed() {
-        return !notIndexed.isEmpty();
-    }
-
-    public Set<T> getNotIndexed() {
-        Set<T> ret = new HashSet<T>();
-
-        // Return only items that still exist
-        for (T d : notIndexed) {
-            T toAdd = findById(d.getId());
-            if (toAdd != null)
-                ret.add(toAdd);
-        }
-
-        return ret;
-    }
-
-    public void clearNotIndexed() {
-        notIndexed.clear();
-    }
 }
@@ -28,16 +28,29 @@ import fi.hiit.dime.data.DiMeData;
 import fi.hiit.dime.authentication.User;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.NoRepositoryBean;
 
-import java.sql.Timestamp;
+import java.io.IOException;
+import java.io.Serializable;
 import java.text.DateFormat;
-import java.text.ParseException;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -45,44 +58,248 @@ import javax.persistence.TypedQuery;
 
 interface DiMeRepositoryCustom<T extends DiMeData> {
     public List<T> find(User user, Map<String, String> filterParams);
+    public List<T> find(User user, Map<String, String> filterParams,
+                        KeysetPage page);
+    public long stream(User user, Map<String, String> filterParams,
+                       KeysetPage page, ResultHandler<T> handler)
+        throws IOException;
+    public List<Long> findIds(User user, Map<String, String> filterParams,
+                              KeysetPage page);
+    public int deleteByIds(Collection<Long> ids);
+    public void deleteTags(Collection<Long> ids);
     public T replace(T oldData, T newData);
+    public boolean canUpsert(T obj);
+    public NativeUpsert.Result upsert(T obj);
 }
 
 abstract class DiMeRepositoryImpl<T extends DiMeData> implements DiMeRepositoryCustom<T> {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(DiMeRepositoryImpl.class);
+
+    // Rows fetched per round-trip when streaming, and how often the
+    // persistence context is cleared so handled rows can be
+    // garbage-collected
+    public static final int STREAM_FETCH_SIZE = 500;
+
     @PersistenceContext
     protected EntityManager entityManager;
 
     @Autowired 
     protected ObjectMapper objectMapper;
 
-    protected Date parseDateForQuery(String value) {
-        DateFormat df = objectMapper.getDeserializationConfig().getDateFormat();
+    private final NativeUpsert upserter = new NativeUpsert();
+
+    /**
+       Return the compiler for the filter parameters of find.
+    */
+    protected abstract FilterCompiler filterCompiler();
+
+    /**
+       Return the entity class returned by find.
+    */
+    protected abstract Class<T> resultClass();
+
+    @Override
+    public List<T> find(User user, Map<String, String> filterParams) {
+        return find(user, filterParams, null);
+    }
+
+    @Override
+    public List<T> find(User user, Map<String, String> filterParams,
+                        KeysetPage page) {
+        return makeFindQuery(user, filterParams, page).getResultList();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public long stream(User user, Map<String, String> filterParams,
+                       KeysetPage page, ResultHandler<T> handler)
+        throws IOException
+    {
+        org.hibernate.Query query = makeFindQuery(user, filterParams, page)
+            .unwrap(org.hibernate.Query.class)
+            .setFetchSize(STREAM_FETCH_SIZE)
+            .setReadOnly(true);
+
+        long count = 0;
+        List<T> chunk = new ArrayList<T>(STREAM_FETCH_SIZE);
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
         try {
-            Date date = df.parse(value);
-            // Timestamp timestamp = new Timestamp(date.getTime());
-            return date;
-        } catch (ParseException ex) {
-            return null;
+            while (results.next()) {
+                chunk.add((T)results.get(0));
+                if (chunk.size() == STREAM_FETCH_SIZE)
+                    count += handleChunk(chunk, handler);
+            }
+            count += handleChunk(chunk, handler);
+        } finally {
+            results.close();
         }
+        return count;
+    }
+
+    /**
+       Pass a chunk of streamed objects to the handler, and then
+       detach them. The whole chunk is read before handling it, so
+       that the batch fetching of lazy associations covers all of
+       its objects, rather than one object at a time.
+    */
+    private long handleChunk(List<T> chunk, ResultHandler<T> handler)
+        throws IOException
+    {
+        for (T obj : chunk)
+            handler.handle(obj);
+        long count = chunk.size();
+        chunk.clear();
+        entityManager.clear();
+        return count;
+    }
+
+    /**
+       Build the filtered query for the given user's data, see
+       DiMeDAO.find for details.
+    */
+    protected TypedQuery<T> makeFindQuery(User user,
+                                          Map<String, String> filterParams,
+                                          KeysetPage page)
+    {
+        FilterCompiler.Compiled compiled =
+            filterCompiler().compile(filterParams, page, dateFormat());
+
+        TypedQuery<T> query = makeQuery(compiled.jpql, compiled.params, user,
+                                        resultClass());
+        if (page != null)
+            query.setMaxResults(page.getLimit());
+        return query;
+    }
+
+    @Override
+    public List<Long> findIds(User user, Map<String, String> filterParams,
+                              KeysetPage page) {
+        FilterCompiler.Compiled compiled =
+            filterCompiler().compileIds(filterParams, page, dateFormat());
+
+        TypedQuery<Long> query = makeQuery(compiled.jpql, compiled.params,
+                                           user, Long.class);
+        if (page != null)
+            query.setMaxResults(page.getLimit());
+        return query.getResultList();
+    }
+
+    /**
+       Return a copy of the configured date format for parsing the
+       filter parameters, since DateFormat is not thread-safe.
+    */
+    protected DateFormat dateFormat() {
+        return (DateFormat)objectMapper.getDeserializationConfig()
+            .getDateFormat().clone();
+    }
+
+    /**
+       Execute a native SQL update or delete with the given list of
+       ids bound to the :ids parameter. The statement must start with
+       "delete from TABLE" or "update TABLE".
+
+       @return Number of rows affected
+    */
+    protected int executeForIds(String sql, Collection<Long> ids) {
+        if (ids.isEmpty())
+            return 0;
+
+        javax.persistence.Query query =
+            entityManager.createNativeQuery(sql).setParameter("ids", ids);
+
+        // Without a query space Hibernate evicts every region of the
+        // second-level cache after a native update
+        query.unwrap(SQLQuery.class)
+            .addSynchronizedQuerySpace(querySpace(sql));
+        return query.executeUpdate();
+    }
+
+    private static final Pattern updatedTablePattern =
+        Pattern.compile("^\\s*(?:delete\\s+from|update)\\s+(\\w+)",
+                        Pattern.CASE_INSENSITIVE);
+
+    // Query spaces of all entities and collections by upper case
+    // table name, built on first use
+    private static volatile Map<String, String> querySpaces = null;
+
+    /**
+       Return the query space of the table updated by a native
+       statement, i.e. the table name as Hibernate has it in its
+       mappings.
+    */
+    protected String querySpace(String sql) {
+        Matcher m = updatedTablePattern.matcher(sql);
+        if (!m.find())
+            throw new IllegalArgumentException("Unable to find the table " +
+                                               "updated by: " + sql);
+        String table = m.group(1);
+
+        Map<String, String> spaces = querySpaces;
+        if (spaces == null) {
+            spaces = new HashMap<String, String>();
+            SessionFactoryImplementor factory = session().getFactory();
+            for (String entity : factory.getAllClassMetadata().keySet())
+                for (Serializable space :
+                         factory.getEntityPersister(entity).getQuerySpaces())
+                    spaces.put(space.toString().toUpperCase(),
+                               space.toString());
+            for (Object role : factory.getAllCollectionMetadata().keySet())
+                for (Serializable space :
+                         factory.getCollectionPersister((String)role)
+                         .getCollectionSpaces())
+                    spaces.put(space.toString().toUpperCase(),
+                               space.toString());
+            querySpaces = spaces;
+        }
+
+        // A table that isn't mapped can't be in the cache, but the
+        // name is still needed to keep Hibernate from evicting all
+        String space = spaces.get(table.toUpperCase());
+        return space != null ? space : table;
+    }
+
+    /**
+       Run a native SQL query returning a single id column, with the
+       given list of ids bound to the :ids parameter.
+    */
+    protected List<Long> selectForIds(String sql, Collection<Long> ids) {
+        List<Long> res = new ArrayList<Long>();
+        if (ids.isEmpty())
+            return res;
+
+        List<?> rows = entityManager.createNativeQuery(sql)
+            .setParameter("ids", ids).getResultList();
+        for (Object row : rows)
+            if (row != null)
+                res.add(((Number)row).longValue());
+        return res;
+    }
+
+    /**
+       Delete the persons with the given ids, used for the cascaded
+       person collections of events and elements.
+    */
+    protected int deletePersons(Collection<Long> personIds) {
+        executeForIds("delete from PERSON_MIDDLE_NAMES where PERSON_ID in (:ids)",
+                      personIds);
+        return executeForIds("delete from PERSON where ID in (:ids)",
+                             personIds);
     }
 
     // Java Persistence Query Language Syntax:
     // http://docs.oracle.com/javaee/6/tutorial/doc/bnbuf.html
-    protected TypedQuery<T> makeQuery(String q, Map<String, Object> params,
-				User user, Class<T> resultClass) 
+    protected <R> TypedQuery<R> makeQuery(String q, Map<String, Object> params,
+                                          User user, Class<R> resultClass)
     {
-	System.out.println("Find query: " + q);
+        LOG.debug("Query: {} userId: {} params: {}", q, user.getId(), params);
 
-        TypedQuery<T> query = entityManager.createQuery(q, resultClass);
-	query = query.setParameter("userId", user.getId());
-	System.out.println("  param: userId = " + user.getId());
+        TypedQuery<R> query = entityManager.createQuery(q, resultClass);
+        query.setParameter("userId", user.getId());
+        for (Map.Entry<String, Object> p : params.entrySet())
+            query.setParameter(p.getKey(), p.getValue());
 
-	for (Map.Entry<String, Object> p : params.entrySet()) {
-	    System.out.println("  param: " + p.getKey() + " = " + p.getValue());
-	    query = query.setParameter(p.getKey(), p.getValue());
-	}
-
-	return query;
+        return query;
     }
 
     @Override
@@ -90,6 +307,20 @@ abstract class DiMeRepositoryImpl<T extends DiMeData> implements DiMeRepositoryC
         newData.copyIdFrom(oldData);
         return entityManager.merge(newData);
     }
+
+    private SessionImplementor session() {
+        return (SessionImplementor)entityManager.unwrap(Session.class);
+    }
+
+    @Override
+    public boolean canUpsert(T obj) {
+        return upserter.supports(obj, session());
+    }
+
+    @Override
+    public NativeUpsert.Result upsert(T obj) {
+        return upserter.upsert(obj, session());
+    }
 }
 
 @NoRepositoryBean
@@ -102,11 +333,18 @@ public interface DiMeRepository<T extends DiMeData>
 
     // T findOneByAppIdAndUser(String appId, User user);
 
+    // The queries below are explicit, since the derived ones left join
+    // the user table, which stops the database from using the indexes
+    // starting with the user id
+    @Query("select d from #{#entityName} d where d.appId = ?1 and d.user = ?2 order by d.timeModified desc")
     List<T> findByAppIdAndUserOrderByTimeModifiedDesc(String appId, User user);
 
+    @Query("select d from #{#entityName} d where d.user = ?1")
     List<T> findByUser(User user);
 
-    Long countByUser(User user);
+    @Query("select distinct d.user.id from #{#entityName} d")
+    List<Long> findUserIds();
 
-    Long deleteByUser(User user);
+    @Query("select count(d) from #{#entityName} d where d.user = ?1")
+    Long countByUser(User user);
 }
@@ -26,34 +26,250 @@ package fi.hiit.dime.database;
 
 import fi.hiit.dime.data.Event;
 import fi.hiit.dime.data.InformationElement;
+import fi.hiit.dime.data.ReadingEvent;
 import fi.hiit.dime.data.ResourcedEvent;
 import fi.hiit.dime.authentication.User;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @Service
 public class EventDAO extends DiMeDAO<Event, EventRepository> {
     private static final Logger LOG = LoggerFactory.getLogger(EventDAO.class);
 
+    @Autowired
+    private EventHistDAO histDAO;
+
+    @Autowired
+    private UserStatsDAO statsDAO;
+
+    @Autowired
+    private TimeSeriesDAO seriesDAO;
+
+    @Autowired
+    private ReadingSessionDAO sessionDAO;
+
+    @Autowired
+    private EyeHeatmapDAO heatmapDAO;
+
+    // The overrides below keep the event histograms, time series,
+    // reading sessions, eye heatmaps and dashboard counters up to date
+
+    @Override
+    @Transactional
+    public void save(Event obj) {
+        boolean isNew = obj.getId() == null;
+        super.save(obj);
+        if (isNew) {
+            histDAO.add(obj.user.getId(), EventHistDAO.Key.of(obj));
+            seriesDAO.add(obj.user.getId(), TimeSeriesDAO.Key.of(obj));
+            sessionDAO.add(obj.user.getId(), obj);
+            heatmapDAO.add(obj.user.getId(), obj);
+            statsDAO.eventStored(obj.user.getId(),
+                                 Collections.<EventHistDAO.Key>emptyList(),
+                                 obj);
+        }
+    }
+
+    @Override
+    @Transactional
+    public Event replace(Event oldObj, Event newObj) {
+        // Taken before the merge, which overwrites the old object
+        EventHistDAO.Key oldKey = EventHistDAO.Key.of(oldObj);
+        List<TimeSeriesDAO.Key> oldSeries = TimeSeriesDAO.Key.of(oldObj);
+        Set<String> sessionIds =
+            new HashSet<String>(ReadingSessionDAO.sessionIds(oldObj));
+        Set<Long> elemIds =
+            new HashSet<Long>(EyeHeatmapDAO.elemIds(oldObj));
+        List<Object> oldSummary = ReadingSessionDAO.summaryInputs(oldObj);
+        List<Object> oldHeatmap = EyeHeatmapDAO.heatmapInputs(oldObj);
+        Event obj = super.replace(oldObj, newObj);
+        // Loggers re-send events by appId, usually without changes
+        if (!ReadingSessionDAO.summaryInputs(obj).equals(oldSummary)) {
+            sessionIds.addAll(ReadingSessionDAO.sessionIds(obj));
+            sessionDAO.invalidate(obj.user.getId(), sessionIds);
+        }
+        if (!EyeHeatmapDAO.heatmapInputs(obj).equals(oldHeatmap)) {
+            elemIds.addAll(EyeHeatmapDAO.elemIds(obj));
+            heatmapDAO.invalidate(obj.user.getId(), elemIds);
+        }
+        histDAO.replace(obj.user.getId(), Collections.singletonList(oldKey),
+                        EventHistDAO.Key.of(obj));
+        seriesDAO.replace(obj.user.getId(), oldSeries,
+                          TimeSeriesDAO.Key.of(obj));
+        statsDAO.eventStored(obj.user.getId(),
+                             Collections.singletonList(oldKey), obj);
+        return obj;
+    }
+
+    @Override
+    @Transactional
+    public Event upsert(Event obj) {
+        if (!repo.canUpsert(obj))
+            return null;
+
+        // Taken before the upsert, which overwrites the old row
+        List<EventHistDAO.Key> oldKeys = repo.findHistKeys(obj.user,
+                                                           obj.appId);
+        List<TimeSeriesDAO.Key> oldSeries = repo.findSeriesKeys(obj.user,
+                                                                obj.appId);
+        Set<String> sessionIds = new HashSet<String>();
+        if (!ReadingSessionDAO.sessionIds(obj).isEmpty())
+            sessionIds.addAll(repo.findSessionIds(obj.user, obj.appId));
+        Set<Long> elemIds = new HashSet<Long>();
+        if (obj instanceof ReadingEvent)
+            elemIds.addAll(repo.findHeatmapElemIds(obj.user, obj.appId));
+
+        Event stored = super.upsert(obj);
+        if (stored != null) {
+            histDAO.replace(obj.user.getId(), oldKeys,
+                            EventHistDAO.Key.of(stored));
+            seriesDAO.replace(obj.user.getId(), oldSeries,
+                              TimeSeriesDAO.Key.of(stored));
+            // No old keys means that the event was inserted
+            if (oldKeys.isEmpty()) {
+                sessionDAO.add(obj.user.getId(), stored);
+                heatmapDAO.add(obj.user.getId(), stored);
+            } else {
+                sessionIds.addAll(ReadingSessionDAO.sessionIds(stored));
+                sessionDAO.invalidate(obj.user.getId(), sessionIds);
+                elemIds.addAll(EyeHeatmapDAO.elemIds(stored));
+                heatmapDAO.invalidate(obj.user.getId(), elemIds);
+            }
+            statsDAO.eventStored(obj.user.getId(), oldKeys, stored);
+        }
+        return stored;
+    }
+
+    @Override
+    @Transactional
+    public boolean remove(Long id, User user) {
+        Event d = findById(id, user);
+        if (d == null)
+            return false;
+
+        EventHistDAO.Key key = EventHistDAO.Key.of(d);
+        List<TimeSeriesDAO.Key> series = TimeSeriesDAO.Key.of(d);
+        List<String> sessionIds = ReadingSessionDAO.sessionIds(d);
+        List<Long> elemIds = EyeHeatmapDAO.elemIds(d);
+        if (!super.remove(id, user))
+            return false;
+        histDAO.remove(user.getId(), key);
+        seriesDAO.remove(user.getId(), series);
+        sessionDAO.invalidate(user.getId(), sessionIds);
+        heatmapDAO.invalidate(user.getId(), elemIds);
+        statsDAO.eventsRemoved(user.getId(), Collections.singletonList(key),
+                               Collections.singletonList(id));
+        return true;
+    }
+
+    @Override
+    public void removeForUser(Long id, DeleteCount count) {
+        super.removeForUser(id, count);
+        histDAO.removeForUser(id);
+        seriesDAO.removeForUser(id);
+        sessionDAO.removeForUser(id);
+        heatmapDAO.removeForUser(id);
+    }
+
     @Transactional(readOnly = true)
     public List<ResourcedEvent> findByElement(InformationElement elem, User user) {
         return repo.findByTargettedResourceAndUser(elem, user);
     }
 
+    /**
+       Return the events of all the given information elements with
+       a single query, ordered by event id.
+    */
+    @Transactional(readOnly = true)
+    public List<ResourcedEvent> findByElements(Collection<InformationElement> elems,
+                                               User user) {
+        if (elems.isEmpty())
+            return new ArrayList<ResourcedEvent>();
+        return repo.findByTargettedResourceInAndUser(elems, user);
+    }
+
+    @Override
+    protected void removeByIds(User user, List<Long> ids, DeleteCount count) {
+        if (ids.isEmpty())
+            return;
+        outboxDAO.addDeletes(IndexOutboxEntry.EVENT, user.getId(), ids);
+        List<EventHistDAO.Key> keys = repo.findHistKeys(ids);
+        List<TimeSeriesDAO.Key> series = repo.findSeriesKeys(ids);
+        List<String> sessionIds = repo.findSessionIds(ids);
+        List<Long> elemIds = repo.findHeatmapElemIds(ids);
+        histDAO.remove(user.getId(), keys);
+        statsDAO.eventsRemoved(user.getId(), keys, ids);
+        count.events += repo.deleteByIds(ids);
+        seriesDAO.remove(user.getId(), series);
+        sessionDAO.invalidate(user.getId(), sessionIds);
+        heatmapDAO.invalidate(user.getId(), elemIds);
+    }
+
+    /**
+       Return the ids of the events targetting any of the given
+       information elements.
+    */
+    @Transactional(readOnly = true)
+    public List<Long> idsForElements(Collection<Long> elemIds, User user) {
+        if (elemIds.isEmpty())
+            return new ArrayList<Long>();
+        return repo.findIdsByTargettedResourceIdInAndUser(elemIds, user);
+    }
+
+    /**
+       Return the events matching the filter parameters grouped into
+       geohash cells, see DiMeDAO.find for the parameters.
+
+       @param precision Geohash length of the cells
+    */
+    @Transactional(readOnly = true)
+    public List<GeoCluster> geoClusters(Long userId,
+                                        Map<String, String> filterParams,
+                                        int precision) {
+        return repo.findClusters(User.makeUser(userId), filterParams,
+                                 precision);
+    }
+
+    /**
+       Return the ids of the information elements targetted by the
+       events matching the filter parameters.
+    */
+    @Transactional(readOnly = true)
+    public List<Long> elementIds(Long userId,
+                                 Map<String, String> filterParams) {
+        return repo.findElementIds(User.makeUser(userId), filterParams);
+    }
+
     @Transactional(readOnly = true)
     public List<Event> eventsForUser(Long userId, int limit) {
         return repo.findByUserOrderByStartDesc(User.makeUser(userId),
                                                new PageRequest(0, limit));
     }
 
+    /**
+       Return the user's most recent search queries, newest first.
+    */
+    @Transactional(readOnly = true)
+    public List<String> recentSearchQueries(Long userId, int limit) {
+        return repo.recentSearchQueries(User.makeUser(userId),
+                                        new PageRequest(0, limit));
+    }
+
     @Transactional(readOnly = true)
     public List<Event> eventsSince(Long userId, Date since) {
         return repo.findByUserAndTimeModifiedIsAfterOrderByStartDesc(User.makeUser(userId), since);
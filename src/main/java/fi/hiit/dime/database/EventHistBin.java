@@ -0,0 +1,82 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import org.springframework.data.jpa.domain.AbstractPersistable;
+
+import java.util.Date;
+
+import javax.persistence.Entity;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+   Number of events of a user in one time bucket with a given actor,
+   origin, type and event class. These rollups are maintained by
+   EventHistDAO whenever events are stored or removed, and used for
+   the event histograms instead of the events themselves.
+*/
+@Entity
+@Table(name="EVENT_HISTOGRAM")
+public class EventHistBin extends AbstractPersistable<Long> {
+    /** Id of the user owning the events. */
+    public Long userId;
+
+    /** Bucket size, see EventHistDAO.Resolution. */
+    public String resolution;
+
+    /** Start of the bucket. */
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date bucket;
+
+    public String actor;
+
+    public String origin;
+
+    public String type;
+
+    /** Event class, i.e. the @type in JSON. */
+    public String dtype;
+
+    /** Number of events. */
+    public long eventCount;
+
+    public EventHistBin() {
+    }
+
+    public EventHistBin(Long userId, String resolution, Date bucket,
+                        String actor, String origin, String type,
+                        String dtype) {
+        this.userId = userId;
+        this.resolution = resolution;
+        this.bucket = bucket;
+        this.actor = actor;
+        this.origin = origin;
+        this.type = type;
+        this.dtype = dtype;
+    }
+}
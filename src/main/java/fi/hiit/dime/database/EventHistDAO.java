@@ -0,0 +1,379 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.Event;
+
+import org.hibernate.Hibernate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+   Data access object for the time-bucketed event histograms. For
+   each resolution, the events of a user are counted per bucket and
+   per combination of actor, origin, type and event class. The counts
+   are updated incrementally by EventDAO as events are stored,
+   replaced and removed, so a histogram only reads a few rows per
+   bucket.
+*/
+@Service
+public class EventHistDAO {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /**
+       Bucket sizes. Buckets start at full hours, at midnight, and on
+       Monday at midnight, all in UTC.
+    */
+    public enum Resolution {
+        HOUR(Calendar.HOUR_OF_DAY),
+        DAY(Calendar.DAY_OF_MONTH),
+        WEEK(Calendar.WEEK_OF_YEAR);
+
+        private final int calendarField;
+
+        Resolution(int calendarField) {
+            this.calendarField = calendarField;
+        }
+
+        public String getName() {
+            return name().toLowerCase();
+        }
+
+        /**
+           Return the start of the bucket containing the given time.
+        */
+        public Date bucketStart(Date time) {
+            Calendar cal = Calendar.getInstance(UTC);
+            cal.setTime(time);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            if (this != HOUR)
+                cal.set(Calendar.HOUR_OF_DAY, 0);
+            if (this == WEEK)
+                while (cal.get(Calendar.DAY_OF_WEEK) != Calendar.MONDAY)
+                    cal.add(Calendar.DAY_OF_MONTH, -1);
+            return cal.getTime();
+        }
+
+        /**
+           Return the start of the bucket after the given one.
+        */
+        public Date next(Date bucket) {
+            Calendar cal = Calendar.getInstance(UTC);
+            cal.setTime(bucket);
+            cal.add(calendarField, 1);
+            return cal.getTime();
+        }
+
+        /**
+           Parse a resolution from its name, e.g. "day".
+
+           @throws IllegalArgumentException on unknown names
+        */
+        public static Resolution parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /**
+       Event properties that histograms can be grouped by.
+    */
+    public enum GroupBy {
+        ACTOR("actor"), ORIGIN("origin"), TYPE("type"), DTYPE("@type");
+
+        private final String name;
+
+        GroupBy(String name) {
+            this.name = name;
+        }
+
+        String valueOf(EventHistBin bin) {
+            switch (this) {
+            case ACTOR:
+                return bin.actor;
+            case ORIGIN:
+                return bin.origin;
+            case TYPE:
+                return bin.type;
+            default:
+                return bin.dtype;
+            }
+        }
+
+        /**
+           Parse from the property name: actor, origin, type or @type.
+
+           @throws IllegalArgumentException on unknown names
+        */
+        public static GroupBy parse(String name) {
+            for (GroupBy g : values())
+                if (g.name.equals(name.trim()))
+                    return g;
+            throw new IllegalArgumentException(name);
+        }
+    }
+
+    /**
+       The properties of an event that are counted in the histograms.
+    */
+    public static class Key {
+        public final Date time;
+        public final String actor;
+        public final String origin;
+        public final String type;
+        public final String dtype;
+
+        public Key(Date time, String actor, String origin, String type,
+                   String dtype) {
+            this.time = time;
+            this.actor = actor;
+            this.origin = origin;
+            this.type = type;
+            this.dtype = dtype;
+        }
+
+        /**
+           Return the key of the given event. Events are placed by
+           their start time, or by the creation time if they have no
+           start time.
+        */
+        public static Key of(Event e) {
+            return new Key(e.start != null ? e.start : e.timeCreated,
+                           e.actor, e.origin, e.type,
+                           Hibernate.getClass(e).getSimpleName());
+        }
+
+        List<String> group() {
+            return Arrays.asList(actor, origin, type, dtype);
+        }
+
+        /**
+           Return true if the other key is counted in the same bins.
+        */
+        boolean sameBins(Key other) {
+            if (time == null || other.time == null)
+                return time == other.time && group().equals(other.group());
+            return Resolution.HOUR.bucketStart(time).equals
+                (Resolution.HOUR.bucketStart(other.time)) &&
+                group().equals(other.group());
+        }
+    }
+
+    @Autowired
+    private EventHistRepository repo;
+
+    private static List<String> groupOf(EventHistBin bin) {
+        return Arrays.asList(bin.actor, bin.origin, bin.type, bin.dtype);
+    }
+
+    private static List<Object> binKey(String resolution, long bucket,
+                                       List<String> group) {
+        List<Object> key = new ArrayList<Object>(group);
+        key.add(resolution);
+        key.add(bucket);
+        return key;
+    }
+
+    /**
+       Count a stored event.
+    */
+    @Transactional
+    public void add(Long userId, Key key) {
+        update(userId, Collections.singletonList(key), 1);
+    }
+
+    /**
+       Stop counting a removed event.
+    */
+    @Transactional
+    public void remove(Long userId, Key key) {
+        update(userId, Collections.singletonList(key), -1);
+    }
+
+    /**
+       Stop counting removed events.
+    */
+    @Transactional
+    public void remove(Long userId, List<Key> keys) {
+        update(userId, keys, -1);
+    }
+
+    /**
+       Move the count of a replaced event from its old key to the new
+       one. Nothing is written in the common case of an event being
+       replaced by an equal one.
+    */
+    @Transactional
+    public void replace(Long userId, List<Key> oldKeys, Key newKey) {
+        if (oldKeys.size() == 1 && oldKeys.get(0).sameBins(newKey))
+            return;
+        update(userId, oldKeys, -1);
+        update(userId, Collections.singletonList(newKey), 1);
+    }
+
+    /**
+       Add delta to the counts of the given events, in all
+       resolutions. Bins are created as needed, and removed when they
+       become empty.
+    */
+    protected void update(Long userId, List<Key> keys, long delta) {
+        // Sum the changes per bin first, since a batch of events
+        // usually falls in a few bins
+        Map<Resolution, Map<Long, Map<List<String>, Long>>> changes =
+            new HashMap<Resolution, Map<Long, Map<List<String>, Long>>>();
+        Set<Date> buckets = new HashSet<Date>();
+
+        for (Resolution res : Resolution.values()) {
+            Map<Long, Map<List<String>, Long>> resChanges =
+                new HashMap<Long, Map<List<String>, Long>>();
+            for (Key key : keys) {
+                if (key.time == null)
+                    continue;
+                Date bucket = res.bucketStart(key.time);
+                buckets.add(bucket);
+
+                Map<List<String>, Long> groups =
+                    resChanges.get(bucket.getTime());
+                if (groups == null) {
+                    groups = new HashMap<List<String>, Long>();
+                    resChanges.put(bucket.getTime(), groups);
+                }
+                Long n = groups.get(key.group());
+                groups.put(key.group(), (n == null ? 0 : n) + delta);
+            }
+            changes.put(res, resChanges);
+        }
+
+        if (buckets.isEmpty())
+            return;
+
+        // The existing bins of all resolutions in one query, bucket
+        // times are compared as milliseconds since the database gives
+        // them as Timestamps
+        List<String> resNames = new ArrayList<String>();
+        for (Resolution res : Resolution.values())
+            resNames.add(res.getName());
+        Map<List<Object>, Long> binIds = new HashMap<List<Object>, Long>();
+        for (EventHistBin bin : repo.findBins(userId, resNames, buckets)) {
+            List<Object> binKey = binKey(bin.resolution,
+                                         bin.bucket.getTime(), groupOf(bin));
+            if (!binIds.containsKey(binKey))
+                binIds.put(binKey, bin.getId());
+        }
+
+        List<Long> updated = new ArrayList<Long>();
+        for (Resolution res : Resolution.values()) {
+            for (Map.Entry<Long, Map<List<String>, Long>> b :
+                     changes.get(res).entrySet()) {
+                for (Map.Entry<List<String>, Long> g :
+                         b.getValue().entrySet()) {
+                    long n = g.getValue();
+                    Long id = binIds.get(binKey(res.getName(), b.getKey(),
+                                                g.getKey()));
+                    if (id != null) {
+                        repo.addCount(id, n);
+                        updated.add(id);
+                    } else if (n > 0) {
+                        List<String> group = g.getKey();
+                        EventHistBin bin = new EventHistBin
+                            (userId, res.getName(), new Date(b.getKey()),
+                             group.get(0), group.get(1), group.get(2),
+                             group.get(3));
+                        bin.eventCount = n;
+                        repo.save(bin);
+                    }
+                }
+            }
+        }
+
+        if (delta < 0 && !updated.isEmpty())
+            repo.deleteEmpty(updated);
+    }
+
+    /**
+       Remove all histogram counts of a user.
+    */
+    @Transactional
+    public int removeForUser(Long userId) {
+        return repo.deleteForUser(userId);
+    }
+
+    /**
+       Return the histogram of a user's events, as counts per property
+       value for each bucket in the given time range. Buckets without
+       events are included with no counts.
+
+       @param userId User id
+       @param res Resolution of the buckets
+       @param groupBy Event property to count the values of
+       @param from Start of the range, rounded down to the bucket start
+       @param to End of the range, exclusive
+       @return Map from bucket start to counts per value, in time
+       order. Events without a value for the property are not counted.
+    */
+    @Transactional(readOnly = true)
+    public Map<Date, Map<String, Long>> histogram(Long userId, Resolution res,
+                                                  GroupBy groupBy, Date from,
+                                                  Date to) {
+        Map<Long, Map<String, Long>> counts =
+            new LinkedHashMap<Long, Map<String, Long>>();
+        Map<Date, Map<String, Long>> hist =
+            new LinkedHashMap<Date, Map<String, Long>>();
+
+        for (Date b = res.bucketStart(from); b.before(to); b = res.next(b)) {
+            Map<String, Long> bucketCounts = new HashMap<String, Long>();
+            counts.put(b.getTime(), bucketCounts);
+            hist.put(b, bucketCounts);
+        }
+
+        for (EventHistBin bin : repo.findBins(userId, res.getName(),
+                                              res.bucketStart(from), to)) {
+            String value = groupBy.valueOf(bin);
+            Map<String, Long> bucketCounts = counts.get(bin.bucket.getTime());
+            if (value == null || bucketCounts == null || bin.eventCount <= 0)
+                continue;
+            Long n = bucketCounts.get(value);
+            bucketCounts.put(value, (n == null ? 0 : n) + bin.eventCount);
+        }
+        return hist;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+   Liquibase migration that fills the EVENT_HISTOGRAM table from the
+   existing events. After this, EventHistDAO keeps it up to date.
+*/
+public class EventHistMigration implements CustomTaskChange {
+    private long eventCount = 0;
+    private long binCount = 0;
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        Connection conn =
+            ((JdbcConnection)database.getConnection()).getUnderlyingConnection();
+
+        try {
+            migrate(conn);
+        } catch (SQLException e) {
+            throw new CustomChangeException(e);
+        }
+    }
+
+    protected void migrate(Connection conn) throws SQLException {
+        PreparedStatement insertBin = conn.prepareStatement
+            ("insert into EVENT_HISTOGRAM (USER_ID, RESOLUTION, BUCKET, " +
+             "ACTOR, ORIGIN, TYPE, DTYPE, EVENT_COUNT) " +
+             "values (?, ?, ?, ?, ?, ?, ?, ?)");
+        Statement st = conn.createStatement();
+
+        try {
+            // Counts of the current user, keyed by resolution, bucket
+            // and the group values
+            Map<List<Object>, Long> bins = new HashMap<List<Object>, Long>();
+            long prevUserId = -1;
+
+            ResultSet rs = st.executeQuery
+                ("select USER_ID, START, TIME_CREATED, ACTOR, ORIGIN, " +
+                 "TYPE, DTYPE from EVENT order by USER_ID");
+            while (rs.next()) {
+                long userId = rs.getLong(1);
+                if (userId != prevUserId) {
+                    insert(insertBin, prevUserId, bins);
+                    prevUserId = userId;
+                }
+
+                Date time = rs.getTimestamp(2);
+                if (time == null)
+                    time = rs.getTimestamp(3);
+                if (time == null)
+                    continue;
+
+                for (EventHistDAO.Resolution res :
+                         EventHistDAO.Resolution.values()) {
+                    List<Object> key = Arrays.<Object>asList
+                        (res.getName(), res.bucketStart(time).getTime(),
+                         rs.getString(4), rs.getString(5), rs.getString(6),
+                         rs.getString(7));
+                    Long n = bins.get(key);
+                    bins.put(key, (n == null ? 0 : n) + 1);
+                }
+                eventCount++;
+            }
+            insert(insertBin, prevUserId, bins);
+            rs.close();
+        } finally {
+            st.close();
+            insertBin.close();
+        }
+    }
+
+    private void insert(PreparedStatement insertBin, long userId,
+                        Map<List<Object>, Long> bins) throws SQLException {
+        for (Map.Entry<List<Object>, Long> bin : bins.entrySet()) {
+            List<Object> key = bin.getKey();
+            insertBin.setLong(1, userId);
+            insertBin.setString(2, (String)key.get(0));
+            insertBin.setTimestamp(3, new Timestamp((Long)key.get(1)));
+            insertBin.setString(4, (String)key.get(2));
+            insertBin.setString(5, (String)key.get(3));
+            insertBin.setString(6, (String)key.get(4));
+            insertBin.setString(7, (String)key.get(5));
+            insertBin.setLong(8, bin.getValue());
+            insertBin.addBatch();
+            if (++binCount % 500 == 0)
+                insertBin.executeBatch();
+        }
+        insertBin.executeBatch();
+        bins.clear();
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return String.format("Counted %d events in %d histogram bins",
+                             eventCount, binCount);
+    }
+
+    @Override
+    public void setUp() throws SetupException {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        return new ValidationErrors();
+    }
+}
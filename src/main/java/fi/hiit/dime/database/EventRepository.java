@@ -26,101 +26,352 @@ package fi.hiit.dime.database;
 
 import fi.hiit.dime.data.Event;
 import fi.hiit.dime.data.InformationElement;
+import fi.hiit.dime.data.ReadingEvent;
 import fi.hiit.dime.data.ResourcedEvent;
 import fi.hiit.dime.authentication.User;
 
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.jpa.repository.Query;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.persistence.EntityManager;
-import javax.persistence.PersistenceContext;
-import javax.persistence.TypedQuery;
+interface EventRepositoryCustom {
+    public List<EventHistDAO.Key> findHistKeys(Collection<Long> ids);
+    public List<EventHistDAO.Key> findHistKeys(User user, String appId);
+    public List<TimeSeriesDAO.Key> findSeriesKeys(Collection<Long> ids);
+    public List<TimeSeriesDAO.Key> findSeriesKeys(User user, String appId);
+    public List<GeoCluster> findClusters(User user,
+                                         Map<String, String> filterParams,
+                                         int precision);
+    public List<Long> findElementIds(User user,
+                                     Map<String, String> filterParams);
+    public List<String> findSessionIds(Collection<Long> ids);
+    public List<String> findSessionIds(User user, String appId);
+    public List<Long> findHeatmapElemIds(Collection<Long> ids);
+    public List<Long> findHeatmapElemIds(User user, String appId);
+}
+
+class EventRepositoryImpl extends DiMeRepositoryImpl<Event>
+    implements EventRepositoryCustom
+{
+    private static final FilterCompiler compiler =
+        new FilterCompiler("Event", TagLink.EVENT)
+        .field("actor", "actor", FilterCompiler.Type.STRING)
+        .field("origin", "origin", FilterCompiler.Type.STRING)
+        .field("type", "type", FilterCompiler.Type.STRING)
+        .field("query", "query", FilterCompiler.Type.STRING)
+        .field("appid", "appId", FilterCompiler.Type.STRING)
+        .field("sessionid", "sessionId", FilterCompiler.Type.STRING)
+        .field("elemid", "targettedResource.id", FilterCompiler.Type.LONG)
+        .field("elem_id", "targettedResource.id", FilterCompiler.Type.LONG)
+        .field("id", "id", FilterCompiler.Type.LONG)
+        .field("start", "start", FilterCompiler.Type.DATE)
+        .field("end", "end", FilterCompiler.Type.DATE)
+        .field("timecreated", "timeCreated", FilterCompiler.Type.DATE)
+        .field("timemodified", "timeModified", FilterCompiler.Type.DATE)
+        .alias("after", "start", FilterCompiler.Op.FROM)
+        .alias("before", "end", FilterCompiler.Op.TO)
+        .geo("location", "geohash");
+
+    @Override
+    protected FilterCompiler filterCompiler() {
+        return compiler;
+    }
+
+    @Override
+    protected Class<Event> resultClass() {
+        return Event.class;
+    }
 
-class EventRepositoryImpl extends DiMeRepositoryImpl<Event> {
+    private static final String HIST_KEY_COLUMNS =
+        "select START, TIME_CREATED, ACTOR, ORIGIN, TYPE, DTYPE from EVENT ";
+
+    private static List<EventHistDAO.Key> histKeys(List<?> rows) {
+        List<EventHistDAO.Key> keys = new ArrayList<EventHistDAO.Key>();
+        for (Object row : rows) {
+            Object[] r = (Object[])row;
+            Date time = (Date)(r[0] != null ? r[0] : r[1]);
+            keys.add(new EventHistDAO.Key(time, (String)r[2], (String)r[3],
+                                          (String)r[4], (String)r[5]));
+        }
+        return keys;
+    }
+
+    /**
+       Return the histogram keys of the given events.
+    */
     @Override
-    public List<Event> find(User user, Map<String, String> filterParams) {
-        // We build the SQL query into q
-        StringBuilder q = new StringBuilder("select e from Event e " +
-                                            "where e.user.id=:userId");
-
-        // Map for storing named parameters for the query we are
-        // constructing
-        Map<String, Object> namedParams = new HashMap<String, Object>();
-
-        // Loop over user's parameters, and transform to SQL statments
-        // and fill in namedParams
-        for (Map.Entry<String, String> param : filterParams.entrySet()) {
-            String name = param.getKey().toLowerCase();
-            String value = param.getValue();
-
-            String criteria = "";
-
-            switch (name) {
-            case "tag":
-                criteria = "(select count(*) from e.tags where text=:tag) > 0";
-                break;
-            case "after":
-                criteria = "start >= :after";
-                namedParams.put(name, parseDateForQuery(value));
-                value = null;
-                break;
-            case "before":
-                criteria = "e.end <= :before";
-                namedParams.put(name, parseDateForQuery(value));
-                value = null;
-                break;
-            case "elem_id":
-            case "elemid":
-                name = "resource_id";
-            break;
-            case "appid":
-                name = "appId";
-                break;
-            case "sessionid":
-                name = "sessionId";
-                break;
-            case "actor":
-            case "origin":
-            case "type":
-            case "query":
-                // case "":
-                break;
-            default:
-                throw new IllegalArgumentException(name);
-            }
-
-            if (criteria.isEmpty())
-                criteria = String.format("%s=:%s", name, name);
-
-            q.append(" and " + criteria);
-            if (value != null)
-                namedParams.put(name, value);
+    public List<EventHistDAO.Key> findHistKeys(Collection<Long> ids) {
+        if (ids.isEmpty())
+            return new ArrayList<EventHistDAO.Key>();
+        return histKeys(entityManager.createNativeQuery
+                        (HIST_KEY_COLUMNS + "where ID in (:ids)")
+                        .setParameter("ids", ids).getResultList());
+    }
+
+    /**
+       Return the histogram key of the user's event with the given
+       appId, if any.
+    */
+    @Override
+    public List<EventHistDAO.Key> findHistKeys(User user, String appId) {
+        return histKeys(entityManager.createNativeQuery
+                        (HIST_KEY_COLUMNS +
+                         "where USER_ID = :userId and APP_ID = :appId")
+                        .setParameter("userId", user.getId())
+                        .setParameter("appId", appId).getResultList());
+    }
+
+    private static final String SERIES_KEY_COLUMNS =
+        "select START, TIME_CREATED, TYPE, ACTIVITY_TYPE, DEVICE, VALUE " +
+        "from EVENT where DTYPE in (:dtypes) and VALUE is not null ";
+
+    private static List<TimeSeriesDAO.Key> seriesKeys(List<?> rows) {
+        List<TimeSeriesDAO.Key> keys = new ArrayList<TimeSeriesDAO.Key>();
+        for (Object row : rows) {
+            Object[] r = (Object[])row;
+            Date time = (Date)(r[0] != null ? r[0] : r[1]);
+            if (time != null)
+                keys.add(new TimeSeriesDAO.Key(time, (String)r[2],
+                                               (String)r[3], (String)r[4],
+                                               ((Number)r[5]).doubleValue()));
         }
+        return keys;
+    }
+
+    /**
+       Return the time series keys of the given events.
+    */
+    @Override
+    public List<TimeSeriesDAO.Key> findSeriesKeys(Collection<Long> ids) {
+        if (ids.isEmpty())
+            return new ArrayList<TimeSeriesDAO.Key>();
+        return seriesKeys(entityManager.createNativeQuery
+                          (SERIES_KEY_COLUMNS + "and ID in (:ids)")
+                          .setParameter("dtypes", TimeSeriesDAO.DTYPES)
+                          .setParameter("ids", ids).getResultList());
+    }
+
+    /**
+       Return the time series key of the user's event with the given
+       appId, if any.
+    */
+    @Override
+    public List<TimeSeriesDAO.Key> findSeriesKeys(User user, String appId) {
+        return seriesKeys(entityManager.createNativeQuery
+                          (SERIES_KEY_COLUMNS +
+                           "and USER_ID = :userId and APP_ID = :appId")
+                          .setParameter("dtypes", TimeSeriesDAO.DTYPES)
+                          .setParameter("userId", user.getId())
+                          .setParameter("appId", appId).getResultList());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> sessionIds(javax.persistence.Query query) {
+        return (List<String>)query.getResultList();
+    }
+
+    /**
+       Return the reading session ids of the given events.
+    */
+    @Override
+    public List<String> findSessionIds(Collection<Long> ids) {
+        if (ids.isEmpty())
+            return new ArrayList<String>();
+        return sessionIds(entityManager.createNativeQuery
+                          ("select distinct SESSION_ID from EVENT " +
+                           "where ID in (:ids) and SESSION_ID is not null")
+                          .setParameter("ids", ids));
+    }
+
+    /**
+       Return the reading session id of the user's event with the
+       given appId, if any.
+    */
+    @Override
+    public List<String> findSessionIds(User user, String appId) {
+        return sessionIds(entityManager.createNativeQuery
+                          ("select SESSION_ID from EVENT where " +
+                           "USER_ID = :userId and APP_ID = :appId " +
+                           "and SESSION_ID is not null")
+                          .setParameter("userId", user.getId())
+                          .setParameter("appId", appId));
+    }
+
+    // Events with eye data, i.e. those that affect the heatmaps of
+    // their element
+    private static final String HEATMAP_ELEM_COLUMNS =
+        "select distinct RESOURCE_ID from EVENT where " +
+        "RESOURCE_ID is not null and exists (select 1 from " +
+        "PAGE_EYE_DATA p where p.EVENT_ID = EVENT.ID) ";
+
+    private List<Long> elemIds(javax.persistence.Query query) {
+        List<Long> res = new ArrayList<Long>();
+        for (Object id : query.getResultList())
+            res.add(((Number)id).longValue());
+        return res;
+    }
+
+    /**
+       Return the ids of the elements targetted by those of the given
+       events that have eye data.
+    */
+    @Override
+    public List<Long> findHeatmapElemIds(Collection<Long> ids) {
+        if (ids.isEmpty())
+            return new ArrayList<Long>();
+        return elemIds(entityManager.createNativeQuery
+                       (HEATMAP_ELEM_COLUMNS + "and ID in (:ids)")
+                       .setParameter("ids", ids));
+    }
+
+    /**
+       Return the id of the element targetted by the user's event
+       with the given appId, if it has eye data.
+    */
+    @Override
+    public List<Long> findHeatmapElemIds(User user, String appId) {
+        return elemIds(entityManager.createNativeQuery
+                       (HEATMAP_ELEM_COLUMNS +
+                        "and USER_ID = :userId and APP_ID = :appId")
+                       .setParameter("userId", user.getId())
+                       .setParameter("appId", appId));
+    }
+
+    /**
+       Return the matching events with a location grouped by their
+       geohash cells of the given precision.
+    */
+    @Override
+    public List<GeoCluster> findClusters(User user,
+                                         Map<String, String> filterParams,
+                                         int precision) {
+        String cell = "substring(e.geohash, 1, " + precision + ")";
+        FilterCompiler.Compiled compiled = compiler.compileAggregate
+            (filterParams, dateFormat(),
+             "new fi.hiit.dime.database.GeoCluster(" + cell + ", count(e), " +
+             "avg(e.location.latitude), avg(e.location.longitude))",
+             " and e.geohash is not null group by " + cell +
+             " order by count(e) desc");
+
+        return makeQuery(compiled.jpql, compiled.params, user,
+                         GeoCluster.class).getResultList();
+    }
+
+    /**
+       Return the ids of the information elements targetted by the
+       matching events.
+    */
+    @Override
+    public List<Long> findElementIds(User user,
+                                     Map<String, String> filterParams) {
+        FilterCompiler.Compiled compiled = compiler.compileAggregate
+            (filterParams, dateFormat(), "distinct e.targettedResource.id",
+             "");
 
-        return makeQuery(q.toString(), namedParams, user,
-                         Event.class).getResultList();
+        return makeQuery(compiled.jpql, compiled.params, user, Long.class)
+            .getResultList();
+    }
+
+    /**
+       Delete the tags of the given events, but not their tag links.
+    */
+    @Override
+    public void deleteTags(Collection<Long> ids) {
+        List<Long> tagIds =
+            selectForIds("select TAGS_ID from EVENT_TAGS " +
+                         "where EVENT_ID in (:ids)", ids);
+        executeForIds("delete from EVENT_TAGS where EVENT_ID in (:ids)", ids);
+        executeForIds("delete from TAG where ID in (:ids)", tagIds);
+    }
+
+    /**
+       Delete the events with the given ids with set-based native
+       statements, including their tags and child collections. Other
+       events referring to them have the reference cleared, and
+       profile relations to them are removed.
+    */
+    @Override
+    public int deleteByIds(Collection<Long> ids) {
+        executeForIds("update EVENT set RELATED_EVENT_ID = null " +
+                      "where RELATED_EVENT_ID in (:ids)", ids);
+
+        for (String table : new String[] { "PROFILE_VALIDATED_EVENTS",
+                                           "PROFILE_SUGGESTED_EVENTS" })
+            executeForIds("delete from " + table + " where " +
+                          table.substring("PROFILE_".length()) +
+                          "_ID in (select ID from EVENT_RELATION " +
+                          "where EVENT_ID in (:ids))", ids);
+        executeForIds("delete from EVENT_RELATION where EVENT_ID in (:ids)",
+                      ids);
+
+        deleteTags(ids);
+        executeForIds("delete from TAG_LINK where KIND = '" + TagLink.EVENT +
+                      "' and DATA_ID in (:ids)", ids);
+
+        executeForIds("delete from READING_EVENT_PAGE_NUMBERS " +
+                      "where READING_EVENT_ID in (:ids)", ids);
+        executeForIds("delete from READING_EVENT_PAGE_LABELS " +
+                      "where READING_EVENT_ID in (:ids)", ids);
+        executeForIds("delete from SUMMARY_READING_EVENT_FOUND_STRINGS " +
+                      "where SUMMARY_READING_EVENT_ID in (:ids)", ids);
+        executeForIds("delete from INTENT_MODEL_EVENT_MODEL " +
+                      "where INTENT_MODEL_EVENT_ID in (:ids)", ids);
+        executeForIds("delete from PAGE_EYE_DATA where EVENT_ID in (:ids)",
+                      ids);
+
+        List<Long> personIds =
+            selectForIds("select PERSON_ID from CALENDAREVENT_PARTICIPANTS " +
+                         "where CALENDAREVENT_ID in (:ids)", ids);
+        executeForIds("delete from CALENDAREVENT_PARTICIPANTS " +
+                      "where CALENDAREVENT_ID in (:ids)", ids);
+        deletePersons(personIds);
+
+        return executeForIds("delete from EVENT where ID in (:ids)", ids);
     }
 }
 
-public interface EventRepository extends DiMeRepository<Event> {
+public interface EventRepository extends DiMeRepository<Event>,
+                                         EventRepositoryCustom {
 
     @Query("select new fi.hiit.dime.database.EventCount(actor, count(actor)) from Event e where user = ?1 group by actor order by count(actor) desc")
     List<EventCount> actorHistogram(User user);
 
+    // The queries below are explicit, since the derived ones left join
+    // the user table, which stops the database from using the indexes
+    // starting with the user id
+    @Query("select e from ResourcedEvent e where e.targettedResource = ?1 and e.user = ?2")
     List<ResourcedEvent> findByTargettedResourceAndUser(InformationElement elem,
                                                         User user);
 
+    @Query("select e from ResourcedEvent e where e.targettedResource in (?1) and e.user = ?2 order by e.id")
+    List<ResourcedEvent> findByTargettedResourceInAndUser(Collection<InformationElement> elems,
+                                                          User user);
+
+    @Query("select e.id from ResourcedEvent e where e.targettedResource.id in (?1) and e.user = ?2 order by e.id")
+    List<Long> findIdsByTargettedResourceIdInAndUser(Collection<Long> elemIds,
+                                                     User user);
+
+    @Query("select e from Event e where e.user = ?1 order by e.start desc")
     List<Event> findByUserOrderByStartDesc(User user, Pageable pageable);
 
+    @Query("select e from ReadingEvent e where e.user = ?1 and e.sessionId = ?2 order by e.id")
+    List<ReadingEvent> findBySessionId(User user, String sessionId);
+
+    @Query("select e from ReadingEvent e where e.user = ?1 and e.targettedResource.id = ?2 order by e.id")
+    List<ReadingEvent> findByElementId(User user, Long elemId);
+
+    @Query("select e.query from SearchEvent e where e.user = ?1 and e.query is not null order by e.start desc")
+    List<String> recentSearchQueries(User user, Pageable pageable);
+
+    @Query("select e from Event e where e.user = ?1 order by e.start desc")
     List<Event> findByUserOrderByStartDesc(User user);
 
+    @Query("select e from Event e where e.user = ?1 and e.timeModified > ?2 order by e.start desc")
     List<Event> findByUserAndTimeModifiedIsAfterOrderByStartDesc(User user,
                                                                  Date start);
 }
@@ -0,0 +1,211 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.PageEyeData;
+import fi.hiit.dime.data.ReadingEvent;
+import fi.hiit.dime.util.PackedArrays;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.springframework.data.jpa.domain.AbstractPersistable;
+
+import javax.persistence.Access;
+import javax.persistence.AccessType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+/**
+   Eye tracking heatmap of one page of a document: the fixations of
+   all the user's ReadingEvents on the page summed into a grid of
+   square cells. It is maintained by EyeHeatmapDAO, each new event is
+   added to the grid without looking at the earlier ones.
+
+   The grid starts from the page space origin, and it grows as
+   fixations further out are added. A fixation is taken to cover a
+   square of FOVEA_SIZE points at 100% zoom, i.e. FOVEA_SIZE divided
+   by the scaleFactor on the page, and its duration is divided
+   between the cells in proportion to how much of the square they
+   cover.
+*/
+@Entity
+@Table(name="EYE_HEATMAP")
+@JsonIgnoreProperties({"new", "id", "userId"})
+public class EyeHeatmap extends AbstractPersistable<Long> {
+    /** Side of the square covered by a fixation at 100% zoom, in
+        points. This is roughly the area seen sharply at a normal
+        reading distance.
+    */
+    public static final double FOVEA_SIZE = 30.0;
+
+    /** Fixations further out than this from the origin, in points,
+        are ignored, so that stray data can't blow up the grid.
+    */
+    public static final double MAX_COORD = 2000.0;
+
+    /** Id of the user owning the events. */
+    public Long userId;
+
+    /** Id of the information element that was read. */
+    public Long elemId;
+
+    /** Page index, from 0. */
+    public int pageIndex;
+
+    /** Side of a cell in points. */
+    public int resolution;
+
+    /** Number of cells in the x direction. */
+    @Column(name="GRID_COLUMNS")
+    public int columns;
+
+    /** Number of cells in the y direction. */
+    @Column(name="GRID_ROWS")
+    public int rows;
+
+    /** Number of fixations added. */
+    public long fixationCount;
+
+    /** Total duration of the fixations added, in seconds. */
+    public double duration;
+
+    /** Largest cell value. */
+    public double maxValue;
+
+    /** Seconds of fixation in each cell, row by row, so that the
+        cell covering x, y is at index
+        (int)(y/resolution)*columns + (int)(x/resolution).
+    */
+    @Transient
+    public double[] values = new double[0];
+
+    public EyeHeatmap() {
+    }
+
+    public EyeHeatmap(Long userId, Long elemId, int pageIndex,
+                      int resolution) {
+        this.userId = userId;
+        this.elemId = elemId;
+        this.pageIndex = pageIndex;
+        this.resolution = resolution;
+    }
+
+    /** Add the fixations on this page of an event to the heatmap.
+     */
+    public void add(ReadingEvent e) {
+        if (e.pageEyeData == null)
+            return;
+
+        for (PageEyeData d : e.pageEyeData)
+            if (d.pageIndex == pageIndex)
+                add(d);
+    }
+
+    private void add(PageEyeData d) {
+        if (d.Xs == null || d.Ys == null || d.durations == null)
+            return;
+
+        double scale = d.scaleFactor == null || d.scaleFactor <= 0.0 ?
+            1.0 : d.scaleFactor;
+        double half = FOVEA_SIZE/scale/2;
+
+        int n = Math.min(Math.min(d.Xs.length, d.Ys.length),
+                         d.durations.length);
+        for (int i=0; i<n; i++) {
+            double x = d.Xs[i], y = d.Ys[i];
+            if (x < 0.0 || y < 0.0 || x > MAX_COORD || y > MAX_COORD ||
+                d.durations[i] <= 0)
+                continue;
+
+            // Durations are in microseconds
+            double secs = d.durations[i]/1.0e6;
+            fixationCount++;
+            duration += secs;
+            addSquare(Math.max(0.0, x-half), Math.max(0.0, y-half),
+                      Math.min(MAX_COORD, x+half),
+                      Math.min(MAX_COORD, y+half), secs/(4*half*half));
+        }
+    }
+
+    /** Add density per square point over the given square.
+     */
+    private void addSquare(double x0, double y0, double x1, double y1,
+                           double density) {
+        int c0 = (int)(x0/resolution), c1 = (int)(x1/resolution);
+        int r0 = (int)(y0/resolution), r1 = (int)(y1/resolution);
+        grow(c1+1, r1+1);
+
+        for (int r=r0; r<=r1; r++) {
+            double h = Math.min(y1, (r+1)*resolution) -
+                Math.max(y0, r*resolution);
+            for (int c=c0; c<=c1; c++) {
+                double w = Math.min(x1, (c+1)*resolution) -
+                    Math.max(x0, c*resolution);
+                if (w <= 0.0 || h <= 0.0)
+                    continue;
+                int i = r*columns + c;
+                values[i] += density*w*h;
+                maxValue = Math.max(maxValue, values[i]);
+            }
+        }
+    }
+
+    /** Make the grid at least the given size.
+    */
+    private void grow(int minColumns, int minRows) {
+        if (minColumns <= columns && minRows <= rows)
+            return;
+
+        int newColumns = Math.max(columns, minColumns);
+        int newRows = Math.max(rows, minRows);
+
+        double[] newValues = new double[newColumns*newRows];
+        for (int r=0; r<rows; r++)
+            System.arraycopy(values, r*columns, newValues, r*newColumns,
+                             columns);
+        columns = newColumns;
+        rows = newRows;
+        values = newValues;
+    }
+
+    /** The cell values packed for storing in the database.
+    */
+    @Access(AccessType.PROPERTY)
+    @Lob
+    @Column(name="PACKED_VALUES")
+    @JsonIgnore
+    protected byte[] getPackedValues() {
+        return new PackedArrays.Writer().writeDoubles(values).toByteArray();
+    }
+
+    protected void setPackedValues(byte[] data) {
+        values = data == null ? new double[0] :
+            new PackedArrays.Reader(data).readDoubles();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.data.Event;
+import fi.hiit.dime.data.PageEyeData;
+import fi.hiit.dime.data.ReadingEvent;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+   Data access object for the eye tracking heatmaps, see EyeHeatmap.
+   A heatmap is built from the events of its document the first time
+   it is asked for, after that EventDAO adds the eye data of each new
+   ReadingEvent to the cached heatmaps of the document. When an event
+   with eye data is replaced or removed the heatmaps of its document
+   are dropped instead, and rebuilt when they are next asked for,
+   unless its eye data stays the same.
+
+   Building, adding to and dropping the heatmaps of a document all
+   first lock the row of the document. Since EventDAO does this in
+   the transaction storing the event, a build waits for events being
+   stored to commit and sees them, and an event stored during a build
+   waits for the heatmap to be saved and is then added to it.
+*/
+@Service
+public class EyeHeatmapDAO {
+    /** Smallest and largest allowed cell size in points. */
+    public static final int MIN_RESOLUTION = 5;
+    public static final int MAX_RESOLUTION = 200;
+
+    @Autowired
+    private EyeHeatmapRepository repo;
+
+    @Autowired
+    private EventRepository eventRepo;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+       Return the id of the element targetted by the given event if
+       it is a ReadingEvent with eye data, otherwise nothing.
+    */
+    public static List<Long> elemIds(Event e) {
+        if (!(e instanceof ReadingEvent))
+            return Collections.emptyList();
+
+        ReadingEvent re = (ReadingEvent)e;
+        if (re.targettedResource == null ||
+            re.targettedResource.getId() == null ||
+            re.pageEyeData == null || re.pageEyeData.isEmpty())
+            return Collections.emptyList();
+        return Collections.singletonList(re.targettedResource.getId());
+    }
+
+    /**
+       Return everything the heatmaps take from the given event,
+       copied so that equal lists mean that replacing one event with
+       the other doesn't change the heatmaps.
+    */
+    public static List<Object> heatmapInputs(Event e) {
+        if (elemIds(e).isEmpty())
+            return Collections.emptyList();
+
+        ReadingEvent re = (ReadingEvent)e;
+        List<Object> res = new ArrayList<Object>();
+        res.add(re.targettedResource.getId());
+        for (PageEyeData d : re.pageEyeData) {
+            res.add(d.pageIndex);
+            res.add(d.scaleFactor);
+            res.add(d.Xs == null ? null : DoubleBuffer.wrap(d.Xs.clone()));
+            res.add(d.Ys == null ? null : DoubleBuffer.wrap(d.Ys.clone()));
+            res.add(d.durations == null ? null :
+                    LongBuffer.wrap(d.durations.clone()));
+        }
+        return res;
+    }
+
+    /**
+       Add the eye data of a newly stored event to the cached
+       heatmaps of its document. Must be called after the event has
+       been stored.
+    */
+    @Transactional
+    public void add(Long userId, Event e) {
+        for (Long elemId : elemIds(e)) {
+            repo.lockElement(elemId);
+            for (EyeHeatmap h : repo.findForElementForUpdate(userId, elemId))
+                h.add((ReadingEvent)e);
+        }
+    }
+
+    /**
+       Drop the heatmaps of the given documents, after their events
+       have been replaced or removed.
+    */
+    @Transactional
+    public void invalidate(Long userId, Collection<Long> elemIds) {
+        if (elemIds.isEmpty())
+            return;
+
+        // In a fixed order, so that concurrent invalidations can't
+        // deadlock
+        List<Long> sorted = new ArrayList<Long>(elemIds);
+        Collections.sort(sorted);
+        for (Long elemId : sorted)
+            repo.lockElement(elemId);
+        repo.deleteForElements(userId, elemIds);
+    }
+
+    /**
+       Return the heatmap of a page, building it if needed.
+
+       @param resolution Side of a cell in points, between
+       MIN_RESOLUTION and MAX_RESOLUTION
+    */
+    public EyeHeatmap get(final Long userId, final Long elemId,
+                          final int pageIndex, final int resolution) {
+        if (resolution < MIN_RESOLUTION || resolution > MAX_RESOLUTION)
+            throw new IllegalArgumentException
+                ("resolution must be between " + MIN_RESOLUTION + " and " +
+                 MAX_RESOLUTION);
+
+        List<EyeHeatmap> heatmaps =
+            repo.findHeatmaps(userId, elemId, pageIndex, resolution);
+        if (heatmaps.size() == 1)
+            return heatmaps.get(0);
+
+        // A transaction of its own, so that the lock is taken before
+        // anything is read in it
+        return new TransactionTemplate(transactionManager).execute
+            (new TransactionCallback<EyeHeatmap>() {
+                public EyeHeatmap doInTransaction(TransactionStatus status) {
+                    return build(userId, elemId, pageIndex, resolution);
+                }
+            });
+    }
+
+    private EyeHeatmap build(Long userId, Long elemId, int pageIndex,
+                             int resolution) {
+        repo.lockElement(elemId);
+
+        // Possibly built while waiting for the lock
+        List<EyeHeatmap> heatmaps =
+            repo.findHeatmapsForUpdate(userId, elemId, pageIndex, resolution);
+        if (heatmaps.size() == 1)
+            return heatmaps.get(0);
+
+        for (EyeHeatmap h : heatmaps)
+            repo.delete(h);
+
+        EyeHeatmap heatmap = new EyeHeatmap(userId, elemId, pageIndex,
+                                            resolution);
+        for (ReadingEvent e :
+                 eventRepo.findByElementId(User.makeUser(userId), elemId))
+            heatmap.add(e);
+        return repo.save(heatmap);
+    }
+
+    /**
+       Remove all heatmaps of a user.
+    */
+    @Transactional
+    public int removeForUser(Long userId) {
+        return repo.deleteForUser(userId);
+    }
+}
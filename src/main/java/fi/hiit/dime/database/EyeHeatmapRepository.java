@@ -0,0 +1,66 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.LockModeType;
+
+public interface EyeHeatmapRepository extends CrudRepository<EyeHeatmap, Long> {
+    @Query("select h from EyeHeatmap h where h.userId = ?1 and h.elemId = ?2 and h.pageIndex = ?3 and h.resolution = ?4 order by h.id")
+    List<EyeHeatmap> findHeatmaps(Long userId, Long elemId, int pageIndex,
+                                  int resolution);
+
+    // Locked, since the grids can't be updated with a single statement
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select h from EyeHeatmap h where h.userId = ?1 and h.elemId = ?2 and h.pageIndex = ?3 and h.resolution = ?4 order by h.id")
+    List<EyeHeatmap> findHeatmapsForUpdate(Long userId, Long elemId,
+                                           int pageIndex, int resolution);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select h from EyeHeatmap h where h.userId = ?1 and h.elemId = ?2 order by h.id")
+    List<EyeHeatmap> findForElementForUpdate(Long userId, Long elemId);
+
+    // Taken before building or changing the heatmaps of a document,
+    // see EyeHeatmapDAO
+    @Query(value="select ID from INFORMATION_ELEMENT where ID = ?1 for update",
+           nativeQuery=true)
+    List<Object> lockElement(Long elemId);
+
+    @Modifying
+    @Query("delete from EyeHeatmap h where h.userId = ?1 and h.elemId in ?2")
+    int deleteForElements(Long userId, Collection<Long> elemIds);
+
+    @Modifying
+    @Query("delete from EyeHeatmap h where h.userId = ?1")
+    int deleteForUser(Long userId);
+}
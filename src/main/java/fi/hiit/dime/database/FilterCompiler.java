@@ -0,0 +1,457 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.util.GeoArea;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+   Compiles the filter parameters of the find() endpoints into a JPQL
+   query. The parameters are first turned into a canonical filter
+   shape, i.e. the sorted set of filtered fields and operators, and
+   the JPQL text is built only once per shape and then cached. Equal
+   shapes always give the same JPQL string, so Hibernate's own query
+   plan cache can reuse the parsed query as well.
+
+   A filter parameter can be given as:
+   - name=value for equality,
+   - name.in=v1,v2,... for matching any of the comma-separated values,
+   - name.from=value and name.to=value for an inclusive range, only
+     for number and date fields.
+
+   Tags are filtered with tag=text, or tags=t1,t2,... together with
+   tagmode=and (default) or tagmode=or.
+
+   If a location has been registered with geo(), the location can be
+   filtered with bbox=minLat,minLon,maxLat,maxLon and/or
+   near=lat,lon together with radius=metres, see GeoArea. The area is
+   first narrowed down with a few range scans of the geohash index,
+   and then checked exactly against the coordinates.
+*/
+class FilterCompiler {
+    // Upper bound of cached shapes, only reached with unusually many
+    // different tag counts
+    private static final int MAX_SHAPES = 1000;
+
+    // Maximum number of geohash cells covering the area of a filter,
+    // consecutive cells are merged into a single range
+    private static final int MAX_GEO_CELLS = 16;
+
+    public enum Type { STRING, LONG, DATE }
+
+    public enum Op {
+        EQ("", "="),
+        IN(".in", "in"),
+        FROM(".from", ">="),
+        TO(".to", "<=");
+
+        private final String suffix;
+        private final String jpql;
+
+        Op(String suffix, String jpql) {
+            this.suffix = suffix;
+            this.jpql = jpql;
+        }
+    }
+
+    private static class Field {
+        final String name;
+        final String property;
+        final Type type;
+
+        Field(String name, String property, Type type) {
+            this.name = name;
+            this.property = property;
+            this.type = type;
+        }
+    }
+
+    private static class Alias {
+        final Field field;
+        final Op op;
+
+        Alias(Field field, Op op) {
+            this.field = field;
+            this.op = op;
+        }
+    }
+
+    /**
+       A compiled query: the JPQL text and its named parameters,
+       except for the userId, which is always present.
+    */
+    public static class Compiled {
+        public final String jpql;
+        public final Map<String, Object> params;
+
+        Compiled(String jpql, Map<String, Object> params) {
+            this.jpql = jpql;
+            this.params = params;
+        }
+    }
+
+    private final String entityName;
+    private final String tagKind;
+    private final Map<String, Field> fields = new HashMap<String, Field>();
+    private final Map<String, Alias> aliases = new HashMap<String, Alias>();
+    private String locationProperty;
+    private String geohashProperty;
+
+    @SuppressWarnings("serial")
+    private final Map<String, String> cache = Collections.synchronizedMap
+        (new LinkedHashMap<String, String>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> e) {
+                return size() > MAX_SHAPES;
+            }
+        });
+
+    /**
+       Constructor.
+
+       @param entityName JPQL entity name to query, e.g. Event
+       @param tagKind TagLink.EVENT or TagLink.ELEMENT
+    */
+    public FilterCompiler(String entityName, String tagKind) {
+        this.entityName = entityName;
+        this.tagKind = tagKind;
+    }
+
+    /**
+       Register a filterable field.
+
+       @param name Parameter name, matched ignoring case
+       @param property Property path of the entity, e.g. appId
+       @param type Type of the value
+    */
+    public FilterCompiler field(String name, String property, Type type) {
+        fields.put(name.toLowerCase(), new Field(name.toLowerCase(),
+                                                 property, type));
+        return this;
+    }
+
+    /**
+       Register an alias parameter for an operator on a field, e.g.
+       after for start.from.
+    */
+    public FilterCompiler alias(String name, String fieldName, Op op) {
+        aliases.put(name.toLowerCase(),
+                    new Alias(fields.get(fieldName.toLowerCase()), op));
+        return this;
+    }
+
+    /**
+       Enable the area filters.
+
+       @param locationProperty Property path of the Location
+       @param geohashProperty Property path of its geohash
+    */
+    public FilterCompiler geo(String locationProperty,
+                              String geohashProperty) {
+        this.locationProperty = locationProperty;
+        this.geohashProperty = geohashProperty;
+        return this;
+    }
+
+    /**
+       Return the number of cached query shapes.
+    */
+    public int cachedShapes() {
+        return cache.size();
+    }
+
+    private static List<String> splitValues(String value) {
+        List<String> values = new ArrayList<String>();
+        for (String v : value.split(","))
+            if (!v.trim().isEmpty())
+                values.add(v.trim());
+        return values;
+    }
+
+    private static Object convert(Field field, String value,
+                                  DateFormat dateFormat) {
+        try {
+            switch (field.type) {
+            case LONG:
+                return Long.parseLong(value.trim());
+            case DATE:
+                return dateFormat.parse(value.trim());
+            default:
+                return value;
+            }
+        } catch (NumberFormatException | ParseException e) {
+            throw new IllegalArgumentException(field.name + "=" + value);
+        }
+    }
+
+    /**
+       Compile the filter parameters into a query.
+
+       @param filterParams Filter parameters from the request
+       @param page Keyset page, or null for no paging
+       @param dateFormat Format for parsing date values
+       @throws IllegalArgumentException on unknown parameters or
+       invalid values
+    */
+    public Compiled compile(Map<String, String> filterParams, KeysetPage page,
+                            DateFormat dateFormat) {
+        return compile(filterParams, page, dateFormat, "e", "");
+    }
+
+    /**
+       Compile the filter parameters into a query returning only the
+       ids of the matching objects, see compile.
+    */
+    public Compiled compileIds(Map<String, String> filterParams,
+                               KeysetPage page, DateFormat dateFormat) {
+        return compile(filterParams, page, dateFormat, "e.id", "");
+    }
+
+    /**
+       Compile the filter parameters into an aggregate query, e.g.
+       for grouping the matching objects.
+
+       @param select Select clause, referring to the object as e
+       @param tail Appended after the filter criteria, e.g. a group by
+       clause, must give the same JPQL for the same select
+    */
+    public Compiled compileAggregate(Map<String, String> filterParams,
+                                     DateFormat dateFormat, String select,
+                                     String tail) {
+        return compile(filterParams, null, dateFormat, select, tail);
+    }
+
+    private Compiled compile(Map<String, String> filterParams, KeysetPage page,
+                             DateFormat dateFormat, String select,
+                             String tail) {
+        // Sorted by parameter name, which gives the canonical shape
+        TreeMap<String, String> shape = new TreeMap<String, String>();
+        Map<String, Object> params = new HashMap<String, Object>();
+
+        List<String> tags = null;
+        String tagMode = null;
+        String bbox = null, near = null, radius = null;
+
+        for (Map.Entry<String, String> p : filterParams.entrySet()) {
+            String name = p.getKey().toLowerCase();
+            String value = p.getValue();
+
+            if (name.equals("tag")) {
+                shape.put("tag", "exists (select l.id from TagLink l, " +
+                          "TagText t where l.tagTextId = t.id and l.kind = '" +
+                          tagKind + "' and l.dataId = e.id and t.text = :tag)");
+                params.put("tag", value);
+                continue;
+            } else if (name.equals("tags")) {
+                tags = splitValues(value);
+                if (tags.isEmpty())
+                    throw new IllegalArgumentException("tags");
+                continue;
+            } else if (name.equals("tagmode")) {
+                tagMode = value.toLowerCase();
+                if (!tagMode.equals("and") && !tagMode.equals("or"))
+                    throw new IllegalArgumentException("tagmode=" + value);
+                continue;
+            } else if (locationProperty != null && name.equals("bbox")) {
+                bbox = value;
+                continue;
+            } else if (locationProperty != null && name.equals("near")) {
+                near = value;
+                continue;
+            } else if (locationProperty != null && name.equals("radius")) {
+                radius = value;
+                continue;
+            }
+
+            Field field = null;
+            Op op = Op.EQ;
+            Alias alias = aliases.get(name);
+            if (alias != null) {
+                field = alias.field;
+                op = alias.op;
+            } else {
+                for (Op o : Op.values()) {
+                    if (o != Op.EQ && name.endsWith(o.suffix)) {
+                        op = o;
+                        name = name.substring(0, name.length() -
+                                              o.suffix.length());
+                        break;
+                    }
+                }
+                field = fields.get(name);
+            }
+
+            if (field == null)
+                throw new IllegalArgumentException(p.getKey());
+            if ((op == Op.FROM || op == Op.TO) && field.type == Type.STRING)
+                throw new IllegalArgumentException(p.getKey());
+
+            String paramName = field.name + "_" + op.name().toLowerCase();
+            if (params.containsKey(paramName))
+                throw new IllegalArgumentException("duplicate " + p.getKey());
+
+            if (op == Op.IN) {
+                List<Object> values = new ArrayList<Object>();
+                for (String v : splitValues(value))
+                    values.add(convert(field, v, dateFormat));
+                if (values.isEmpty())
+                    throw new IllegalArgumentException(p.getKey());
+                params.put(paramName, values);
+                shape.put(paramName, String.format("e.%s in (:%s)",
+                                                   field.property, paramName));
+            } else {
+                params.put(paramName, convert(field, value, dateFormat));
+                shape.put(paramName, String.format("e.%s %s :%s",
+                                                   field.property, op.jpql,
+                                                   paramName));
+            }
+        }
+
+        String tagsKey = "";
+        if (tags != null) {
+            if ("or".equals(tagMode)) {
+                params.put("tags", tags);
+                tagsKey = "tags:or";
+            } else {
+                for (int i=0; i<tags.size(); i++)
+                    params.put("tags" + i, tags.get(i));
+                tagsKey = "tags:and:" + tags.size();
+            }
+        }
+
+        GeoArea area = GeoArea.fromParams(bbox, near, radius);
+        if (area != null)
+            addGeoCriteria(area, shape, params);
+
+        String key = select + shape.keySet() + tagsKey + "|" +
+            (page != null ? page.shapeKey() : "") + "|" + tail;
+
+        if (page != null)
+            page.bindParams(params);
+
+        String jpql = cache.get(key);
+        if (jpql == null) {
+            jpql = buildQuery(select, shape, tags, tagMode, page) + tail;
+            cache.put(key, jpql);
+        }
+
+        return new Compiled(jpql, params);
+    }
+
+    /**
+       Add the criteria for the given area. The shape key of the
+       geohash ranges includes their number, and whether the last one
+       is open-ended.
+    */
+    private void addGeoCriteria(GeoArea area, TreeMap<String, String> shape,
+                                Map<String, Object> params) {
+        String lat = "e." + locationProperty + ".latitude";
+        String lon = "e." + locationProperty + ".longitude";
+
+        List<String[]> ranges = area.geohashRanges(MAX_GEO_CELLS);
+        if (ranges != null && !ranges.isEmpty()) {
+            StringBuilder c = new StringBuilder("(");
+            for (int i=0; i<ranges.size(); i++) {
+                String[] range = ranges.get(i);
+                if (i > 0)
+                    c.append(" or ");
+                c.append(String.format("e.%s >= :geo%dlo", geohashProperty,
+                                       i));
+                params.put("geo" + i + "lo", range[0]);
+                if (range[1] != null) {
+                    c.append(String.format(" and e.%s < :geo%dhi",
+                                           geohashProperty, i));
+                    params.put("geo" + i + "hi", range[1]);
+                }
+            }
+            c.append(")");
+
+            boolean open = ranges.get(ranges.size() - 1)[1] == null;
+            shape.put("geohash:" + ranges.size() + (open ? ":open" : ""),
+                      c.toString());
+        }
+
+        shape.put("geobox", String.format("%s >= :geo_minlat and " +
+                                          "%s <= :geo_maxlat and " +
+                                          "%s >= :geo_minlon and " +
+                                          "%s <= :geo_maxlon",
+                                          lat, lat, lon, lon));
+        params.put("geo_minlat", area.minLat);
+        params.put("geo_maxlat", area.maxLat);
+        params.put("geo_minlon", area.minLon);
+        params.put("geo_maxlon", area.maxLon);
+
+        if (area.isCircle()) {
+            shape.put("geocircle", String.format
+                      ("(%s - :geo_lat)*(%s - :geo_lat) + " +
+                       "(%s - :geo_lon)*(%s - :geo_lon)*:geo_lonscale " +
+                       "<= :geo_r2", lat, lat, lon, lon));
+            params.put("geo_lat", area.centerLat);
+            params.put("geo_lon", area.centerLon);
+            params.put("geo_lonscale", area.lonScale());
+            params.put("geo_r2", area.radiusSquared());
+        }
+    }
+
+    private String buildQuery(String select, TreeMap<String, String> shape,
+                              List<String> tags, String tagMode,
+                              KeysetPage page) {
+        StringBuilder q = new StringBuilder("select " + select + " from " +
+                                            entityName +
+                                            " e where e.user.id=:userId");
+
+        for (String criteria : shape.values())
+            q.append(" and ").append(criteria);
+
+        if (tags != null) {
+            String exists = "exists (select l.id from TagLink l, TagText t " +
+                "where l.tagTextId = t.id and l.kind = '" + tagKind + "' " +
+                "and l.dataId = e.id and t.text %s)";
+
+            if ("or".equals(tagMode)) {
+                q.append(" and ").append(String.format(exists, "in (:tags)"));
+            } else {
+                for (int i=0; i<tags.size(); i++)
+                    q.append(" and ").append(String.format(exists,
+                                                           "= :tags" + i));
+            }
+        }
+
+        if (page != null)
+            page.appendTo(q);
+
+        return q.toString();
+    }
+}
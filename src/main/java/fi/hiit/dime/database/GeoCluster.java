@@ -0,0 +1,70 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.util.Geohash;
+
+/**
+   The events located in one geohash cell, for showing on a map
+   instead of the individual events.
+*/
+public class GeoCluster {
+    /** Geohash of the cell.
+     */
+    public String geohash;
+
+    /** Number of events in the cell.
+     */
+    public long count;
+
+    /** Average location of the events in the cell.
+     */
+    public double latitude;
+    public double longitude;
+
+    /** Bounds of the cell.
+     */
+    public double minLatitude;
+    public double minLongitude;
+    public double maxLatitude;
+    public double maxLongitude;
+
+    public GeoCluster() {
+    }
+
+    public GeoCluster(String geohash, long count, double latitude,
+                      double longitude) {
+        this.geohash = geohash;
+        this.count = count;
+        this.latitude = latitude;
+        this.longitude = longitude;
+
+        double[] b = Geohash.bounds(geohash);
+        this.minLatitude = b[0];
+        this.minLongitude = b[1];
+        this.maxLatitude = b[2];
+        this.maxLongitude = b[3];
+    }
+}
@@ -0,0 +1,106 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.util.Geohash;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+   Liquibase migration that fills the GEOHASH column of the existing
+   events with a location. After this, Event.autoFill() keeps it up
+   to date.
+*/
+public class GeohashMigration implements CustomTaskChange {
+    private long count = 0;
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        Connection conn =
+            ((JdbcConnection)database.getConnection()).getUnderlyingConnection();
+
+        try {
+            migrate(conn);
+        } catch (SQLException e) {
+            throw new CustomChangeException(e);
+        }
+    }
+
+    protected void migrate(Connection conn) throws SQLException {
+        PreparedStatement update = conn.prepareStatement
+            ("update EVENT set GEOHASH = ? where ID = ?");
+        Statement st = conn.createStatement();
+
+        try {
+            ResultSet rs = st.executeQuery
+                ("select ID, LATITUDE, LONGITUDE from EVENT " +
+                 "where LATITUDE is not null and LONGITUDE is not null");
+            while (rs.next()) {
+                update.setString(1, Geohash.encode(rs.getDouble(2),
+                                                   rs.getDouble(3),
+                                                   Geohash.MAX_PRECISION));
+                update.setLong(2, rs.getLong(1));
+                update.addBatch();
+                if (++count % 500 == 0)
+                    update.executeBatch();
+            }
+            update.executeBatch();
+            rs.close();
+        } finally {
+            st.close();
+            update.close();
+        }
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return String.format("Computed geohashes of %d events", count);
+    }
+
+    @Override
+    public void setUp() throws SetupException {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        return new ValidationErrors();
+    }
+}
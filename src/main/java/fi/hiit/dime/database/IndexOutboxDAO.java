@@ -0,0 +1,105 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.DiMeData;
+import fi.hiit.dime.database.IndexOutboxEntry.Op;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+   Data access object for the outbox of pending search index changes.
+*/
+@Service
+public class IndexOutboxDAO {
+    @Autowired
+    protected IndexOutboxRepository repo;
+
+    /**
+       Record that the given object has changed. Should be called in
+       the same transaction as the change.
+    */
+    @Transactional
+    public void add(DiMeData obj, Op op) {
+        repo.save(new IndexOutboxEntry(obj, op));
+    }
+
+    /**
+       Record that the objects of the given kind and ids have been
+       deleted, for bulk deletes where the objects are not loaded.
+
+       @param kind IndexOutboxEntry.EVENT or IndexOutboxEntry.ELEMENT
+       @param userId Id of the user owning the objects
+       @param ids Ids of the deleted objects
+    */
+    @Transactional
+    public void addDeletes(String kind, Long userId, Collection<Long> ids) {
+        List<IndexOutboxEntry> entries = new ArrayList<IndexOutboxEntry>();
+        for (Long id : ids)
+            entries.add(new IndexOutboxEntry(kind, id, userId, Op.DELETE));
+        repo.save(entries);
+    }
+
+    @Transactional(readOnly = true)
+    public boolean hasPending() {
+        return repo.findFirstByOrderByIdAsc() != null;
+    }
+
+    /**
+       Return the oldest pending entries, in id order.
+
+       @param limit Maximum number of entries to return
+    */
+    @Transactional(readOnly = true)
+    public List<IndexOutboxEntry> nextBatch(int limit) {
+        return repo.findByOrderByIdAsc(new PageRequest(0, limit));
+    }
+
+    /**
+       Remove the given entries once they have been processed.
+    */
+    @Transactional
+    public int remove(List<IndexOutboxEntry> entries) {
+        List<Long> ids = new ArrayList<Long>();
+        for (IndexOutboxEntry e : entries)
+            ids.add(e.getId());
+        return repo.deleteByIds(ids);
+    }
+
+    /**
+       Remove all pending entries of a user.
+    */
+    @Transactional
+    public int removeForUser(Long userId) {
+        return repo.deleteByUserId(userId);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.DiMeData;
+import fi.hiit.dime.data.Event;
+
+import org.springframework.data.jpa.domain.AbstractPersistable;
+
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Table;
+
+/**
+   A pending change to the search index: the object of the given
+   kind and id has been updated or deleted. Entries are written in
+   the same transaction as the change itself, and removed by the
+   SearchIndex once the change has been indexed.
+*/
+@Entity
+@Table(name="INDEX_OUTBOX")
+public class IndexOutboxEntry extends AbstractPersistable<Long> {
+    public static enum Op {
+        UPDATE, DELETE;
+    }
+
+    public static final String EVENT = "event";
+    public static final String ELEMENT = "elem";
+
+    /** Kind of object, EVENT or ELEMENT. */
+    public String kind;
+
+    /** Id of the changed object. */
+    public Long dataId;
+
+    /** Id of the user owning the object. */
+    public Long userId;
+
+    @Enumerated(EnumType.STRING)
+    public Op op;
+
+    public IndexOutboxEntry() {
+    }
+
+    public IndexOutboxEntry(String kind, Long dataId, Long userId, Op op) {
+        this.kind = kind;
+        this.dataId = dataId;
+        this.userId = userId;
+        this.op = op;
+    }
+
+    public IndexOutboxEntry(DiMeData obj, Op op) {
+        this.kind = obj instanceof Event ? EVENT : ELEMENT;
+        this.dataId = obj.getId();
+        this.userId = obj.user.getId();
+        this.op = op;
+    }
+
+    public boolean isEvent() {
+        return EVENT.equals(kind);
+    }
+}
@@ -29,70 +29,113 @@ import fi.hiit.dime.data.DiMeData;
 import fi.hiit.dime.authentication.User;
 
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
 
 class InfoElemRepositoryImpl extends DiMeRepositoryImpl<InformationElement> {
+    private static final FilterCompiler compiler =
+        new FilterCompiler("InformationElement", TagLink.ELEMENT)
+        .field("appid", "appId", FilterCompiler.Type.STRING)
+        .field("contenthash", "contentHash", FilterCompiler.Type.STRING)
+        .field("plaintextcontent", "plainTextContent",
+               FilterCompiler.Type.STRING)
+        .field("isstoredas", "isStoredAs", FilterCompiler.Type.STRING)
+        .field("mimetype", "mimeType", FilterCompiler.Type.STRING)
+        .field("uri", "uri", FilterCompiler.Type.STRING)
+        .field("type", "type", FilterCompiler.Type.STRING)
+        .field("title", "title", FilterCompiler.Type.STRING)
+        .field("id", "id", FilterCompiler.Type.LONG)
+        .field("timecreated", "timeCreated", FilterCompiler.Type.DATE)
+        .field("timemodified", "timeModified", FilterCompiler.Type.DATE);
+
+    @Override
+    protected FilterCompiler filterCompiler() {
+        return compiler;
+    }
+
+    @Override
+    protected Class<InformationElement> resultClass() {
+        return InformationElement.class;
+    }
+
+    /**
+       Delete the tags of the given elements, but not their tag links.
+    */
+    @Override
+    public void deleteTags(Collection<Long> ids) {
+        List<Long> tagIds =
+            selectForIds("select TAGS_ID from INFORMATION_ELEMENT_TAGS " +
+                         "where INFORMATION_ELEMENT_ID in (:ids)", ids);
+        executeForIds("delete from INFORMATION_ELEMENT_TAGS " +
+                      "where INFORMATION_ELEMENT_ID in (:ids)", ids);
+        executeForIds("delete from TAG where ID in (:ids)", tagIds);
+    }
+
+    /**
+       Delete the elements with the given ids with set-based native
+       statements, including their tags, child collections and
+       persons. The events targetting the elements must have been
+       deleted first. Attachments of deleted messages are kept, and
+       profile relations to the elements are removed.
+    */
     @Override
-    public List<InformationElement> find(User user, Map<String, String> filterParams) {
-        // We build the SQL query into q
-        StringBuilder q = new StringBuilder("select e from InformationElement e "
-                                            + "where e.user.id=:userId");
-
-        // Map for storing named parameters for the query we are
-        // constructing
-        Map<String, Object> namedParams = new HashMap<String, Object>();
-
-        // Loop over user's parameters, and transform to SQL statments
-        // and fill in namedParams
-        for (Map.Entry<String, String> param : filterParams.entrySet()) {
-            String name = param.getKey().toLowerCase();
-            String value = param.getValue();
-
-            String criteria = "";
-
-            switch (name) {
-            case "tag":
-                criteria = "(select count(*) from e.tags where text=:tag) > 0";
-                break;
-            case "appid":
-                name = "appId";
-                break;
-            case "contenthash":
-                name = "contentHash";
-                break;
-            case "plaintextcontent":
-                name = "plainTextContent";
-                break;
-            case "isstoredas":
-                name = "isStoredAs";
-                break;
-            case "mimetype":
-                name = "mimeType";
-                break;
-            case "uri":
-            case "type":
-            case "title":
-                break;
-            default:
-                throw new IllegalArgumentException(name);
-            }
-
-            if (criteria.isEmpty())
-                criteria = String.format("%s=:%s", name, name);
-
-            q.append(" and " + criteria);
-            namedParams.put(name, value);
+    public int deleteByIds(Collection<Long> ids) {
+        executeForIds("update INFORMATION_ELEMENT set MESSAGE_ID = null " +
+                      "where MESSAGE_ID in (:ids)", ids);
+
+        for (String table : new String[] {
+                "PROFILE_VALIDATED_INFORMATION_ELEMENTS",
+                "PROFILE_SUGGESTED_INFORMATION_ELEMENTS" })
+            executeForIds("delete from " + table + " where " +
+                          table.substring("PROFILE_".length()) +
+                          "_ID in (select ID from INFORMATION_ELEMENT_RELATION " +
+                          "where ELEMENT_ID in (:ids))", ids);
+        executeForIds("delete from INFORMATION_ELEMENT_RELATION " +
+                      "where ELEMENT_ID in (:ids)", ids);
+
+        deleteTags(ids);
+        executeForIds("delete from TAG_LINK where KIND = '" +
+                      TagLink.ELEMENT + "' and DATA_ID in (:ids)", ids);
+
+        executeForIds("delete from SCIENTIFIC_DOCUMENT_KEYWORDS " +
+                      "where SCIENTIFIC_DOCUMENT_ID in (:ids)", ids);
+        for (String table : new String[] { "WEB_DOCUMENT_FREQUENT_TERMS",
+                                           "WEB_DOCUMENT_HYPER_LINKS",
+                                           "WEB_DOCUMENT_IMGURLS",
+                                           "WEB_DOCUMENT_META_TAGS" })
+            executeForIds("delete from " + table +
+                          " where WEB_DOCUMENT_ID in (:ids)", ids);
+
+        // Authors, and senders and recipients of messages
+        Set<Long> personIds = new HashSet<Long>();
+        personIds.addAll(selectForIds("select ID from PERSON " +
+                                      "where DOCUMENT_ID in (:ids)", ids));
+        personIds.addAll(selectForIds("select FROM_ID from INFORMATION_ELEMENT " +
+                                      "where ID in (:ids)", ids));
+        for (String table : new String[] { "MESSAGE_TO", "MESSAGE_CC" }) {
+            personIds.addAll(selectForIds("select PERSON_ID from " + table +
+                                          " where MESSAGE_ID in (:ids)", ids));
+            executeForIds("delete from " + table +
+                          " where MESSAGE_ID in (:ids)", ids);
         }
+        executeForIds("update INFORMATION_ELEMENT set FROM_ID = null " +
+                      "where ID in (:ids)", ids);
+        deletePersons(personIds);
 
-        return makeQuery(q.toString(), namedParams, user,
-                         InformationElement.class).getResultList();
+        return executeForIds("delete from INFORMATION_ELEMENT " +
+                             "where ID in (:ids)", ids);
     }
 }
 
 public interface InfoElemRepository extends DiMeRepository<InformationElement> {
+    // Explicit query, see DiMeRepository
+    @Query("select e from InformationElement e where e.user = ?1 order by e.timeModified desc")
     List<InformationElement> 
         findByUserOrderByTimeModifiedDesc(User user, Pageable pageable);
 }
@@ -26,13 +26,13 @@ package fi.hiit.dime.database;
 
 import fi.hiit.dime.authentication.User;
 import fi.hiit.dime.data.InformationElement;
-import fi.hiit.dime.data.ResourcedEvent;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collections;
 import java.util.List;
 
 @Service
@@ -42,6 +42,15 @@ public class InformationElementDAO
     @Autowired
     private EventDAO eventDAO;
 
+    @Autowired
+    private UserStatsDAO statsDAO;
+
+    @Override
+    protected void stored(InformationElement obj, boolean created) {
+        if (created)
+            statsDAO.elementsAdded(obj.user.getId(), 1);
+    }
+
     /**
        Return all InformationElement objects in database.
        
@@ -56,7 +65,7 @@ public class InformationElementDAO
 
 
     /**
-       Removes a single item.
+       Removes a single item, together with the events targetting it.
 
        @param id Item id
        @param user User
@@ -65,16 +74,22 @@ public class InformationElementDAO
     @Override
     @Transactional
     public boolean remove(Long id, User user) {
-        InformationElement elem = findById(id, user);
-    
-        List<ResourcedEvent> events = eventDAO.findByElement(elem, user);
-
-        for (ResourcedEvent e : events) {
-            eventDAO.remove(e.getId(), user);
-        }
+        if (findById(id, user) == null)
+            return false;
 
-        return super.remove(id, user);
+        removeByIds(user, Collections.singletonList(id), new DeleteCount());
+        return true;
     }
 
+    @Override
+    protected void removeByIds(User user, List<Long> ids, DeleteCount count) {
+        if (ids.isEmpty())
+            return;
+        eventDAO.removeByIds(user, eventDAO.idsForElements(ids, user), count);
+        outboxDAO.addDeletes(IndexOutboxEntry.ELEMENT, user.getId(), ids);
+        int n = repo.deleteByIds(ids);
+        count.informationElements += n;
+        statsDAO.elementsAdded(user.getId(), -n);
+    }
 }
 
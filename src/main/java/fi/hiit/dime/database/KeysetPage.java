@@ -0,0 +1,233 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.DiMeData;
+import fi.hiit.dime.data.Event;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+   Keyset pagination for the filtered find queries. Results are
+   ordered by (sort key, id), and the next page is fetched by giving
+   the opaque cursor of the last row seen, so the database can seek
+   directly in the (user_id, sort key, id) index instead of skipping
+   over an offset.
+*/
+public class KeysetPage {
+    public static final String LIMIT_PARAM = "limit";
+    public static final String ORDER_BY_PARAM = "orderBy";
+    public static final String CURSOR_PARAM = "cursor";
+
+    /** Page size used when only orderBy or cursor is given. */
+    public static final int DEFAULT_LIMIT = 100;
+
+    /** Largest allowed page size. */
+    public static final int MAX_LIMIT = 10000;
+
+    public enum OrderBy {
+        START("start"),
+        TIME_MODIFIED("timeModified"),
+        ID("id");
+
+        private final String field;
+
+        OrderBy(String field) {
+            this.field = field;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public static OrderBy parse(String value) {
+            for (OrderBy o : values())
+                if (o.field.equalsIgnoreCase(value))
+                    return o;
+            throw new IllegalArgumentException("orderBy=" + value);
+        }
+    }
+
+    private final OrderBy orderBy;
+    private final int limit;
+    private final Date cursorValue;
+    private final Long cursorId;
+
+    public KeysetPage(OrderBy orderBy, int limit, Date cursorValue,
+                      Long cursorId) {
+        this.orderBy = orderBy;
+        this.limit = limit;
+        this.cursorValue = cursorValue;
+        this.cursorId = cursorId;
+    }
+
+    public OrderBy getOrderBy() { return orderBy; }
+
+    public int getLimit() { return limit; }
+
+    /**
+       Extract the pagination parameters (limit, orderBy, cursor) from
+       the request parameters, removing them from the map so that only
+       the filtering parameters remain.
+
+       @param params Request parameters
+       @param allowStart Whether ordering by start is allowed, only
+       events have a start time
+       @return The page, or null if no pagination was requested
+       @throws IllegalArgumentException on invalid values
+    */
+    public static KeysetPage fromParams(Map<String, String> params,
+                                        boolean allowStart) {
+        String limitStr = params.remove(LIMIT_PARAM);
+        String orderByStr = params.remove(ORDER_BY_PARAM);
+        String cursor = params.remove(CURSOR_PARAM);
+
+        if (limitStr == null && orderByStr == null && cursor == null)
+            return null;
+
+        int limit = DEFAULT_LIMIT;
+        if (limitStr != null) {
+            try {
+                limit = Integer.parseInt(limitStr);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("limit=" + limitStr);
+            }
+            if (limit < 1 || limit > MAX_LIMIT)
+                throw new IllegalArgumentException("limit=" + limitStr);
+        }
+
+        OrderBy orderBy = orderByStr != null ? OrderBy.parse(orderByStr) :
+            OrderBy.ID;
+        if (orderBy == OrderBy.START && !allowStart)
+            throw new IllegalArgumentException("orderBy=" + orderByStr);
+
+        if (cursor == null)
+            return new KeysetPage(orderBy, limit, null, null);
+
+        // Cursor is hex encoded "<orderBy>:<millis>:<id>", millis is
+        // empty when ordering by id
+        String[] parts;
+        try {
+            parts = new String(DatatypeConverter.parseHexBinary(cursor),
+                               StandardCharsets.UTF_8).split(":", -1);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("cursor=" + cursor);
+        }
+        if (parts.length != 3)
+            throw new IllegalArgumentException("cursor=" + cursor);
+
+        OrderBy cursorOrder = OrderBy.parse(parts[0]);
+        if (orderByStr != null && cursorOrder != orderBy)
+            throw new IllegalArgumentException("cursor does not match orderBy");
+
+        try {
+            Date value = parts[1].isEmpty() ? null :
+                new Date(Long.parseLong(parts[1]));
+            if (value == null && cursorOrder != OrderBy.ID)
+                throw new IllegalArgumentException("cursor=" + cursor);
+            return new KeysetPage(cursorOrder, limit, value,
+                                  Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("cursor=" + cursor);
+        }
+    }
+
+    /**
+       Key that identifies the shape of the JPQL appended by appendTo,
+       pages with the same key differ only in their parameters.
+    */
+    public String shapeKey() {
+        return orderBy.getField() + (cursorId != null ? ":cursor" : "");
+    }
+
+    /**
+       Append the keyset criteria and ordering to a JPQL query whose
+       entity alias is "e". The parameters are set by bindParams.
+    */
+    public void appendTo(StringBuilder q) {
+        String key = "e." + orderBy.getField();
+
+        if (orderBy == OrderBy.START)
+            q.append(" and e.start is not null");
+
+        if (cursorId != null) {
+            if (orderBy == OrderBy.ID)
+                q.append(" and e.id > :cursorId");
+            else
+                q.append(String.format(" and (%1$s > :cursorValue or " +
+                                       "(%1$s = :cursorValue and " +
+                                       "e.id > :cursorId))", key));
+        }
+
+        if (orderBy == OrderBy.ID)
+            q.append(" order by e.id");
+        else
+            q.append(String.format(" order by %s, e.id", key));
+    }
+
+    /**
+       Fill in the named parameters used by the JPQL from appendTo.
+    */
+    public void bindParams(Map<String, Object> namedParams) {
+        if (cursorId != null) {
+            if (orderBy != OrderBy.ID)
+                namedParams.put("cursorValue", cursorValue);
+            namedParams.put("cursorId", cursorId);
+        }
+    }
+
+    /**
+       Return the cursor for the page after the given results, or null
+       if this was the last page.
+    */
+    public String nextCursor(List<? extends DiMeData> results) {
+        if (results.size() < limit)
+            return null;
+
+        DiMeData last = results.get(results.size() - 1);
+        Date value = null;
+        switch (orderBy) {
+        case START:
+            value = ((Event)last).start;
+            break;
+        case TIME_MODIFIED:
+            value = last.timeModified;
+            break;
+        default:
+            break;
+        }
+
+        String cursor = orderBy.getField() + ":" +
+            (value != null ? Long.toString(value.getTime()) : "") + ":" +
+            last.getId();
+        return DatatypeConverter.printHexBinary
+            (cursor.getBytes(StandardCharsets.UTF_8));
+    }
+}
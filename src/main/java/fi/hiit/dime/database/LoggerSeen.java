@@ -0,0 +1,80 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.Event;
+
+import java.util.Date;
+
+import javax.persistence.Embeddable;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+   The most recent event seen from one logger, i.e. one actor and
+   origin, see UserStats.
+*/
+@Embeddable
+public class LoggerSeen {
+    public String actor;
+
+    public String origin;
+
+    /** Id of the most recent event. */
+    public Long eventId;
+
+    /** Start time of the most recent event. */
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date start;
+
+    /** When the most recent event was stored. */
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date lastSeen;
+
+    public LoggerSeen() {
+    }
+
+    public LoggerSeen(Event e) {
+        this.actor = e.actor;
+        this.origin = e.origin;
+        this.eventId = e.getId();
+        this.start = e.start;
+        this.lastSeen = e.timeModified;
+    }
+
+    public LoggerSeen(LoggerSeen other) {
+        this.actor = other.actor;
+        this.origin = other.origin;
+        this.eventId = other.eventId;
+        this.start = other.start;
+        this.lastSeen = other.lastSeen;
+    }
+
+    boolean sameLogger(String actor, String origin) {
+        return (this.actor == null ? actor == null : this.actor.equals(actor))
+            && (this.origin == null ? origin == null :
+                this.origin.equals(origin));
+    }
+}
@@ -0,0 +1,440 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.DiMeData;
+
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+   Stores DiMeData objects keyed by (user, appId) with a single native
+   upsert statement for the object row: a MERGE on H2 and an INSERT
+   ... ON DUPLICATE KEY UPDATE on MySQL, both relying on the unique
+   (USER_ID, APP_ID) index. The statements are built once per entity
+   class from its Hibernate mapping.
+
+   An existing row is only replaced if it has the same type as the new
+   object. Element collections are rewritten with native statements
+   as well. Classes with other entity collections than the tags, and
+   objects with tags, are not supported and must be stored through
+   the entity manager.
+
+   Tags are out of scope here, since they are entities of their own:
+   storing them would mean inserting Tag rows with generated ids, and
+   ReadingTags with their packed rects, and deleting the tags of the
+   replaced object. For objects without tags only the tag links of
+   the replaced object need clearing, which DiMeDAO.upsert does.
+*/
+public class NativeUpsert {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(NativeUpsert.class);
+
+    // Name of the tags property, handled by the caller
+    private static final String TAGS = "tags";
+
+    /**
+       Outcome of an upsert.
+    */
+    public static class Result {
+        /** Id of the stored row, or null if an existing row with the
+            same appId has a different type, and nothing was stored */
+        public final Long id;
+
+        /** True if a new row was inserted, false if a row was replaced */
+        public final boolean inserted;
+
+        Result(Long id, boolean inserted) {
+            this.id = id;
+            this.inserted = inserted;
+        }
+    }
+
+    private static class ElementTable {
+        int property;
+        Type keyType;
+        Type elementType;
+        String deleteSql;
+        String insertSql;
+    }
+
+    private static class Plan {
+        SingleTableEntityPersister persister;
+        boolean mysql;
+        int[] properties;
+        String upsertSql;
+        String idSql;
+        List<ElementTable> elementTables = new ArrayList<ElementTable>();
+        List<String> collectionRoles = new ArrayList<String>();
+    }
+
+    // Compiled plans per entity class, null value if the class is not
+    // supported
+    private final Map<Class<?>, Plan> plans = new HashMap<Class<?>, Plan>();
+
+    /**
+       Return true if the given object can be stored with upsert().
+    */
+    public boolean supports(DiMeData obj, SessionImplementor session) {
+        // Tagged objects take the find, replace and save path, see
+        // the class comment
+        if (obj.getId() != null || obj.appId == null || obj.user == null ||
+            obj.hasTags())
+            return false;
+
+        Plan plan = plan(obj.getClass(), session.getFactory());
+        if (plan == null)
+            return false;
+
+        // Referenced entities must already be stored
+        Type[] types = plan.persister.getPropertyTypes();
+        Object[] values = plan.persister.getPropertyValues(obj);
+        SessionFactoryImplementor factory = session.getFactory();
+        for (int i : plan.properties) {
+            if (types[i].isEntityType() && values[i] != null) {
+                String name = ((EntityType)types[i])
+                    .getAssociatedEntityName(factory);
+                if (factory.getEntityPersister(name)
+                    .getIdentifier(values[i], session) == null)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+       Store the given object, replacing the row of the same user with
+       the same appId if it has the same type. The object gets the id
+       of the stored row, and any cached or managed copy of a replaced
+       row is evicted. Must be called in a transaction, and only for
+       objects for which supports() returns true.
+    */
+    public Result upsert(final DiMeData obj, final SessionImplementor session) {
+        final Plan plan = plan(obj.getClass(), session.getFactory());
+
+        Result res = ((Session)session).doReturningWork
+            (new ReturningWork<Result>() {
+                public Result execute(Connection conn) throws SQLException {
+                    return write(plan, obj, conn, session);
+                }
+            });
+
+        if (res.id == null)
+            return res;
+
+        plan.persister.setIdentifier(obj, res.id, session);
+
+        if (!res.inserted) {
+            Object managed = session.getPersistenceContext()
+                .getEntity(session.generateEntityKey(res.id, plan.persister));
+            if (managed != null)
+                ((Session)session).evict(managed);
+
+            org.hibernate.Cache cache = session.getFactory().getCache();
+            cache.evictEntity(plan.persister.getEntityName(), res.id);
+            for (String role : plan.collectionRoles)
+                cache.evictCollection(role, res.id);
+        }
+        return res;
+    }
+
+    private Result write(Plan plan, DiMeData obj, Connection conn,
+                         SessionImplementor session) throws SQLException {
+        Type[] types = plan.persister.getPropertyTypes();
+        Object[] values = plan.persister.getPropertyValues(obj);
+        SessionFactoryImplementor factory = session.getFactory();
+
+        Long id = null;
+        boolean inserted;
+
+        PreparedStatement ps =
+            conn.prepareStatement(plan.upsertSql,
+                                  Statement.RETURN_GENERATED_KEYS);
+        try {
+            int index = 1;
+            for (int i : plan.properties) {
+                types[i].nullSafeSet(ps, values[i], index, session);
+                index += types[i].getColumnSpan(factory);
+            }
+
+            int count;
+            try {
+                count = ps.executeUpdate();
+            } catch (SQLException e) {
+                // On H2 the existing row with another type doesn't
+                // match the merge key, and the insert violates the
+                // unique index
+                if (!plan.mysql && "23505".equals(e.getSQLState()))
+                    return new Result(null, false);
+                throw e;
+            }
+
+            ResultSet rs = ps.getGeneratedKeys();
+            try {
+                if (rs.next())
+                    id = rs.getLong(1);
+            } finally {
+                rs.close();
+            }
+
+            if (plan.mysql) {
+                // 1 for an insert, 2 for an update; for another type
+                // nothing is updated and no id is given
+                if (id == null || id == 0)
+                    return new Result(null, false);
+                inserted = count == 1;
+            } else {
+                // H2 only gives the id for an insert
+                inserted = id != null;
+            }
+        } finally {
+            ps.close();
+        }
+
+        if (!inserted && !plan.mysql)
+            id = selectId(plan, obj, conn, session);
+
+        for (ElementTable t : plan.elementTables)
+            writeElements(t, id, (Collection<?>)values[t.property],
+                          inserted, conn, session);
+
+        LOG.debug("Upserted {} appId={} id={} inserted={}",
+                  plan.persister.getEntityName(), obj.appId, id, inserted);
+        return new Result(id, inserted);
+    }
+
+    private Long selectId(Plan plan, DiMeData obj, Connection conn,
+                          SessionImplementor session) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(plan.idSql);
+        try {
+            ps.setLong(1, obj.user.getId());
+            ps.setString(2, obj.appId);
+            ResultSet rs = ps.executeQuery();
+            try {
+                rs.next();
+                return rs.getLong(1);
+            } finally {
+                rs.close();
+            }
+        } finally {
+            ps.close();
+        }
+    }
+
+    private void writeElements(ElementTable t, Long id, Collection<?> elems,
+                               boolean inserted, Connection conn,
+                               SessionImplementor session)
+        throws SQLException
+    {
+        if (!inserted) {
+            PreparedStatement ps = conn.prepareStatement(t.deleteSql);
+            try {
+                t.keyType.nullSafeSet(ps, id, 1, session);
+                ps.executeUpdate();
+            } finally {
+                ps.close();
+            }
+        }
+
+        if (elems == null || elems.isEmpty())
+            return;
+
+        int keySpan = t.keyType.getColumnSpan(session.getFactory());
+        PreparedStatement ps = conn.prepareStatement(t.insertSql);
+        try {
+            for (Object elem : elems) {
+                t.keyType.nullSafeSet(ps, id, 1, session);
+                t.elementType.nullSafeSet(ps, elem, 1 + keySpan, session);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+       Return the compiled plan for the given entity class, or null if
+       the class or database is not supported.
+    */
+    private synchronized Plan plan(Class<?> cls,
+                                   SessionFactoryImplementor factory) {
+        if (!plans.containsKey(cls))
+            plans.put(cls, compile(cls, factory));
+        return plans.get(cls);
+    }
+
+    private static String join(List<String> items) {
+        StringBuilder sb = new StringBuilder();
+        for (String item : items) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(item);
+        }
+        return sb.toString();
+    }
+
+    private static String placeholders(int n) {
+        List<String> items = new ArrayList<String>();
+        for (int i = 0; i < n; i++)
+            items.add("?");
+        return join(items);
+    }
+
+    private static Plan compile(Class<?> cls,
+                                SessionFactoryImplementor factory) {
+        Dialect dialect = factory.getDialect();
+        if (!(dialect instanceof H2Dialect || dialect instanceof MySQLDialect))
+            return null;
+
+        EntityPersister ep = factory.getEntityPersister(cls.getName());
+        if (!(ep instanceof SingleTableEntityPersister))
+            return null;
+
+        Plan plan = new Plan();
+        plan.persister = (SingleTableEntityPersister)ep;
+        plan.mysql = dialect instanceof MySQLDialect;
+
+        SingleTableEntityPersister p = plan.persister;
+        String table = p.getTableName();
+        String idColumn = p.getIdentifierColumnNames()[0];
+        String dtype = p.getDiscriminatorColumnName();
+        String userColumn = p.getPropertyColumnNames("user")[0];
+        String appIdColumn = p.getPropertyColumnNames("appId")[0];
+
+        String[] names = p.getPropertyNames();
+        Type[] types = p.getPropertyTypes();
+        boolean[] insertable = p.getPropertyInsertability();
+        boolean[] updateable = p.getPropertyUpdateability();
+
+        List<Integer> properties = new ArrayList<Integer>();
+        List<String> columns = new ArrayList<String>();
+        List<String> updates = new ArrayList<String>();
+
+        for (int i = 0; i < names.length; i++) {
+            if (types[i].isCollectionType()) {
+                String role = ((CollectionType)types[i]).getRole();
+                plan.collectionRoles.add(role);
+                if (names[i].equals(TAGS))
+                    continue;
+
+                AbstractCollectionPersister cp = (AbstractCollectionPersister)
+                    factory.getCollectionPersister(role);
+                if (cp.isOneToMany() || cp.hasIndex() ||
+                    cp.getElementType().isEntityType())
+                    return null;
+
+                String[] keys = cp.getKeyColumnNames();
+                if (keys.length != 1)
+                    return null;
+
+                ElementTable t = new ElementTable();
+                t.property = i;
+                t.keyType = cp.getKeyType();
+                t.elementType = cp.getElementType();
+                t.deleteSql = "delete from " + cp.getTableName() +
+                    " where " + keys[0] + " = ?";
+
+                List<String> cols = new ArrayList<String>();
+                cols.add(keys[0]);
+                for (String c : cp.getElementColumnNames())
+                    cols.add(c);
+                t.insertSql = "insert into " + cp.getTableName() + " (" +
+                    join(cols) + ") values (" + placeholders(cols.size()) +
+                    ")";
+                plan.elementTables.add(t);
+                continue;
+            }
+
+            if (!insertable[i])
+                continue;
+
+            String[] cols = p.getPropertyColumnNames(i);
+            for (String c : cols) {
+                if (c == null)
+                    return null;
+                columns.add(c);
+                if (updateable[i] && !c.equals(userColumn) &&
+                    !c.equals(appIdColumn))
+                    updates.add(c + " = if(" + dtype + " = values(" + dtype +
+                                "), values(" + c + "), " + c + ")");
+            }
+            properties.add(i);
+        }
+
+        plan.properties = new int[properties.size()];
+        for (int i = 0; i < plan.properties.length; i++)
+            plan.properties[i] = properties.get(i);
+
+        String values = placeholders(columns.size()) + ", " +
+            p.getDiscriminatorSQLValue();
+        columns.add(dtype);
+
+        if (plan.mysql) {
+            // The id is only given if the type matched, so that it
+            // tells apart a replaced row from an incompatible one
+            updates.add(0, idColumn + " = if(" + dtype + " = values(" +
+                        dtype + "), last_insert_id(" + idColumn + "), " +
+                        idColumn + ")");
+            plan.upsertSql = "insert into " + table + " (" + join(columns) +
+                ") values (" + values + ") on duplicate key update " +
+                join(updates);
+        } else {
+            plan.upsertSql = "merge into " + table + " (" + join(columns) +
+                ") key (" + userColumn + ", " + appIdColumn + ", " + dtype +
+                ") values (" + values + ")";
+        }
+        plan.idSql = "select " + idColumn + " from " + table + " where " +
+            userColumn + " = ? and " + appIdColumn + " = ?";
+
+        LOG.debug("Upsert for {}: {}", cls.getName(), plan.upsertSql);
+        return plan;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.util.PackedArrays;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+   Liquibase migration that packs the fixation arrays of
+   PageEyeData, which used to be stored in one table per array with
+   one row per value, into the PACKED_DATA column.
+*/
+public class PageEyeDataMigration implements CustomTaskChange {
+    // Number of PAGE_EYE_DATA rows converted at a time
+    private static final int CHUNK_SIZE = 500;
+
+    private static final String[] DOUBLE_TABLES = { "XS", "YS", "PS" };
+    private static final String[] LONG_TABLES =
+        { "START_TIMES", "END_TIMES", "DURATIONS" };
+
+    private long count = 0;
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        Connection conn =
+            ((JdbcConnection)database.getConnection()).getUnderlyingConnection();
+
+        try {
+            migrate(conn);
+        } catch (SQLException e) {
+            throw new CustomChangeException(e);
+        }
+    }
+
+    /**
+       Read the values of one array table for the given range of
+       PAGE_EYE_DATA ids, grouped by id. The tables have no ordering
+       column, so the values are read in the order they were stored.
+    */
+    protected Map<Long, List<Number>> readValues(Connection conn,
+                                                 String column,
+                                                 long minId, long maxId)
+        throws SQLException
+    {
+        Map<Long, List<Number>> values = new HashMap<Long, List<Number>>();
+        PreparedStatement ps = conn.prepareStatement
+            (String.format("select PAGE_EYE_DATA_ID, %1$s from " +
+                           "PAGE_EYE_DATA_%1$s where PAGE_EYE_DATA_ID " +
+                           "between ? and ?", column));
+        try {
+            ps.setLong(1, minId);
+            ps.setLong(2, maxId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                long id = rs.getLong(1);
+                List<Number> list = values.get(id);
+                if (list == null) {
+                    list = new ArrayList<Number>();
+                    values.put(id, list);
+                }
+                list.add((Number)rs.getObject(2));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        return values;
+    }
+
+    private static double[] toDoubles(List<Number> list) {
+        if (list == null)
+            return new double[0];
+        double[] res = new double[list.size()];
+        for (int i=0; i<res.length; i++)
+            res[i] = list.get(i) == null ? 0.0 : list.get(i).doubleValue();
+        return res;
+    }
+
+    private static long[] toLongs(List<Number> list) {
+        if (list == null)
+            return new long[0];
+        long[] res = new long[list.size()];
+        for (int i=0; i<res.length; i++)
+            res[i] = list.get(i) == null ? 0 : list.get(i).longValue();
+        return res;
+    }
+
+    protected void migrate(Connection conn) throws SQLException {
+        List<Long> ids = new ArrayList<Long>();
+        Statement st = conn.createStatement();
+        try {
+            ResultSet rs =
+                st.executeQuery("select ID from PAGE_EYE_DATA order by ID");
+            while (rs.next())
+                ids.add(rs.getLong(1));
+            rs.close();
+        } finally {
+            st.close();
+        }
+
+        PreparedStatement update = conn.prepareStatement
+            ("update PAGE_EYE_DATA set PACKED_DATA = ? where ID = ?");
+        try {
+            for (int start=0; start<ids.size(); start+=CHUNK_SIZE) {
+                List<Long> chunk =
+                    ids.subList(start, Math.min(start+CHUNK_SIZE, ids.size()));
+                long minId = chunk.get(0);
+                long maxId = chunk.get(chunk.size()-1);
+
+                List<Map<Long, List<Number>>> doubles =
+                    new ArrayList<Map<Long, List<Number>>>();
+                for (String column : DOUBLE_TABLES)
+                    doubles.add(readValues(conn, column, minId, maxId));
+
+                List<Map<Long, List<Number>>> longs =
+                    new ArrayList<Map<Long, List<Number>>>();
+                for (String column : LONG_TABLES)
+                    longs.add(readValues(conn, column, minId, maxId));
+
+                for (Long id : chunk) {
+                    PackedArrays.Writer w = new PackedArrays.Writer();
+                    for (Map<Long, List<Number>> values : doubles)
+                        w.writeDoubles(toDoubles(values.get(id)));
+                    for (Map<Long, List<Number>> values : longs)
+                        w.writeLongs(toLongs(values.get(id)));
+
+                    update.setBytes(1, w.toByteArray());
+                    update.setLong(2, id);
+                    update.addBatch();
+                    count++;
+                }
+                update.executeBatch();
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return String.format("Packed the eye data of %d pages", count);
+    }
+
+    @Override
+    public void setUp() throws SetupException {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        return new ValidationErrors();
+    }
+}
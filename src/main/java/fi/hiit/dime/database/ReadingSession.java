@@ -0,0 +1,243 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.Point;
+import fi.hiit.dime.data.ReadingEvent;
+import fi.hiit.dime.data.Rect;
+import fi.hiit.dime.data.Size;
+import fi.hiit.dime.data.SummaryReadingEvent;
+import fi.hiit.dime.util.PackedArrays;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.springframework.data.jpa.domain.AbstractPersistable;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.persistence.Access;
+import javax.persistence.AccessType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Transient;
+
+/**
+   Summary of the ReadingEvents of one reading session, i.e. the
+   events with the same sessionId, like the SummaryReadingEvent that
+   PeyeDF produces at the end of a session. It is maintained by
+   ReadingSessionDAO, each new event is added to the summary
+   without looking at the earlier ones.
+
+   The read proportions are relative to the area that was seen, i.e.
+   the union of the viewport rects, since the size of the document
+   is not known.
+*/
+@Entity
+@Table(name="READING_SESSION")
+@JsonIgnoreProperties({"new", "id", "userId"})
+public class ReadingSession extends AbstractPersistable<Long> {
+    /** Id of the user owning the events. */
+    public Long userId;
+
+    /** Id of the reading session. */
+    public String sessionId;
+
+    /** Id of the information element that was read. */
+    public Long elemId;
+
+    /** Start of the first event. */
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date start;
+
+    /** End of the last event. */
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date end;
+
+    /** Number of ReadingEvents in the session, not counting the
+        SummaryReadingEvent. */
+    public long eventCount;
+
+    /** Total duration of the events in seconds. */
+    public double readingTime;
+
+    /** Id of the SummaryReadingEvent of the session, if the client
+        has sent one. */
+    public Long summaryEventId;
+
+    /** Area of read rects relative to the area seen. */
+    public Double proportionRead;
+
+    /** Area of "interesting" rects relative to the area seen. */
+    public Double proportionInteresting;
+
+    /** Area of "critical" rects relative to the area seen. */
+    public Double proportionCritical;
+
+    /** Seconds spent on each page that was seen, by page index. The
+        duration of an event is divided evenly between its pages.
+     */
+    @Transient
+    public Map<Integer, Double> pageReadingTime = new TreeMap<Integer, Double>();
+
+    /** Union of the rects of all events, so that the rects of each
+        page and reading class don't overlap, see Rect.unionInto().
+        The plain text and timestamps are left out to keep the summary
+        small, they can be found in the events.
+     */
+    @Transient
+    public List<Rect> rects = new ArrayList<Rect>();
+
+    public ReadingSession() {
+    }
+
+    public ReadingSession(Long userId, String sessionId) {
+        this.userId = userId;
+        this.sessionId = sessionId;
+    }
+
+    /** Add an event to the summary.
+     */
+    public void add(ReadingEvent e) {
+        if (elemId == null && e.targettedResource != null)
+            elemId = e.targettedResource.getId();
+
+        if (e instanceof SummaryReadingEvent) {
+            summaryEventId = e.getId();
+            return;
+        }
+
+        eventCount++;
+        if (e.start != null && (start == null || e.start.before(start)))
+            start = e.start;
+        if (e.end != null && (end == null || e.end.after(end)))
+            end = e.end;
+        readingTime += e.duration;
+
+        if (e.pageNumbers != null && !e.pageNumbers.isEmpty()) {
+            double share = e.duration/e.pageNumbers.size();
+            for (Integer page : e.pageNumbers) {
+                Double time = pageReadingTime.get(page);
+                pageReadingTime.put(page, (time == null ? 0.0 : time) + share);
+            }
+        }
+
+        if (e.pageRects != null) {
+            for (Rect r : e.pageRects)
+                Rect.unionInto(rects, shape(r));
+            updateProportions();
+        }
+    }
+
+    /** Return a copy of the rect without the plain text and
+        timestamps.
+    */
+    private static Rect shape(Rect r) {
+        Rect c = new Rect();
+        if (r.origin != null)
+            c.origin = new Point(r.origin.x, r.origin.y);
+        if (r.size != null)
+            c.size = new Size(r.size.width == null ? 0.0 : r.size.width,
+                              r.size.height == null ? 0.0 : r.size.height);
+        c.pageIndex = r.pageIndex;
+        c.readingClass = r.readingClass;
+        c.classSource = r.classSource;
+        c.floating = false;
+        c.scaleFactor = r.scaleFactor;
+        c.screenDistance = r.screenDistance;
+        c.attnVal = r.attnVal;
+        return c;
+    }
+
+    private double area(int readingClass) {
+        double area = 0.0;
+        for (Rect r : rects)
+            if (r.readingClass == readingClass && r.size != null)
+                area += r.size.width*r.size.height;
+        return area;
+    }
+
+    private void updateProportions() {
+        double seen = area(Rect.CLASS_VIEWPORT);
+        if (seen <= 0.0)
+            return;
+        proportionRead = Math.min(1.0, area(Rect.CLASS_READ)/seen);
+        proportionInteresting =
+            Math.min(1.0, area(Rect.CLASS_INTERESTING)/seen);
+        proportionCritical = Math.min(1.0, area(Rect.CLASS_CRITICAL)/seen);
+    }
+
+    /** The page reading times packed for storing in the database.
+    */
+    @Access(AccessType.PROPERTY)
+    @Lob
+    @Column(name="PACKED_PAGES")
+    @JsonIgnore
+    protected byte[] getPackedPages() {
+        long[] pages = new long[pageReadingTime.size()];
+        double[] times = new double[pages.length];
+        int i = 0;
+        for (Map.Entry<Integer, Double> e : pageReadingTime.entrySet()) {
+            pages[i] = e.getKey();
+            times[i++] = e.getValue();
+        }
+        return new PackedArrays.Writer()
+            .writeLongs(pages).writeDoubles(times).toByteArray();
+    }
+
+    protected void setPackedPages(byte[] data) {
+        pageReadingTime = new TreeMap<Integer, Double>();
+        if (data == null)
+            return;
+
+        PackedArrays.Reader r = new PackedArrays.Reader(data);
+        long[] pages = r.readLongs();
+        double[] times = r.readDoubles();
+        for (int i=0; i<pages.length; i++)
+            pageReadingTime.put((int)pages[i], times[i]);
+    }
+
+    /** The rects packed for storing in the database, see
+        Rect.pack().
+    */
+    @Access(AccessType.PROPERTY)
+    @Lob
+    @Column(name="PACKED_RECTS")
+    @JsonIgnore
+    protected byte[] getPackedRects() {
+        return Rect.pack(rects);
+    }
+
+    protected void setPackedRects(byte[] data) {
+        rects = data == null ? new ArrayList<Rect>() : Rect.unpack(data);
+    }
+}
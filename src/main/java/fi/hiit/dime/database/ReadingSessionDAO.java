@@ -0,0 +1,170 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.data.Event;
+import fi.hiit.dime.data.ReadingEvent;
+import fi.hiit.dime.data.Rect;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+   Data access object for the reading session summaries, see
+   ReadingSession. EventDAO adds each new ReadingEvent to the summary
+   of its session. When an event of a session is replaced or removed
+   the summary is dropped instead, since rect unions can't be undone,
+   and it is rebuilt from the events of the session the next time it
+   is needed. This also builds the summaries of sessions stored
+   before they were introduced. Replacing an event with one that adds
+   the same to the summary, e.g. when a logger re-sends it, leaves the
+   summary in place.
+*/
+@Service
+public class ReadingSessionDAO {
+    @Autowired
+    private ReadingSessionRepository repo;
+
+    @Autowired
+    private EventRepository eventRepo;
+
+    /**
+       Return the session ids of the given event: none if it is not a
+       ReadingEvent with a session id, otherwise one.
+    */
+    public static List<String> sessionIds(Event e) {
+        if (!(e instanceof ReadingEvent) ||
+            ((ReadingEvent)e).sessionId == null)
+            return Collections.emptyList();
+        return Collections.singletonList(((ReadingEvent)e).sessionId);
+    }
+
+    /**
+       Return everything the summary of its session takes from the
+       given event, copied so that equal lists mean that replacing
+       one event with the other doesn't change the summary.
+    */
+    public static List<Object> summaryInputs(Event e) {
+        if (sessionIds(e).isEmpty())
+            return Collections.emptyList();
+
+        ReadingEvent re = (ReadingEvent)e;
+        byte[] rects = Rect.pack(re.pageRects);
+        return Arrays.<Object>asList
+            (re.getClass(), re.sessionId,
+             re.targettedResource == null ? null : re.targettedResource.getId(),
+             // Dates read back from the database are Timestamps, which
+             // are never equal to Dates
+             re.start == null ? null : re.start.getTime(),
+             re.end == null ? null : re.end.getTime(),
+             re.duration,
+             re.pageNumbers == null ? null :
+             new ArrayList<Integer>(re.pageNumbers),
+             rects == null ? null : ByteBuffer.wrap(rects));
+    }
+
+    /**
+       Add a newly stored event to the summary of its session. Must
+       be called after the event has been stored.
+    */
+    @Transactional
+    public void add(Long userId, Event e) {
+        if (sessionIds(e).isEmpty())
+            return;
+
+        ReadingEvent re = (ReadingEvent)e;
+        List<ReadingSession> sessions =
+            repo.findSessionsForUpdate(userId, re.sessionId);
+        if (sessions.size() == 1)
+            sessions.get(0).add(re);
+        else
+            rebuild(userId, re.sessionId, sessions);
+    }
+
+    /**
+       Drop the summaries of the given sessions, after their events
+       have been replaced or removed.
+    */
+    @Transactional
+    public void invalidate(Long userId, Collection<String> sessionIds) {
+        for (String sessionId : sessionIds)
+            for (ReadingSession s : repo.findSessionsForUpdate(userId,
+                                                               sessionId))
+                repo.delete(s);
+    }
+
+    /**
+       Return the summary of a session, building it if needed.
+
+       @return The summary, or null if the user has no events with
+       the session id
+    */
+    @Transactional
+    public ReadingSession get(Long userId, String sessionId) {
+        List<ReadingSession> sessions = repo.findSessions(userId, sessionId);
+        if (sessions.size() == 1)
+            return sessions.get(0);
+
+        return rebuild(userId, sessionId,
+                       repo.findSessionsForUpdate(userId, sessionId));
+    }
+
+    /**
+       Replace the given summaries of a session, normally none, with
+       one built from its events.
+    */
+    protected ReadingSession rebuild(Long userId, String sessionId,
+                                     List<ReadingSession> old) {
+        for (ReadingSession s : old)
+            repo.delete(s);
+
+        List<ReadingEvent> events =
+            eventRepo.findBySessionId(User.makeUser(userId), sessionId);
+        if (events.isEmpty())
+            return null;
+
+        ReadingSession session = new ReadingSession(userId, sessionId);
+        for (ReadingEvent e : events)
+            session.add(e);
+        return repo.save(session);
+    }
+
+    /**
+       Remove all session summaries of a user.
+    */
+    @Transactional
+    public int removeForUser(Long userId) {
+        return repo.deleteForUser(userId);
+    }
+}
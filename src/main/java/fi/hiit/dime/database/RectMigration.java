@@ -0,0 +1,211 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.Point;
+import fi.hiit.dime.data.Rect;
+import fi.hiit.dime.data.Size;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+   Liquibase migration that packs the rects of reading events and
+   reading tags, which used to be stored one row per rect in the
+   RECT table, into the PACKED_RECTS column of their owner.
+*/
+public class RectMigration implements CustomTaskChange {
+    // Number of owners (events or tags) converted at a time
+    private static final int CHUNK_SIZE = 200;
+
+    private long count = 0;
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        Connection conn =
+            ((JdbcConnection)database.getConnection()).getUnderlyingConnection();
+
+        try {
+            migrate(conn, "EVENT_ID", "EVENT");
+            migrate(conn, "TAG_ID", "TAG");
+        } catch (SQLException e) {
+            throw new CustomChangeException(e);
+        }
+    }
+
+    private static Double getDouble(ResultSet rs, String column)
+        throws SQLException
+    {
+        double d = rs.getDouble(column);
+        return rs.wasNull() ? null : d;
+    }
+
+    /**
+       Read the rects of the owners in the given id range, in the
+       order they were stored.
+    */
+    protected Map<Long, List<Rect>> readRects(Connection conn,
+                                              String ownerColumn,
+                                              long minId, long maxId)
+        throws SQLException
+    {
+        Map<Long, Rect> byId = new HashMap<Long, Rect>();
+        Map<Long, List<Rect>> rects = new LinkedHashMap<Long, List<Rect>>();
+
+        PreparedStatement ps = conn.prepareStatement
+            (String.format("select * from RECT where %1$s between ? and ? " +
+                           "order by %1$s, ID", ownerColumn));
+        try {
+            ps.setLong(1, minId);
+            ps.setLong(2, maxId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                Rect r = new Rect();
+                r.origin = new Point(rs.getDouble("X"), rs.getDouble("Y"));
+                r.size = new Size();
+                r.size.width = getDouble(rs, "WIDTH");
+                r.size.height = getDouble(rs, "HEIGHT");
+                r.pageIndex = rs.getInt("PAGE_INDEX");
+                r.readingClass = rs.getInt("READING_CLASS");
+                r.classSource = rs.getInt("CLASS_SOURCE");
+                r.plainTextContent = rs.getString("PLAIN_TEXT_CONTENT");
+                r.floating = rs.getBoolean("FLOATING");
+                if (rs.wasNull())
+                    r.floating = null;
+                r.scaleFactor = getDouble(rs, "SCALE_FACTOR");
+                r.screenDistance = getDouble(rs, "SCREEN_DISTANCE");
+                r.attnVal = getDouble(rs, "ATTN_VAL");
+                r.unixt = new ArrayList<Long>();
+
+                long ownerId = rs.getLong(ownerColumn);
+                List<Rect> list = rects.get(ownerId);
+                if (list == null) {
+                    list = new ArrayList<Rect>();
+                    rects.put(ownerId, list);
+                }
+                list.add(r);
+                byId.put(rs.getLong("ID"), r);
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+
+        ps = conn.prepareStatement
+            (String.format("select u.RECT_ID, u.UNIXT from RECT_UNIXT u " +
+                           "join RECT r on r.ID = u.RECT_ID " +
+                           "where r.%s between ? and ?", ownerColumn));
+        try {
+            ps.setLong(1, minId);
+            ps.setLong(2, maxId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                Rect r = byId.get(rs.getLong(1));
+                if (r != null)
+                    r.unixt.add(rs.getLong(2));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        return rects;
+    }
+
+    protected void migrate(Connection conn, String ownerColumn,
+                           String ownerTable)
+        throws SQLException
+    {
+        List<Long> ids = new ArrayList<Long>();
+        Statement st = conn.createStatement();
+        try {
+            ResultSet rs = st.executeQuery
+                (String.format("select distinct %1$s from RECT where %1$s " +
+                               "is not null order by %1$s", ownerColumn));
+            while (rs.next())
+                ids.add(rs.getLong(1));
+            rs.close();
+        } finally {
+            st.close();
+        }
+
+        PreparedStatement update = conn.prepareStatement
+            (String.format("update %s set PACKED_RECTS = ? where ID = ?",
+                           ownerTable));
+        try {
+            for (int start=0; start<ids.size(); start+=CHUNK_SIZE) {
+                List<Long> chunk =
+                    ids.subList(start, Math.min(start+CHUNK_SIZE, ids.size()));
+                Map<Long, List<Rect>> rects =
+                    readRects(conn, ownerColumn, chunk.get(0),
+                              chunk.get(chunk.size()-1));
+
+                for (Map.Entry<Long, List<Rect>> entry : rects.entrySet()) {
+                    update.setBytes(1, Rect.pack(entry.getValue()));
+                    update.setLong(2, entry.getKey());
+                    update.addBatch();
+                    count += entry.getValue().size();
+                }
+                update.executeBatch();
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return String.format("Packed %d rects", count);
+    }
+
+    @Override
+    public void setUp() throws SetupException {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        return new ValidationErrors();
+    }
+}
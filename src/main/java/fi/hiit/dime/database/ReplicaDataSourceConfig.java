@@ -0,0 +1,96 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.DiMeProperties;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+/**
+   Data sources when a read replica is configured with
+   dime.replicaUrl: read-only transactions are routed to the replica
+   by ReplicaRoutingDataSource, everything else goes to the primary
+   configured with spring.datasource as usual.
+*/
+@Configuration
+@ConditionalOnProperty(prefix = "dime", name = "replicaUrl")
+public class ReplicaDataSourceConfig {
+    @Autowired
+    private DiMeProperties dimeConfig;
+
+    @Autowired
+    private DataSourceProperties dataSourceProperties;
+
+    @Bean
+    @ConfigurationProperties(prefix = DataSourceProperties.PREFIX)
+    public DataSource primaryDataSource() {
+        return DataSourceBuilder.create(dataSourceProperties.getClassLoader())
+            .driverClassName(dataSourceProperties.getDriverClassName())
+            .url(dataSourceProperties.getUrl())
+            .username(dataSourceProperties.getUsername())
+            .password(dataSourceProperties.getPassword())
+            .build();
+    }
+
+    @Bean
+    public DataSource replicaDataSource() {
+        return DataSourceBuilder.create(dataSourceProperties.getClassLoader())
+            .driverClassName(dataSourceProperties.getDriverClassName())
+            .url(dimeConfig.getReplicaUrl())
+            .username(dimeConfig.getReplicaUsername())
+            .password(dimeConfig.getReplicaPassword())
+            .build();
+    }
+
+    @Bean(destroyMethod = "stop")
+    public ReplicaRoutingDataSource routingDataSource() {
+        ReplicaRoutingDataSource ds =
+            new ReplicaRoutingDataSource(primaryDataSource(),
+                                         replicaDataSource(),
+                                         dimeConfig.getReplicaMaxLag(),
+                                         dimeConfig.getReplicaReadYourWrites());
+        ds.start(dimeConfig.getReplicaHeartbeatInterval());
+        return ds;
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource() {
+        // Lazy, so that the connection is routed only once the
+        // transaction's read-only flag has been set
+        return new LazyConnectionDataSourceProxy(routingDataSource());
+    }
+}
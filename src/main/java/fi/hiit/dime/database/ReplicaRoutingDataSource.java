@@ -0,0 +1,322 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+/**
+   Routes read-only transactions to a replica database, and
+   everything else to the primary. The replica is only used when it
+   is known to lag at most maxLag milliseconds behind the primary, and
+   a user's reads go to the primary for readYourWrites milliseconds
+   after that user has committed a write, so that e.g. an upload is
+   visible in the next request.
+
+   The lag is measured with a heartbeat row: the primary's
+   REPLICA_HEARTBEAT row is updated with the current time, and the
+   lag is the difference between now and the time read from the
+   replica's copy of the row.
+
+   Background work with no user, like the search indexer, can't rely
+   on read-your-writes, so it can pin its thread to the primary with
+   pinToPrimary().
+
+   The routing decision is made when the connection is first used,
+   so this should be wrapped in a LazyConnectionDataSourceProxy for
+   the read-only flag of the transaction to be known by then.
+*/
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    public enum Target { PRIMARY, REPLICA }
+
+    private static final int HEARTBEAT_ID = 1;
+
+    private final DataSource primary;
+    private final DataSource replica;
+    private final long maxLag;
+    private final long readYourWrites;
+
+    // Lag of the replica in ms at the last check, Long.MAX_VALUE if
+    // the replica is unreachable or not yet checked
+    private volatile long replicaLag = Long.MAX_VALUE;
+
+    // Time of last committed write by username
+    private final Map<String, Long> lastWrites =
+        new ConcurrentHashMap<String, Long>();
+
+    private ScheduledExecutorService heartbeat;
+
+    // Nesting depth of pinToPrimary() calls of each thread
+    private static final ThreadLocal<Integer> pinned =
+        new ThreadLocal<Integer>() {
+            @Override
+            protected Integer initialValue() {
+                return 0;
+            }
+        };
+
+    /**
+       Constructor.
+
+       @param primary Primary database, for writes
+       @param replica Replica database, for read-only transactions
+       @param maxLag Maximum replica lag in ms for using the replica
+       @param readYourWrites Time in ms after a user's write during
+       which that user's reads go to the primary
+    */
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica,
+                                    long maxLag, long readYourWrites) {
+        this.primary = primary;
+        this.replica = replica;
+        this.maxLag = maxLag;
+        this.readYourWrites = readYourWrites;
+
+        Map<Object, Object> targets = new HashMap<Object, Object>();
+        targets.put(Target.PRIMARY, primary);
+        targets.put(Target.REPLICA, replica);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+    }
+
+    /**
+       Send all transactions of the current thread to the primary,
+       until a matching call to unpinFromPrimary(). Calls can be
+       nested.
+    */
+    public static void pinToPrimary() {
+        pinned.set(pinned.get() + 1);
+    }
+
+    /**
+       Undo a call to pinToPrimary(), call in a finally block.
+    */
+    public static void unpinFromPrimary() {
+        int depth = pinned.get() - 1;
+        if (depth <= 0)
+            pinned.remove();
+        else
+            pinned.set(depth);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return route();
+    }
+
+    /**
+       Return where the current transaction's connection goes.
+    */
+    public Target route() {
+        String user = currentUser();
+
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            if (user != null) {
+                if (TransactionSynchronizationManager.isSynchronizationActive())
+                    TransactionSynchronizationManager.registerSynchronization
+                        (new WriteTracker(user));
+                else
+                    lastWrites.put(user, System.currentTimeMillis());
+            }
+            return Target.PRIMARY;
+        }
+
+        if (replicaLag > maxLag || pinned.get() > 0)
+            return Target.PRIMARY;
+
+        if (user != null) {
+            Long lastWrite = lastWrites.get(user);
+            if (lastWrite != null) {
+                if (System.currentTimeMillis() - lastWrite < readYourWrites)
+                    return Target.PRIMARY;
+                lastWrites.remove(user);
+            }
+        }
+
+        return Target.REPLICA;
+    }
+
+    /**
+       Records the write time of a user once the transaction commits.
+    */
+    private class WriteTracker extends TransactionSynchronizationAdapter {
+        private final String user;
+
+        WriteTracker(String user) {
+            this.user = user;
+        }
+
+        @Override
+        public void afterCommit() {
+            lastWrites.put(user, System.currentTimeMillis());
+        }
+    }
+
+    private static String currentUser() {
+        Authentication auth =
+            SecurityContextHolder.getContext().getAuthentication();
+        return auth != null ? auth.getName() : null;
+    }
+
+    /**
+       Return the replica lag in ms at the last check, or
+       Long.MAX_VALUE if the replica was unreachable.
+    */
+    public long getReplicaLag() {
+        return replicaLag;
+    }
+
+    /**
+       Write the current time to the heartbeat row of the primary.
+    */
+    public void writeHeartbeat() throws SQLException {
+        Connection con = primary.getConnection();
+        try {
+            long now = System.currentTimeMillis();
+            PreparedStatement update = con.prepareStatement
+                ("update REPLICA_HEARTBEAT set TIME_MILLIS = ? where ID = ?");
+            try {
+                update.setLong(1, now);
+                update.setInt(2, HEARTBEAT_ID);
+                if (update.executeUpdate() == 0) {
+                    PreparedStatement insert = con.prepareStatement
+                        ("insert into REPLICA_HEARTBEAT (ID, TIME_MILLIS) " +
+                         "values (?, ?)");
+                    try {
+                        insert.setInt(1, HEARTBEAT_ID);
+                        insert.setLong(2, now);
+                        insert.executeUpdate();
+                    } finally {
+                        insert.close();
+                    }
+                }
+            } finally {
+                update.close();
+            }
+            if (!con.getAutoCommit())
+                con.commit();
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+       Read the heartbeat row from the replica and update the lag.
+    */
+    public void checkReplicaLag() {
+        long lag = Long.MAX_VALUE;
+        try {
+            Connection con = replica.getConnection();
+            try {
+                PreparedStatement ps = con.prepareStatement
+                    ("select TIME_MILLIS from REPLICA_HEARTBEAT where ID = ?");
+                try {
+                    ps.setInt(1, HEARTBEAT_ID);
+                    ResultSet rs = ps.executeQuery();
+                    if (rs.next())
+                        lag = Math.max(0, System.currentTimeMillis() -
+                                       rs.getLong(1));
+                    rs.close();
+                } finally {
+                    ps.close();
+                }
+            } finally {
+                con.close();
+            }
+        } catch (SQLException e) {
+            LOG.debug("Unable to check replica lag: {}", e.getMessage());
+        }
+
+        boolean wasUsable = replicaLag <= maxLag;
+        replicaLag = lag;
+        if (wasUsable && lag > maxLag)
+            LOG.warn("Replica lag {} ms, reading from primary.",
+                     lag == Long.MAX_VALUE ? "unknown" : lag);
+        else if (!wasUsable && lag <= maxLag)
+            LOG.info("Replica lag {} ms, reading from replica.", lag);
+    }
+
+    /**
+       Start writing and checking the heartbeat in the background.
+
+       @param interval Time between heartbeats in ms
+    */
+    public synchronized void start(long interval) {
+        if (heartbeat != null)
+            return;
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor
+            (new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "replica-heartbeat");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        writeHeartbeat();
+                    } catch (SQLException e) {
+                        LOG.warn("Unable to write replica heartbeat: {}",
+                                 e.getMessage());
+                    }
+                    checkReplicaLag();
+                }
+            }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+       Stop the background heartbeat.
+    */
+    public synchronized void stop() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.DiMeData;
+import fi.hiit.dime.data.Tag;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+   Data access object for the tag dictionary and the links from
+   events and information elements to it.
+*/
+@Service
+public class TagDAO {
+    @Autowired
+    protected TagTextRepository textRepo;
+
+    @Autowired
+    protected TagLinkRepository linkRepo;
+
+    /**
+       Return the ids of the given tag texts, interning any texts not
+       seen before.
+    */
+    @Transactional
+    public Map<String, Long> intern(Set<String> texts) {
+        Map<String, Long> ids = new HashMap<String, Long>();
+        if (texts.isEmpty())
+            return ids;
+
+        for (TagText t : textRepo.findByTexts(texts))
+            ids.put(t.text, t.getId());
+
+        for (String text : texts)
+            if (!ids.containsKey(text))
+                ids.put(text, textRepo.save(new TagText(text)).getId());
+
+        return ids;
+    }
+
+    /**
+       Update the tag links of the given object to match its current
+       tags. Should be called in the same transaction as the change.
+
+       @return True if the links were changed
+    */
+    @Transactional
+    public boolean sync(DiMeData obj) {
+        String kind = TagLink.kindOf(obj);
+
+        Set<String> texts = new LinkedHashSet<String>();
+        if (obj.tags != null)
+            for (Tag tag : obj.tags)
+                if (tag.text != null && tag.text.length() <= TagText.MAX_LENGTH)
+                    texts.add(tag.text);
+
+        // Nothing to do if the tag texts haven't changed, which is
+        // the common case
+        List<String> linked = linkRepo.findLinkedTexts(kind, obj.getId());
+        if (linked.size() == texts.size() && texts.containsAll(linked))
+            return false;
+
+        linkRepo.deleteLinks(kind, obj.getId());
+
+        Map<String, Long> ids = intern(texts);
+        List<TagLink> links = new ArrayList<TagLink>();
+        for (String text : texts)
+            links.add(new TagLink(obj, ids.get(text)));
+        linkRepo.save(links);
+        return true;
+    }
+
+    /**
+       Remove the tag links of the given object.
+    */
+    @Transactional
+    public void remove(DiMeData obj) {
+        linkRepo.deleteLinks(TagLink.kindOf(obj), obj.getId());
+    }
+
+    /**
+       Remove the tag links of all objects of a user.
+    */
+    @Transactional
+    public int removeForUser(Long userId) {
+        return linkRepo.deleteLinksForUser(userId);
+    }
+
+    /**
+       Return the tags of a user with the number of objects having
+       each tag, most common first.
+
+       @param userId User id
+       @param kind TagLink.EVENT or TagLink.ELEMENT, or null for both
+       @param limit Maximum number of tags to return, or -1 for all
+    */
+    @Transactional(readOnly = true)
+    public List<TagCount> tagCounts(Long userId, String kind, int limit) {
+        Pageable page = limit > 0 ? new PageRequest(0, limit) : null;
+        if (kind == null)
+            return linkRepo.tagCounts(userId, page);
+        return linkRepo.tagCounts(userId, kind, page);
+    }
+}
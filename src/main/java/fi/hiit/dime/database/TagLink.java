@@ -0,0 +1,73 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.DiMeData;
+import fi.hiit.dime.data.Event;
+
+import org.springframework.data.jpa.domain.AbstractPersistable;
+
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+/**
+   Link between an event or information element and the interned
+   text of one of its tags. This is an index of the tags, maintained
+   by TagDAO whenever an object is saved, and used for the tag
+   filters and counts instead of the tag rows themselves.
+*/
+@Entity
+@Table(name="TAG_LINK")
+public class TagLink extends AbstractPersistable<Long> {
+    public static final String EVENT = "event";
+    public static final String ELEMENT = "elem";
+
+    /** Id of the interned tag text. */
+    public Long tagTextId;
+
+    /** Kind of object, EVENT or ELEMENT. */
+    public String kind;
+
+    /** Id of the tagged object. */
+    public Long dataId;
+
+    /** Id of the user owning the object. */
+    public Long userId;
+
+    public TagLink() {
+    }
+
+    public TagLink(DiMeData obj, Long tagTextId) {
+        this.tagTextId = tagTextId;
+        this.kind = kindOf(obj);
+        this.dataId = obj.getId();
+        this.userId = obj.user.getId();
+    }
+
+    public static String kindOf(DiMeData obj) {
+        return obj instanceof Event ? EVENT : ELEMENT;
+    }
+}
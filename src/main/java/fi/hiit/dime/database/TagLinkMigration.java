@@ -0,0 +1,154 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+   Liquibase migration that fills the TAG_TEXT and TAG_LINK tables
+   from the existing tags of events and information elements. After
+   this, TagDAO keeps them up to date.
+*/
+public class TagLinkMigration implements CustomTaskChange {
+    private Map<String, Long> textIds = new HashMap<String, Long>();
+    private long count = 0;
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        Connection conn =
+            ((JdbcConnection)database.getConnection()).getUnderlyingConnection();
+
+        try {
+            migrate(conn, TagLink.EVENT, "EVENT", "EVENT_TAGS", "EVENT_ID");
+            migrate(conn, TagLink.ELEMENT, "INFORMATION_ELEMENT",
+                    "INFORMATION_ELEMENT_TAGS", "INFORMATION_ELEMENT_ID");
+        } catch (SQLException e) {
+            throw new CustomChangeException(e);
+        }
+    }
+
+    protected void migrate(Connection conn, String kind, String table,
+                           String mapTable, String mapColumn)
+        throws SQLException
+    {
+        String select = String.format
+            ("select m.%2$s, d.USER_ID, t.TEXT from %3$s m " +
+             "join TAG t on t.ID = m.TAGS_ID " +
+             "join %1$s d on d.ID = m.%2$s order by m.%2$s", table,
+             mapColumn, mapTable);
+
+        PreparedStatement insertText = conn.prepareStatement
+            ("insert into TAG_TEXT (TEXT) values (?)",
+             Statement.RETURN_GENERATED_KEYS);
+        PreparedStatement insertLink = conn.prepareStatement
+            ("insert into TAG_LINK (TAG_TEXT_ID, KIND, DATA_ID, USER_ID) " +
+             "values (?, ?, ?, ?)");
+        Statement st = conn.createStatement();
+
+        try {
+            // Tag texts already linked to the current object, the
+            // same text may appear in several tag rows of an object
+            Set<String> seen = new HashSet<String>();
+            long prevDataId = -1;
+
+            ResultSet rs = st.executeQuery(select);
+            while (rs.next()) {
+                long dataId = rs.getLong(1);
+                long userId = rs.getLong(2);
+                String text = rs.getString(3);
+
+                if (dataId != prevDataId) {
+                    seen.clear();
+                    prevDataId = dataId;
+                }
+
+                if (text == null || text.length() > TagText.MAX_LENGTH ||
+                    !seen.add(text))
+                    continue;
+
+                Long textId = textIds.get(text);
+                if (textId == null) {
+                    insertText.setString(1, text);
+                    insertText.executeUpdate();
+                    ResultSet keys = insertText.getGeneratedKeys();
+                    keys.next();
+                    textId = keys.getLong(1);
+                    keys.close();
+                    textIds.put(text, textId);
+                }
+
+                insertLink.setLong(1, textId);
+                insertLink.setString(2, kind);
+                insertLink.setLong(3, dataId);
+                insertLink.setLong(4, userId);
+                insertLink.addBatch();
+                if (++count % 500 == 0)
+                    insertLink.executeBatch();
+            }
+            insertLink.executeBatch();
+            rs.close();
+        } finally {
+            st.close();
+            insertText.close();
+            insertLink.close();
+        }
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return String.format("Linked %d tags to %d distinct tag texts",
+                             count, textIds.size());
+    }
+
+    @Override
+    public void setUp() throws SetupException {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        return new ValidationErrors();
+    }
+}
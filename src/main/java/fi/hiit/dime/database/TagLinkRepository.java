@@ -0,0 +1,52 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.List;
+
+public interface TagLinkRepository extends CrudRepository<TagLink, Long> {
+    @Query("select t.text from TagLink l, TagText t where l.tagTextId = t.id and l.kind = ?1 and l.dataId = ?2")
+    List<String> findLinkedTexts(String kind, Long dataId);
+
+    @Modifying
+    @Query("delete from TagLink l where l.kind = ?1 and l.dataId = ?2")
+    int deleteLinks(String kind, Long dataId);
+
+    @Modifying
+    @Query("delete from TagLink l where l.userId = ?1")
+    int deleteLinksForUser(Long userId);
+
+    @Query("select new fi.hiit.dime.database.TagCount(t.text, count(l)) from TagLink l, TagText t where l.tagTextId = t.id and l.userId = ?1 group by t.text order by count(l) desc")
+    List<TagCount> tagCounts(Long userId, Pageable pageable);
+
+    @Query("select new fi.hiit.dime.database.TagCount(t.text, count(l)) from TagLink l, TagText t where l.tagTextId = t.id and l.userId = ?1 and l.kind = ?2 group by t.text order by count(l) desc")
+    List<TagCount> tagCounts(Long userId, String kind, Pageable pageable);
+}
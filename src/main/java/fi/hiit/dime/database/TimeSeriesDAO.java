@@ -0,0 +1,446 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.Event;
+import fi.hiit.dime.data.HealthTrackerEvent;
+import fi.hiit.dime.data.PhysicalEvent;
+import fi.hiit.dime.database.EventHistDAO.Resolution;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+/**
+   Data access object for the time series of the values of physical
+   events, i.e. PhysicalEvent and HealthTrackerEvent. For each
+   resolution, the values of a user's events are summarised per
+   bucket and per combination of type, activity type and device, as
+   count, sum, min and max. The summaries are updated incrementally
+   by EventDAO as events are stored, replaced and removed, like the
+   event histograms in EventHistDAO.
+*/
+@Service
+public class TimeSeriesDAO {
+    /** Event classes with values. */
+    public static final List<String> DTYPES =
+        Arrays.asList("PhysicalEvent", "HealthTrackerEvent");
+
+    /**
+       The properties of an event that are summarised in the time
+       series.
+    */
+    public static class Key {
+        public final Date time;
+        public final String type;
+        public final String activityType;
+        public final String device;
+        public final double value;
+
+        public Key(Date time, String type, String activityType,
+                   String device, double value) {
+            this.time = time;
+            this.type = type;
+            this.activityType = activityType;
+            this.device = device;
+            this.value = value;
+        }
+
+        /**
+           Return the keys of the given event: none if it has no
+           value, otherwise one. Events are placed by their start
+           time, or by the creation time if they have no start time.
+        */
+        public static List<Key> of(Event e) {
+            if (!(e instanceof PhysicalEvent) ||
+                ((PhysicalEvent)e).value == null)
+                return Collections.emptyList();
+
+            String activityType = null, device = null;
+            if (e instanceof HealthTrackerEvent) {
+                activityType = ((HealthTrackerEvent)e).activityType;
+                device = ((HealthTrackerEvent)e).device;
+            }
+            Date time = e.start != null ? e.start : e.timeCreated;
+            if (time == null)
+                return Collections.emptyList();
+            return Collections.singletonList
+                (new Key(time, e.type, activityType, device,
+                         ((PhysicalEvent)e).value));
+        }
+
+        List<String> series() {
+            return Arrays.asList(type, activityType, device);
+        }
+
+        boolean sameBins(Key other) {
+            return Resolution.HOUR.bucketStart(time).equals
+                (Resolution.HOUR.bucketStart(other.time)) &&
+                series().equals(other.series());
+        }
+    }
+
+    /**
+       Summed changes to one bin.
+    */
+    private static class Change {
+        long count;
+        double sum;
+        Double min, max;               // of added values
+        Double removedMin, removedMax; // of removed values
+
+        void add(double value) {
+            count++;
+            sum += value;
+            min = min == null ? value : Math.min(min, value);
+            max = max == null ? value : Math.max(max, value);
+        }
+
+        void remove(double value) {
+            count--;
+            sum -= value;
+            removedMin = removedMin == null ? value :
+                Math.min(removedMin, value);
+            removedMax = removedMax == null ? value :
+                Math.max(removedMax, value);
+        }
+    }
+
+    @Autowired
+    private TimeSeriesRepository repo;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private static List<Object> binKey(String resolution, long bucket,
+                                       List<String> series) {
+        List<Object> key = new ArrayList<Object>(series);
+        key.add(resolution);
+        key.add(bucket);
+        return key;
+    }
+
+    private static boolean matches(TimeSeriesBin bin, String type,
+                                   String activityType, String device) {
+        return (type == null || type.equals(bin.type)) &&
+            (activityType == null || activityType.equals(bin.activityType)) &&
+            (device == null || device.equals(bin.device));
+    }
+
+    /**
+       Add the values of stored events.
+    */
+    @Transactional
+    public void add(Long userId, List<Key> keys) {
+        replace(userId, Collections.<Key>emptyList(), keys);
+    }
+
+    /**
+       Remove the values of removed events. Must be called after the
+       events have been removed.
+    */
+    @Transactional
+    public void remove(Long userId, List<Key> keys) {
+        replace(userId, keys, Collections.<Key>emptyList());
+    }
+
+    /**
+       Replace the values of the old events by the new ones. Must be
+       called after the events have been written. Nothing is written
+       in the common case of an event being replaced by an equal one.
+    */
+    @Transactional
+    public void replace(Long userId, List<Key> oldKeys, List<Key> newKeys) {
+        if (oldKeys.isEmpty() && newKeys.isEmpty())
+            return;
+        if (oldKeys.size() == 1 && newKeys.size() == 1) {
+            Key o = oldKeys.get(0), n = newKeys.get(0);
+            if (o.sameBins(n) && o.value == n.value)
+                return;
+        }
+
+        // Sum the changes per bin first, since a batch of events
+        // usually falls in a few bins
+        Map<List<Object>, Change> changes =
+            new LinkedHashMap<List<Object>, Change>();
+        Set<Date> buckets = new HashSet<Date>();
+        for (Resolution res : Resolution.values()) {
+            for (int i=0; i<2; i++) {
+                for (Key key : i == 0 ? oldKeys : newKeys) {
+                    Date bucket = res.bucketStart(key.time);
+                    buckets.add(bucket);
+                    List<Object> binKey = binKey(res.getName(),
+                                                 bucket.getTime(),
+                                                 key.series());
+                    Change c = changes.get(binKey);
+                    if (c == null) {
+                        c = new Change();
+                        changes.put(binKey, c);
+                    }
+                    if (i == 0)
+                        c.remove(key.value);
+                    else
+                        c.add(key.value);
+                }
+            }
+        }
+
+        List<String> resNames = new ArrayList<String>();
+        for (Resolution res : Resolution.values())
+            resNames.add(res.getName());
+        Map<List<Object>, TimeSeriesBin> bins =
+            new HashMap<List<Object>, TimeSeriesBin>();
+        for (TimeSeriesBin bin : repo.findBins(userId, resNames, buckets)) {
+            List<Object> binKey =
+                binKey(bin.resolution, bin.bucket.getTime(),
+                       Arrays.asList(bin.type, bin.activityType, bin.device));
+            if (!bins.containsKey(binKey))
+                bins.put(binKey, bin);
+        }
+
+        boolean flushed = false;
+        for (Map.Entry<List<Object>, Change> e : changes.entrySet()) {
+            Change c = e.getValue();
+            TimeSeriesBin bin = bins.get(e.getKey());
+
+            if (bin == null) {
+                if (c.count <= 0)
+                    continue;
+                List<Object> k = e.getKey();
+                bin = new TimeSeriesBin(userId, (String)k.get(3),
+                                        new Date((Long)k.get(4)),
+                                        (String)k.get(0), (String)k.get(1),
+                                        (String)k.get(2));
+                bin.valueCount = c.count;
+                bin.valueSum = c.sum;
+                bin.valueMin = c.min;
+                bin.valueMax = c.max;
+                repo.save(bin);
+                continue;
+            }
+
+            // A removed extreme value can't be undone from the
+            // summary, so the bin is recounted from the events
+            if ((c.removedMin != null && (bin.valueMin == null ||
+                                          c.removedMin <= bin.valueMin)) ||
+                (c.removedMax != null && (bin.valueMax == null ||
+                                          c.removedMax >= bin.valueMax))) {
+                if (!flushed) {
+                    entityManager.flush();
+                    flushed = true;
+                }
+                recount(bin);
+            } else {
+                bin.valueCount += c.count;
+                bin.valueSum += c.sum;
+                if (c.min != null && (bin.valueMin == null ||
+                                      c.min < bin.valueMin))
+                    bin.valueMin = c.min;
+                if (c.max != null && (bin.valueMax == null ||
+                                      c.max > bin.valueMax))
+                    bin.valueMax = c.max;
+            }
+
+            if (bin.valueCount <= 0)
+                repo.delete(bin);
+        }
+    }
+
+    /**
+       Set the summary of the bin from the events in it.
+    */
+    protected void recount(TimeSeriesBin bin) {
+        Resolution res = Resolution.parse(bin.resolution);
+        StringBuilder sql = new StringBuilder
+            ("select count(VALUE), sum(VALUE), min(VALUE), max(VALUE) " +
+             "from EVENT where USER_ID = :userId and DTYPE in (:dtypes) " +
+             "and VALUE is not null and (START >= :from and START < :to " +
+             "or START is null and TIME_CREATED >= :from " +
+             "and TIME_CREATED < :to)");
+        Map<String, Object> params = new HashMap<String, Object>();
+        seriesCondition(sql, params, "TYPE", "type", bin.type, true);
+        seriesCondition(sql, params, "ACTIVITY_TYPE", "activityType",
+                        bin.activityType, true);
+        seriesCondition(sql, params, "DEVICE", "device", bin.device, true);
+
+        Query q = entityManager.createNativeQuery(sql.toString())
+            .setParameter("userId", bin.userId)
+            .setParameter("dtypes", DTYPES)
+            .setParameter("from", bin.bucket)
+            .setParameter("to", res.next(bin.bucket));
+        for (Map.Entry<String, Object> p : params.entrySet())
+            q.setParameter(p.getKey(), p.getValue());
+
+        Object[] r = (Object[])q.getSingleResult();
+        bin.valueCount = ((Number)r[0]).longValue();
+        bin.valueSum = r[1] != null ? ((Number)r[1]).doubleValue() : 0.0;
+        bin.valueMin = r[2] != null ? ((Number)r[2]).doubleValue() : null;
+        bin.valueMax = r[3] != null ? ((Number)r[3]).doubleValue() : null;
+    }
+
+    /**
+       Add a condition on a series column to the query. If exact, a
+       null value matches only nulls, otherwise it matches anything.
+    */
+    private static void seriesCondition(StringBuilder sql,
+                                        Map<String, Object> params,
+                                        String column, String param,
+                                        String value, boolean exact) {
+        if (value != null) {
+            sql.append(" and ").append(column).append(" = :").append(param);
+            params.put(param, value);
+        } else if (exact) {
+            sql.append(" and ").append(column).append(" is null");
+        }
+    }
+
+    /**
+       Remove all time series of a user.
+    */
+    @Transactional
+    public int removeForUser(Long userId) {
+        return repo.deleteForUser(userId);
+    }
+
+    /**
+       Return the summaries of a user's values per bucket in the
+       given time range. Empty buckets are left out.
+
+       @param userId User id
+       @param res Resolution of the buckets
+       @param type Event type, or null for any
+       @param activityType Activity type, or null for any
+       @param device Device, or null for any
+       @param from Start of the range, rounded down to the bucket start
+       @param to End of the range, exclusive
+       @return Points in time order
+    */
+    @Transactional(readOnly = true)
+    public List<TimeSeriesPoint> series(Long userId, Resolution res,
+                                        String type, String activityType,
+                                        String device, Date from, Date to) {
+        // Several series may match the filters, they are merged
+        Map<Long, TimeSeriesPoint> points =
+            new LinkedHashMap<Long, TimeSeriesPoint>();
+        Map<Long, Double> sums = new HashMap<Long, Double>();
+
+        for (TimeSeriesBin bin : repo.findBins(userId, res.getName(),
+                                               res.bucketStart(from), to)) {
+            if (bin.valueCount <= 0 ||
+                !matches(bin, type, activityType, device))
+                continue;
+
+            long t = bin.bucket.getTime();
+            TimeSeriesPoint p = points.get(t);
+            if (p == null) {
+                p = new TimeSeriesPoint(new Date(t), 0, bin.valueMin,
+                                        bin.valueMax, null);
+                points.put(t, p);
+                sums.put(t, 0.0);
+            }
+            p.count += bin.valueCount;
+            sums.put(t, sums.get(t) + bin.valueSum);
+            if (bin.valueMin != null && (p.min == null || bin.valueMin < p.min))
+                p.min = bin.valueMin;
+            if (bin.valueMax != null && (p.max == null || bin.valueMax > p.max))
+                p.max = bin.valueMax;
+        }
+
+        for (TimeSeriesPoint p : points.values())
+            p.avg = sums.get(p.time.getTime()) / p.count;
+
+        return new ArrayList<TimeSeriesPoint>(points.values());
+    }
+
+    /**
+       Return the number of values in the given time range, counted
+       from whole days, so it may include values just outside the
+       range.
+    */
+    @Transactional(readOnly = true)
+    public long approxCount(Long userId, String type, String activityType,
+                            String device, Date from, Date to) {
+        long count = 0;
+        for (TimeSeriesPoint p : series(userId, Resolution.DAY, type,
+                                        activityType, device, from, to))
+            count += p.count;
+        return count;
+    }
+
+    /**
+       Return the individual values in the given time range, read
+       from the events.
+
+       @param limit Maximum number of values to return
+       @return Points in time order
+    */
+    @Transactional(readOnly = true)
+    public List<TimeSeriesPoint> values(Long userId, String type,
+                                        String activityType, String device,
+                                        Date from, Date to, int limit) {
+        StringBuilder sql = new StringBuilder
+            ("select START, VALUE from EVENT where USER_ID = :userId " +
+             "and START >= :from and START < :to " +
+             "and DTYPE in (:dtypes) and VALUE is not null");
+        Map<String, Object> params = new HashMap<String, Object>();
+        seriesCondition(sql, params, "TYPE", "type", type, false);
+        seriesCondition(sql, params, "ACTIVITY_TYPE", "activityType",
+                        activityType, false);
+        seriesCondition(sql, params, "DEVICE", "device", device, false);
+        sql.append(" order by START, ID");
+
+        Query q = entityManager.createNativeQuery(sql.toString())
+            .setParameter("userId", userId)
+            .setParameter("dtypes", DTYPES)
+            .setParameter("from", from)
+            .setParameter("to", to)
+            .setMaxResults(limit);
+        for (Map.Entry<String, Object> p : params.entrySet())
+            q.setParameter(p.getKey(), p.getValue());
+
+        List<TimeSeriesPoint> points = new ArrayList<TimeSeriesPoint>();
+        for (Object row : q.getResultList()) {
+            Object[] r = (Object[])row;
+            points.add(new TimeSeriesPoint(new Date(((Date)r[0]).getTime()),
+                                           ((Number)r[1]).doubleValue()));
+        }
+        return points;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+   Liquibase migration that fills the EVENT_TIMESERIES table from the
+   existing physical events. After this, TimeSeriesDAO keeps it up to
+   date.
+*/
+public class TimeSeriesMigration implements CustomTaskChange {
+    private long valueCount = 0;
+    private long binCount = 0;
+
+    // Summary of one bin: count, sum, min, max
+    private static class Summary {
+        long count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        Connection conn =
+            ((JdbcConnection)database.getConnection()).getUnderlyingConnection();
+
+        try {
+            migrate(conn);
+        } catch (SQLException e) {
+            throw new CustomChangeException(e);
+        }
+    }
+
+    protected void migrate(Connection conn) throws SQLException {
+        PreparedStatement insertBin = conn.prepareStatement
+            ("insert into EVENT_TIMESERIES (USER_ID, RESOLUTION, BUCKET, " +
+             "TYPE, ACTIVITY_TYPE, DEVICE, VALUE_COUNT, VALUE_SUM, " +
+             "VALUE_MIN, VALUE_MAX) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        Statement st = conn.createStatement();
+
+        try {
+            // Summaries of the current user, keyed by resolution,
+            // bucket and the series
+            Map<List<Object>, Summary> bins =
+                new HashMap<List<Object>, Summary>();
+            long prevUserId = -1;
+
+            ResultSet rs = st.executeQuery
+                ("select USER_ID, START, TIME_CREATED, TYPE, " +
+                 "ACTIVITY_TYPE, DEVICE, VALUE from EVENT " +
+                 "where DTYPE in ('PhysicalEvent', 'HealthTrackerEvent') " +
+                 "and VALUE is not null order by USER_ID");
+            while (rs.next()) {
+                long userId = rs.getLong(1);
+                if (userId != prevUserId) {
+                    insert(insertBin, prevUserId, bins);
+                    prevUserId = userId;
+                }
+
+                Date time = rs.getTimestamp(2);
+                if (time == null)
+                    time = rs.getTimestamp(3);
+                if (time == null)
+                    continue;
+                double value = rs.getDouble(7);
+
+                for (EventHistDAO.Resolution res :
+                         EventHistDAO.Resolution.values()) {
+                    List<Object> key = Arrays.<Object>asList
+                        (res.getName(), res.bucketStart(time).getTime(),
+                         rs.getString(4), rs.getString(5), rs.getString(6));
+                    Summary s = bins.get(key);
+                    if (s == null) {
+                        s = new Summary();
+                        bins.put(key, s);
+                    }
+                    s.count++;
+                    s.sum += value;
+                    s.min = Math.min(s.min, value);
+                    s.max = Math.max(s.max, value);
+                }
+                valueCount++;
+            }
+            insert(insertBin, prevUserId, bins);
+            rs.close();
+        } finally {
+            st.close();
+            insertBin.close();
+        }
+    }
+
+    private void insert(PreparedStatement insertBin, long userId,
+                        Map<List<Object>, Summary> bins) throws SQLException {
+        for (Map.Entry<List<Object>, Summary> bin : bins.entrySet()) {
+            List<Object> key = bin.getKey();
+            Summary s = bin.getValue();
+            insertBin.setLong(1, userId);
+            insertBin.setString(2, (String)key.get(0));
+            insertBin.setTimestamp(3, new Timestamp((Long)key.get(1)));
+            insertBin.setString(4, (String)key.get(2));
+            insertBin.setString(5, (String)key.get(3));
+            insertBin.setString(6, (String)key.get(4));
+            insertBin.setLong(7, s.count);
+            insertBin.setDouble(8, s.sum);
+            insertBin.setDouble(9, s.min);
+            insertBin.setDouble(10, s.max);
+            insertBin.addBatch();
+            if (++binCount % 500 == 0)
+                insertBin.executeBatch();
+        }
+        insertBin.executeBatch();
+        bins.clear();
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return String.format("Summarised %d values in %d time series bins",
+                             valueCount, binCount);
+    }
+
+    @Override
+    public void setUp() throws SetupException {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        return new ValidationErrors();
+    }
+}
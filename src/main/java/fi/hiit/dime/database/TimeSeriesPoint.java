@@ -0,0 +1,61 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import java.util.Date;
+
+/**
+   One point of a time series: a summary of the values in a time
+   bucket, or a single value.
+*/
+public class TimeSeriesPoint {
+    /** Start of the bucket, or the time of a single value. */
+    public Date time;
+
+    /** Number of values. */
+    public long count;
+
+    public Double min;
+
+    public Double max;
+
+    public Double avg;
+
+    public TimeSeriesPoint(Date time, long count, Double min, Double max,
+                           Double avg) {
+        this.time = time;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.avg = avg;
+    }
+
+    /**
+       Point of a single value.
+    */
+    public TimeSeriesPoint(Date time, double value) {
+        this(time, 1, value, value, value);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.LockModeType;
+
+public interface TimeSeriesRepository extends CrudRepository<TimeSeriesBin, Long> {
+    @Query("select b from TimeSeriesBin b where b.userId = ?1 and b.resolution = ?2 and b.bucket >= ?3 and b.bucket < ?4 order by b.bucket")
+    List<TimeSeriesBin> findBins(Long userId, String resolution, Date from,
+                                 Date to);
+
+    // Unlike the histogram counts, min and max can't be updated with
+    // a single statement, so the bins are locked for the update
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select b from TimeSeriesBin b where b.userId = ?1 and b.resolution in ?2 and b.bucket in ?3 order by b.id")
+    List<TimeSeriesBin> findBins(Long userId, Collection<String> resolutions,
+                                 Collection<Date> buckets);
+
+    @Modifying
+    @Query("delete from TimeSeriesBin b where b.userId = ?1")
+    int deleteForUser(Long userId);
+}
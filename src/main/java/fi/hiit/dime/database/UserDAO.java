@@ -29,6 +29,7 @@ import fi.hiit.dime.authentication.User;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 
@@ -62,4 +63,18 @@ public class UserDAO {
     public void remove(Long id) {
 	repo.delete(id);
     }
+
+    /**
+       Disable the user, so that it can't log in any more.
+
+       @return False if there is no such user
+    */
+    @Transactional
+    public boolean disable(Long id) {
+	User user = repo.findOne(id);
+	if (user == null)
+	    return false;
+	user.disabled = true;
+	return true;
+    }
 }
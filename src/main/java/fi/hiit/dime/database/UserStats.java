@@ -0,0 +1,203 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.Event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.MapKeyColumn;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Transient;
+
+/**
+   Counters of a user's data shown on the dashboard: number of events
+   and information elements, events per actor, and the most recent
+   event of each logger. They are kept in memory by UserStatsDAO and
+   updated as data is stored and removed, and persisted periodically.
+
+   The methods are synchronized, since the same object is updated
+   after each commit and read by web requests.
+*/
+@Entity
+@Table(name="USER_STATS")
+public class UserStats {
+    @Id
+    public Long userId;
+
+    public long eventCount;
+
+    public long elemCount;
+
+    /** When these counters were persisted. */
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date timeModified;
+
+    /** True if persisted on a clean shutdown and not changed since,
+        see UserStatsDAO. */
+    public boolean clean;
+
+    @ElementCollection
+    @CollectionTable(name="USER_STATS_ACTOR",
+                     joinColumns=@JoinColumn(name="USER_ID"))
+    @MapKeyColumn(name="ACTOR")
+    @Column(name="EVENT_COUNT")
+    public Map<String, Long> actorCounts = new HashMap<String, Long>();
+
+    @ElementCollection
+    @CollectionTable(name="USER_STATS_LOGGER",
+                     joinColumns=@JoinColumn(name="USER_ID"))
+    public List<LoggerSeen> loggers = new ArrayList<LoggerSeen>();
+
+    /** True if changed since last persisted. */
+    @Transient
+    boolean dirty;
+
+    public UserStats() {
+    }
+
+    public UserStats(Long userId) {
+        this.userId = userId;
+    }
+
+    /**
+       Copy constructor, also loads the lazy collections if the other
+       object is managed.
+    */
+    public UserStats(UserStats other) {
+        synchronized (other) {
+            this.userId = other.userId;
+            this.eventCount = other.eventCount;
+            this.elemCount = other.elemCount;
+            this.timeModified = other.timeModified;
+            this.actorCounts.putAll(other.actorCounts);
+            for (LoggerSeen ls : other.loggers)
+                this.loggers.add(new LoggerSeen(ls));
+        }
+    }
+
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    public synchronized long getElemCount() {
+        return elemCount;
+    }
+
+    synchronized void addActor(String actor, long delta) {
+        if (actor == null)
+            return;
+        Long n = actorCounts.get(actor);
+        long count = (n != null ? n : 0) + delta;
+        if (count > 0)
+            actorCounts.put(actor, count);
+        else
+            actorCounts.remove(actor);
+    }
+
+    /**
+       Record the given event as the most recent one of its logger.
+    */
+    synchronized void seen(Event e) {
+        for (LoggerSeen ls : loggers) {
+            if (ls.sameLogger(e.actor, e.origin)) {
+                if (ls.lastSeen == null || e.timeModified == null ||
+                    !e.timeModified.before(ls.lastSeen)) {
+                    ls.eventId = e.getId();
+                    ls.start = e.start;
+                    ls.lastSeen = e.timeModified;
+                }
+                return;
+            }
+        }
+        loggers.add(new LoggerSeen(e));
+    }
+
+    /**
+       Forget the most recent event of a logger if it has been
+       removed. The logger itself is still listed until it sends
+       new events.
+    */
+    synchronized void removed(Long eventId) {
+        for (LoggerSeen ls : loggers)
+            if (eventId.equals(ls.eventId))
+                ls.eventId = null;
+    }
+
+    /**
+       Return the number of events per actor, largest first.
+    */
+    public synchronized List<EventCount> actorHistogram() {
+        long totCount = 0;
+        List<EventCount> hist = new ArrayList<EventCount>();
+        for (Map.Entry<String, Long> e : actorCounts.entrySet()) {
+            hist.add(new EventCount(e.getKey(), e.getValue()));
+            totCount += e.getValue();
+        }
+
+        Collections.sort(hist, new Comparator<EventCount>() {
+                public int compare(EventCount a, EventCount b) {
+                    return Long.compare(b.count, a.count);
+                }
+            });
+
+        for (EventCount ec : hist)
+            ec.perc = ec.count/(double)totCount*100.0;
+
+        return hist;
+    }
+
+    /**
+       Return the loggers seen since the given time, most recently
+       seen first.
+    */
+    public synchronized List<LoggerSeen> loggersSince(Date since) {
+        List<LoggerSeen> res = new ArrayList<LoggerSeen>();
+        for (LoggerSeen ls : loggers)
+            if (ls.lastSeen != null && ls.lastSeen.after(since))
+                res.add(new LoggerSeen(ls));
+
+        Collections.sort(res, new Comparator<LoggerSeen>() {
+                public int compare(LoggerSeen a, LoggerSeen b) {
+                    return b.lastSeen.compareTo(a.lastSeen);
+                }
+            });
+        return res;
+    }
+}
@@ -0,0 +1,426 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.DiMeProperties;
+import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.data.Event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+   Keeps the dashboard counters of each user, see UserStats, in
+   memory. The DAOs report stored and removed data here, and the
+   counters are updated when the transaction commits. Changed
+   counters are persisted in the background every
+   dime.statsFlushInterval ms and on shutdown.
+
+   The counters of a user are loaded on first use. Persisted
+   counters are only trusted if they were written on a clean
+   shutdown and nothing has been stored or removed for the user
+   since, otherwise they are recounted from the data. For this the
+   persisted row is marked as not clean when it is loaded, and by
+   the first write of a user whose counters are not loaded.
+*/
+@Service
+public class UserStatsDAO {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(UserStatsDAO.class);
+
+    // How far back loggers are looked for when recounting
+    private static final int REBUILD_LOGGER_MINUTES = 60;
+
+    // Number of times to recount if data changes during the count
+    private static final int MAX_LOAD_ATTEMPTS = 3;
+
+    @Autowired
+    private UserStatsRepository repo;
+
+    @Autowired
+    private EventRepository eventRepo;
+
+    @Autowired
+    private InfoElemRepository infoElemRepo;
+
+    @Autowired
+    private DiMeProperties dimeConfig;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final ConcurrentMap<Long, UserStats> stats =
+        new ConcurrentHashMap<Long, UserStats>();
+
+    // Updates that arrived while the counters of a user were being
+    // loaded, by user id
+    private final ConcurrentMap<Long, List<Update>> loading =
+        new ConcurrentHashMap<Long, List<Update>>();
+
+    // Locks for loading the counters of each user
+    private final ConcurrentMap<Long, Object> loadLocks =
+        new ConcurrentHashMap<Long, Object>();
+
+    // Users whose persisted counters have been marked as not clean
+    // since startup
+    private final Set<Long> markedStale =
+        Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    private ScheduledExecutorService flusher;
+
+    /**
+       Change to the counters of a user, applied after commit.
+    */
+    private interface Update {
+        void apply(UserStats s);
+    }
+
+    @PostConstruct
+    public void start() {
+        long interval = dimeConfig.getStatsFlushInterval();
+        if (interval <= 0)
+            return;
+
+        flusher = Executors.newSingleThreadScheduledExecutor
+            (new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "user-stats-flush");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flusher != null)
+            flusher.shutdownNow();
+        flush(true);
+    }
+
+    /**
+       Return the counters of the given user, loading them if needed.
+       After the first call this does not touch the database.
+    */
+    public UserStats get(final Long userId) {
+        UserStats s = stats.get(userId);
+        if (s != null)
+            return s;
+
+        Object lock = new Object();
+        Object oldLock = loadLocks.putIfAbsent(userId, lock);
+        synchronized (oldLock != null ? oldLock : lock) {
+            s = stats.get(userId);
+            if (s != null)
+                return s;
+
+            // Updates committed from here on are queued, and data that
+            // changes while counting is counted again, since the
+            // recount may or may not have seen it
+            for (int attempt=1; ; attempt++) {
+                List<Update> pending = new ArrayList<Update>();
+                loading.put(userId, pending);
+
+                s = new TransactionTemplate(transactionManager).execute
+                    (new TransactionCallback<UserStats>() {
+                        public UserStats doInTransaction(TransactionStatus st) {
+                            return load(userId);
+                        }
+                    });
+
+                synchronized (pending) {
+                    if (pending.isEmpty() || attempt == MAX_LOAD_ATTEMPTS) {
+                        if (!pending.isEmpty())
+                            LOG.warn("Statistics of user {} changed while " +
+                                     "counting, they may be inexact.",
+                                     userId);
+                        for (Update update : pending)
+                            update.apply(s);
+                        stats.put(userId, s);
+                        loading.remove(userId);
+                        return s;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+       Load the persisted counters of a user, or recount them.
+       Must be called in a transaction.
+    */
+    protected UserStats load(Long userId) {
+        User user = User.makeUser(userId);
+
+        UserStats stored = repo.findOne(userId);
+        if (stored != null && stored.clean) {
+            // From now on the persisted counters fall behind the ones
+            // in memory until the next clean shutdown
+            stored.clean = false;
+            return new UserStats(stored);
+        }
+
+        LOG.info("Recounting statistics of user {}.", userId);
+
+        UserStats s = new UserStats(userId);
+        s.eventCount = eventRepo.countByUser(user);
+        s.elemCount = infoElemRepo.countByUser(user);
+
+        for (EventCount ec : eventRepo.actorHistogram(user))
+            s.addActor(ec.value, ec.count);
+
+        Date since = new Date(System.currentTimeMillis() -
+                              REBUILD_LOGGER_MINUTES*60*1000L);
+        List<Event> events =
+            eventRepo.findByUserAndTimeModifiedIsAfterOrderByStartDesc(user,
+                                                                       since);
+        // Oldest first, so that the latest event of each logger wins
+        for (int i=events.size()-1; i>=0; i--)
+            s.seen(events.get(i));
+
+        s.dirty = true;
+        return s;
+    }
+
+    /**
+       Apply the update to the user's counters once the current
+       transaction commits, or immediately if there is none. Users
+       whose counters have not been loaded yet are skipped, since
+       they are counted from the data when loaded, but their
+       persisted counters are marked as not clean.
+    */
+    protected void update(final Long userId, final Update update) {
+        if (!stats.containsKey(userId) && markedStale.add(userId))
+            markStale(userId);
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            apply(userId, update);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization
+            (new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        apply(userId, update);
+                    }
+                });
+    }
+
+    /**
+       Mark the persisted counters of a user as not clean, as part of
+       the current transaction.
+    */
+    private void markStale(final Long userId) {
+        repo.markStale(userId);
+        if (!TransactionSynchronizationManager.isSynchronizationActive())
+            return;
+
+        TransactionSynchronizationManager.registerSynchronization
+            (new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        // Rolled back, so the mark is needed again
+                        if (status != STATUS_COMMITTED)
+                            markedStale.remove(userId);
+                    }
+                });
+    }
+
+    private void apply(Long userId, Update update) {
+        UserStats s = stats.get(userId);
+        if (s == null) {
+            List<Update> pending = loading.get(userId);
+            if (pending != null) {
+                synchronized (pending) {
+                    // Unless the load finished just now
+                    if (loading.get(userId) == pending) {
+                        pending.add(update);
+                        return;
+                    }
+                }
+            }
+
+            // The load may have finished after the first check,
+            // otherwise it will count this update from the data
+            s = stats.get(userId);
+            if (s == null)
+                return;
+        }
+
+        synchronized (s) {
+            update.apply(s);
+            s.dirty = true;
+        }
+    }
+
+    /**
+       Report a stored event, replacing the events with the given
+       keys, if any.
+    */
+    public void eventStored(Long userId, final Collection<EventHistDAO.Key> oldKeys,
+                            final Event event) {
+        update(userId, new Update() {
+                public void apply(UserStats s) {
+                    s.eventCount += 1 - oldKeys.size();
+                    for (EventHistDAO.Key key : oldKeys)
+                        s.addActor(key.actor, -1);
+                    s.addActor(event.actor, 1);
+                    s.seen(event);
+                }
+            });
+    }
+
+    /**
+       Report removed events.
+
+       @param userId User id
+       @param keys Keys of the removed events
+       @param ids Ids of the removed events
+    */
+    public void eventsRemoved(Long userId, final Collection<EventHistDAO.Key> keys,
+                              final Collection<Long> ids) {
+        update(userId, new Update() {
+                public void apply(UserStats s) {
+                    s.eventCount -= keys.size();
+                    for (EventHistDAO.Key key : keys)
+                        s.addActor(key.actor, -1);
+                    for (Long id : ids)
+                        s.removed(id);
+                }
+            });
+    }
+
+    /**
+       Report stored (positive) or removed (negative) information
+       elements.
+    */
+    public void elementsAdded(Long userId, final long delta) {
+        update(userId, new Update() {
+                public void apply(UserStats s) {
+                    s.elemCount += delta;
+                }
+            });
+    }
+
+    /**
+       Forget the counters of a user, both in memory and persisted.
+    */
+    public void removeForUser(final Long userId) {
+        stats.remove(userId);
+        markedStale.remove(userId);
+        new TransactionTemplate(transactionManager).execute
+            (new TransactionCallbackWithoutResult() {
+                protected void doInTransactionWithoutResult(TransactionStatus s) {
+                    if (repo.exists(userId))
+                        repo.delete(userId);
+                }
+            });
+    }
+
+    /**
+       Persist the changed counters of all users.
+
+       @return Number of users whose counters were persisted
+    */
+    public int flush() {
+        return flush(false);
+    }
+
+    /**
+       Persist the counters of all users.
+
+       @param clean If true, this is the final flush on a clean
+       shutdown: all counters are persisted and marked as clean,
+       otherwise only the changed ones
+       @return Number of users whose counters were persisted
+    */
+    protected int flush(boolean clean) {
+        List<UserStats> changed = new ArrayList<UserStats>();
+        for (UserStats s : stats.values()) {
+            synchronized (s) {
+                if (!s.dirty && !clean)
+                    continue;
+                s.timeModified = new Date();
+                s.dirty = false;
+                UserStats copy = new UserStats(s);
+                copy.clean = clean;
+                changed.add(copy);
+            }
+        }
+
+        int count = 0;
+        for (final UserStats copy : changed) {
+            try {
+                new TransactionTemplate(transactionManager).execute
+                    (new TransactionCallbackWithoutResult() {
+                        protected void doInTransactionWithoutResult(TransactionStatus s) {
+                            repo.save(copy);
+                        }
+                    });
+                count++;
+            } catch (RuntimeException e) {
+                LOG.error("Unable to persist statistics of user {}: {}",
+                          copy.userId, e);
+                UserStats s = stats.get(copy.userId);
+                if (s != null)
+                    synchronized (s) {
+                        s.dirty = true;
+                    }
+            }
+        }
+        return count;
+    }
+}
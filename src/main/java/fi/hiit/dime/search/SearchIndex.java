@@ -26,15 +26,22 @@ package fi.hiit.dime.search;
 
 import fi.hiit.dime.DiMeProperties;
 import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.data.CalendarEvent;
 import fi.hiit.dime.data.DiMeData;
 import fi.hiit.dime.data.Event;
 import fi.hiit.dime.data.InformationElement;
+import fi.hiit.dime.data.Message;
 import fi.hiit.dime.data.ReadingEvent;
 import fi.hiit.dime.data.ResourcedEvent;
+import fi.hiit.dime.data.ScientificDocument;
 import fi.hiit.dime.data.Tag;
 import fi.hiit.dime.data.SearchEvent;
+import fi.hiit.dime.data.WebDocument;
 import fi.hiit.dime.database.EventDAO;
+import fi.hiit.dime.database.IndexOutboxDAO;
+import fi.hiit.dime.database.IndexOutboxEntry;
 import fi.hiit.dime.database.InformationElementDAO;
+import fi.hiit.dime.database.ReplicaRoutingDataSource;
 import fi.hiit.dime.search.SearchQuery;
 import fi.hiit.dime.search.TextSearchQuery;
 import fi.hiit.dime.search.KeywordSearchQuery;
@@ -67,28 +74,35 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.util.StringUtils;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
    Class that encapsulates the search index.
@@ -113,20 +127,75 @@ public class SearchIndex {
     private static final String classField = "@type";
     private static final String typeField = "type";
 
+    // Additional text fields, indexed separately so that they can be
+    // boosted and queried individually, e.g. "title:foo"
+    private static final String titleField = "title";
+    private static final String uriField = "uri";
+    private static final String subjectField = "subject";
+    private static final String nameField = "name";
+    private static final String notesField = "notes";
+    private static final String abstractField = "abstract";
+    private static final String keywordsField = "keywords";
+
+    /** Boosts of the text fields searched by default, in order. */
+    private static final Map<String, Float> fieldBoosts;
+    static {
+        fieldBoosts = new LinkedHashMap<String, Float>();
+        fieldBoosts.put(textQueryField, 1.0f);
+        fieldBoosts.put(titleField, 2.0f);
+        fieldBoosts.put(subjectField, 2.0f);
+        fieldBoosts.put(nameField, 2.0f);
+        fieldBoosts.put(keywordsField, 1.5f);
+        fieldBoosts.put(abstractField, 1.5f);
+        fieldBoosts.put(notesField, 1.0f);
+        fieldBoosts.put(uriField, 0.5f);
+    }
+
+    // Number of top terms used for similar document queries
+    private static final int maxSimilarTerms = 25;
+
     private static final String versionField = "dime_version";
-    private static final String currentVersionNumber = "6";
+    private static final String currentVersionNumber = "8";
 
     private static final String dataClassPrefix = "fi.hiit.dime.data.";
 
-    private FSDirectory fsDir;
-    private DirectoryReader reader = null;
-    private IndexSearcher searcher = null;
+    // Number of index outbox entries to process at a time
+    private static final int outboxBatchSize = 500;
+
+    // Field type for the text content, which also stores term
+    // vectors, i.e. tf (idf) values
+    private static final FieldType contentFieldType;
+    static {
+        contentFieldType = new FieldType();
+        contentFieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        contentFieldType.setStored(false);
+        contentFieldType.setStoreTermVectors(true);
+        contentFieldType.setTokenized(true);
+        contentFieldType.freeze();
+    }
+
+    private Path indexPath;
+    private boolean partitioned;
+
+    // The single index shared by all users, unless partitioned
+    private Shard sharedShard = null;
+
+    // In partitioned mode: the most recently used per-user indexes,
+    // least recently used first. An index evicted from here is closed
+    // once the last user of it has released it, see releaseShard().
+    private LinkedHashMap<Long, Shard> openShards = null;
+
     private StandardQueryParser parser;
     private Analyzer analyzer = null;
 
     private String analyzerName = null;
 
-    private static boolean firstUpdate = true;
+    private volatile boolean firstUpdate = true;
+
+    // Serialises index updates. This is not the SearchIndex lock,
+    // which only guards the open shards, so that searches and shard
+    // handling don't wait for an update in progress.
+    private final ReentrantLock updateLock = new ReentrantLock();
 
     @Autowired
     private InformationElementDAO infoElemDAO;
@@ -134,13 +203,53 @@ public class SearchIndex {
     @Autowired
     private EventDAO eventDAO;
 
+    @Autowired
+    private IndexOutboxDAO outboxDAO;
+
+    @Autowired
+    private SearchSuggester suggester;
+
     /**
        Constructor.
 
        @param indexPath Path to Lucene index
     */
     public SearchIndex(String indexPath, String analyzerName) throws IOException {
-        fsDir = FSDirectory.open(Paths.get(indexPath));
+        this(indexPath, analyzerName, false, 0);
+    }
+
+    /**
+       Constructor.
+
+       @param indexPath Path to Lucene index
+       @param partitioned If true, keep a separate index for each user
+       under indexPath
+       @param maxOpenShards Maximum number of per-user indexes to
+       keep open at the same time in partitioned mode
+    */
+    public SearchIndex(String indexPath, String analyzerName,
+                       boolean partitioned, final int maxOpenShards)
+        throws IOException
+    {
+        this.indexPath = Paths.get(indexPath);
+        this.partitioned = partitioned;
+
+        if (partitioned) {
+            LOG.info("Using a separate Lucene index for each user, " +
+                     "keeping at most {} open.", maxOpenShards);
+            openShards = new LinkedHashMap<Long, Shard>(16, 0.75f, true) {
+                @Override
+                protected boolean
+                    removeEldestEntry(Map.Entry<Long, Shard> eldest) {
+                    if (size() <= maxOpenShards)
+                        return false;
+                    evictShard(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+            };
+        } else {
+            sharedShard = new Shard(this.indexPath);
+        }
 
         if (analyzerName.equals("English")) {
             analyzer = new EnglishAnalyzer();
@@ -155,7 +264,26 @@ public class SearchIndex {
         LOG.info("Using {} analyzer for Lucene.", analyzerName);
         this.analyzerName = analyzerName;
 
-        parser = new StandardQueryParser(analyzer);
+        parser = makeParser(textFields());
+    }
+
+    /**
+       Return the names of all text fields that are searched by
+       default.
+    */
+    public static List<String> textFields() {
+        return new ArrayList<String>(fieldBoosts.keySet());
+    }
+
+    /**
+       Create a query parser that expands unqualified query terms
+       to the given fields, with the configured per-field boosts.
+    */
+    protected StandardQueryParser makeParser(List<String> fields) {
+        StandardQueryParser p = new StandardQueryParser(analyzer);
+        p.setMultiFields(fields.toArray(new CharSequence[fields.size()]));
+        p.setFieldsBoost(fieldBoosts);
+        return p;
     }
 
     public static WeightType weightType(String weightTypeStr) {
@@ -173,79 +301,185 @@ public class SearchIndex {
     }
 
     /**
-       Get an IndexWriter for writing to the index. Remember to close
-       after use!
+       A single Lucene index: either the index shared by all users,
+       or the index of one user in partitioned mode.
 
-       @return An IndexWriter instance
+       Searchers come from a SearcherManager, so that refreshing the
+       reader never closes one that another thread is still using.
     */
-    protected IndexWriter getIndexWriter() throws IOException {
-        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+    protected class Shard {
+        private FSDirectory fsDir;
+        private SearcherManager searcherManager = null;
 
-        // Advice from Lucene example:
-        // http://lucene.apache.org/core/5_3_0/demo/src-html/org/apache/lucene/demo/IndexFiles.html
-        // Optional: for better indexing performance, if you
-        // are indexing many documents, increase the RAM
-        // buffer.  But if you do this, increase the max heap
-        // size to the JVM (eg add -Xmx512m or -Xmx1g):
-        //
-        // iwc.setRAMBufferSizeMB(256.0);
+        // Number of users of this shard, and whether it has been
+        // evicted from openShards, guarded by the SearchIndex lock
+        private int refCount = 0;
+        private boolean evicted = false;
 
-        IndexWriter writer = new IndexWriter(fsDir, iwc);
+        Shard(Path path) throws IOException {
+            fsDir = FSDirectory.open(path);
+        }
 
-        // NOTE: if you want to maximize search performance,
-        // you can optionally call forceMerge here.  This can be
-        // a terribly costly operation, so generally it's only
-        // worth it when your index is relatively static (ie
-        // you're done adding documents to it):
-        //
-        // writer.forceMerge(1);
+        /**
+           Get an IndexWriter for writing to the index. Remember to
+           close after use!
+
+           @return An IndexWriter instance
+        */
+        IndexWriter getIndexWriter() throws IOException {
+            IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+            iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+
+            // Advice from Lucene example:
+            // http://lucene.apache.org/core/5_3_0/demo/src-html/org/apache/lucene/demo/IndexFiles.html
+            // Optional: for better indexing performance, if you
+            // are indexing many documents, increase the RAM
+            // buffer.  But if you do this, increase the max heap
+            // size to the JVM (eg add -Xmx512m or -Xmx1g):
+            //
+            // iwc.setRAMBufferSizeMB(256.0);
+
+            IndexWriter writer = new IndexWriter(fsDir, iwc);
+
+            // NOTE: if you want to maximize search performance,
+            // you can optionally call forceMerge here.  This can be
+            // a terribly costly operation, so generally it's only
+            // worth it when your index is relatively static (ie
+            // you're done adding documents to it):
+            //
+            // writer.forceMerge(1);
+
+            return writer;
+        }
 
-        // Also, for low-latency turnaround it's best to use a
-        // near-real-time reader
-        // (DirectoryReader.open(IndexWriter,boolean)). Once you have
-        // a new IndexReader, it's relatively cheap to create a new
-        // IndexSearcher from it.
+        /**
+           Get an up to date searcher for the index. Remember to
+           release it with releaseSearcher() after use!
+
+           @return The searcher, or null if nothing has been written
+           to the index yet
+        */
+        IndexSearcher acquireSearcher() throws IOException {
+            SearcherManager manager;
+            synchronized (this) {
+                if (searcherManager == null) {
+                    if (!DirectoryReader.indexExists(fsDir))
+                        return null;
+                    searcherManager = new SearcherManager(fsDir, null);
+                }
+                manager = searcherManager;
+            }
 
-        return writer;
-    }
+            manager.maybeRefresh();
+            return manager.acquire();
+        }
 
-    /**
-        This has to be called before using searcher or reader.
-     */
-    protected void ensureSearcherAndReader() throws IOException {
-        if (reader == null) {
-            reader = DirectoryReader.open(fsDir);
-            searcher = new IndexSearcher(reader);
+        void releaseSearcher(IndexSearcher searcher) throws IOException {
+            if (searcher != null)
+                searcherManager.release(searcher);
         }
 
-        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        synchronized void close() throws IOException {
+            if (searcherManager != null)
+                searcherManager.close();
+            searcherManager = null;
+            fsDir.close();
+        }
+    }
 
-        // Reinitialise reader and searcher if the index has changed.
-        if (newReader != null) {
-            reader.close();
-            reader = newReader;
-            searcher = new IndexSearcher(reader);
+    /**
+       Return the index containing the given user's data. Remember to
+       release it with releaseShard() after use, so that an evicted
+       index isn't closed while it is still being used.
+    */
+    protected synchronized Shard acquireShard(Long userId)
+        throws IOException
+    {
+        if (!partitioned)
+            return sharedShard;
+
+        Shard shard = openShards.get(userId);
+        if (shard == null) {
+            shard = new Shard(shardPath(userId));
+            // Counted before adding, so that it can't be closed
+            // right away if it would be evicted itself
+            shard.refCount++;
+            openShards.put(userId, shard);
+        } else {
+            shard.refCount++;
         }
+        return shard;
     }
 
     /**
-       Get the set of indexed object ids.
+       Release an index returned by acquireShard(), closing it if it
+       has been evicted and this was the last user.
     */
-    protected Set<String> indexedIds(IndexReader reader) throws IOException {
-        Set<String> ids = new HashSet<String>();
+    protected synchronized void releaseShard(Long userId, Shard shard) {
+        if (!partitioned || shard == null)
+            return;
 
-        Set<String> fields = new HashSet<String>();
-        fields.add(idField);
+        shard.refCount--;
+        if (shard.evicted && shard.refCount == 0)
+            closeShard(userId, shard);
+    }
 
-        for (int i=0; i<reader.maxDoc(); i++) {
-            Document doc = reader.document(i, fields);
-            String docId = doc.get(idField);
+    /**
+       Called when an index has been removed from openShards: close
+       it now if it is not in use, otherwise when it is released.
+    */
+    private void evictShard(Long userId, Shard shard) {
+        shard.evicted = true;
+        if (shard.refCount == 0)
+            closeShard(userId, shard);
+    }
 
-            ids.add(docId);
+    private Path shardPath(Long userId) {
+        return indexPath.resolve("users").resolve(userId.toString());
+    }
+
+    private void closeShard(Long userId, Shard shard) {
+        try {
+            shard.close();
+        } catch (IOException e) {
+            LOG.error("Unable to close Lucene index of user {}: {}",
+                      userId, e);
         }
+    }
 
-        return ids;
+    /**
+       Remove all data of the given user from the index. In
+       partitioned mode this just deletes the user's own index.
+    */
+    public void removeUser(Long userId) throws IOException {
+        // So that an update in progress doesn't write the user's data
+        // back. Taken before the SearchIndex lock, like in updates.
+        updateLock.lock();
+        try {
+            if (partitioned) {
+                synchronized (this) {
+                    Shard shard = openShards.remove(userId);
+                    if (shard != null)
+                        evictShard(userId, shard);
+
+                    Path path = shardPath(userId);
+                    if (Files.exists(path))
+                        IOUtils.rm(path);
+                }
+            } else {
+                IndexWriter writer = sharedShard.getIndexWriter();
+                writer.deleteDocuments(new Term(userIdField,
+                                                userId.toString()));
+                writer.close();
+            }
+
+            // Any pending changes are now irrelevant
+            outboxDAO.removeForUser(userId);
+
+            suggester.removeUser(userId);
+        } finally {
+            updateLock.unlock();
+        }
     }
 
     /**
@@ -253,29 +487,51 @@ public class SearchIndex {
     */
     private String luceneId(DiMeData obj) {
         if (obj instanceof Event)
-            return "event_" + obj.getId();
+            return IndexOutboxEntry.EVENT + "_" + obj.getId();
         else
-            return "elem_" + obj.getId();
+            return IndexOutboxEntry.ELEMENT + "_" + obj.getId();
     }
 
     /**
-       Convert the Lucene doc id into an DiMeData object,
+       Lucene doc id of the object referred to by an outbox entry.
     */
-    private DiMeData idToObject(String docId) {
-        String[] parts = docId.split("_", 2);
+    private String luceneId(IndexOutboxEntry entry) {
+        return entry.kind + "_" + entry.dataId;
+    }
 
-        if (parts.length == 2) {
-            String type = parts[0];
-            Long id = Long.parseLong(parts[1], 10);
+    /**
+       Convert Lucene doc ids into DiMeData objects, with one query
+       for each kind of object instead of one query per id.
 
-            if (type.equals("elem")) {
-                return infoElemDAO.findById(id);
-            } else if (type.equals("event")) {
-                return eventDAO.findById(id);
+       @return Map from doc id to object, bad or missing ids are left
+       out
+    */
+    private Map<String, DiMeData> idsToObjects(List<String> docIds) {
+        List<Long> elemIds = new ArrayList<Long>();
+        List<Long> eventIds = new ArrayList<Long>();
+
+        for (String docId : docIds) {
+            String[] parts = docId.split("_", 2);
+            if (parts.length != 2)
+                continue;
+
+            try {
+                Long id = Long.parseLong(parts[1], 10);
+                if (parts[0].equals(IndexOutboxEntry.ELEMENT))
+                    elemIds.add(id);
+                else if (parts[0].equals(IndexOutboxEntry.EVENT))
+                    eventIds.add(id);
+            } catch (NumberFormatException ex) {
+                LOG.error("Lucene returned invalid id: {}", docId);
             }
         }
 
-        return null;
+        Map<String, DiMeData> objects = new HashMap<String, DiMeData>();
+        for (InformationElement elem : infoElemDAO.findByIds(elemIds))
+            objects.put(IndexOutboxEntry.ELEMENT + "_" + elem.getId(), elem);
+        for (Event event : eventDAO.findByIds(eventIds))
+            objects.put(IndexOutboxEntry.EVENT + "_" + event.getId(), event);
+        return objects;
     }
 
     /**
@@ -293,6 +549,48 @@ public class SearchIndex {
         return null;
     }
 
+    /**
+       Helper for adding a field to the map only if it has content.
+    */
+    private static void putField(Map<String, String> fields, String name,
+                                 String value) {
+        if (value != null && !value.isEmpty())
+            fields.put(name, value);
+    }
+
+    /**
+       Collect the additional text fields of a DiMeData object that
+       are indexed besides the plain text content, keyed by Lucene
+       field name.
+    */
+    private Map<String, String> dataFields(DiMeData obj) {
+        Map<String, String> fields = new HashMap<String, String>();
+
+        if (obj instanceof InformationElement) {
+            InformationElement elem = (InformationElement)obj;
+            putField(fields, titleField, elem.title);
+            putField(fields, uriField, elem.uri);
+        }
+
+        if (obj instanceof Message) {
+            putField(fields, subjectField, ((Message)obj).subject);
+        } else if (obj instanceof WebDocument) {
+            putField(fields, abstractField, ((WebDocument)obj).abstractText);
+        } else if (obj instanceof ScientificDocument) {
+            List<String> keywords = ((ScientificDocument)obj).keywords;
+            if (keywords != null)
+                putField(fields, keywordsField,
+                         StringUtils.collectionToDelimitedString(keywords,
+                                                                 "\n"));
+        } else if (obj instanceof CalendarEvent) {
+            CalendarEvent event = (CalendarEvent)obj;
+            putField(fields, nameField, event.name);
+            putField(fields, notesField, event.notes);
+        }
+
+        return fields;
+    }
+
     /**
        Return short class name for any DiMeData object.
     */
@@ -311,118 +609,238 @@ public class SearchIndex {
     }
 
     /**
-       Call to update index, e.g. after adding new information elements.
-
-       NOTE: will perform a more thorough, slow, update when running
-       the first time.
+       Return all data objects in the database.
+    */
+    private List<DiMeData> allData() {
+        List<DiMeData> all = new ArrayList<DiMeData>();
+        for (InformationElement elem : infoElemDAO.findAll())
+            all.add(elem);
+        for (Event event : eventDAO.findAll())
+            all.add(event);
+        return all;
+    }
 
-       @return Number of elements that were newly indexed
+    /**
+       Return all data objects of the given user.
     */
-    public long updateIndex() {
-        if (!firstUpdate && !infoElemDAO.hasUnIndexed())
-            return 0;
+    private List<DiMeData> userData(Long userId) {
+        List<DiMeData> all = new ArrayList<DiMeData>();
+        all.addAll(infoElemDAO.findAllForUser(userId));
+        all.addAll(eventDAO.findAllForUser(userId));
+        return all;
+    }
 
+    /**
+       Book keeping of what has been done during an index update.
+    */
+    private static class IndexingStats {
         long count = 0;
+        long skipped = 0;
+        long deleted = 0;
+        Map<String, Long> cHist = new HashMap<String, Long>();
+        List<DiMeData> indexed = new ArrayList<DiMeData>();
+    }
 
-        LOG.debug("Updating Lucene index ....");
-        try {
-            boolean forceReindex = false;
-            IndexWriter writer = getIndexWriter();
-            String version = writer.getCommitData().get(versionField);
-
-            if (version == null || !version.equals(getVersion())) {
-                if (version != null)
-                    LOG.info("Lucene index version has changed {} -> {}, " +
-                             "reindexing all documents.", version,
-                             getVersion());
-                forceReindex = true;
-            }
+    /**
+       Index a single object, or remove it from the index if it no
+       longer has any content.
+    */
+    private void indexObject(IndexWriter writer, DiMeData obj,
+                             IndexingStats stats) throws IOException {
+        if (indexElement(writer, obj, contentFieldType)) {
+            stats.count += 1;
+            stats.indexed.add(obj);
+            String cName = getClassName(obj);
+            long c = stats.cHist.containsKey(cName) ? stats.cHist.get(cName) : 0;
+            stats.cHist.put(cName, c + 1);
+        } else {
+            writer.deleteDocuments(new Term(idField, luceneId(obj)));
+            stats.skipped += 1;
+        }
+    }
 
-            long skipped = 0;
-            long inLuceneCount = -1;
+    /**
+       Write the current version number and close the writer.
+    */
+    private void commitAndClose(IndexWriter writer) throws IOException {
+        Map<String, String> commitData = new HashMap<String, String>();
+        commitData.put(versionField, getVersion());
+        writer.setCommitData(commitData);
+        writer.close();
+    }
 
-            List<DiMeData> toIndex = new ArrayList<DiMeData>();
+    /**
+       Rebuild from the database any index that doesn't exist yet or
+       has been created with a different version.
+    */
+    private void checkIndexVersions(IndexingStats stats) throws IOException {
+        List<Long> shardKeys = new ArrayList<Long>();
+        if (partitioned) {
+            Set<Long> userIds = new TreeSet<Long>(infoElemDAO.userIds());
+            userIds.addAll(eventDAO.userIds());
+            shardKeys.addAll(userIds);
+        } else {
+            shardKeys.add(null);
+        }
 
-            if (!forceReindex && !firstUpdate) {
-                // Just use our internal book keeping of new objects
-                toIndex.addAll(infoElemDAO.getNotIndexed());
-                infoElemDAO.clearNotIndexed();
+        for (Long shardKey : shardKeys) {
+            Shard shard = acquireShard(shardKey);
+            try {
+                IndexWriter writer = shard.getIndexWriter();
+                String version = writer.getCommitData().get(versionField);
+
+                if (version == null || !version.equals(getVersion())) {
+                    if (version != null)
+                        LOG.info("Lucene index version has changed " +
+                                 "{} -> {}, reindexing all documents.",
+                                 version, getVersion());
+
+                    writer.deleteAll();
+                    List<DiMeData> data =
+                        shardKey == null ? allData() : userData(shardKey);
+                    for (DiMeData obj : data)
+                        indexObject(writer, obj, stats);
+                }
 
-                toIndex.addAll(eventDAO.getNotIndexed());
-                eventDAO.clearNotIndexed();
-            } else {
-                // Get the set of already indexed ids from Lucene
-                Set<String> inLucene = 
-                    indexedIds(DirectoryReader.open(writer, true));
+                commitAndClose(writer);
+            } finally {
+                releaseShard(shardKey, shard);
+            }
+        }
+    }
 
-                inLuceneCount = inLucene.size();
+    /**
+       Apply all pending changes from the index outbox, oldest first.
+    */
+    private void drainOutbox(IndexingStats stats) throws IOException {
+        List<IndexOutboxEntry> batch;
+        while (!(batch = outboxDAO.nextBatch(outboxBatchSize)).isEmpty()) {
+            // Only the latest change of each object matters
+            Map<String, IndexOutboxEntry> latest =
+                new LinkedHashMap<String, IndexOutboxEntry>();
+            for (IndexOutboxEntry entry : batch) {
+                latest.remove(luceneId(entry));
+                latest.put(luceneId(entry), entry);
+            }
 
-                // Loop over all elements in the database
-                for (InformationElement elem : infoElemDAO.findAll()) {
-                    // Update those which have not yet been indexed
-                    if (forceReindex || !inLucene.contains(luceneId(elem)))
-                        toIndex.add(elem);
+            // Fetch the updated objects, one query for each kind
+            List<Long> elemIds = new ArrayList<Long>();
+            List<Long> eventIds = new ArrayList<Long>();
+            for (IndexOutboxEntry entry : latest.values())
+                if (entry.op == IndexOutboxEntry.Op.UPDATE)
+                    (entry.isEvent() ? eventIds : elemIds).add(entry.dataId);
+
+            Map<String, DiMeData> objects = new HashMap<String, DiMeData>();
+            for (InformationElement elem : infoElemDAO.findByIds(elemIds))
+                objects.put(luceneId(elem), elem);
+            for (Event event : eventDAO.findByIds(eventIds))
+                objects.put(luceneId(event), event);
+
+            // Group by index
+            Map<Long, List<IndexOutboxEntry>> shards =
+                new HashMap<Long, List<IndexOutboxEntry>>();
+            for (IndexOutboxEntry entry : latest.values()) {
+                Long shardKey = partitioned ? entry.userId : null;
+                List<IndexOutboxEntry> entries = shards.get(shardKey);
+                if (entries == null) {
+                    entries = new ArrayList<IndexOutboxEntry>();
+                    shards.put(shardKey, entries);
                 }
+                entries.add(entry);
+            }
 
-                // Loop over all events in the database
-                for (Event event : eventDAO.findAll()) {
-                    // Update those which have not yet been indexed
-                    if (forceReindex || !inLucene.contains(luceneId(event)))
-                        toIndex.add(event);
+            for (Map.Entry<Long, List<IndexOutboxEntry>> shard :
+                     shards.entrySet()) {
+                Shard s = acquireShard(shard.getKey());
+                try {
+                    IndexWriter writer = s.getIndexWriter();
+                    for (IndexOutboxEntry entry : shard.getValue()) {
+                        DiMeData obj = objects.get(luceneId(entry));
+                        if (obj != null) {
+                            indexObject(writer, obj, stats);
+                        } else {
+                            // Deleted, or updated and then deleted
+                            writer.deleteDocuments(new Term(idField,
+                                                            luceneId(entry)));
+                            stats.deleted += 1;
+                        }
+                    }
+                    commitAndClose(writer);
+                } finally {
+                    releaseShard(shard.getKey(), s);
                 }
             }
 
-            Map<String, Long> cHist = new HashMap<String, Long>();
-
-            // create a field that stores term vectors, i.e. tf (idf) values
-            FieldType fieldType = new FieldType();
-            fieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
-            fieldType.setStored(false);
-            fieldType.setStoreTermVectors(true);
-            fieldType.setTokenized(true);
-
-            long tot = toIndex.size();
-            for (DiMeData obj : toIndex) {
-                if (indexElement(writer, obj, fieldType)) {
-                    count += 1;
-                    String cName = getClassName(obj);
-                    long c = cHist.containsKey(cName) ? cHist.get(cName) : 0;
-                    cHist.put(cName, c + 1);
-                } else {
-                    skipped += 1;
-                }
+            outboxDAO.remove(batch);
+        }
+    }
+
+    /**
+       Call to update index, e.g. after adding new information elements.
+
+       NOTE: when running the first time, it will also check that the
+       index is up to date with the current version, and do a slow
+       full reindexing if not.
+
+       @return Number of elements that were newly indexed
+    */
+    public long updateIndex() {
+        IndexingStats stats = new IndexingStats();
+
+        // The outbox and the objects it refers to are read in
+        // separate transactions, and an object that the replica
+        // hasn't seen yet would look deleted. A lagging replica would
+        // also miss the latest outbox entries.
+        ReplicaRoutingDataSource.pinToPrimary();
+        try {
+            if (!firstUpdate && !outboxDAO.hasPending())
+                return 0;
+
+            updateLock.lock();
+            try {
+                updateIndex(stats);
+            } finally {
+                updateLock.unlock();
             }
+        } finally {
+            ReplicaRoutingDataSource.unpinFromPrimary();
+        }
 
-            LOG.debug("Writing Lucene index to disk ...");
+        return stats.count;
+    }
 
-            Map<String, String> commitData = new HashMap<String, String>();
-            commitData.put(versionField, getVersion());
-            writer.setCommitData(commitData);
-            writer.close();
+    private void updateIndex(IndexingStats stats) {
+        LOG.debug("Updating Lucene index ....");
 
-            LOG.info("Lucene index updated: " +
-                     (inLuceneCount >= 0 ? inLuceneCount + 
-                      " previously indexed, " : "") + 
-                     "added {} new objects, skipped {} objects " +
-                     "with empty content.", count, skipped);
+        try {
+            if (firstUpdate)
+                checkIndexVersions(stats);
 
-            if (cHist.size() > 0) {
+            drainOutbox(stats);
+
+            LOG.info("Lucene index updated: added {} new objects, " +
+                     "removed {} objects, skipped {} objects with " +
+                     "empty content.", stats.count, stats.deleted,
+                     stats.skipped);
+
+            if (stats.cHist.size() > 0) {
                 LOG.debug("Indexed of different classes:");
-                for (Map.Entry<String, Long> entry : cHist.entrySet()) {
+                for (Map.Entry<String, Long> entry : stats.cHist.entrySet()) {
                     LOG.debug("    {}\t {}", entry.getValue(), entry.getKey());
                 }
             }
 
-            for (DiMeData obj : toIndex) {
+            for (DiMeData obj : stats.indexed) {
                 obj = autoGenerateTags(obj);
+                addSuggestions(obj);
             }
+            suggester.commit();
 
         } catch (IOException e) {
             LOG.error("Exception while updating search index: " + e);
         }
 
         firstUpdate = false;
-        return count;
     }
 
     /** Auto-generate dumb tags from the Lucene indexing keywords if
@@ -446,35 +864,80 @@ public class SearchIndex {
         while (it.hasNext() && count < 10) {
             WeightedKeyword k = it.next();
             obj.addTag(new Tag(k.term, true, "DiMe Lucene"));
-
-            if (obj instanceof Event)
-                eventDAO.save((Event)obj);
-            else if (obj instanceof InformationElement)
-                infoElemDAO.save((InformationElement)obj);
-
             count++;
         }
 
+        if (obj instanceof Event)
+            eventDAO.save((Event)obj);
+        else if (obj instanceof InformationElement)
+            infoElemDAO.save((InformationElement)obj);
+
         return obj;
     }
 
+    /** Feed the typeahead suggester with the title, tags and top
+        keywords of a newly indexed object, or the query of a
+        SearchEvent.
+    */
+    protected void addSuggestions(DiMeData obj) throws IOException {
+        if (obj == null || obj.user == null)
+            return;
+
+        Long userId = obj.user.getId();
+
+        // Add in order of increasing weight, so that the highest
+        // weight wins if the same text comes from several sources
+        List<WeightedKeyword> kw = getKeywords(obj, WeightType.TfIdf);
+        if (kw != null) {
+            Collections.sort(kw, Collections.reverseOrder());
+            for (int i=0; i<kw.size() && i<5; i++)
+                suggester.add(userId, kw.get(i).term,
+                              SearchSuggester.keywordWeight);
+        }
+
+        if (obj.tags != null)
+            for (Tag tag : obj.tags)
+                suggester.add(userId, tag.text, SearchSuggester.tagWeight);
+
+        if (obj instanceof SearchEvent)
+            suggester.add(userId, ((SearchEvent)obj).query,
+                          SearchSuggester.queryWeight);
+
+        if (obj instanceof InformationElement)
+            suggester.add(userId, ((InformationElement)obj).title,
+                          SearchSuggester.titleWeight);
+    }
+
     /** Fetches the Lucene keywords for the given DiMeData object. */
     public List<WeightedKeyword> getKeywords(DiMeData obj,
                                              WeightType termWeighting) {
         if (obj == null)
             return null;
 
+        Long userId = obj.user.getId();
         try {
-            ensureSearcherAndReader();
-
-            // create a query to search for the internal id of the document
-            Query idQuery = new TermQuery(new Term(idField, luceneId(obj)));
-
-            TopDocs hits = searcher.search(idQuery, 1);
-
-            if (hits.scoreDocs.length > 0)
-                return extractWeightedKeywords(hits.scoreDocs[0].doc, 
-                                               termWeighting);
+            Shard shard = acquireShard(userId);
+            IndexSearcher searcher = null;
+            try {
+                searcher = shard.acquireSearcher();
+                if (searcher == null)
+                    return null;
+
+                // create a query to search for the internal id of the
+                // document
+                Query idQuery = new TermQuery(new Term(idField,
+                                                       luceneId(obj)));
+
+                TopDocs hits = searcher.search(idQuery, 1);
+
+                if (hits.scoreDocs.length > 0)
+                    return extractWeightedKeywords(searcher.getIndexReader(),
+                                                   hits.scoreDocs[0].doc,
+                                                   termWeighting);
+            } finally {
+                shard.releaseSearcher(searcher);
+                releaseShard(userId, shard);
+            }
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -495,8 +958,9 @@ public class SearchIndex {
         throws IOException 
     {
         String content = dataContent(obj);
+        Map<String, String> fields = dataFields(obj);
 
-        if (content == null || content.isEmpty())
+        if ((content == null || content.isEmpty()) && fields.isEmpty())
             return false;
 
         String elemId = luceneId(obj);
@@ -516,7 +980,12 @@ public class SearchIndex {
         doc.add(new StringField(userIdField, obj.user.getId().toString(), 
                                 Field.Store.YES));
 
-        doc.add(new Field(textQueryField, content, fieldType));
+        if (content != null && !content.isEmpty())
+            doc.add(new Field(textQueryField, content, fieldType));
+
+        for (Map.Entry<String, String> field : fields.entrySet())
+            doc.add(new TextField(field.getKey(), field.getValue(),
+                                  Field.Store.NO));
 
         doc.add(new StringField(classField, className, Field.Store.YES));
 
@@ -582,10 +1051,30 @@ public class SearchIndex {
         List<DiMeData> events = new ArrayList<DiMeData>();
         Set<Long> seen = new HashSet<Long>();
 
+        // Fetch the events of all the elements with one query
+        List<InformationElement> elems = new ArrayList<InformationElement>();
+        for (DiMeData data : dataList)
+            if (data instanceof InformationElement)
+                elems.add((InformationElement)data);
+
+        Map<Long, List<ResourcedEvent>> elemEvents =
+            new HashMap<Long, List<ResourcedEvent>>();
+        for (ResourcedEvent event : eventDAO.findByElements(elems, user)) {
+            Long elemId = event.targettedResource.getId();
+            List<ResourcedEvent> list = elemEvents.get(elemId);
+            if (list == null) {
+                list = new ArrayList<ResourcedEvent>();
+                elemEvents.put(elemId, list);
+            }
+            list.add(event);
+        }
+
         for (DiMeData data : dataList) {
             if (data instanceof InformationElement) {
                 List<ResourcedEvent> expandedEvents =
-                    eventDAO.findByElement((InformationElement)data, user);
+                    elemEvents.get(data.getId());
+                if (expandedEvents == null)
+                    continue;
                 for (ResourcedEvent event : expandedEvents) {
                     event.targettedResource.plainTextContent = null;
 
@@ -618,7 +1107,8 @@ public class SearchIndex {
         res.setDocs(mapToEventList(res.getDocs(), user));
     }
 
-    protected List<WeightedKeyword> extractWeightedKeywords(int docId,
+    protected List<WeightedKeyword> extractWeightedKeywords(IndexReader reader,
+                                                            int docId,
                                                             WeightType wt) 
         throws IOException 
     {
@@ -707,15 +1197,20 @@ public class SearchIndex {
 
         SearchResults res = new SearchResults();
 
+        Shard shard = acquireShard(userId);
+        IndexSearcher searcher = null;
         try {
-            ensureSearcherAndReader();
+            searcher = shard.acquireSearcher();
+            if (searcher == null)
+                return res;
 
             BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
 
             Query textQuery = null;
 
             if (query instanceof TextSearchQuery) {
-                textQuery = basicTextQuery(((TextSearchQuery)query).query);
+                TextSearchQuery tq = (TextSearchQuery)query;
+                textQuery = basicTextQuery(tq.query, tq.fields);
 
                 if (termWeighting != WeightType.None) {
                     // extract the terms of a string query
@@ -746,10 +1241,7 @@ public class SearchIndex {
             }
 
             queryBuilder.add(textQuery, BooleanClause.Occur.MUST);
-
-            Query userQuery = new TermQuery(new Term(userIdField,
-                    userId.toString()));
-            queryBuilder.add(userQuery, BooleanClause.Occur.FILTER);
+            addUserFilter(queryBuilder, userId);
 
             if (className != null)
                 queryBuilder.add(new TermQuery(new Term(classField, className)),
@@ -761,42 +1253,162 @@ public class SearchIndex {
 
             // search for the documents with the query
             TopDocs results = searcher.search(queryBuilder.build(), limit);
-            ScoreDoc[] hits = results.scoreDocs;
-
-            for (int i=0; i<hits.length; i++) {
-                Document doc = searcher.doc(hits[i].doc);
-                float score = hits[i].score;
-                String docId = doc.get(idField);
-                try {
-                    DiMeData obj = idToObject(docId);
-                    if (obj == null) {
-                        LOG.error("Bad doc id: "+ docId);
-                    } else if (obj.user.getId().equals(userId)) {
-                        obj.score = score;
-                        obj.weightedKeywords = null;
-                        if (termWeighting != WeightType.None)
-                            obj.weightedKeywords =
-                                extractWeightedKeywords(hits[i].doc,
-                                                        termWeighting);
-                        res.add(obj);
-                    } else {
-                        LOG.warn("Lucene returned result for wrong user: " +
-                                 obj.getId());
-                    }
-                } catch (NumberFormatException ex) {
-                    LOG.error("Lucene returned invalid id: {}", docId);
-                }
-            }
+            addHits(searcher, results.scoreDocs, userId, termWeighting, res);
         } catch (QueryNodeException e) {
             //LOG.error("Exception: " + e);
             throw new SearchQueryException(e.getMessage());
+        } finally {
+            shard.releaseSearcher(searcher);
+            releaseShard(userId, shard);
+        }
+
+        return res;
+    }
+
+    // No need to filter by user if the user has an index of their own
+    private void addUserFilter(BooleanQuery.Builder queryBuilder,
+                               Long userId) {
+        if (!partitioned) {
+            Query userQuery = new TermQuery(new Term(userIdField,
+                                                     userId.toString()));
+            queryBuilder.add(userQuery, BooleanClause.Occur.FILTER);
+        }
+    }
+
+    /**
+       Add the objects of the given hits to the results, in the same
+       order.
+    */
+    private void addHits(IndexSearcher searcher, ScoreDoc[] hits,
+                         Long userId, WeightType termWeighting,
+                         SearchResults res) throws IOException {
+        List<String> docIds = new ArrayList<String>();
+        for (int i=0; i<hits.length; i++)
+            docIds.add(searcher.doc(hits[i].doc).get(idField));
+        Map<String, DiMeData> objects = idsToObjects(docIds);
+
+        for (int i=0; i<hits.length; i++) {
+            float score = hits[i].score;
+            String docId = docIds.get(i);
+            DiMeData obj = objects.get(docId);
+            if (obj == null) {
+                LOG.error("Bad doc id: "+ docId);
+            } else if (obj.user.getId().equals(userId)) {
+                obj.score = score;
+                obj.weightedKeywords = null;
+                if (termWeighting != WeightType.None)
+                    obj.weightedKeywords =
+                        extractWeightedKeywords(searcher.getIndexReader(),
+                                                hits[i].doc,
+                                                termWeighting);
+                res.add(obj);
+            } else {
+                LOG.warn("Lucene returned result for wrong user: " +
+                         obj.getId());
+            }
+        }
+    }
+
+    /**
+       Find the documents most similar to the given information
+       element ("more like this"). The query is built from the top
+       TF-IDF terms of the element's stored term vector, and then run
+       as a keyword search with the same user filtering as search().
+
+       Hits are mapped to information elements as they are read, and
+       several hits can map to the same element, e.g. the reading
+       events of one document. Hits are therefore read a page at a
+       time until there are limit elements or no more hits.
+
+       @param elem Information element to find similar documents to
+       @param limit Maximum number of results to return
+       @param userId DiMe user id.
+       @return Results mapped to information elements, not including
+       elem itself
+    */
+    public SearchResults similar(InformationElement elem, int limit,
+                                 Long userId, WeightType termWeighting)
+        throws IOException, SearchQueryException
+    {
+        if (limit < 0)
+            limit = 100;
+
+        List<WeightedKeyword> kw = getKeywords(elem, WeightType.TfIdf);
+        if (kw == null || kw.isEmpty())
+            return new SearchResults();
+
+        Collections.sort(kw, Collections.reverseOrder());
+
+        KeywordSearchQuery query = new KeywordSearchQuery();
+        for (int i=0; i<kw.size() && i<maxSimilarTerms; i++)
+            query.add(kw.get(i).term, kw.get(i).weight);
+
+        SearchResults res = new SearchResults();
+        res.queryTerms = query.weightedKeywords;
+
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+        queryBuilder.add(keywordSearchQuery(query.weightedKeywords),
+                         BooleanClause.Occur.MUST);
+        addUserFilter(queryBuilder, userId);
+        Query q = queryBuilder.build();
+
+        List<DiMeData> docs = new ArrayList<DiMeData>();
+        // The element itself is not included, but counts as seen
+        Set<Long> seen = new HashSet<Long>();
+        seen.add(elem.getId());
+
+        // The element itself is typically the best match, so ask for
+        // one extra result per page
+        int pageSize = limit + 1;
+
+        Shard shard = acquireShard(userId);
+        IndexSearcher searcher = null;
+        try {
+            searcher = shard.acquireSearcher();
+            ScoreDoc after = null;
+            while (searcher != null && docs.size() < limit) {
+                ScoreDoc[] hits =
+                    searcher.searchAfter(after, q, pageSize).scoreDocs;
+                if (hits.length == 0)
+                    break;
+
+                SearchResults page = new SearchResults();
+                addHits(searcher, hits, userId, termWeighting, page);
+                for (DiMeData obj : mapToElementList(page.getDocs())) {
+                    if (docs.size() < limit && seen.add(obj.getId()))
+                        docs.add(obj);
+                }
+
+                if (hits.length < pageSize)
+                    break;
+                after = hits[hits.length - 1];
+            }
+        } finally {
+            shard.releaseSearcher(searcher);
+            releaseShard(userId, shard);
         }
 
+        res.setDocs(docs);
         return res;
     }
 
-    protected Query basicTextQuery(String query) throws QueryNodeException {
-        return this.parser.parse(query, textQueryField);
+    /**
+       Parse a text query. Terms without an explicit field are
+       searched in all the given fields, or in all text fields if
+       none are given.
+    */
+    protected Query basicTextQuery(String query, List<String> fields)
+        throws QueryNodeException, SearchQueryException
+    {
+        if (fields == null || fields.isEmpty())
+            return this.parser.parse(query, null);
+
+        for (String field : fields)
+            if (!fieldBoosts.containsKey(field))
+                throw new SearchQueryException("Unknown search field: " +
+                                               field);
+
+        return makeParser(fields).parse(query, null);
     }
 
     protected Query keywordSearchQuery(List<WeightedKeyword> weightedKeywords) {
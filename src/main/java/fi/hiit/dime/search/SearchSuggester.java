@@ -0,0 +1,345 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+   Typeahead suggestions for the search box. Each user has a separate
+   Lucene infix suggester, fed incrementally by the SearchIndex when
+   new objects are indexed. Lookups only touch the suggester index,
+   never the database.
+
+   Suggesters are opened when first needed, and lookups for users
+   without suggestions don't create anything on disk. At most
+   maxOpen suggesters are kept open, like the per-user search
+   indexes, and an evicted one is closed once it is no longer in use.
+*/
+public class SearchSuggester {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SearchSuggester.class);
+
+    // Weights of the different sources of suggestions, higher is
+    // shown first
+    public static final long keywordWeight = 1;
+    public static final long tagWeight = 2;
+    public static final long queryWeight = 2;
+    public static final long titleWeight = 3;
+
+    private Path suggestPath;
+    private Analyzer analyzer;
+
+    /**
+       An open suggester, with the number of its users and whether it
+       has been evicted or its user removed, guarded by the
+       SearchSuggester lock.
+    */
+    static class Entry {
+        final AnalyzingInfixSuggester suggester;
+        int refCount = 0;
+        boolean evicted = false;
+        boolean removed = false;
+
+        Entry(AnalyzingInfixSuggester suggester) {
+            this.suggester = suggester;
+        }
+    }
+
+    // The most recently used suggesters, least recently used first
+    private LinkedHashMap<Long, Entry> suggesters;
+
+    // Evicted suggesters that are still in use. They are taken back
+    // into use if needed again before being closed, since only one
+    // suggester can write to a directory at a time.
+    private Map<Long, Entry> evictedInUse = new HashMap<Long, Entry>();
+
+    // Suggesters of removed users that are still in use. Their
+    // directories are deleted when they are closed, and the users get
+    // no new suggesters until then.
+    private Map<Long, Entry> removedInUse = new HashMap<Long, Entry>();
+
+    // Users with added suggestions that are not yet visible to lookups
+    private Set<Long> dirty = new HashSet<Long>();
+
+    /**
+       Constructor.
+
+       @param suggestPath Path to directory for the suggester indexes
+       @param maxOpen Maximum number of suggesters to keep open at the
+       same time
+    */
+    public SearchSuggester(String suggestPath, final int maxOpen) {
+        this.suggestPath = Paths.get(suggestPath);
+        // No stemming here, since we match on prefixes of what the
+        // user has typed so far
+        this.analyzer = new StandardAnalyzer();
+
+        suggesters = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() <= maxOpen)
+                    return false;
+                evict(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+       Get the suggester of the given user, opening it if needed.
+       Remember to release it with release() after use.
+
+       @param create If false, return null instead of creating a
+       suggester for a user that has none
+       @return The suggester, or null if there is none and create is
+       false, or if the user is being removed
+    */
+    synchronized Entry acquire(Long userId, boolean create)
+        throws IOException
+    {
+        if (removedInUse.containsKey(userId))
+            return null;
+
+        Entry e = suggesters.get(userId);
+        if (e == null) {
+            e = evictedInUse.remove(userId);
+            if (e != null) {
+                e.evicted = false;
+            } else {
+                // FSDirectory.open creates the directory
+                Path path = suggestPath.resolve(userId.toString());
+                if (!create && !Files.exists(path))
+                    return null;
+                e = new Entry(new AnalyzingInfixSuggester
+                              (FSDirectory.open(path), analyzer));
+            }
+            // Counted before adding, so that it can't be closed
+            // right away if it would be evicted itself
+            e.refCount++;
+            suggesters.put(userId, e);
+        } else {
+            e.refCount++;
+        }
+        return e;
+    }
+
+    /**
+       Release a suggester returned by acquire(), closing it if it has
+       been evicted and this was the last user.
+    */
+    synchronized void release(Long userId, Entry e) {
+        e.refCount--;
+        if (e.evicted && e.refCount == 0) {
+            if (evictedInUse.get(userId) == e)
+                evictedInUse.remove(userId);
+            if (removedInUse.get(userId) == e)
+                removedInUse.remove(userId);
+            closeEntry(userId, e);
+        }
+    }
+
+    /**
+       Called when a suggester has been removed from suggesters:
+       close it now if it is not in use, otherwise when it is
+       released.
+    */
+    private void evict(Long userId, Entry e) {
+        e.evicted = true;
+        if (e.refCount == 0)
+            closeEntry(userId, e);
+        else
+            evictedInUse.put(userId, e);
+    }
+
+    // Closing commits any added suggestions, or deletes them if the
+    // user has been removed
+    private void closeEntry(Long userId, Entry e) {
+        dirty.remove(userId);
+        try {
+            e.suggester.close();
+        } catch (IOException ex) {
+            LOG.error("Unable to close suggester for user {}: {}",
+                      userId, ex);
+        }
+        if (e.removed) {
+            try {
+                removeDirectory(userId);
+            } catch (IOException ex) {
+                LOG.error("Unable to remove suggester of user {}: {}",
+                          userId, ex);
+            }
+        }
+    }
+
+    private void removeDirectory(Long userId) throws IOException {
+        Path path = suggestPath.resolve(userId.toString());
+        if (Files.exists(path))
+            IOUtils.rm(path);
+    }
+
+    /**
+       Add or update a suggestion for the given user. The suggestion
+       becomes visible to lookups after the next call to commit().
+
+       @param userId DiMe user id
+       @param text Text to suggest
+       @param weight Weight of suggestion, higher is shown first
+    */
+    public void add(Long userId, String text, long weight) throws IOException {
+        if (text == null)
+            return;
+
+        text = text.trim();
+        if (text.isEmpty())
+            return;
+
+        Entry e = acquire(userId, true);
+        if (e == null)
+            return;
+        try {
+            e.suggester.update(new BytesRef(text), null, weight, null);
+            synchronized (this) {
+                dirty.add(userId);
+            }
+        } finally {
+            release(userId, e);
+        }
+    }
+
+    /**
+       Commit and publish all suggestions added since the last call.
+    */
+    public synchronized void commit() throws IOException {
+        for (Long userId : dirty) {
+            // Evicted ones have been committed when closed
+            Entry e = suggesters.get(userId);
+            if (e == null)
+                e = evictedInUse.get(userId);
+            if (e == null)
+                continue;
+
+            e.suggester.commit();
+            e.suggester.refresh();
+        }
+        dirty.clear();
+    }
+
+    /**
+       Return suggestions for the given prefix, best first.
+
+       @param userId DiMe user id
+       @param prefix What the user has typed so far
+       @param limit Maximum number of suggestions to return
+    */
+    public List<String> lookup(Long userId, String prefix, int limit)
+        throws IOException
+    {
+        List<String> res = new ArrayList<String>();
+
+        if (prefix == null || prefix.trim().isEmpty())
+            return res;
+
+        Entry e = acquire(userId, false);
+        if (e == null)
+            return res;
+
+        List<LookupResult> results;
+        try {
+            results = e.suggester.lookup(prefix, limit, true, false);
+        } catch (IllegalStateException ex) {
+            // Nothing has been committed for this user yet
+            return res;
+        } finally {
+            release(userId, e);
+        }
+
+        for (LookupResult r : results)
+            res.add(r.key.toString());
+
+        return res;
+    }
+
+    /**
+       Remove all suggestions of the given user. If the user's
+       suggester is in use, it is closed and removed when the last
+       user releases it.
+    */
+    public synchronized void removeUser(Long userId) throws IOException {
+        if (removedInUse.containsKey(userId))
+            return;
+
+        Entry e = suggesters.remove(userId);
+        if (e == null)
+            e = evictedInUse.remove(userId);
+        dirty.remove(userId);
+
+        if (e == null) {
+            removeDirectory(userId);
+        } else {
+            e.evicted = true;
+            e.removed = true;
+            if (e.refCount == 0)
+                closeEntry(userId, e);
+            else
+                removedInUse.put(userId, e);
+        }
+    }
+
+    /**
+       Close all open suggesters.
+    */
+    public synchronized void close() {
+        for (Map.Entry<Long, Entry> entry : suggesters.entrySet())
+            closeEntry(entry.getKey(), entry.getValue());
+        for (Map.Entry<Long, Entry> entry : evictedInUse.entrySet())
+            closeEntry(entry.getKey(), entry.getValue());
+        for (Map.Entry<Long, Entry> entry : removedInUse.entrySet())
+            closeEntry(entry.getKey(), entry.getValue());
+        suggesters.clear();
+        evictedInUse.clear();
+        removedInUse.clear();
+        dirty.clear();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import fi.hiit.dime.DiMeProperties;
+import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.database.EventDAO;
+import fi.hiit.dime.database.UserDAO;
+import fi.hiit.dime.search.SearchIndex.SearchQueryException;
+import fi.hiit.dime.search.SearchIndex.WeightType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+   Warms up the search index after startup: runs the first, slow,
+   index update and replays each user's most recent search queries,
+   so that the OS page cache and JIT are warm when real searches
+   come in. This is done in a background thread, and isReady()
+   tells when it has finished successfully, or getError() why it
+   failed.
+*/
+@Component
+public class SearchWarmup implements ApplicationListener<ApplicationReadyEvent> {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SearchWarmup.class);
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private EventDAO eventDAO;
+
+    @Autowired
+    private UserDAO userDAO;
+
+    @Autowired
+    private DiMeProperties dimeConfig;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private volatile boolean ready = false;
+
+    private volatile String error;
+
+    /**
+       Return true once the warm-up has finished successfully.
+    */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+       Return why the warm-up failed, or null if it hasn't.
+    */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        Thread t = new Thread(new Runnable() {
+                public void run() {
+                    warmup();
+                }
+            }, "search-warmup");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+       Perform the warm-up, this may take a while.
+    */
+    protected void warmup() {
+        long startTime = System.currentTimeMillis();
+        long count = 0;
+
+        try {
+            TransactionTemplate tt =
+                new TransactionTemplate(transactionManager);
+
+            tt.execute(new TransactionCallback<Long>() {
+                    public Long doInTransaction(TransactionStatus status) {
+                        return searchIndex.updateIndex();
+                    }
+                });
+
+            final int numQueries = dimeConfig.getSearchWarmupQueries();
+            if (numQueries > 0) {
+                tt.setReadOnly(true);
+                for (final User user : userDAO.findAll()) {
+                    count += tt.execute(new TransactionCallback<Long>() {
+                            public Long doInTransaction(TransactionStatus s) {
+                                return replayQueries(user.getId(),
+                                                     numQueries);
+                            }
+                        });
+                }
+            }
+
+            LOG.info("Search warm-up done in {} ms, replayed {} queries.",
+                     System.currentTimeMillis() - startTime, count);
+            ready = true;
+        } catch (RuntimeException e) {
+            error = e.toString();
+            LOG.error("Search warm-up failed.", e);
+        }
+    }
+
+    /**
+       Run the most recent distinct search queries of a user against
+       the search index.
+
+       @return Number of queries run
+    */
+    protected long replayQueries(Long userId, int numQueries) {
+        // Unique queries, most recent first
+        Set<String> queries = new LinkedHashSet<String>
+            (eventDAO.recentSearchQueries(userId, numQueries));
+
+        long count = 0;
+        for (String query : queries) {
+            try {
+                searchIndex.search(new TextSearchQuery(query), null, null,
+                                   -1, userId, WeightType.None);
+                count++;
+            } catch (IOException e) {
+                LOG.warn("Unable to replay query \"{}\": {}", query, e);
+            } catch (SearchQueryException e) {
+                LOG.debug("Skipping bad query \"{}\": {}", query,
+                          e.getMessage());
+            }
+        }
+        return count;
+    }
+}
@@ -24,11 +24,16 @@
 
 package fi.hiit.dime.search;
 
+import java.util.List;
+
 //------------------------------------------------------------------------------
 
 public class TextSearchQuery extends SearchQuery {
     public String query;
 
+    /** Fields to search, null means all default text fields. */
+    public List<String> fields;
+
     public TextSearchQuery() {
 	this.query = "";
     }
@@ -37,6 +42,11 @@ public class TextSearchQuery extends SearchQuery {
 	this.query = query;
     }
 
+    public TextSearchQuery(String query, List<String> fields) {
+	this.query = query;
+	this.fields = fields;
+    }
+
     // getter and setter to make Thymeleaf believe this is a "bean"
     public String getQuery() { return query; }
     public void setQuery(String query) { this.query = query; }
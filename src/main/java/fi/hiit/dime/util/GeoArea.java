@@ -0,0 +1,198 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.util;
+
+import java.util.List;
+
+/**
+   An area for filtering locations: a bounding box, optionally
+   restricted to a circle around a point. Distances use the
+   equirectangular approximation, which is accurate to within a
+   fraction of a percent for radii up to some hundreds of kilometres,
+   except close to the poles. Areas crossing the antimeridian are not
+   supported.
+*/
+public class GeoArea {
+    /** Metres per degree of latitude, and of longitude at the equator.
+     */
+    public static final double METRES_PER_DEGREE = 111320.0;
+
+    public final double minLat;
+    public final double minLon;
+    public final double maxLat;
+    public final double maxLon;
+
+    /** Centre and radius in metres of the circle, or null if the
+        area is just the bounding box.
+     */
+    public final Double centerLat;
+    public final Double centerLon;
+    public final Double radius;
+
+    private GeoArea(double minLat, double minLon, double maxLat,
+                    double maxLon, Double centerLat, Double centerLon,
+                    Double radius) {
+        this.minLat = minLat;
+        this.minLon = minLon;
+        this.maxLat = maxLat;
+        this.maxLon = maxLon;
+        this.centerLat = centerLat;
+        this.centerLon = centerLon;
+        this.radius = radius;
+    }
+
+    private static double[] parseNumbers(String name, String value, int n) {
+        String[] parts = value.split(",");
+        if (parts.length != n)
+            throw new IllegalArgumentException(name + "=" + value);
+
+        double[] res = new double[n];
+        try {
+            for (int i=0; i<n; i++)
+                res[i] = Double.parseDouble(parts[i].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + "=" + value);
+        }
+        for (int i=0; i<n; i++)
+            if (Double.isNaN(res[i]) || Double.isInfinite(res[i]))
+                throw new IllegalArgumentException(name + "=" + value);
+        return res;
+    }
+
+    /**
+       Parse an area from the request parameters, see the
+       documentation of GET /data/events.
+
+       @param bbox Bounding box as minLat,minLon,maxLat,maxLon, or null
+       @param near Centre of circle as lat,lon, or null
+       @param radius Radius of circle in metres, or null
+       @return The area, or null if none of the parameters were given
+       @throws IllegalArgumentException on invalid values
+    */
+    public static GeoArea fromParams(String bbox, String near, String radius) {
+        if (bbox == null && near == null && radius == null)
+            return null;
+
+        double minLat = -90.0, minLon = -180.0;
+        double maxLat = 90.0, maxLon = 180.0;
+
+        if (bbox != null) {
+            double[] b = parseNumbers("bbox", bbox, 4);
+            if (b[0] > b[2] || b[1] > b[3])
+                throw new IllegalArgumentException("bbox=" + bbox);
+            minLat = Math.max(minLat, b[0]);
+            minLon = Math.max(minLon, b[1]);
+            maxLat = Math.min(maxLat, b[2]);
+            maxLon = Math.min(maxLon, b[3]);
+        }
+
+        if (near == null && radius == null)
+            return new GeoArea(minLat, minLon, maxLat, maxLon,
+                               null, null, null);
+
+        if (near == null || radius == null)
+            throw new IllegalArgumentException("near and radius must be " +
+                                               "given together");
+
+        double[] c = parseNumbers("near", near, 2);
+        double r = parseNumbers("radius", radius, 1)[0];
+        if (r < 0 || Math.abs(c[0]) > 90.0 || Math.abs(c[1]) > 180.0)
+            throw new IllegalArgumentException("near=" + near + ", radius=" +
+                                               radius);
+
+        double dLat = r/METRES_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(c[0]));
+        double dLon = cos > 1e-6 ? dLat/cos : 180.0;
+
+        minLat = Math.max(minLat, c[0] - dLat);
+        maxLat = Math.min(maxLat, c[0] + dLat);
+        minLon = Math.max(minLon, c[1] - dLon);
+        maxLon = Math.min(maxLon, c[1] + dLon);
+
+        return new GeoArea(minLat, minLon, maxLat, maxLon, c[0], c[1], r);
+    }
+
+    /**
+       Return true if the area cannot contain anything, e.g. when the
+       bounding box and circle do not overlap.
+    */
+    public boolean isEmpty() {
+        return minLat > maxLat || minLon > maxLon;
+    }
+
+    public boolean isCircle() {
+        return radius != null;
+    }
+
+    /**
+       Return the squared cosine of the centre latitude, the factor
+       for squared longitude differences in the distance formula.
+    */
+    public double lonScale() {
+        double cos = Math.cos(Math.toRadians(centerLat));
+        return cos*cos;
+    }
+
+    /**
+       Return the squared radius in degrees of latitude.
+    */
+    public double radiusSquared() {
+        double r = radius/METRES_PER_DEGREE;
+        return r*r;
+    }
+
+    /**
+       Return true if the given location is inside the area. Missing
+       coordinates are never inside.
+    */
+    public boolean contains(Double lat, Double lon) {
+        if (lat == null || lon == null)
+            return false;
+        if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon)
+            return false;
+        if (!isCircle())
+            return true;
+
+        double dLat = lat - centerLat;
+        double dLon = lon - centerLon;
+        return dLat*dLat + dLon*dLon*lonScale() <= radiusSquared();
+    }
+
+    /**
+       Return the geohash ranges covering the area, see
+       Geohash.ranges(), or null if the area is too large for the
+       geohash to narrow it down.
+
+       @param maxCells Maximum number of cells to cover the area with
+    */
+    public List<String[]> geohashRanges(int maxCells) {
+        int precision = Geohash.coverPrecision(minLat, minLon, maxLat,
+                                               maxLon, maxCells);
+        if (precision == 0)
+            return null;
+        return Geohash.ranges(Geohash.cells(minLat, minLon, maxLat, maxLon,
+                                            precision, maxCells));
+    }
+}
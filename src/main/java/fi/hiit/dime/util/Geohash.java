@@ -0,0 +1,241 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+   Geohash encoding of locations, see http://geohash.org/. A geohash
+   is a string of base32 characters, where each character halves the
+   cell of the previous ones five times, alternating between
+   longitude and latitude. The cell of a geohash contains the cells
+   of all longer geohashes starting with it, and nearby cells mostly
+   share a prefix, so a B-tree index on the geohash column can answer
+   area queries as a small number of string range scans.
+*/
+public class Geohash {
+    /** Maximum precision, i.e. length of a geohash, about 4 cm.
+     */
+    public static final int MAX_PRECISION = 12;
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    private static int lonBits(int precision) {
+        return (5*precision + 1)/2;
+    }
+
+    private static int latBits(int precision) {
+        return 5*precision/2;
+    }
+
+    /**
+       Return the width of a cell in degrees of longitude.
+    */
+    public static double cellWidth(int precision) {
+        return 360.0/(1L << lonBits(precision));
+    }
+
+    /**
+       Return the height of a cell in degrees of latitude.
+    */
+    public static double cellHeight(int precision) {
+        return 180.0/(1L << latBits(precision));
+    }
+
+    /**
+       Return the geohash of the given location.
+
+       @param lat Latitude in degrees
+       @param lon Longitude in degrees
+       @param precision Length of the geohash, 1 to MAX_PRECISION
+    */
+    public static String encode(double lat, double lon, int precision) {
+        double minLat = -90.0, maxLat = 90.0;
+        double minLon = -180.0, maxLon = 180.0;
+        StringBuilder hash = new StringBuilder(precision);
+
+        boolean even = true;
+        int bit = 0, ch = 0;
+        while (hash.length() < precision) {
+            if (even) {
+                double mid = (minLon + maxLon)/2;
+                if (lon >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat)/2;
+                if (lat >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            even = !even;
+
+            if (++bit == 5) {
+                hash.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+       Return the cell of a geohash.
+
+       @return Array of minimum latitude, minimum longitude, maximum
+       latitude and maximum longitude
+       @throws IllegalArgumentException if the geohash is invalid
+    */
+    public static double[] bounds(String hash) {
+        double minLat = -90.0, maxLat = 90.0;
+        double minLon = -180.0, maxLon = 180.0;
+
+        boolean even = true;
+        for (int i=0; i<hash.length(); i++) {
+            int ch = BASE32.indexOf(hash.charAt(i));
+            if (ch < 0)
+                throw new IllegalArgumentException("geohash=" + hash);
+
+            for (int mask=16; mask>0; mask >>= 1) {
+                if (even) {
+                    double mid = (minLon + maxLon)/2;
+                    if ((ch & mask) != 0)
+                        minLon = mid;
+                    else
+                        maxLon = mid;
+                } else {
+                    double mid = (minLat + maxLat)/2;
+                    if ((ch & mask) != 0)
+                        minLat = mid;
+                    else
+                        maxLat = mid;
+                }
+                even = !even;
+            }
+        }
+        return new double[] { minLat, minLon, maxLat, maxLon };
+    }
+
+    /**
+       Return the geohashes of all cells of the given precision that
+       overlap the bounding box, sorted.
+
+       @return List of geohashes, or null if there would be more than
+       maxCells of them
+    */
+    public static List<String> cells(double minLat, double minLon,
+                                     double maxLat, double maxLon,
+                                     int precision, int maxCells) {
+        double w = cellWidth(precision);
+        double h = cellHeight(precision);
+        long lastX = (1L << lonBits(precision)) - 1;
+        long lastY = (1L << latBits(precision)) - 1;
+
+        long x0 = Math.max(0, (long)Math.floor((minLon + 180.0)/w));
+        long x1 = Math.min(lastX, (long)Math.floor((maxLon + 180.0)/w));
+        long y0 = Math.max(0, (long)Math.floor((minLat + 90.0)/h));
+        long y1 = Math.min(lastY, (long)Math.floor((maxLat + 90.0)/h));
+
+        List<String> res = new ArrayList<String>();
+        if (x1 < x0 || y1 < y0)
+            return res;
+        if ((x1 - x0 + 1)*(y1 - y0 + 1) > maxCells)
+            return null;
+
+        for (long x=x0; x<=x1; x++)
+            for (long y=y0; y<=y1; y++)
+                res.add(encode(-90.0 + (y + 0.5)*h, -180.0 + (x + 0.5)*w,
+                               precision));
+        Collections.sort(res);
+        return res;
+    }
+
+    /**
+       Return the highest precision at which the bounding box is
+       covered by at most maxCells cells, or 0 if not even the
+       coarsest precision is enough.
+    */
+    public static int coverPrecision(double minLat, double minLon,
+                                     double maxLat, double maxLon,
+                                     int maxCells) {
+        int precision = 0;
+        while (precision < MAX_PRECISION &&
+               cells(minLat, minLon, maxLat, maxLon, precision + 1,
+                     maxCells) != null)
+            precision++;
+        return precision;
+    }
+
+    /**
+       Return the smallest string greater than all geohashes starting
+       with the given prefix, or null if there is none.
+    */
+    public static String increment(String prefix) {
+        for (int i=prefix.length()-1; i>=0; i--) {
+            int ch = BASE32.indexOf(prefix.charAt(i));
+            if (ch < BASE32.length() - 1)
+                return prefix.substring(0, i) + BASE32.charAt(ch + 1);
+        }
+        return null;
+    }
+
+    /**
+       Merge sorted cells of the same precision into string ranges,
+       so that consecutive cells become a single range.
+
+       @return List of ranges, each an array of the inclusive lower
+       bound and exclusive upper bound, where the upper bound is null
+       if there is none
+    */
+    public static List<String[]> ranges(List<String> cells) {
+        List<String[]> res = new ArrayList<String[]>();
+        String lo = null, hi = null;
+
+        for (String cell : cells) {
+            if (lo != null && hi != null && cell.startsWith(hi) &&
+                cell.substring(hi.length()).replace("0", "").isEmpty()) {
+                hi = increment(cell);
+                continue;
+            }
+            if (lo != null)
+                res.add(new String[] { lo, hi });
+            lo = cell;
+            hi = increment(cell);
+        }
+        if (lo != null)
+            res.add(new String[] { lo, hi });
+        return res;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.util;
+
+/**
+   Largest-Triangle-Three-Buckets downsampling of a series of points
+   for plotting, as described by Sveinn Steinarsson in "Downsampling
+   Time Series for Visual Representation" (2013). The first and last
+   points are always kept, and from each of the buckets in between
+   the point forming the largest triangle with the previously kept
+   point and the average of the next bucket, which preserves the
+   visual shape of the series much better than averaging.
+*/
+public class Lttb {
+    /**
+       Select the points to keep.
+
+       @param x X coordinates, in increasing order
+       @param y Y coordinates
+       @param threshold Number of points to keep
+       @return Indexes of the kept points, in increasing order. All
+       points are kept if there are no more than threshold of them,
+       or if threshold is less than 3.
+    */
+    public static int[] select(double[] x, double[] y, int threshold) {
+        int n = x.length;
+        if (threshold >= n || threshold < 3) {
+            int[] all = new int[n];
+            for (int i=0; i<n; i++)
+                all[i] = i;
+            return all;
+        }
+
+        int[] sampled = new int[threshold];
+        int s = 0;
+
+        // Bucket size, leaving out the first and last point
+        double every = (double)(n - 2) / (threshold - 2);
+
+        int a = 0;
+        sampled[s++] = a;
+
+        for (int i=0; i<threshold-2; i++) {
+            // Average of the next bucket
+            int avgStart = (int)Math.floor((i + 1) * every) + 1;
+            int avgEnd = Math.min((int)Math.floor((i + 2) * every) + 1, n);
+            double avgX = 0, avgY = 0;
+            for (int j=avgStart; j<avgEnd; j++) {
+                avgX += x[j];
+                avgY += y[j];
+            }
+            avgX /= avgEnd - avgStart;
+            avgY /= avgEnd - avgStart;
+
+            // Point in this bucket with the largest triangle
+            int rangeStart = (int)Math.floor(i * every) + 1;
+            int rangeEnd = (int)Math.floor((i + 1) * every) + 1;
+            double maxArea = -1;
+            int next = rangeStart;
+            for (int j=rangeStart; j<rangeEnd; j++) {
+                double area = Math.abs((x[a] - avgX) * (y[j] - y[a]) -
+                                       (x[a] - x[j]) * (avgY - y[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+
+            sampled[s++] = next;
+            a = next;
+        }
+
+        sampled[s++] = n - 1;
+        return sampled;
+    }
+}
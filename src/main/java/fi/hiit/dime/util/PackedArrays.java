@@ -0,0 +1,180 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+   Compact binary encoding for sequences of primitive arrays, used
+   for storing large numeric arrays in a single BLOB column.
+
+   Each array starts with its length plus one as a varint, zero
+   meaning a null array. Doubles are stored as 8-byte IEEE values,
+   longs as zigzag varints of the difference to the previous value,
+   which keeps increasing timestamps and small durations at 1-3
+   bytes each. Strings are stored as UTF-8, each prefixed by its
+   length plus one, zero meaning a null string.
+*/
+public class PackedArrays {
+    public static final byte VERSION = 1;
+
+    /**
+       Writes arrays into a byte array, in the order they are given.
+    */
+    public static class Writer {
+        private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        public Writer() {
+            out.write(VERSION);
+        }
+
+        private void writeVarint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int)((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int)v);
+        }
+
+        private boolean writeLength(Object array, int length) {
+            writeVarint(array == null ? 0 : length + 1);
+            return array != null;
+        }
+
+        public Writer writeDoubles(double[] values) {
+            if (writeLength(values, values == null ? 0 : values.length)) {
+                ByteBuffer buf = ByteBuffer.allocate(8 * values.length);
+                for (double v : values)
+                    buf.putDouble(v);
+                out.write(buf.array(), 0, buf.position());
+            }
+            return this;
+        }
+
+        public Writer writeLongs(long[] values) {
+            if (writeLength(values, values == null ? 0 : values.length)) {
+                long prev = 0;
+                for (long v : values) {
+                    long delta = v - prev;
+                    writeVarint((delta << 1) ^ (delta >> 63));
+                    prev = v;
+                }
+            }
+            return this;
+        }
+
+        public Writer writeStrings(String[] values) {
+            if (writeLength(values, values == null ? 0 : values.length)) {
+                for (String v : values) {
+                    if (v == null) {
+                        writeVarint(0);
+                    } else {
+                        byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+                        writeVarint(bytes.length + 1);
+                        out.write(bytes, 0, bytes.length);
+                    }
+                }
+            }
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    /**
+       Reads arrays from a byte array, in the same order as they were
+       written.
+    */
+    public static class Reader {
+        private ByteBuffer buf;
+
+        public Reader(byte[] data) {
+            buf = ByteBuffer.wrap(data);
+            byte version = buf.get();
+            if (version != VERSION)
+                throw new IllegalArgumentException("Unknown packed array " +
+                                                   "version " + version);
+        }
+
+        private long readVarint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf.get();
+                v |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        public double[] readDoubles() {
+            int length = (int)readVarint() - 1;
+            if (length < 0)
+                return null;
+
+            double[] values = new double[length];
+            for (int i=0; i<length; i++)
+                values[i] = buf.getDouble();
+            return values;
+        }
+
+        public long[] readLongs() {
+            int length = (int)readVarint() - 1;
+            if (length < 0)
+                return null;
+
+            long[] values = new long[length];
+            long prev = 0;
+            for (int i=0; i<length; i++) {
+                long zz = readVarint();
+                prev += (zz >>> 1) ^ -(zz & 1);
+                values[i] = prev;
+            }
+            return values;
+        }
+
+        public String[] readStrings() {
+            int length = (int)readVarint() - 1;
+            if (length < 0)
+                return null;
+
+            String[] values = new String[length];
+            for (int i=0; i<length; i++) {
+                int n = (int)readVarint() - 1;
+                if (n >= 0) {
+                    values[i] = new String(buf.array(), buf.position(), n,
+                                           StandardCharsets.UTF_8);
+                    buf.position(buf.position() + n);
+                }
+            }
+            return values;
+        }
+    }
+}
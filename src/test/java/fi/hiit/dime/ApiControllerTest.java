@@ -28,33 +28,66 @@ import static org.junit.Assert.*;
 import static fi.hiit.dime.data.DiMeData.makeStub;
 
 import fi.hiit.dime.ApiController.ApiMessage;
+import fi.hiit.dime.authentication.Role;
+import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.authentication.UserCreateForm;
+import fi.hiit.dime.data.CalendarEvent;
 import fi.hiit.dime.data.DiMeData;
 import fi.hiit.dime.data.Document;
 import fi.hiit.dime.data.Event;
 import fi.hiit.dime.data.EventRelation;
 import fi.hiit.dime.data.FeedbackEvent;
+import fi.hiit.dime.data.HealthTrackerEvent;
 import fi.hiit.dime.data.InformationElement;
 import fi.hiit.dime.data.InformationElementRelation;
+import fi.hiit.dime.data.Location;
 import fi.hiit.dime.data.Message;
 import fi.hiit.dime.data.MessageEvent;
 import fi.hiit.dime.data.Profile;
 import fi.hiit.dime.data.ReadingEvent;
+import fi.hiit.dime.data.PhysicalEvent;
 import fi.hiit.dime.data.ResourcedEvent;
 import fi.hiit.dime.data.ScientificDocument;
 import fi.hiit.dime.data.SearchEvent;
+import fi.hiit.dime.data.Tag;
+import fi.hiit.dime.database.CacheStats;
+import fi.hiit.dime.database.DeleteCount;
+import fi.hiit.dime.database.EventCount;
+import fi.hiit.dime.database.LoggerSeen;
+import fi.hiit.dime.database.UserStats;
+import fi.hiit.dime.database.UserStatsDAO;
+import fi.hiit.dime.database.UserStatsRepository;
 import fi.hiit.dime.search.KeywordSearchQuery;
 import fi.hiit.dime.search.SearchIndex;
 import fi.hiit.dime.search.SearchResults;
+import fi.hiit.dime.search.TextSearchQuery;
 import fi.hiit.dime.util.RandomPassword;
 
+import org.apache.lucene.util.IOUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
-
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -65,6 +98,18 @@ public class ApiControllerTest extends RestTest {
     @Autowired
     SearchIndex searchIndex;
 
+    @Autowired
+    AutowireCapableBeanFactory beanFactory;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    UserStatsDAO statsDAO;
+
+    @Autowired
+    UserStatsRepository statsRepo;
+
     @Test
     public void testPing() throws Exception {
         ResponseEntity<ApiMessage> res =
@@ -74,6 +119,159 @@ public class ApiControllerTest extends RestTest {
         assertEquals(res.getBody().message, "pong");
     }
 
+    @Test
+    public void testHealth() throws Exception {
+        ResponseEntity<ApiMessage> res =
+            getRest().getForEntity(apiUrl("/health"), ApiMessage.class);
+
+        // Wait for the warm-up to finish
+        for (int i=0; i<60 && !res.getStatusCode().is2xxSuccessful(); i++) {
+            assertEquals("warming up", res.getBody().message);
+            Thread.sleep(1000);
+            res = getRest().getForEntity(apiUrl("/health"), ApiMessage.class);
+        }
+
+        assertSuccessful(res);
+        assertEquals("ready", res.getBody().message);
+    }
+
+    private CacheStats.RegionStats elementCacheStats(RestTemplate adminRest) {
+        ResponseEntity<CacheStats.RegionStats[]> res =
+            adminRest.getForEntity(apiUrl("/cachestats"),
+                                   CacheStats.RegionStats[].class);
+        assertSuccessful(res);
+
+        for (CacheStats.RegionStats s : res.getBody())
+            if (s.region.equals(InformationElement.class.getName()))
+                return s;
+        fail("No cache region for InformationElement");
+        return null;
+    }
+
+    @Test
+    public void testCacheStats() throws Exception {
+        Document doc = new Document();
+        doc.uri = "http://www.example.com/cached";
+        doc.plainTextContent = "Cached content";
+        Document resDoc = uploadElement(doc, Document.class);
+
+        // Only administrators may see the statistics
+        ResponseEntity<ApiMessage> denied =
+            getRest().getForEntity(apiUrl("/cachestats"), ApiMessage.class);
+        assertEquals(HttpStatus.FORBIDDEN, denied.getStatusCode());
+
+        RandomPassword pw = new RandomPassword();
+        UserCreateForm form = new UserCreateForm();
+        form.setUsername("_testadmin_" + pw.getPassword(10, false, false));
+        form.setPassword(pw.getPassword(20));
+        form.setRole(Role.ADMIN);
+        User admin = userService.create(form);
+
+        try {
+            RestTemplate adminRest =
+                new TestRestTemplate(form.getUsername(), form.getPassword());
+
+            CacheStats.RegionStats before = elementCacheStats(adminRest);
+
+            // Each stub is expanded by reading the element, all but
+            // the first read should be served from the cache
+            for (int i=0; i<5; i++) {
+                ReadingEvent event = new ReadingEvent();
+                event.targettedResource = makeStub(resDoc, Document.class);
+                uploadEvent(event, ReadingEvent.class);
+            }
+
+            CacheStats.RegionStats after = elementCacheStats(adminRest);
+            assertTrue(after.hitCount - before.hitCount >= 4);
+            assertTrue(after.getHitRatio() > 0.0);
+        } finally {
+            userService.removeAllForUserId(admin.getId());
+        }
+
+        // A replaced element must not be served from the cache
+        resDoc.plainTextContent = "Updated content";
+        uploadElement(resDoc, Document.class);
+
+        ResponseEntity<Document> res =
+            getRest().getForEntity(infoElemApi + "/" + resDoc.getId(),
+                                   Document.class);
+        assertSuccessful(res);
+        assertEquals("Updated content", res.getBody().plainTextContent);
+    }
+
+    private static class PurgeStatus {
+        public Long userId;
+        public String state;
+        public DeleteCount deleted;
+        public Date started;
+        public Date finished;
+        public String error;
+        public boolean active;
+    }
+
+    @Test
+    public void testPurgeUser() throws Exception {
+        Long userId = getTestUser().getId();
+
+        Document doc = new Document();
+        doc.uri = "http://www.example.com/purged";
+        doc.plainTextContent = "Purged content";
+        doc.addTag(new Tag("purged"));
+        Document resDoc = uploadElement(doc, Document.class);
+
+        FeedbackEvent[] events = new FeedbackEvent[10];
+        for (int i=0; i<events.length; i++) {
+            events[i] = new FeedbackEvent();
+            events[i].value = i / 10.0;
+            events[i].targettedResource = makeStub(resDoc, Document.class);
+        }
+        uploadEvents(events, FeedbackEvent[].class);
+
+        String purgeApi = apiUrl("/users/" + userId + "/purge");
+
+        // Only administrators may purge users
+        ResponseEntity<ApiMessage> denied =
+            getRest().postForEntity(purgeApi, null, ApiMessage.class);
+        assertEquals(HttpStatus.FORBIDDEN, denied.getStatusCode());
+
+        RandomPassword pw = new RandomPassword();
+        UserCreateForm form = new UserCreateForm();
+        form.setUsername("_testadmin_" + pw.getPassword(10, false, false));
+        form.setPassword(pw.getPassword(20));
+        form.setRole(Role.ADMIN);
+        User admin = userService.create(form);
+
+        try {
+            RestTemplate adminRest =
+                new TestRestTemplate(form.getUsername(), form.getPassword());
+
+            ResponseEntity<PurgeStatus> res =
+                adminRest.postForEntity(purgeApi, null, PurgeStatus.class);
+            assertEquals(HttpStatus.ACCEPTED, res.getStatusCode());
+            assertEquals(userId, res.getBody().userId);
+
+            PurgeStatus status = res.getBody();
+            for (int i=0; i<300 && status.active; i++) {
+                Thread.sleep(100);
+                status = adminRest.getForEntity(purgeApi, PurgeStatus.class)
+                    .getBody();
+            }
+
+            assertEquals("DONE", status.state);
+            assertEquals(events.length, status.deleted.events);
+            assertEquals(1, status.deleted.informationElements);
+            assertNotNull(status.finished);
+            assertNull(userService.getUserById(userId));
+
+            // Unknown users can't be purged
+            res = adminRest.postForEntity(apiUrl("/users/12345678/purge"),
+                                          null, PurgeStatus.class);
+            assertEquals(HttpStatus.NOT_FOUND, res.getStatusCode());
+        } finally {
+            userService.removeAllForUserId(admin.getId());
+        }
+    }
+
     @Test
     public void testEmptySearch() throws Exception {
         SearchResults res = doSearch("");
@@ -209,6 +407,42 @@ public class ApiControllerTest extends RestTest {
         ApiError error = getDataExpectError(apiUrl("/search?query=a:"));
     }
 
+    @Test
+    public void testLocationSearch() throws Exception {
+        final String magicWord = "geofoobar";
+        double[][] coords = { { 60.1699, 24.9384 }, { 59.3293, 18.0686 } };
+
+        MessageEvent[] events = new MessageEvent[coords.length];
+        for (int i=0; i<coords.length; i++) {
+            Message msg = createTestEmail(magicWord + " " + i, "Hello");
+            msg.appId = "geosearch_msg_" + i;
+            events[i] = new MessageEvent();
+            events[i].targettedResource = msg;
+            events[i].location = new Location();
+            events[i].location.latitude = coords[i][0];
+            events[i].location.longitude = coords[i][1];
+        }
+        MessageEvent[] uploaded = uploadEvents(events, MessageEvent[].class);
+
+        assertEquals(2, doSearch(magicWord).getDocs().size());
+
+        SearchResults res = doSearch(magicWord + "&bbox=59.9,24.5,60.4,25.2");
+        assertEquals(1, res.getDocs().size());
+        assertEquals(uploaded[0].targettedResource.getId(),
+                     res.getDocs().get(0).getId());
+
+        res = doEventSearch(magicWord + "&near=59.33,18.07&radius=1000");
+        assertEquals(1, res.getDocs().size());
+        assertEquals(uploaded[1].getId(), res.getDocs().get(0).getId());
+
+        res = doEventSearch(magicWord + "&near=59.33,18.07&radius=1000" +
+                            "&bbox=59.9,24.5,60.4,25.2");
+        assertEquals(0, res.getDocs().size());
+
+        getDataExpectError(apiUrl("/search?query=" + magicWord +
+                                  "&radius=1000"));
+    }
+
     @Test
     public void testReadingEventSearch() throws Exception {
         String magicText = "foobarbaz";
@@ -253,6 +487,86 @@ public class ApiControllerTest extends RestTest {
         
     }
 
+    @Test
+    public void testFieldSearch() throws Exception {
+        final String magicTitle = "quuxtitle";
+        final String magicKeyword = "quuxkeyword";
+        final String magicName = "quuxmeeting";
+
+        ScientificDocument doc = createScientificDocument(randomText);
+        doc.title = "A paper about " + magicTitle;
+        doc.keywords = Arrays.asList("foo", magicKeyword);
+        doc.appId = "gjreiojg49ujgfiejwoij";
+
+        uploadElement(doc, ScientificDocument.class);
+
+        // Title is searched by default, even though it's not in the text
+        assertEquals(1, doSearch(magicTitle).getDocs().size());
+        assertEquals(1, doSearch("title:" + magicTitle).getDocs().size());
+        assertEquals(0, doSearch(magicTitle + "&fields=plainTextContent").
+                     getDocs().size());
+
+        assertEquals(1, doSearch(magicKeyword + "&fields=keywords,abstract").
+                     getDocs().size());
+        assertEquals(0, doSearch(magicKeyword + "&fields=title").
+                     getDocs().size());
+
+        // Calendar events have no plain text content, but the name
+        // should be searchable
+        CalendarEvent event = new CalendarEvent();
+        event.name = "Weekly " + magicName;
+        event.notes = "Remember to bring coffee.";
+        event.appId = "fjewiofjewoi4389fh43";
+
+        uploadEvent(event, CalendarEvent.class);
+
+        SearchResults eventRes = doEventSearch("name:" + magicName);
+        assertEquals(1, eventRes.getDocs().size());
+        assertTrue(eventRes.getDocs().get(0) instanceof CalendarEvent);
+        assertEquals(1, doEventSearch("coffee&@type=CalendarEvent").
+                     getDocs().size());
+
+        getDataExpectError(apiUrl("/search?query=foo&fields=nosuchfield"));
+    }
+
+    @Test
+    public void testSuggest() throws Exception {
+        final String magicTitle = "Xylophonic resonance in practice";
+
+        ScientificDocument doc = createScientificDocument(randomText);
+        doc.title = magicTitle;
+        doc.appId = "vnweoi43hfwe89fhwei2";
+        uploadElement(doc, ScientificDocument.class);
+
+        SearchEvent event = new SearchEvent();
+        event.query = "xylophonic tuning";
+        event.appId = "nvcxmoiwe8923jfiwe";
+        uploadEvent(event, SearchEvent.class);
+
+        // Suggestions are fed by the indexer, which runs on search
+        doSearch("xylophonic");
+
+        String[] res = getData(apiUrl("/suggest?query=xylo"), String[].class);
+        Set<String> suggestions = new HashSet<String>(Arrays.asList(res));
+        assertTrue(suggestions.contains(magicTitle));
+        assertTrue(suggestions.contains("xylophonic tuning"));
+
+        // Title should come first
+        assertEquals(magicTitle, res[0]);
+
+        // Infix matching, and all terms must match
+        res = getData(apiUrl("/suggest?query=resonance pra"), String[].class);
+        assertEquals(1, res.length);
+        assertEquals(magicTitle, res[0]);
+
+        res = getData(apiUrl("/suggest?query=xylo&limit=1"), String[].class);
+        assertEquals(1, res.length);
+
+        res = getData(apiUrl("/suggest?query=qqqnosuchprefix"),
+                      String[].class);
+        assertEquals(0, res.length);
+    }
+
     @Test
     public void testKeywordSearch() throws Exception {
         String magicText = "foobarbaz";
@@ -308,6 +622,125 @@ public class ApiControllerTest extends RestTest {
         System.out.println(getDoc2.weightedKeywords.size());
     }
 
+    @Test
+    public void testSimilar() throws Exception {
+        Document doc1 = new Document();
+        doc1.plainTextContent = "gnarfle zibbet wombling gnarfle zibbet";
+        doc1.appId = "mcvnweu498fhsdkjf93";
+        Document doc2 = new Document();
+        doc2.plainTextContent = "the gnarfle and the zibbet went wombling";
+        doc2.appId = "xmnvbweiou43hg9834h";
+        Document doc3 = new Document();
+        doc3.plainTextContent = "something completely different";
+        doc3.appId = "pqowieur8934hfg983";
+
+        Document[] docs =
+            uploadInformationElements(new Document[] { doc1, doc2, doc3 },
+                                      Document[].class);
+
+        SearchResults res = getData(infoElemApi + "/" + docs[0].getId() +
+                                    "/similar", SearchResults.class);
+        dumpData("similar results", res);
+
+        // Only the similar document, not the element itself
+        assertEquals(1, res.getNumFound());
+        assertEquals(docs[1].getId(), res.getDocs().get(0).getId());
+        assertTrue(res.queryTerms != null && res.queryTerms.size() > 0);
+
+        res = getData(infoElemApi + "/" + docs[0].getId() +
+                      "/similar?limit=0", SearchResults.class);
+        assertEquals(0, res.getNumFound());
+
+        getDataExpectError(infoElemApi + "/18923742/similar");
+    }
+
+    @Test
+    public void testSimilarCollapsedHits() throws Exception {
+        Document doc1 = new Document();
+        doc1.plainTextContent = "florbish quantle florbish quantle";
+        doc1.appId = "zxcoiuq3487fhsdf";
+        Document doc2 = new Document();
+        doc2.plainTextContent = "the florbish and the quantle met at noon";
+        doc2.appId = "qwpoeiru2387dfhj";
+        Document doc3 = new Document();
+        doc3.plainTextContent = "a florbish was seen near the old mill";
+        doc3.appId = "mnbvcx8734hdfkj";
+
+        Document[] docs =
+            uploadInformationElements(new Document[] { doc1, doc2, doc3 },
+                                      Document[].class);
+
+        // More matches than the limit that all map to the element
+        // itself
+        ReadingEvent[] events = new ReadingEvent[5];
+        for (int i=0; i<events.length; i++) {
+            events[i] = new ReadingEvent();
+            events[i].plainTextContent = "florbish quantle";
+            events[i].targettedResource = makeStub(docs[0], Document.class);
+            events[i].appId = "lkjhgf9823hsd" + i;
+        }
+        uploadEvents(events, ReadingEvent[].class);
+
+        SearchResults res = getData(infoElemApi + "/" + docs[0].getId() +
+                                    "/similar?limit=2", SearchResults.class);
+        dumpData("similar results", res);
+
+        assertEquals(2, res.getNumFound());
+        assertEquals(docs[1].getId(), res.getDocs().get(0).getId());
+        assertEquals(docs[2].getId(), res.getDocs().get(1).getId());
+
+        res = getData(infoElemApi + "/" + docs[0].getId() +
+                      "/similar?limit=1", SearchResults.class);
+        assertEquals(1, res.getNumFound());
+        assertEquals(docs[1].getId(), res.getDocs().get(0).getId());
+    }
+
+    @Test
+    public void testPartitionedIndex() throws Exception {
+        Document doc = new Document();
+        doc.plainTextContent = "a partitioned frobnicator";
+        doc.appId = "cmnvwoi4389hfdsjkh3";
+        Document resDoc = uploadElement(doc, Document.class);
+        Long userId = resDoc.user.getId();
+
+        Path path = Files.createTempDirectory("dime-lucene");
+        try {
+            final SearchIndex index = new SearchIndex(path.toString(),
+                                                      "Standard", true, 2);
+            beanFactory.autowireBean(index);
+
+            // Outside of a web request, so we need a session for
+            // indexing
+            TransactionTemplate tt =
+                new TransactionTemplate(transactionManager);
+            long count = tt.execute(new TransactionCallback<Long>() {
+                    public Long doInTransaction(TransactionStatus status) {
+                        return index.updateIndex();
+                    }
+                });
+            assertTrue(count > 0);
+
+            Path userPath = path.resolve("users").resolve(userId.toString());
+            assertTrue(Files.exists(userPath));
+
+            TextSearchQuery query = new TextSearchQuery("frobnicator");
+            SearchResults res = index.search(query, null, null, -1, userId,
+                                             SearchIndex.WeightType.None);
+            assertEquals(1, res.getNumFound());
+            assertEquals(resDoc.getId(), res.getDocs().get(0).getId());
+
+            // Removing the user just removes their own index
+            index.removeUser(userId);
+            assertFalse(Files.exists(userPath));
+
+            res = index.search(query, null, null, -1, userId,
+                               SearchIndex.WeightType.None);
+            assertEquals(0, res.getNumFound());
+        } finally {
+            IOUtils.rm(path);
+        }
+    }
+
     @Test
     public void testProfiles() throws Exception {
         // Create a document
@@ -494,4 +927,286 @@ public class ApiControllerTest extends RestTest {
         getDataExpectError(profileApi + "/" + id);
     }
 
+    /**
+     * Convert one bucket of an eventhist answer into value -> count.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Long> histCounts(Map bucket) {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map ec : (List<Map>)bucket.get("hist"))
+            counts.put((String)ec.get("value"),
+                       ((Number)ec.get("count")).longValue());
+        return counts;
+    }
+
+    private SearchEvent mkHistEvent(String actor, long start) {
+        SearchEvent event = new SearchEvent();
+        event.query = "hist";
+        event.actor = actor;
+        event.start = new Date(start);
+        return event;
+    }
+
+    @Test
+    public void testEventHist() throws Exception {
+        // Monday 2016-10-24 00:00 UTC
+        long day = 24*3600*1000L;
+        long monday = 1477267200000L;
+        long tuesday = monday + day;
+
+        SearchEvent[] events = new SearchEvent[] {
+            mkHistEvent("A", monday + 10*3600*1000L + 15*60*1000L),
+            mkHistEvent("A", monday + 11*3600*1000L + 30*60*1000L),
+            mkHistEvent("B", tuesday + 9*3600*1000L),
+            mkHistEvent(null, tuesday + 9*3600*1000L)
+        };
+        RandomPassword pw = new RandomPassword();
+        events[2].appId = "hist_" + pw.getPassword(10, false, false);
+        SearchEvent[] outEvents = uploadEvents(events, SearchEvent[].class);
+
+        String histApi = apiUrl("/answer/eventhist");
+
+        Map[] hist = getData(histApi + "?from=" + monday + "&to=" +
+                             (tuesday + day), Map[].class);
+        dumpData("eventhist by day", hist);
+        assertEquals(2, hist.length);
+        assertEquals(1, histCounts(hist[0]).size());
+        assertEquals(2L, (long)histCounts(hist[0]).get("A"));
+        assertEquals(1, histCounts(hist[1]).size());
+        assertEquals(1L, (long)histCounts(hist[1]).get("B"));
+
+        hist = getData(histApi + "?resolution=hour&from=" +
+                       (monday + 10*3600*1000L) + "&to=" +
+                       (monday + 13*3600*1000L), Map[].class);
+        assertEquals(3, hist.length);
+        assertEquals(1L, (long)histCounts(hist[0]).get("A"));
+        assertEquals(1L, (long)histCounts(hist[1]).get("A"));
+        assertTrue(histCounts(hist[2]).isEmpty());
+
+        hist = getData(histApi + "?resolution=week&perc=true&from=" +
+                       monday + "&to=" + (monday + 7*day), Map[].class);
+        assertEquals(1, hist.length);
+        List hist0 = (List)hist[0].get("hist");
+        assertEquals("A", ((Map)hist0.get(0)).get("value"));
+        assertEquals(200.0/3.0,
+                     ((Number)((Map)hist0.get(0)).get("perc")).doubleValue(),
+                     0.001);
+
+        hist = getData(histApi + "?resolution=week&groupBy=@type&from=" +
+                       monday + "&to=" + (monday + 7*day), Map[].class);
+        assertEquals(4L, (long)histCounts(hist[0]).get("SearchEvent"));
+
+        // Deleting an event should decrement its bin
+        deleteData(eventApi + "/" + outEvents[0].getId());
+
+        // Re-sending with the same appId should move the count
+        events[2].actor = "C";
+        uploadEvent(events[2], SearchEvent.class);
+
+        hist = getData(histApi + "?from=" + monday + "&to=" +
+                       (tuesday + day), Map[].class);
+        dumpData("eventhist by day after changes", hist);
+        assertEquals(1L, (long)histCounts(hist[0]).get("A"));
+        assertEquals(1, histCounts(hist[1]).size());
+        assertEquals(1L, (long)histCounts(hist[1]).get("C"));
+
+        getDataExpectError(histApi + "?groupBy=foo");
+        getDataExpectError(histApi + "?resolution=month");
+        getDataExpectError(histApi + "?resolution=hour&from=0");
+    }
+
+    @Test
+    public void testUserStats() throws Exception {
+        final Long userId = getTestUser().getId();
+        UserStats stats = statsDAO.get(userId);
+        assertEquals(0, stats.getEventCount());
+        assertEquals(0, stats.getElemCount());
+
+        Document doc = new Document();
+        doc.uri = "http://www.example.com/stats";
+        doc.plainTextContent = "Some content";
+        Document resDoc = uploadElement(doc, Document.class);
+
+        SearchEvent[] events = new SearchEvent[3];
+        for (int i=0; i<events.length; i++) {
+            events[i] = new SearchEvent();
+            events[i].query = "stats " + i;
+            events[i].actor = i < 2 ? "StatsLogger" : "OtherLogger";
+            events[i].origin = "testhost";
+        }
+        SearchEvent[] outEvents = uploadEvents(events, SearchEvent[].class);
+
+        ReadingEvent re = new ReadingEvent();
+        re.actor = "StatsLogger";
+        re.origin = "testhost";
+        re.targettedResource = makeStub(resDoc, Document.class);
+        ReadingEvent outRe = uploadEvent(re, ReadingEvent.class);
+
+        assertEquals(4, stats.getEventCount());
+        assertEquals(1, stats.getElemCount());
+
+        List<EventCount> hist = stats.actorHistogram();
+        assertEquals(2, hist.size());
+        assertEquals("StatsLogger", hist.get(0).value);
+        assertEquals(3, hist.get(0).count);
+        assertEquals(75.0, hist.get(0).perc, 0.001);
+
+        List<LoggerSeen> loggers =
+            stats.loggersSince(new Date(System.currentTimeMillis() - 60000));
+        assertEquals(2, loggers.size());
+        for (LoggerSeen ls : loggers)
+            if (ls.actor.equals("StatsLogger"))
+                assertEquals(outRe.getId(), ls.eventId);
+
+        // Changing the actor moves the count
+        outEvents[2].actor = "StatsLogger";
+        uploadEvent(outEvents[2], SearchEvent.class);
+        hist = stats.actorHistogram();
+        assertEquals(1, hist.size());
+        assertEquals(4, hist.get(0).count);
+
+        // Removing the element removes its reading event as well
+        deleteData(infoElemApi + "/" + resDoc.getId());
+        deleteData(eventApi + "/" + outEvents[0].getId());
+        assertEquals(2, stats.getEventCount());
+        assertEquals(0, stats.getElemCount());
+        assertEquals(2, stats.actorHistogram().get(0).count);
+
+        // Persisted counters match the in-memory ones
+        statsDAO.flush();
+        new TransactionTemplate(transactionManager).execute
+            (new TransactionCallback<Void>() {
+                public Void doInTransaction(TransactionStatus status) {
+                    UserStats stored = statsRepo.findOne(userId);
+                    assertNotNull(stored);
+                    assertEquals(2, stored.eventCount);
+                    assertEquals(0, stored.elemCount);
+                    assertEquals(2L, (long)stored.actorCounts.get("StatsLogger"));
+                    assertEquals(2, stored.loggers.size());
+                    assertFalse(stored.clean);
+
+                    // As if persisted on a clean shutdown
+                    stored.clean = true;
+                    return null;
+                }
+            });
+
+        // Restart: counters are loaded again, deletes in between
+        // mark the persisted ones as not clean
+        ((Map)ReflectionTestUtils.getField(statsDAO, "stats")).remove(userId);
+        ((Set)ReflectionTestUtils.getField(statsDAO, "markedStale")).remove(userId);
+        deleteData(eventApi + "/" + outEvents[1].getId());
+        assertFalse(statsRepo.findOne(userId).clean);
+
+        stats = statsDAO.get(userId);
+        assertEquals(1, stats.getEventCount());
+        assertEquals(1, stats.actorHistogram().get(0).count);
+    }
+
+    private HealthTrackerEvent mkTrackerEvent(String activityType,
+                                              long start, double value) {
+        HealthTrackerEvent event = new HealthTrackerEvent();
+        event.device = "Charge HR";
+        event.actor = "Fitbit";
+        event.activityType = activityType;
+        event.start = new Date(start);
+        event.value = value;
+        return event;
+    }
+
+    private static void assertPoint(Map point, long count, double min,
+                                    double max, double avg) {
+        assertEquals(count, ((Number)point.get("count")).longValue());
+        assertEquals(min, ((Number)point.get("min")).doubleValue(), 0.001);
+        assertEquals(max, ((Number)point.get("max")).doubleValue(), 0.001);
+        assertEquals(avg, ((Number)point.get("avg")).doubleValue(), 0.001);
+    }
+
+    @Test
+    public void testTimeSeries() throws Exception {
+        // Monday 2016-10-24 10:00 UTC
+        long hour = 3600*1000L;
+        long min = 60*1000L;
+        long ten = 1477267200000L + 10*hour;
+
+        HealthTrackerEvent[] events = new HealthTrackerEvent[] {
+            mkTrackerEvent("heartrate", ten, 60.0),
+            mkTrackerEvent("heartrate", ten + 20*min, 90.0),
+            mkTrackerEvent("heartrate", ten + 40*min, 70.0),
+            mkTrackerEvent("heartrate", ten + 70*min, 100.0),
+            mkTrackerEvent("heartrate", ten + 90*min, 50.0),
+            mkTrackerEvent("steps", ten + 30*min, 1000.0)
+        };
+        HealthTrackerEvent[] outEvents =
+            uploadEvents(events, HealthTrackerEvent[].class);
+
+        PhysicalEvent temp = new PhysicalEvent();
+        temp.type = "temperature";
+        temp.start = new Date(ten + 30*min);
+        temp.value = 21.5;
+        uploadEvent(temp, PhysicalEvent.class);
+
+        String seriesApi = apiUrl("/timeseries?from=" + ten + "&to=" +
+                                  (ten + 2*hour));
+        String heartApi = seriesApi + "&activityType=heartrate";
+
+        Map res = getData(heartApi + "&resolution=hour", Map.class);
+        dumpData("timeseries by hour", res);
+        assertEquals("hour", res.get("resolution"));
+        List<Map> points = (List<Map>)res.get("points");
+        assertEquals(2, points.size());
+        assertPoint(points.get(0), 3, 60.0, 90.0, 220.0/3.0);
+        assertPoint(points.get(1), 2, 50.0, 100.0, 75.0);
+
+        // Few values, so the raw values are given by default
+        res = getData(heartApi, Map.class);
+        assertEquals("raw", res.get("resolution"));
+        points = (List<Map>)res.get("points");
+        assertEquals(5, points.size());
+        assertPoint(points.get(3), 1, 100.0, 100.0, 100.0);
+
+        // All series together
+        res = getData(seriesApi + "&resolution=day", Map.class);
+        points = (List<Map>)res.get("points");
+        assertEquals(1, points.size());
+        assertPoint(points.get(0), 7, 21.5, 1000.0, 1391.5/7.0);
+
+        res = getData(seriesApi + "&type=temperature&resolution=week",
+                      Map.class);
+        points = (List<Map>)res.get("points");
+        assertPoint(points.get(0), 1, 21.5, 21.5, 21.5);
+
+        // Too many points unless downsampled
+        getDataExpectError(heartApi + "&resolution=raw&points=3");
+        res = getData(heartApi + "&resolution=raw&points=3&lttb=true",
+                      Map.class);
+        assertEquals(Boolean.TRUE, res.get("downsampled"));
+        points = (List<Map>)res.get("points");
+        assertEquals(3, points.size());
+        assertPoint(points.get(0), 1, 60.0, 60.0, 60.0);
+        assertPoint(points.get(2), 1, 50.0, 50.0, 50.0);
+
+        // Removing the maximum recounts the bin
+        deleteData(eventApi + "/" + outEvents[1].getId());
+        res = getData(heartApi + "&resolution=hour", Map.class);
+        points = (List<Map>)res.get("points");
+        assertPoint(points.get(0), 2, 60.0, 70.0, 65.0);
+
+        // Changing a value
+        outEvents[0].value = 80.0;
+        uploadEvent(outEvents[0], HealthTrackerEvent.class);
+        res = getData(heartApi + "&resolution=hour", Map.class);
+        points = (List<Map>)res.get("points");
+        assertPoint(points.get(0), 2, 70.0, 80.0, 75.0);
+
+        // Removing all values of a bin removes the bin
+        deleteData(eventApi + "/" + outEvents[3].getId());
+        deleteData(eventApi + "/" + outEvents[4].getId());
+        res = getData(heartApi + "&resolution=hour", Map.class);
+        points = (List<Map>)res.get("points");
+        assertEquals(1, points.size());
+
+        getDataExpectError(heartApi + "&resolution=month");
+        getDataExpectError(heartApi + "&points=0");
+    }
 }
@@ -25,6 +25,12 @@
 package fi.hiit.dime;
 
 import fi.hiit.dime.data.*;
+import fi.hiit.dime.database.DeleteCount;
+import fi.hiit.dime.database.EyeHeatmap;
+import fi.hiit.dime.database.EyeHeatmapRepository;
+import fi.hiit.dime.database.GeoCluster;
+import fi.hiit.dime.database.ReadingSession;
+import fi.hiit.dime.database.ReadingSessionRepository;
 import fi.hiit.dime.util.RandomPassword;
 import static fi.hiit.dime.data.DiMeData.makeStub;
 
@@ -47,6 +53,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.persistence.EntityManagerFactory;
+
 /**
  * @author Mats Sjöberg (mats.sjoberg@helsinki.fi)
  */
@@ -54,6 +62,15 @@ import java.util.Map;
 public class DataControllerTest extends RestTest {
     private static final double DELTA = 1e-10;
 
+    @Autowired
+    private EntityManagerFactory emf;
+
+    @Autowired
+    private ReadingSessionRepository sessionRepo;
+
+    @Autowired
+    private EyeHeatmapRepository heatmapRepo;
+
     /**
        Tests uploading event
        - checks that stubs work (if second upload gets expanded)
@@ -655,6 +672,24 @@ public class DataControllerTest extends RestTest {
         assertEquals(re.pageEyeData.size(), reGet.pageEyeData.size());
         assertEquals(re.pageRects.size(), reGet.pageRects.size());
 
+        // The packed fixation arrays should come back unchanged
+        for (PageEyeData ed : reGet.pageEyeData) {
+            PageEyeData orig = re.pageEyeData.get(ed.pageIndex);
+            assertArrayEquals(orig.Xs, ed.Xs, 0.0);
+            assertArrayEquals(orig.Ys, ed.Ys, 0.0);
+            assertArrayEquals(orig.Ps, ed.Ps, 0.0);
+            assertArrayEquals(orig.startTimes, ed.startTimes);
+            assertArrayEquals(orig.endTimes, ed.endTimes);
+            assertArrayEquals(orig.durations, ed.durations);
+        }
+
+        Rect r = re.pageRects.get(0), rGet = reGet.pageRects.get(0);
+        assertEquals(r.origin.y, rGet.origin.y, 0.0);
+        assertEquals(r.size.width, rGet.size.width);
+        assertEquals(r.readingClass, rGet.readingClass);
+        assertEquals(r.classSource, rGet.classSource);
+        assertEquals(r.scaleFactor, rGet.scaleFactor);
+
         ScientificDocument docGet = (ScientificDocument)reGet.targettedResource;
         assertEquals(doc.authors.size(), docGet.authors.size());
 
@@ -672,6 +707,230 @@ public class DataControllerTest extends RestTest {
         dumpData("SummaryReadingEvent", sreRet);
     }
 
+    private static Rect mkRect(int readingClass, double y, double w,
+                               double h) {
+        Rect r = new Rect();
+        r.origin = new Point(0.0, y);
+        r.size = new Size(w, h);
+        r.readingClass = readingClass;
+        r.floating = true;
+        r.plainTextContent = "some text";
+        return r;
+    }
+
+    private ReadingEvent mkSessionEvent(String sessionId, Document doc,
+                                        double duration, List<Integer> pages,
+                                        Rect... rects) {
+        ReadingEvent re = new ReadingEvent();
+        re.targettedResource = doc;
+        re.sessionId = sessionId;
+        re.start = new Date();
+        re.duration = duration;
+        re.pageNumbers = pages;
+        re.pageRects = Arrays.asList(rects);
+        return re;
+    }
+
+    @Test
+    public void testReadingSession() throws Exception {
+        Document doc = new Document();
+        doc.uri = "http://www.example.com/session.pdf";
+        doc.plainTextContent = "Reading session document";
+        doc = uploadElement(doc, Document.class);
+
+        String sessionId = "session-1.a";
+        String sessionApi = apiUrl("/data/readingsession/" + sessionId);
+
+        ReadingEvent e1Sent =
+            mkSessionEvent(sessionId, doc, 10.0, Arrays.asList(0, 1),
+                           mkRect(Rect.CLASS_VIEWPORT, 0.0, 100.0, 100.0),
+                           mkRect(Rect.CLASS_READ, 0.0, 50.0, 20.0));
+        e1Sent.appId = "session-event-1";
+        uploadEvent(e1Sent, ReadingEvent.class);
+        ReadingEvent e2 = uploadEvent
+            (mkSessionEvent(sessionId, doc, 20.0, Arrays.asList(1),
+                            mkRect(Rect.CLASS_VIEWPORT, 50.0, 100.0, 100.0),
+                            mkRect(Rect.CLASS_READ, 60.0, 50.0, 20.0)),
+             ReadingEvent.class);
+        uploadEvent(mkSessionEvent("session-2", doc, 5.0, Arrays.asList(3),
+                                   mkRect(Rect.CLASS_READ, 0.0, 10.0, 10.0)),
+                    ReadingEvent.class);
+
+        ReadingSession s = getData(sessionApi, ReadingSession.class);
+        assertEquals(sessionId, s.sessionId);
+        assertEquals(doc.getId(), s.elemId);
+        assertEquals(2, s.eventCount);
+        assertEquals(30.0, s.readingTime, DELTA);
+        assertEquals(2, s.pageReadingTime.size());
+        assertEquals(5.0, s.pageReadingTime.get(0), DELTA);
+        assertEquals(25.0, s.pageReadingTime.get(1), DELTA);
+
+        // The viewports overlap and are merged, the read rects don't
+        assertEquals(3, s.rects.size());
+        for (Rect r : s.rects) {
+            assertNull(r.plainTextContent);
+            assertFalse(r.floating);
+        }
+        assertEquals(2000.0/15000.0, s.proportionRead, DELTA);
+        assertEquals(0.0, s.proportionInteresting, DELTA);
+
+        // Re-sending an event unchanged keeps the summary
+        Long userId = getTestUser().getId();
+        Long summaryId = sessionRepo.findSessions(userId, sessionId)
+            .get(0).getId();
+        uploadEvent(e1Sent, ReadingEvent.class);
+        assertEquals(summaryId, sessionRepo.findSessions(userId, sessionId)
+                     .get(0).getId());
+        assertEquals(2, getData(sessionApi, ReadingSession.class).eventCount);
+
+        uploadEvent(mkSessionEvent(sessionId, doc, 3.0, Arrays.asList(0),
+                                   mkRect(Rect.CLASS_INTERESTING, 10.0, 10.0,
+                                          10.0)),
+                    ReadingEvent.class);
+        SummaryReadingEvent summary = new SummaryReadingEvent();
+        summary.targettedResource = doc;
+        summary.sessionId = sessionId;
+        summary.duration = 100.0;
+        summary = uploadEvent(summary, SummaryReadingEvent.class);
+
+        s = getData(sessionApi, ReadingSession.class);
+        assertEquals(3, s.eventCount);
+        assertEquals(33.0, s.readingTime, DELTA);
+        assertEquals(100.0/15000.0, s.proportionInteresting, DELTA);
+        assertEquals(summary.getId(), s.summaryEventId);
+
+        // Removing an event rebuilds the session from the rest
+        deleteData(eventApi + "/" + e2.getId());
+        s = getData(sessionApi, ReadingSession.class);
+        assertEquals(2, s.eventCount);
+        assertEquals(13.0, s.readingTime, DELTA);
+        assertEquals(1000.0/10000.0, s.proportionRead, DELTA);
+        assertEquals(summary.getId(), s.summaryEventId);
+
+        getDataExpectError(apiUrl("/data/readingsession/nosuchsession"));
+    }
+
+    private static PageEyeData mkEyeData(int pageIndex, double scaleFactor,
+                                         double x, double y, long micros) {
+        PageEyeData d = new PageEyeData();
+        d.pageIndex = pageIndex;
+        d.scaleFactor = scaleFactor;
+        d.Xs = new double[] { x, x };
+        d.Ys = new double[] { y, y };
+        d.Ps = new double[] { 1.0, 1.0 };
+        d.startTimes = new long[] { 0, micros };
+        d.endTimes = new long[] { micros, 2*micros };
+        d.durations = new long[] { micros, micros };
+        return d;
+    }
+
+    private static double sum(double[] values) {
+        double sum = 0.0;
+        for (double v : values)
+            sum += v;
+        return sum;
+    }
+
+    @Test
+    public void testHeatmap() throws Exception {
+        Document doc = new Document();
+        doc.uri = "http://www.example.com/heatmap.pdf";
+        doc.plainTextContent = "Heatmap document";
+        doc = uploadElement(doc, Document.class);
+
+        String heatmapApi = infoElemApi + "/" + doc.getId() + "/heatmap";
+
+        // Two fixations of 0.5 s at 100,100 on page 0, and some on
+        // page 1
+        ReadingEvent re1 = new ReadingEvent();
+        re1.targettedResource = doc;
+        re1.pageEyeData = Arrays.asList(mkEyeData(0, 1.0, 100.0, 100.0,
+                                                  500000),
+                                        mkEyeData(1, 1.0, 50.0, 50.0,
+                                                  500000));
+        re1 = uploadEvent(re1, ReadingEvent.class);
+
+        EyeHeatmap h = getData(heatmapApi + "?page=0&resolution=10",
+                               EyeHeatmap.class);
+        assertEquals(doc.getId(), h.elemId);
+        assertEquals(0, h.pageIndex);
+        assertEquals(10, h.resolution);
+        assertEquals(2, h.fixationCount);
+        assertEquals(1.0, h.duration, DELTA);
+        assertEquals(h.columns*h.rows, h.values.length);
+        assertEquals(12, h.columns);
+        assertEquals(12, h.rows);
+        assertEquals(1.0, sum(h.values), DELTA);
+
+        // The fixations cover 85-115 in both directions, so cell 10,10
+        // gets a third of that in each direction
+        assertEquals(1.0/9.0, h.values[10*h.columns + 10], DELTA);
+        assertEquals(1.0/36.0, h.values[8*h.columns + 8], DELTA);
+        assertEquals(0.0, h.values[7*h.columns + 7], DELTA);
+        assertEquals(1.0/9.0, h.maxValue, DELTA);
+
+        // Zoomed in, so each fixation covers only 15 points
+        ReadingEvent re2 = new ReadingEvent();
+        re2.appId = "heatmap-event-2";
+        re2.targettedResource = doc;
+        re2.pageEyeData = Arrays.asList(mkEyeData(0, 2.0, 300.0, 200.0,
+                                                  1000000));
+        uploadEvent(re2, ReadingEvent.class);
+
+        h = getData(heatmapApi + "?page=0&resolution=10", EyeHeatmap.class);
+        assertEquals(4, h.fixationCount);
+        assertEquals(3.0, h.duration, DELTA);
+        assertEquals(31, h.columns);
+        assertEquals(21, h.rows);
+        assertEquals(3.0, sum(h.values), DELTA);
+        assertEquals(1.0/9.0, h.values[10*h.columns + 10], DELTA);
+        assertEquals(0.5, h.values[19*h.columns + 29], DELTA);
+        assertEquals(0.5, h.values[20*h.columns + 30], DELTA);
+        assertEquals(0.5, h.maxValue, DELTA);
+
+        // Default resolution, built from both events at once
+        h = getData(heatmapApi + "?page=0", EyeHeatmap.class);
+        assertEquals(20, h.resolution);
+        assertEquals(4, h.fixationCount);
+        assertEquals(3.0, sum(h.values), DELTA);
+
+        h = getData(heatmapApi + "?page=1&resolution=10", EyeHeatmap.class);
+        assertEquals(2, h.fixationCount);
+        assertEquals(1.0, h.duration, DELTA);
+
+        h = getData(heatmapApi + "?page=5", EyeHeatmap.class);
+        assertEquals(0, h.fixationCount);
+        assertEquals(0, h.values.length);
+
+        // Re-sending an event unchanged keeps the heatmaps, changed
+        // eye data drops them
+        Long userId = getTestUser().getId();
+        Long heatmapId = heatmapRepo.findHeatmaps(userId, doc.getId(), 0, 10)
+            .get(0).getId();
+        uploadEvent(re2, ReadingEvent.class);
+        assertEquals(heatmapId, heatmapRepo.findHeatmaps(userId, doc.getId(),
+                                                         0, 10).get(0).getId());
+        re2.pageEyeData = Arrays.asList(mkEyeData(0, 2.0, 300.0, 200.0,
+                                                  500000));
+        uploadEvent(re2, ReadingEvent.class);
+        assertTrue(heatmapRepo.findHeatmaps(userId, doc.getId(), 0, 10)
+                   .isEmpty());
+        h = getData(heatmapApi + "?page=0&resolution=10", EyeHeatmap.class);
+        assertEquals(4, h.fixationCount);
+        assertEquals(2.0, h.duration, DELTA);
+
+        // Removing an event rebuilds the heatmap from the rest
+        deleteData(eventApi + "/" + re1.getId());
+        h = getData(heatmapApi + "?page=0&resolution=10", EyeHeatmap.class);
+        assertEquals(2, h.fixationCount);
+        assertEquals(1.0, sum(h.values), DELTA);
+        assertEquals(0.0, h.values[10*h.columns + 10], DELTA);
+
+        getDataExpectError(heatmapApi + "?page=0&resolution=1");
+        getDataExpectError(heatmapApi + "?page=-1");
+        getDataExpectError(infoElemApi + "/18923742/heatmap?page=0");
+    }
+
     protected void compareDocs(ScientificDocument doc1, ScientificDocument doc2) {
         assertEquals(doc1.appId, doc2.appId);
         assertEquals(doc1.plainTextContent, doc2.plainTextContent);
@@ -988,6 +1247,345 @@ public class DataControllerTest extends RestTest {
     }
         
 
+    private static class TagCountResult {
+        public String text;
+        public long count;
+    }
+
+    @Test
+    public void testTagFilters() throws Exception {
+        String[][] docTags = { { "red", "green" },
+                               { "red" },
+                               { "green", "blue" },
+                               { } };
+
+        Document[] docs = new Document[docTags.length];
+        for (int i=0; i<docTags.length; i++) {
+            Document doc = new Document();
+            doc.uri = "http://www.example.com/tags" + i;
+            doc.plainTextContent = "Tagged document " + i;
+            for (String t : docTags[i])
+                doc.addTag(new Tag(t));
+            docs[i] = uploadElement(doc, Document.class);
+        }
+
+        Document[] res = getData(infoElemsApi + "?tag=red", Document[].class);
+        assertEquals(2, res.length);
+
+        res = getData(infoElemsApi + "?tags=red,green", Document[].class);
+        assertEquals(1, res.length);
+        assertEquals(docs[0].getId(), res[0].getId());
+
+        res = getData(infoElemsApi + "?tags=red,blue&tagmode=or",
+                      Document[].class);
+        assertEquals(3, res.length);
+
+        res = getData(infoElemsApi + "?tags=red,nosuchtag", Document[].class);
+        assertEquals(0, res.length);
+
+        getDataExpectError(infoElemsApi + "?tags=red&tagmode=xor");
+
+        // Removing a tag updates the filter
+        uploadData(apiUrl("/data/informationelement/" + docs[1].getId() +
+                          "/removetag"), new Tag("red"), Document.class);
+        res = getData(infoElemsApi + "?tag=red", Document[].class);
+        assertEquals(1, res.length);
+
+        // Tagged events are counted too
+        SearchEvent event = new SearchEvent();
+        event.query = "tagged query";
+        event.addTag(new Tag("green"));
+        uploadEvent(event, SearchEvent.class);
+
+        SearchEvent[] events = getData(eventsApi + "?tag=green",
+                                       SearchEvent[].class);
+        assertEquals(1, events.length);
+
+        TagCountResult[] counts = getData(apiUrl("/data/tags"),
+                                          TagCountResult[].class);
+        assertEquals(3, counts.length);
+        assertEquals("green", counts[0].text);
+        assertEquals(3, counts[0].count);
+
+        counts = getData(apiUrl("/data/tags?type=events"),
+                         TagCountResult[].class);
+        assertEquals(1, counts.length);
+        assertEquals(1, counts[0].count);
+
+        counts = getData(apiUrl("/data/tags?limit=1"), TagCountResult[].class);
+        assertEquals(1, counts.length);
+    }
+
+    @Test
+    public void testRangeAndInFilters() throws Exception {
+        Document[] docs = new Document[4];
+        for (int i=0; i<docs.length; i++) {
+            Document doc = new Document();
+            doc.uri = "http://www.example.com/range" + i;
+            doc.plainTextContent = "Range document " + i;
+            doc.mimeType = i % 2 == 0 ? "text/plain" : "text/html";
+            docs[i] = uploadElement(doc, Document.class);
+        }
+
+        Document[] res = getData(infoElemsApi + "?id.in=" + docs[0].getId() +
+                                 "," + docs[2].getId(), Document[].class);
+        assertEquals(2, res.length);
+
+        res = getData(infoElemsApi + "?id.from=" + docs[1].getId() +
+                      "&id.to=" + docs[2].getId(), Document[].class);
+        assertEquals(2, res.length);
+
+        res = getData(infoElemsApi + "?mimeType.in=text/html,text/csv" +
+                      "&id.from=" + docs[2].getId(), Document[].class);
+        assertEquals(1, res.length);
+        assertEquals(docs[3].getId(), res[0].getId());
+
+        res = getData(infoElemsApi + "?timeModified.from=" +
+                      docs[0].timeModified.getTime(), Document[].class);
+        assertEquals(4, res.length);
+
+        // Ranges only for numbers and dates, values must parse and
+        // an alias cannot be combined with the filter it stands for
+        getDataExpectError(infoElemsApi + "?uri.from=a");
+        getDataExpectError(infoElemsApi + "?id.in=1,foo");
+        getDataExpectError(eventsApi + "?after=0&start.from=0");
+    }
+
+    protected SearchEvent mkLocatedEvent(String actor, Double lat,
+                                         Double lon) {
+        SearchEvent event = mkSearchEvent(new Date(), null, 1.0);
+        event.actor = actor;
+        if (lat != null) {
+            event.location = new Location();
+            event.location.latitude = lat;
+            event.location.longitude = lon;
+        }
+        return event;
+    }
+
+    @Test
+    public void testLocationFilters() throws Exception {
+        SearchEvent[] events = new SearchEvent[] {
+            mkLocatedEvent("Helsinki", 60.1699, 24.9384),
+            mkLocatedEvent("Espoo", 60.2055, 24.6559),
+            mkLocatedEvent("Stockholm", 59.3293, 18.0686),
+            mkLocatedEvent("Sydney", -33.8688, 151.2093),
+            mkLocatedEvent("Nowhere", null, null)
+        };
+        uploadEvents(events, SearchEvent[].class);
+
+        SearchEvent[] res = getData(eventsApi + "?bbox=59.9,24.5,60.4,25.2",
+                                    SearchEvent[].class);
+        assertEquals(2, res.length);
+
+        res = getData(eventsApi + "?bbox=-90,-180,90,180",
+                      SearchEvent[].class);
+        assertEquals(4, res.length);
+
+        res = getData(eventsApi + "?near=60.1699,24.9384&radius=5000",
+                      SearchEvent[].class);
+        assertEquals(1, res.length);
+        assertEquals("Helsinki", res[0].actor);
+        assertEquals(60.1699, res[0].location.latitude, DELTA);
+
+        res = getData(eventsApi + "?near=60.1699,24.9384&radius=20000",
+                      SearchEvent[].class);
+        assertEquals(2, res.length);
+
+        res = getData(eventsApi + "?near=60.1699,24.9384&radius=500000" +
+                      "&actor.in=Stockholm,Sydney", SearchEvent[].class);
+        assertEquals(1, res.length);
+        assertEquals("Stockholm", res[0].actor);
+
+        // Circle and box combined
+        res = getData(eventsApi + "?near=60.1699,24.9384&radius=500000" +
+                      "&bbox=59,24,61,26", SearchEvent[].class);
+        assertEquals(2, res.length);
+
+        // Clusters, by default the whole planet is covered by cells
+        // of one character
+        GeoCluster[] clusters =
+            getData(eventsApi + "/clusters", GeoCluster[].class);
+        assertEquals(2, clusters.length);
+        assertEquals("u", clusters[0].geohash);
+        assertEquals(3, clusters[0].count);
+        assertEquals("r", clusters[1].geohash);
+        assertEquals(1, clusters[1].count);
+        assertEquals(-33.8688, clusters[1].latitude, DELTA);
+        assertEquals(151.2093, clusters[1].longitude, DELTA);
+
+        clusters = getData(eventsApi + "/clusters?precision=2",
+                           GeoCluster[].class);
+        assertEquals(3, clusters.length);
+        GeoCluster c = clusters[0];
+        assertEquals("ud", c.geohash);
+        assertEquals(2, c.count);
+        assertEquals((60.1699 + 60.2055)/2, c.latitude, DELTA);
+        assertTrue(c.minLatitude <= c.latitude);
+        assertTrue(c.latitude <= c.maxLatitude);
+        assertTrue(c.minLongitude <= c.longitude);
+        assertTrue(c.longitude <= c.maxLongitude);
+
+        clusters = getData(eventsApi + "/clusters?bbox=59.9,24.5,60.4,25.2" +
+                           "&maxClusters=64", GeoCluster[].class);
+        long count = 0;
+        for (GeoCluster cl : clusters) {
+            assertTrue(cl.geohash.length() > 2);
+            count += cl.count;
+        }
+        assertEquals(2, count);
+
+        getDataExpectError(eventsApi + "?bbox=1,2,3");
+        getDataExpectError(eventsApi + "?bbox=61,24,60,25");
+        getDataExpectError(eventsApi + "?near=60,24");
+        getDataExpectError(eventsApi + "/clusters?precision=13");
+        getDataExpectError(infoElemsApi + "?bbox=59,24,61,26");
+    }
+
+    @Test
+    public void testBulkDelete() throws Exception {
+        ScientificDocument[] docs = new ScientificDocument[3];
+        for (int i=0; i<docs.length; i++) {
+            ScientificDocument doc = new ScientificDocument();
+            doc.uri = "http://www.example.com/bulk" + i;
+            doc.plainTextContent = "Bulk document " + i;
+            doc.keywords = Arrays.asList("bulk", "delete");
+            Person author = new Person();
+            author.firstName = "Anna";
+            author.lastName = "Author" + i;
+            doc.authors = Arrays.asList(author);
+            doc.addTag(new Tag(i < 2 ? "bulk" : "keep"));
+            docs[i] = uploadElement(doc, ScientificDocument.class);
+        }
+
+        SearchEvent search = new SearchEvent();
+        search.query = "bulk query";
+        SearchEvent searchOut = uploadEvent(search, SearchEvent.class);
+
+        FeedbackEvent[] feedback = new FeedbackEvent[docs.length];
+        for (int i=0; i<docs.length; i++) {
+            feedback[i] = mkFeedback(0.5, docs[i], searchOut);
+            feedback[i].addTag(new Tag("feedback"));
+        }
+        feedback = uploadEvents(feedback, FeedbackEvent[].class);
+
+        ReadingEvent reading = new ReadingEvent();
+        reading.targettedResource = docs[0];
+        reading.pageNumbers = Arrays.asList(1, 2);
+        PageEyeData eyeData = new PageEyeData();
+        eyeData.Xs = new double[] { 1.0, 2.0 };
+        eyeData.Ys = new double[] { 3.0, 4.0 };
+        eyeData.Ps = new double[] { 5.0, 6.0 };
+        eyeData.pageIndex = 0;
+        reading.pageEyeData = Arrays.asList(eyeData);
+        uploadEvent(reading, ReadingEvent.class);
+
+        // Elements are deleted with the events targetting them
+        DeleteCount count =
+            deleteData(infoElemsApi + "?tag=bulk", DeleteCount.class);
+        assertEquals(2, count.informationElements);
+        assertEquals(3, count.events);
+
+        getDataExpectError(infoElemApi + "/" + docs[0].getId());
+        getDataExpectError(eventApi + "/" + feedback[1].getId());
+        getData(infoElemApi + "/" + docs[2].getId(), ScientificDocument.class);
+        getData(eventApi + "/" + feedback[2].getId(), FeedbackEvent.class);
+
+        Event[] events = getData(eventsApi + "?tag=feedback", Event[].class);
+        assertEquals(1, events.length);
+
+        // Deleting a referenced event clears the reference
+        count = deleteData(eventsApi + "?id=" + searchOut.getId(),
+                           DeleteCount.class);
+        assertEquals(1, count.events);
+        FeedbackEvent left = getData(eventApi + "/" + feedback[2].getId(),
+                                     FeedbackEvent.class);
+        assertNull(left.relatedEvent);
+
+        // More events than fit in one chunk
+        int numEvents = 600;
+        for (int i=0; i<numEvents; i+=200) {
+            SearchEvent[] batch = new SearchEvent[200];
+            for (int j=0; j<batch.length; j++) {
+                batch[j] = new SearchEvent();
+                batch[j].actor = "BulkActor";
+                batch[j].query = "bulk " + (i+j);
+            }
+            uploadEvents(batch, SearchEvent[].class);
+        }
+
+        // Read an element into the second-level cache, the bulk
+        // delete shouldn't evict it
+        getData(infoElemApi + "/" + docs[2].getId(), ScientificDocument.class);
+        assertTrue(emf.getCache().contains(InformationElement.class,
+                                           docs[2].getId()));
+
+        count = deleteData(eventsApi + "?actor=BulkActor", DeleteCount.class);
+        assertEquals(numEvents, count.events);
+        assertEquals(0, count.informationElements);
+        assertTrue(emf.getCache().contains(InformationElement.class,
+                                           docs[2].getId()));
+
+        events = getData(eventsApi + "?actor=BulkActor", Event[].class);
+        assertEquals(0, events.length);
+
+        // Filters are required, and checked as for GET
+        deleteData(eventsApi, ApiError.class);
+        deleteData(eventsApi + "?foo=bar", ApiError.class);
+    }
+
+    /**
+       Tests re-sending objects with the same appId, which replaces
+       the stored objects, including their element collections and
+       tags.
+    */
+    @Test
+    public void testUpsert() throws Exception {
+        RandomPassword rand = new RandomPassword();
+
+        WebDocument doc = new WebDocument();
+        doc.appId = "upsertdoc" + rand.getPassword(10, false, false);
+        doc.uri = "http://www.example.com/upsert";
+        doc.plainTextContent = "first version";
+        doc.frequentTerms = Arrays.asList("alpha", "beta");
+
+        DesktopEvent event = new DesktopEvent();
+        event.appId = "upsertevent" + rand.getPassword(10, false, false);
+        event.actor = "UpsertTest";
+        event.start = new Date();
+        event.targettedResource = doc;
+
+        DesktopEvent out1 = uploadEvent(event, DesktopEvent.class);
+        dumpData("testUpsert: first upload", out1);
+        Long docId = out1.targettedResource.getId();
+
+        uploadData(apiUrl("/data/informationelement/" + docId + "/addtag"),
+                   new Tag("foo"), WebDocument.class);
+        assertTrue(getElement(docId, WebDocument.class).hasTags());
+
+        // Re-send with changes
+        doc.plainTextContent = "second version";
+        doc.frequentTerms = Arrays.asList("gamma");
+        event.actor = "UpsertTest2";
+
+        DesktopEvent out2 = uploadEvent(event, DesktopEvent.class);
+        dumpData("testUpsert: second upload", out2);
+        assertEquals(out1.getId(), out2.getId());
+        assertEquals(docId, out2.targettedResource.getId());
+
+        WebDocument getDoc = getElement(docId, WebDocument.class);
+        assertEquals("second version", getDoc.plainTextContent);
+        assertEquals(Arrays.asList("gamma"), getDoc.frequentTerms);
+        assertFalse(getDoc.hasTags());
+
+        DesktopEvent[] events = getData(eventsApi + "?appid=" + event.appId,
+                                        DesktopEvent[].class);
+        assertEquals(1, events.length);
+        assertEquals(out1.getId(), events[0].getId());
+        assertEquals("UpsertTest2", events[0].actor);
+        assertEquals(docId, events[0].targettedResource.getId());
+    }
+
     @Test
     public void testRelatedEvent() throws Exception {
         // Let's pretend we searched for something
@@ -1124,6 +1722,92 @@ public class DataControllerTest extends RestTest {
         
     }
 
+    @Test
+    public void testEventPaging() throws Exception {
+        final int n = 7;
+
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.HOUR, -1);
+
+        SearchEvent[] events = new SearchEvent[n];
+        for (int i=0; i<n; i++) {
+            events[i] = mkSearchEvent(cal.getTime(), null, 10.0);
+            cal.add(Calendar.MINUTE, 5);
+        }
+        uploadEvents(events, SearchEvent[].class);
+
+        // Page through by start time, three at a time
+        List<SearchEvent> all = new ArrayList<SearchEvent>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            String url = eventsApi + "?limit=3&orderBy=start" +
+                (cursor != null ? "&cursor=" + cursor : "");
+            ResponseEntity<SearchEvent[]> res =
+                getRest().getForEntity(url, SearchEvent[].class);
+            assertSuccessful(res);
+
+            all.addAll(Arrays.asList(res.getBody()));
+            cursor = res.getHeaders().getFirst("X-Next-Cursor");
+            pages++;
+        } while (cursor != null && pages < 10);
+
+        assertEquals(3, pages);
+        assertEquals(n, all.size());
+        for (int i=1; i<n; i++)
+            assertTrue(all.get(i-1).start.before(all.get(i).start));
+
+        // Filters combine with paging
+        SearchEvent[] filtered =
+            getData(eventsApi + "?limit=2&after=" + events[4].start.getTime(),
+                    SearchEvent[].class);
+        assertEquals(2, filtered.length);
+
+        // Information elements can't be ordered by start
+        getDataExpectError(infoElemsApi + "?orderBy=start");
+        getDataExpectError(eventsApi + "?limit=0");
+        getDataExpectError(eventsApi + "?cursor=nonsense");
+    }
+
+    @Test
+    public void testEventStreaming() throws Exception {
+        final int n = 12;
+
+        Calendar cal = Calendar.getInstance();
+        SearchEvent[] events = new SearchEvent[n];
+        for (int i=0; i<n; i++) {
+            events[i] = mkSearchEvent(cal.getTime(), null, 10.0);
+            events[i].query = "query " + i;
+            cal.add(Calendar.MINUTE, 1);
+        }
+        uploadEvents(events, SearchEvent[].class);
+
+        SearchEvent[] streamed = getData(eventsApi + "?stream=true",
+                                         SearchEvent[].class);
+        assertEquals(n, streamed.length);
+
+        // Filtering and ordering work the same as without streaming
+        SearchEvent[] ordered =
+            getData(eventsApi + "?stream=true&orderBy=start&limit=5" +
+                    "&after=" + events[2].start.getTime(),
+                    SearchEvent[].class);
+        assertEquals(5, ordered.length);
+        for (int i=0; i<5; i++)
+            assertEquals("query " + (i+2), ordered[i].query);
+
+        Document doc = new Document();
+        doc.uri = "http://www.example.com/stream";
+        doc.plainTextContent = "Streamed document";
+        uploadElement(doc, Document.class);
+
+        Document[] docs = getData(infoElemsApi + "?stream=true&uri=" +
+                                  doc.uri, Document[].class);
+        assertEquals(1, docs.length);
+        assertEquals(doc.plainTextContent, docs[0].plainTextContent);
+
+        getDataExpectError(eventsApi + "?stream=true&foo=bar");
+    }
+
     @Test
     public void testIntentModelEvent() throws Exception {
         IntentModelEvent event = new IntentModelEvent();
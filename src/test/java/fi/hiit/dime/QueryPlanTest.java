@@ -0,0 +1,322 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime;
+
+import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.data.*;
+import fi.hiit.dime.database.EventRepository;
+import fi.hiit.dime.database.InfoElemRepository;
+import fi.hiit.dime.database.KeysetPage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.StringUtils;
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sql.DataSource;
+
+/**
+   Runs the repository queries against the H2 database, and checks
+   with EXPLAIN that none of the SQL statements they generate
+   regresses to a full table scan, and that listings don't issue
+   one extra query per returned object.
+*/
+@RunWith(SpringJUnit4ClassRunner.class)
+public class QueryPlanTest extends RestTest {
+    @Autowired
+    private EventRepository eventRepo;
+
+    @Autowired
+    private InfoElemRepository infoElemRepo;
+
+    @Autowired
+    private DataSource dataSource;
+
+    /**
+       Run the given query with H2's query statistics turned on, and
+       return the plans of all SELECT statements that did a full
+       table scan.
+    */
+    private List<String> tableScans(Runnable query) throws SQLException {
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+
+        // Turning the statistics off clears them
+        jdbc.execute("SET QUERY_STATISTICS FALSE");
+        jdbc.execute("SET QUERY_STATISTICS TRUE");
+        List<String> statements;
+        try {
+            query.run();
+            statements = jdbc.queryForList
+                ("select SQL_STATEMENT from " +
+                 "INFORMATION_SCHEMA.QUERY_STATISTICS", String.class);
+        } finally {
+            jdbc.execute("SET QUERY_STATISTICS FALSE");
+        }
+
+        List<String> scans = new ArrayList<String>();
+        Connection conn = dataSource.getConnection();
+        try {
+            for (String sql : statements) {
+                if (!sql.trim().toLowerCase().startsWith("select"))
+                    continue;
+
+                PreparedStatement ps = conn.prepareStatement("EXPLAIN " + sql);
+                // H2 requires all parameters to be set, the plan
+                // doesn't depend on their values
+                int n = ps.getParameterMetaData().getParameterCount();
+                for (int i=1; i<=n; i++)
+                    ps.setObject(i, null);
+
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    String plan = rs.getString(1);
+                    if (plan.contains(".tableScan"))
+                        scans.add(plan);
+                }
+                ps.close();
+            }
+        } finally {
+            conn.close();
+        }
+        return scans;
+    }
+
+    /**
+       Run the given query with H2's query statistics turned on, and
+       return the number of SELECT statements executed.
+    */
+    private long selectCount(Runnable query) {
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+
+        jdbc.execute("SET QUERY_STATISTICS FALSE");
+        jdbc.execute("SET QUERY_STATISTICS TRUE");
+        try {
+            query.run();
+            Long count = jdbc.queryForObject
+                ("select sum(EXECUTION_COUNT) from " +
+                 "INFORMATION_SCHEMA.QUERY_STATISTICS where " +
+                 "lower(SQL_STATEMENT) like 'select%'", Long.class);
+            return count == null ? 0 : count;
+        } finally {
+            jdbc.execute("SET QUERY_STATISTICS FALSE");
+        }
+    }
+
+    private void assertNoTableScan(String name, Runnable query)
+        throws SQLException
+    {
+        List<String> scans = tableScans(query);
+        assertTrue(name + " does a full table scan:\n" +
+                   StringUtils.collectionToDelimitedString(scans, "\n"),
+                   scans.isEmpty());
+    }
+
+    @Test
+    public void testRepositoryQueries() throws Exception {
+        Document doc = new Document();
+        doc.uri = "http://www.example.com/plan";
+        doc.plainTextContent = "Query plans";
+        doc.appId = "queryplantest_doc";
+        doc.addTag(new Tag("plan"));
+        final Document resDoc = uploadElement(doc, Document.class);
+        final User user = resDoc.user;
+
+        final Date since = new Date(0);
+        final PageRequest firstTen = new PageRequest(0, 10);
+
+        assertNoTableScan("findOneByIdAndUser", new Runnable() {
+                public void run() {
+                    eventRepo.findOneByIdAndUser(resDoc.getId(), user);
+                    infoElemRepo.findOneByIdAndUser(resDoc.getId(), user);
+                }});
+
+        assertNoTableScan("findByUser", new Runnable() {
+                public void run() {
+                    eventRepo.findByUser(user);
+                    infoElemRepo.findByUser(user);
+                    eventRepo.countByUser(user);
+                    infoElemRepo.countByUser(user);
+                }});
+
+        assertNoTableScan("findByAppIdAndUser", new Runnable() {
+                public void run() {
+                    eventRepo.findByAppIdAndUserOrderByTimeModifiedDesc
+                        ("foo", user);
+                    infoElemRepo.findByAppIdAndUserOrderByTimeModifiedDesc
+                        (resDoc.appId, user);
+                }});
+
+        assertNoTableScan("findByUserOrderByStartDesc", new Runnable() {
+                public void run() {
+                    eventRepo.findByUserOrderByStartDesc(user);
+                    eventRepo.findByUserOrderByStartDesc(user, firstTen);
+                }});
+
+        assertNoTableScan("findByUserAndTimeModifiedIsAfter", new Runnable() {
+                public void run() {
+                    eventRepo.findByUserAndTimeModifiedIsAfterOrderByStartDesc
+                        (user, since);
+                }});
+
+        assertNoTableScan("findByTargettedResourceAndUser", new Runnable() {
+                public void run() {
+                    eventRepo.findByTargettedResourceAndUser(resDoc, user);
+                }});
+
+        assertNoTableScan("actorHistogram", new Runnable() {
+                public void run() {
+                    eventRepo.actorHistogram(user);
+                }});
+
+        assertNoTableScan("recentSearchQueries", new Runnable() {
+                public void run() {
+                    eventRepo.recentSearchQueries(user, firstTen);
+                }});
+
+        assertNoTableScan("findByUserOrderByTimeModifiedDesc", new Runnable() {
+                public void run() {
+                    infoElemRepo.findByUserOrderByTimeModifiedDesc(user,
+                                                                   firstTen);
+                }});
+
+        assertNoTableScan("find by tag", new Runnable() {
+                public void run() {
+                    Map<String, String> params = new HashMap<String, String>();
+                    params.put("tag", "plan");
+                    eventRepo.find(user, params);
+                    infoElemRepo.find(user, params);
+                }});
+
+        assertNoTableScan("find with keyset page", new Runnable() {
+                public void run() {
+                    for (String orderBy : new String[] { "start",
+                                                         "timeModified",
+                                                         "id" }) {
+                        Map<String, String> params =
+                            new HashMap<String, String>();
+                        params.put("orderBy", orderBy);
+                        params.put("limit", "10");
+                        KeysetPage page = KeysetPage.fromParams(params, true);
+                        eventRepo.find(user, params, page);
+                    }
+                }});
+
+        assertNoTableScan("find by area", new Runnable() {
+                public void run() {
+                    Map<String, String> params = new HashMap<String, String>();
+                    params.put("bbox", "60.1,24.8,60.3,25.1");
+                    eventRepo.find(user, params);
+                    eventRepo.findClusters(user, params, 5);
+                    params.put("near", "60.17,24.94");
+                    params.put("radius", "1000");
+                    eventRepo.find(user, params);
+                }});
+    }
+
+    @Test
+    public void testListingStatementCount() throws Exception {
+        final int numDocs = 10;
+        final int numEvents = 1000;
+        final int uploadBatch = 100;
+
+        ScientificDocument[] docs = new ScientificDocument[numDocs];
+        for (int i=0; i<numDocs; i++) {
+            ScientificDocument doc = createScientificDocument(randomText);
+            doc.uri = "http://www.example.com/n_plus_one/" + i;
+            doc.addTag(new Tag("doc" + i));
+            docs[i] = uploadElement(doc, ScientificDocument.class);
+        }
+
+        for (int i=0; i<numEvents; i+=uploadBatch) {
+            ReadingEvent[] events = new ReadingEvent[uploadBatch];
+            for (int j=0; j<uploadBatch; j++) {
+                ReadingEvent re = new ReadingEvent();
+                re.targettedResource =
+                    DiMeData.makeStub(docs[(i+j) % numDocs],
+                                      ScientificDocument.class);
+                re.pageNumbers = Arrays.asList(i, j);
+                re.pageLabels = Arrays.asList("n+1");
+
+                PageEyeData ed = new PageEyeData();
+                ed.Xs = new double[] { 1.0, 2.0 };
+                ed.Ys = new double[] { 1.0, 2.0 };
+                ed.Ps = new double[] { 1.0, 2.0 };
+                ed.startTimes = new long[] { 1l, 2l };
+                ed.endTimes = new long[] { 2l, 3l };
+                ed.durations = new long[] { 1l, 1l };
+                re.pageEyeData = Arrays.asList(ed);
+
+                Rect r = new Rect();
+                r.origin = new Point(0.0, 1.0);
+                r.size = new Size(10.0, 10.0);
+                re.pageRects = Arrays.asList(r);
+
+                re.addTag(new Tag("event" + (j % 3)));
+                events[j] = re;
+            }
+            uploadEvents(events, ReadingEvent[].class);
+        }
+
+        final int[] listed = new int[1];
+        long small = selectCount(new Runnable() {
+                public void run() {
+                    listed[0] = listEvents(10);
+                }});
+        assertEquals(10, listed[0]);
+
+        long large = selectCount(new Runnable() {
+                public void run() {
+                    listed[0] = listEvents(numEvents);
+                }});
+        assertEquals(numEvents, listed[0]);
+
+        assertEquals("number of SELECTs grows with the listing size",
+                     small, large);
+    }
+
+    private int listEvents(int limit) {
+        ResponseEntity<ReadingEvent[]> res =
+            getRest().getForEntity(eventsApi + "?orderBy=id&limit=" + limit,
+                                   ReadingEvent[].class);
+        assertSuccessful(res);
+        return res.getBody().length;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime;
+
+import fi.hiit.dime.data.Point;
+import fi.hiit.dime.data.Rect;
+import fi.hiit.dime.data.Size;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RectTest {
+    private Rect makeRect(int page, double x, double y, double w, double h) {
+        Rect r = new Rect();
+        r.pageIndex = page;
+        r.readingClass = Rect.CLASS_READ;
+        r.classSource = Rect.CLASSSOURCE_SMI;
+        r.origin = new Point(x, y);
+        r.size = new Size(w, h);
+        r.floating = true;
+        r.scaleFactor = 1.5;
+        r.unixt = Arrays.asList((long)(x*1000));
+        return r;
+    }
+
+    @Test
+    public void testPack() {
+        List<Rect> rects = new ArrayList<Rect>();
+        rects.add(makeRect(0, 10.0, 20.0, 300.0, 12.5));
+        Rect r = makeRect(3, 0.0, 453.5, 612.0, 338.5);
+        r.plainTextContent = "Ääkköset ja muut";
+        r.attnVal = 0.25;
+        r.floating = null;
+        r.scaleFactor = null;
+        r.unixt = null;
+        rects.add(r);
+
+        List<Rect> res = Rect.unpack(Rect.pack(rects));
+        assertEquals(2, res.size());
+
+        Rect a = res.get(0);
+        assertEquals(10.0, a.origin.x, 0.0);
+        assertEquals(20.0, a.origin.y, 0.0);
+        assertEquals(300.0, a.size.width, 0.0);
+        assertEquals(12.5, a.size.height, 0.0);
+        assertEquals(Rect.CLASS_READ, a.readingClass);
+        assertEquals(Rect.CLASSSOURCE_SMI, a.classSource);
+        assertEquals(Boolean.TRUE, a.floating);
+        assertEquals(1.5, a.scaleFactor, 0.0);
+        assertNull(a.attnVal);
+        assertNull(a.plainTextContent);
+        assertEquals(Arrays.asList(10000l), a.unixt);
+
+        Rect b = res.get(1);
+        assertEquals(3, b.pageIndex);
+        assertEquals("Ääkköset ja muut", b.plainTextContent);
+        assertEquals(0.25, b.attnVal, 0.0);
+        assertNull(b.floating);
+        assertNull(b.scaleFactor);
+        assertNull(b.unixt);
+
+        assertNull(Rect.pack(null));
+        assertNull(Rect.unpack(null));
+        assertTrue(Rect.unpack(Rect.pack(new ArrayList<Rect>())).isEmpty());
+    }
+
+    @Test
+    public void testUnionOverlapping() {
+        List<Rect> rects = new ArrayList<Rect>();
+        rects.add(makeRect(0, 0.0, 0.0, 10.0, 10.0));
+        rects.add(makeRect(0, 50.0, 50.0, 10.0, 10.0));
+        rects.add(makeRect(1, 5.0, 5.0, 10.0, 10.0));
+        // Overlaps the first one, and after growing also the second
+        Rect r = makeRect(0, 5.0, 5.0, 50.0, 10.0);
+        r.scaleFactor = 2.0;
+        rects.add(r);
+        rects.add(makeRect(0, 55.0, 15.0, 5.0, 40.0));
+
+        List<Rect> res = Rect.unionOverlapping(rects);
+        assertEquals(2, res.size());
+
+        Rect u = res.get(0);
+        assertEquals(0, u.pageIndex);
+        assertEquals(0.0, u.origin.x, 0.0);
+        assertEquals(0.0, u.origin.y, 0.0);
+        assertEquals(60.0, u.size.width, 0.0);
+        assertEquals(60.0, u.size.height, 0.0);
+        assertEquals(Boolean.FALSE, u.floating);
+        assertEquals(-1.0, u.scaleFactor, 0.0);
+        assertEquals(4, u.unixt.size());
+
+        // Rects on other pages are never united
+        assertEquals(1, res.get(1).pageIndex);
+        assertEquals(10.0, res.get(1).size.width, 0.0);
+    }
+}
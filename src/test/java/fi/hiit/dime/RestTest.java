@@ -113,6 +113,13 @@ public abstract class RestTest {
         userService.removeAllForUserId(testUser.getId());
     }
 
+    /**
+     * Returns the user the REST API calls are made as.
+     */
+    public User getTestUser() {
+        return testUser;
+    }
+
     /**
      * Returns RestTemplate object for performing REST API calls.
      */
@@ -248,14 +255,14 @@ public abstract class RestTest {
         List<PageEyeData> eyeData = new ArrayList<PageEyeData>();
         for (int i=0; i<numEyeData; i++) {
             PageEyeData ed = new PageEyeData();
-            ed.Xs = Arrays.asList(i*0.0, i*1.5, i*2.2);
-            ed.Ys = Arrays.asList(i*0.0, i*1.5, i*2.2);
-            ed.Ps = Arrays.asList(i*0.0, i*1.5, i*2.2);
+            ed.Xs = new double[] { i*0.0, i*1.5, i*2.2 };
+            ed.Ys = new double[] { i*0.0, i*1.5, i*2.2 };
+            ed.Ps = new double[] { i*0.0, i*1.5, i*2.2 };
 
-            ed.startTimes = Arrays.asList(i*1l, i*2l, i*4l);
-            ed.endTimes = Arrays.asList(i+1l, i*2+1l, i*4+2l);
+            ed.startTimes = new long[] { i*1l, i*2l, i*4l };
+            ed.endTimes = new long[] { i+1l, i*2+1l, i*4+2l };
 
-            ed.durations = Arrays.asList(1l, 1l, 2l);
+            ed.durations = new long[] { 1l, 1l, 2l };
 
             ed.pageIndex = i;
 
@@ -368,6 +375,19 @@ public abstract class RestTest {
         }
     }
 
+    protected <T> T deleteData(String apiUrl, Class<T> responseType) {
+        ResponseEntity<T> res =
+            getRest().exchange(apiUrl, HttpMethod.DELETE, null, responseType);
+
+        // Check that HTTP was as expected
+        if (responseType == ApiError.class)
+            assertClientError(res);
+        else
+            assertSuccessful(res);
+
+        return res.getBody();
+    }
+
     // Downloading helpers
 
     protected ApiError getDataExpectError(String apiUrl) {
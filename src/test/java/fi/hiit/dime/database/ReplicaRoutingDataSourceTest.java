@@ -0,0 +1,212 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.database;
+
+import static org.junit.Assert.*;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+
+/**
+   Routing between two in-memory H2 databases, each of which has a
+   WHO table telling which database answered.
+*/
+public class ReplicaRoutingDataSourceTest {
+    private static final long MAX_LAG = 5000;
+    private static final long READ_YOUR_WRITES = 300;
+
+    private JdbcDataSource primary;
+    private JdbcDataSource replica;
+    private ReplicaRoutingDataSource routing;
+    private JdbcTemplate jdbc;
+    private TransactionTemplate readTx;
+    private TransactionTemplate writeTx;
+
+    private static JdbcDataSource makeDatabase(String name) {
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        ds.setUser("sa");
+
+        JdbcTemplate jdbc = new JdbcTemplate(ds);
+        jdbc.execute("create table REPLICA_HEARTBEAT " +
+                     "(ID int primary key, TIME_MILLIS bigint)");
+        jdbc.execute("create table WHO (NAME varchar(16))");
+        jdbc.update("insert into WHO values (?)", name);
+        jdbc.execute("create table DATA (ID int)");
+        return ds;
+    }
+
+    @Before
+    public void setup() {
+        primary = makeDatabase("primary");
+        replica = makeDatabase("replica");
+
+        routing = new ReplicaRoutingDataSource(primary, replica, MAX_LAG,
+                                               READ_YOUR_WRITES);
+        routing.afterPropertiesSet();
+
+        DataSource ds = new LazyConnectionDataSourceProxy(routing);
+        jdbc = new JdbcTemplate(ds);
+
+        DataSourceTransactionManager tm = new DataSourceTransactionManager(ds);
+        writeTx = new TransactionTemplate(tm);
+        readTx = new TransactionTemplate(tm);
+        readTx.setReadOnly(true);
+
+        SecurityContextHolder.getContext().setAuthentication
+            (new UsernamePasswordAuthenticationToken("alice", null));
+    }
+
+    @After
+    public void shutdown() {
+        SecurityContextHolder.clearContext();
+        new JdbcTemplate(primary).execute("drop all objects");
+        new JdbcTemplate(replica).execute("drop all objects");
+    }
+
+    private String who(TransactionTemplate tt) {
+        return tt.execute(new TransactionCallback<String>() {
+                public String doInTransaction(TransactionStatus status) {
+                    return jdbc.queryForObject("select NAME from WHO",
+                                               String.class);
+                }
+            });
+    }
+
+    private void write() {
+        writeTx.execute(new TransactionCallback<Integer>() {
+                public Integer doInTransaction(TransactionStatus status) {
+                    return jdbc.update("insert into DATA values (1)");
+                }
+            });
+    }
+
+    /**
+       Simulate replication of the heartbeat with the given lag.
+    */
+    private void replicateHeartbeat(long lag) {
+        new JdbcTemplate(replica).update("merge into REPLICA_HEARTBEAT " +
+                                         "key (ID) values (1, ?)",
+                                         System.currentTimeMillis() - lag);
+        routing.checkReplicaLag();
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        // Replica not used before its lag is known
+        assertEquals("primary", who(readTx));
+
+        replicateHeartbeat(0);
+        assertTrue(routing.getReplicaLag() < MAX_LAG);
+        assertEquals("replica", who(readTx));
+        assertEquals("primary", who(writeTx));
+    }
+
+    @Test
+    public void testHeartbeat() throws Exception {
+        routing.writeHeartbeat();
+        routing.writeHeartbeat();
+        assertEquals(1, (int)new JdbcTemplate(primary).queryForObject
+                     ("select count(*) from REPLICA_HEARTBEAT", Integer.class));
+
+        // Heartbeat not replicated yet
+        routing.checkReplicaLag();
+        assertEquals(Long.MAX_VALUE, routing.getReplicaLag());
+        assertEquals("primary", who(readTx));
+
+        replicateHeartbeat(100);
+        assertEquals("replica", who(readTx));
+
+        // Lagging too much
+        replicateHeartbeat(MAX_LAG * 2);
+        assertEquals("primary", who(readTx));
+
+        // Unreachable
+        replicateHeartbeat(0);
+        new JdbcTemplate(replica).execute("drop table REPLICA_HEARTBEAT");
+        routing.checkReplicaLag();
+        assertEquals("primary", who(readTx));
+    }
+
+    @Test
+    public void testReadYourWrites() throws Exception {
+        replicateHeartbeat(0);
+        write();
+
+        // The writer reads from the primary for a while, others from
+        // the replica
+        assertEquals("primary", who(readTx));
+
+        SecurityContextHolder.getContext().setAuthentication
+            (new UsernamePasswordAuthenticationToken("bob", null));
+        assertEquals("replica", who(readTx));
+
+        SecurityContextHolder.getContext().setAuthentication
+            (new UsernamePasswordAuthenticationToken("alice", null));
+        Thread.sleep(READ_YOUR_WRITES * 2);
+        replicateHeartbeat(0);
+        assertEquals("replica", who(readTx));
+
+        // A rolled back write doesn't count
+        writeTx.execute(new TransactionCallback<Integer>() {
+                public Integer doInTransaction(TransactionStatus status) {
+                    status.setRollbackOnly();
+                    return jdbc.update("insert into DATA values (2)");
+                }
+            });
+        assertEquals("replica", who(readTx));
+    }
+
+    @Test
+    public void testPinToPrimary() throws Exception {
+        replicateHeartbeat(0);
+        SecurityContextHolder.clearContext();
+
+        ReplicaRoutingDataSource.pinToPrimary();
+        try {
+            assertEquals("primary", who(readTx));
+
+            ReplicaRoutingDataSource.pinToPrimary();
+            ReplicaRoutingDataSource.unpinFromPrimary();
+            assertEquals("primary", who(readTx));
+        } finally {
+            ReplicaRoutingDataSource.unpinFromPrimary();
+        }
+        assertEquals("replica", who(readTx));
+    }
+}
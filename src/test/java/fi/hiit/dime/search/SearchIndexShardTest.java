@@ -0,0 +1,80 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.IOUtils;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class SearchIndexShardTest {
+    @Test
+    public void testEvictedShardStaysOpenWhileUsed() throws Exception {
+        Path dir = Files.createTempDirectory("dime-index");
+        try {
+            SearchIndex index = new SearchIndex(dir.toString(), "Standard",
+                                                true, 1);
+
+            SearchIndex.Shard first = index.acquireShard(1L);
+            IndexWriter writer = first.getIndexWriter();
+            writer.addDocument(new Document());
+            writer.close();
+
+            // Opening a second shard evicts the first one, which is
+            // still in use
+            SearchIndex.Shard second = index.acquireShard(2L);
+            index.releaseShard(2L, second);
+
+            IndexSearcher searcher = first.acquireSearcher();
+            assertNotNull(searcher);
+            assertEquals(1, searcher.getIndexReader().numDocs());
+            first.releaseSearcher(searcher);
+
+            // Closed when the last user releases it
+            index.releaseShard(1L, first);
+            try {
+                first.acquireSearcher();
+                fail("Evicted shard was not closed");
+            } catch (AlreadyClosedException e) {
+            }
+
+            // Acquiring it again opens a new one
+            SearchIndex.Shard again = index.acquireShard(1L);
+            assertNotSame(first, again);
+            searcher = again.acquireSearcher();
+            assertEquals(1, searcher.getIndexReader().numDocs());
+            again.releaseSearcher(searcher);
+            index.releaseShard(1L, again);
+        } finally {
+            IOUtils.rm(dir);
+        }
+    }
+}
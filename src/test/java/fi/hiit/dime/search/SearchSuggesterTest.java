@@ -0,0 +1,101 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import org.apache.lucene.util.IOUtils;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class SearchSuggesterTest {
+    @Test
+    public void testLazyAndEvicted() throws Exception {
+        Path dir = Files.createTempDirectory("dime-suggest");
+        try {
+            SearchSuggester suggester = new SearchSuggester(dir.toString(), 1);
+
+            // Nothing is created for users without suggestions
+            assertTrue(suggester.lookup(1L, "xy", 10).isEmpty());
+            assertFalse(Files.exists(dir.resolve("1")));
+
+            suggester.add(1L, "xylophone", SearchSuggester.titleWeight);
+            suggester.commit();
+            assertEquals(Arrays.asList("xylophone"),
+                         suggester.lookup(1L, "xy", 10));
+
+            // Evicts the suggester of user 1, which is reopened when
+            // needed again
+            suggester.add(2L, "xylem", SearchSuggester.titleWeight);
+            suggester.add(1L, "xyster", SearchSuggester.keywordWeight);
+            suggester.commit();
+            assertEquals(Arrays.asList("xylem"),
+                         suggester.lookup(2L, "xy", 10));
+            assertEquals(Arrays.asList("xylophone", "xyster"),
+                         suggester.lookup(1L, "xy", 10));
+
+            suggester.removeUser(2L);
+            assertFalse(Files.exists(dir.resolve("2")));
+            assertTrue(suggester.lookup(2L, "xy", 10).isEmpty());
+            suggester.close();
+        } finally {
+            IOUtils.rm(dir);
+        }
+    }
+
+    @Test
+    public void testRemoveWhileInUse() throws Exception {
+        Path dir = Files.createTempDirectory("dime-suggest");
+        try {
+            SearchSuggester suggester = new SearchSuggester(dir.toString(), 2);
+            suggester.add(1L, "xylophone", SearchSuggester.titleWeight);
+            suggester.commit();
+
+            SearchSuggester.Entry e = suggester.acquire(1L, false);
+            assertNotNull(e);
+
+            // Kept until released, and not used again meanwhile
+            suggester.removeUser(1L);
+            assertTrue(Files.exists(dir.resolve("1")));
+            assertNull(suggester.acquire(1L, true));
+            assertTrue(suggester.lookup(1L, "xy", 10).isEmpty());
+            suggester.add(1L, "xyster", SearchSuggester.keywordWeight);
+
+            suggester.release(1L, e);
+            assertFalse(Files.exists(dir.resolve("1")));
+
+            // A new suggester can be created after that
+            suggester.add(1L, "xylem", SearchSuggester.titleWeight);
+            suggester.commit();
+            assertEquals(Arrays.asList("xylem"),
+                         suggester.lookup(1L, "xy", 10));
+            suggester.close();
+        } finally {
+            IOUtils.rm(dir);
+        }
+    }
+}
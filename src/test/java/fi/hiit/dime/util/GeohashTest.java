@@ -0,0 +1,88 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class GeohashTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testEncode() {
+        // Reference values from http://geohash.org/
+        assertEquals("u4pruydqqvj", Geohash.encode(57.64911, 10.40744, 11));
+        assertEquals("ezs42", Geohash.encode(42.6, -5.6, 5));
+
+        double[] b = Geohash.bounds("ezs42");
+        assertTrue(b[0] <= 42.6 && 42.6 <= b[2]);
+        assertTrue(b[1] <= -5.6 && -5.6 <= b[3]);
+        assertEquals(Geohash.cellHeight(5), b[2] - b[0], DELTA);
+        assertEquals(Geohash.cellWidth(5), b[3] - b[1], DELTA);
+    }
+
+    @Test
+    public void testRanges() {
+        assertEquals("c", Geohash.increment("bz"));
+        assertEquals("b1", Geohash.increment("b0"));
+        assertNull(Geohash.increment("zz"));
+
+        List<String[]> ranges =
+            Geohash.ranges(Arrays.asList("bx", "bz", "c0", "c1", "zz"));
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new String[] { "bx", "by" }, ranges.get(0));
+        assertArrayEquals(new String[] { "bz", "c2" }, ranges.get(1));
+        assertArrayEquals(new String[] { "zz", null }, ranges.get(2));
+    }
+
+    @Test
+    public void testCover() {
+        // Every cell overlaps the box, and every point in the box is
+        // inside one of the cells
+        double minLat = 60.1, minLon = 24.8, maxLat = 60.3, maxLon = 25.1;
+        int precision = Geohash.coverPrecision(minLat, minLon, maxLat,
+                                               maxLon, 16);
+        assertTrue(precision > 0);
+        List<String> cells = Geohash.cells(minLat, minLon, maxLat, maxLon,
+                                           precision, 16);
+        assertTrue(cells.size() <= 16);
+        assertNull(Geohash.cells(minLat, minLon, maxLat, maxLon,
+                                 precision + 1, 16));
+
+        for (double lat=minLat; lat<=maxLat; lat+=0.01)
+            for (double lon=minLon; lon<=maxLon; lon+=0.01)
+                assertTrue(cells.contains(Geohash.encode(lat, lon,
+                                                         precision)));
+
+        GeoArea area = GeoArea.fromParams(null, "60.17,24.94", "1000");
+        assertTrue(area.contains(60.17, 24.95));
+        assertFalse(area.contains(60.17, 24.96));
+        assertFalse(area.contains(60.18, 24.94));
+        assertFalse(area.contains(null, 24.94));
+    }
+}
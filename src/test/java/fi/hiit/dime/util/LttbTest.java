@@ -0,0 +1,67 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class LttbTest {
+    @Test
+    public void testFewPoints() {
+        double[] x = { 0, 1, 2, 3 };
+        double[] y = { 5, 1, 4, 2 };
+        assertArrayEquals(new int[] { 0, 1, 2, 3 }, Lttb.select(x, y, 10));
+        assertArrayEquals(new int[] { 0, 1, 2, 3 }, Lttb.select(x, y, 2));
+    }
+
+    @Test
+    public void testKeepsPeaks() {
+        // Flat line with one spike and one dip, which must survive
+        int n = 1000;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i=0; i<n; i++) {
+            x[i] = i;
+            y[i] = 1.0;
+        }
+        y[123] = 100.0;
+        y[789] = -100.0;
+
+        int[] idx = Lttb.select(x, y, 50);
+        assertEquals(50, idx.length);
+        assertEquals(0, idx[0]);
+        assertEquals(n-1, idx[idx.length-1]);
+
+        boolean spike = false, dip = false;
+        for (int i=0; i<idx.length; i++) {
+            if (i > 0)
+                assertTrue(idx[i] > idx[i-1]);
+            spike |= idx[i] == 123;
+            dip |= idx[i] == 789;
+        }
+        assertTrue(spike);
+        assertTrue(dip);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+  Copyright (c) 2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+
+package fi.hiit.dime.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class PackedArraysTest {
+    @Test
+    public void testRoundTrip() {
+        double[] xs = { 0.0, -1.5, 612.25, Double.MAX_VALUE };
+        long[] times = { 1456829040000000l, 1456829040016000l,
+                         1456829040008000l, Long.MIN_VALUE, Long.MAX_VALUE };
+        long[] durations = { 16000, 0, -3 };
+
+        byte[] data = new PackedArrays.Writer()
+            .writeDoubles(xs).writeDoubles(null).writeDoubles(new double[0])
+            .writeLongs(times).writeLongs(durations).writeLongs(null)
+            .toByteArray();
+
+        PackedArrays.Reader r = new PackedArrays.Reader(data);
+        assertArrayEquals(xs, r.readDoubles(), 0.0);
+        assertNull(r.readDoubles());
+        assertEquals(0, r.readDoubles().length);
+        assertArrayEquals(times, r.readLongs());
+        assertArrayEquals(durations, r.readLongs());
+        assertNull(r.readLongs());
+    }
+
+    @Test
+    public void testDeltaEncoding() {
+        // Increasing timestamps 16 ms apart should take a few bytes
+        // each, not eight
+        long[] times = new long[1000];
+        for (int i=0; i<times.length; i++)
+            times[i] = 1456829040000000l + i*16000l;
+
+        byte[] data = new PackedArrays.Writer().writeLongs(times)
+            .toByteArray();
+        assertTrue(data.length < 4*times.length);
+        assertArrayEquals(times, new PackedArrays.Reader(data).readLongs());
+    }
+}